@@ -10,26 +10,43 @@ package connection;
 
 import java.time.LocalDateTime;
 
+import packet.frame.FrameCodec;
+
+import sender.AbstractSender;
+
 public class ConnectionDto {
     
     private String id;
     private String ip;
     private int port;
 
+    // The cluster the other end belongs to, null until it is known
+    private String clusterId;
+
     // This is when the expiration happens, which is twice the send time of each KeepAlive packet.
     private int keepAliveTimeoutSeconds;
 
     private Priority priority;
-    private LocalDateTime lastActivity;
     private LocalDateTime initalConnectionTime;
 
+    // When true the sender for this connection keeps one socket open and reuses it for every packet
+    private boolean persistentConnection = false;
+
+    // The wire format agreed with this connection during INITIALIZATION, see packet.frame.FrameCodec
+    private byte frameVersion = FrameCodec.VERSION_LEGACY;
+
+    // The one sender for this connection, created on the first send and closed when the connection is terminated
+    private AbstractSender sender;
+
+    // Traffic counters and the last activity stamp, updated without a lock from any thread sending or recieving
+    private final ConnectionStats stats = new ConnectionStats();
+
     public ConnectionDto(String id, String ip, int port, Priority priority) {
         this.id = id;
         this.ip = ip;
         this.port = port;
         this.priority = priority;
         initalConnectionTime = LocalDateTime.now();
-        lastActivity = LocalDateTime.now();
         this.keepAliveTimeoutSeconds = 60;
     }
 
@@ -42,13 +59,24 @@ public class ConnectionDto {
 
     public int getPort() { return port; }
 
+    public String getClusterId() { return clusterId; }
+
     public Priority getPriority() { return priority; }
 
     public int getKeepAliveTimeout() { return keepAliveTimeoutSeconds; }
 
     public LocalDateTime getInitialConnectionTime() { return initalConnectionTime; }
 
-    public LocalDateTime getLastActivity() { return lastActivity; }
+    // Worked out from the nanoTime stamp, only the expiry checks and logs ever ask for it
+    public LocalDateTime getLastActivity() { return LocalDateTime.now().minusNanos(stats.nanosSinceLastActivity()); }
+
+    public ConnectionStats getStats() { return stats; }
+
+    public boolean isPersistentConnection() { return persistentConnection; }
+
+    public byte getFrameVersion() { return frameVersion; }
+
+    public synchronized AbstractSender getSender() { return sender; }
 
     /*
      * 
@@ -61,11 +89,20 @@ public class ConnectionDto {
 
     public void setPort(int port) { this.port = port; }
 
+    public void setClusterId(String clusterId) { this.clusterId = clusterId; }
+
     public void setKeepAliveTimeout(int keepAliveTimeoutSeconds) { this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds; }
 
     public void setPriority(Priority priority) { this.priority = priority; }
 
-    public void updateLastActivity() { this.lastActivity = LocalDateTime.now(); }
+    public void setPersistentConnection(boolean persistentConnection) { this.persistentConnection = persistentConnection; }
+
+    public void setFrameVersion(byte frameVersion) { this.frameVersion = frameVersion; }
+
+    public synchronized void setSender(AbstractSender sender) { this.sender = sender; }
+
+    // Called for every packet from this connection, so it only stamps the time (no LocalDateTime is made)
+    public void updateLastActivity() { stats.touch(); }
 
     /*
      *      Stringify
@@ -10,13 +10,15 @@
 
 package connection;
 
-import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import sender.AbstractSender;
 import sender.PacketSender;
+import sender.persistent_connection.PersistentConnectionPool;
 
 import packet.AbstractPacket;
 
@@ -26,8 +28,6 @@ public class ConnectionDtoManager {
     
     private ConnectionDto connectionInfo;
 
-    private AbstractSender sender;
-    private Boolean hasSender = false;
 
     public ConnectionDtoManager(ConnectionDto connectionInfo) {
         this.connectionInfo = connectionInfo;
@@ -38,34 +38,62 @@ public class ConnectionDtoManager {
      */
     
     public boolean isExpired() {
-        return connectionInfo.getLastActivity().plusSeconds(connectionInfo.getKeepAliveTimeout())
-            .isBefore(LocalDateTime.now());
+        return connectionInfo.getStats().nanosSinceLastActivity() > TimeUnit.SECONDS.toNanos(connectionInfo.getKeepAliveTimeout());
     }
 
     public void createSender() {
 
         if(connectionInfo.getPort() == 0) {
-            logger.error("Port is not set for connection " + connectionInfo.getId() +"!");
+            logger.error("Port is not set for connection {}!", connectionInfo.getId());
             return;
         }
         // Create sender for this node
         try {
-            this.sender = new PacketSender(connectionInfo.getIp(), connectionInfo.getPort());
-            hasSender = true;
-            logger.info("Sender Created for connection: " + connectionInfo.getId() + " - " + connectionInfo.getIp() +":" + connectionInfo.getPort());
+            AbstractSender sender = new PacketSender(connectionInfo.getIp(), connectionInfo.getPort());
+            sender.setPersistent(connectionInfo.isPersistentConnection());
+            sender.setFrameVersion(connectionInfo.getFrameVersion());
+            sender.setStats(connectionInfo.getStats());     // What the sender sends and gets back is counted against this connection
+            sender.setPeerId(connectionInfo.getId());
+            connectionInfo.setSender(sender);
+            logger.info("Sender Created for connection: {} - {}:{}", connectionInfo.getId(), connectionInfo.getIp(), connectionInfo.getPort());
         } catch (Exception e) {
-            logger.error("Failed to create sender for connection " + connectionInfo.getId() + ":" + connectionInfo.getPort() + "\n" + e);
+            logger.error("Failed to create sender for connection {}:{}", connectionInfo.getId(), connectionInfo.getPort(), e);
         }
     }
 
-    public boolean send(AbstractPacket packet) {
-        if (sender == null || !hasSender) {
-            // if no sender, create one
-            createSender();
+    // The connection's sender, made on first use and then reused by every manager for this connection
+    private AbstractSender sender() {
+        synchronized (connectionInfo) {
+            if (connectionInfo.getSender() == null) {
+                createSender();
+            }
+            // Picked up on every send since the priority can change after the sender is made, it decides the sender's lanes
+            if (connectionInfo.getSender() != null) {
+                connectionInfo.getSender().setPriority(connectionInfo.getPriority());
+            }
+            return connectionInfo.getSender();
+        }
+    }
+
+    // Called when the connection is terminated, the next send (if any) would start a fresh sender
+    public void closeSender() {
+        AbstractSender closing;
+        synchronized (connectionInfo) {
+            closing = connectionInfo.getSender();
+            connectionInfo.setSender(null);
         }
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    public boolean send(AbstractPacket packet) {
+        AbstractSender sender = sender();
         boolean sent = sender.send(packet);
+        connectionInfo.setFrameVersion(sender.getFrameVersion());    // Keeps what was negotiated for the next sender
         if(!sent) {
-            boolean retry = sender.retry(packet);
+            boolean retry = sender.retry(packet).join();     // send() is for callers that have to wait, see sendWithRetry()
+            connectionInfo.setFrameVersion(sender.getFrameVersion());
             if(!retry){
                 return false;
             }
@@ -78,4 +106,47 @@ public class ConnectionDtoManager {
         return false;
     }
 
+    // Same as send(), retries and all, but nothing blocks the calling thread
+    public CompletableFuture<Boolean> sendWithRetry(AbstractPacket packet) {
+        AbstractSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendWithRetry(packet).whenComplete((sent, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
+    /* Sends without waiting for the response, which the future completes with (ACK, ERROR, ...).
+     * Unlike send() there is no blocking retry, a failed or timed out packet completes the future exceptionally.
+     */
+    public CompletableFuture<AbstractPacket> sendAsync(AbstractPacket packet) {
+        return sendAsync(packet, PersistentConnectionPool.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    // Fails the future with a TimeoutException if no response comes back within the timeout
+    public CompletableFuture<AbstractPacket> sendAsync(AbstractPacket packet, long timeoutMillis) {
+        AbstractSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendAsync(packet, timeoutMillis).whenComplete((response, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
+    // Same as sendAsync(), but small packets to this connection may be coalesced into one frame
+    public CompletableFuture<AbstractPacket> sendBatched(AbstractPacket packet) {
+        AbstractSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendBatched(packet).whenComplete((response, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
 }
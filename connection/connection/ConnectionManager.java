@@ -10,20 +10,34 @@
 
 package connection;
 
-import java.util.Iterator;
-
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import connection.flight_recorder.ConnectionAddedEvent;
+import connection.flight_recorder.ConnectionTerminatedEvent;
+
 import packet.AbstractPacket;
 import packet.keep_alive.KeepAliveManager;
 
 public abstract class ConnectionManager {
 
-    protected final ConcurrentHashMap<String, ConnectionDto> activeConnections = new ConcurrentHashMap<>();
+    // Thread safe, with indexes by ip:port, cluster and priority - see connection.ConnectionRegistry
+    protected final ConnectionRegistry<ConnectionDto> activeConnections = new ConnectionRegistry<>(
+        ConnectionDto::getId, ConnectionDto::getIp, ConnectionDto::getPort, ConnectionDto::getClusterId, ConnectionDto::getPriority
+    );
+
+    // When each connection expires, pushed back on every keep alive so expiry checks only see what is due
+    protected final ExpiryWheel<String> expiryWheel = new ExpiryWheel<>();
+
+    // Expired CRITICAL connections are probed in parallel, capped so a mass expiry can not flood the network
+    protected final ProbeLimiter probes = new ProbeLimiter();
+
+    // How long a probed connection has to answer before it is terminated
+    public static final long PROBE_TIMEOUT_MILLIS = 2000;
     protected final String instanceId; // ID of the instance that created this connection manager
     protected final String clusterId; // ID of the cluster this instance is assigned to
     protected final String role;
@@ -84,32 +98,43 @@ public abstract class ConnectionManager {
             End abstraction
     */
     
+    // Run once a tick. Only connections whose keep alive timeout has passed come out of the wheel, and nothing here waits on I/O
     public void checkExpiredConnections() {
-        // Create an iterator for the ConccurentHashMap since it needs an iterator
-        Iterator<Map.Entry<String, ConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()) {
-            // Check if each entry is expired, if it is, check the priority to see if it needs to be removed or kept alive
-            Map.Entry<String, ConnectionDto> entry = iterator.next();
-            if(new ConnectionDtoManager(entry.getValue()).isExpired()){
-
-                KeepAliveManager manager = new KeepAliveManager(instanceId, clusterId, entry.getValue().getId(), null);
-                
-                if(entry.getValue().getPriority() == Priority.CRITICAL){
-
-                    AbstractPacket keepAliveProbe =  manager.createOutgoingPacket();
-
-                    boolean sendSuccess = new ConnectionDtoManager(entry.getValue()).send( keepAliveProbe );
-                    if(!sendSuccess) {
-                        logger.warn("Connection: \"{}\" has been terminated due to failed retry!", entry.getValue().getId());
-                        terminateConnection(entry.getValue().getId());
-                    }
-                }
-                else {
-                    logger.warn("Connection: \"{}\" has been terminated due to priority status!", entry.getValue().getId()); 
-                    terminateConnection(entry.getValue().getId());
-                }
+
+        for (String id : expiryWheel.advance()) {
+            ConnectionDto connection = activeConnections.get(id);
+
+            // Already gone, or a keep alive came in and rescheduled it since it was taken out of the wheel
+            if (connection == null || expiryWheel.contains(id)) {
+                continue;
+            }
+
+            // Check the priority to see if it needs to be removed or kept alive
+            if(connection.getPriority() == Priority.CRITICAL){
+
+                KeepAliveManager manager = new KeepAliveManager(instanceId, clusterId, connection.getId(), null);
+
+                AbstractPacket keepAliveProbe =  manager.createOutgoingPacket();
+
+                // Probes go out in parallel (up to the limit) and never hold up the sweep, a probe that fails or times out terminates the connection
+                probes.submit(() -> new ConnectionDtoManager(connection).sendAsync(keepAliveProbe, PROBE_TIMEOUT_MILLIS))
+                    .whenComplete((response, e) -> {
+                        // Rescheduled by a keep alive while the probe was out, or already terminated
+                        if (expiryWheel.contains(id) || !activeConnections.containsKey(id)) {
+                            return;
+                        }
+                        if (e != null) {
+                            logger.warn("Connection: \"{}\" has been terminated due to a failed keep alive probe!", connection.getId());
+                            terminateConnection(connection.getId());
+                        } else {
+                            // It answered the probe, so it gets another full timeout
+                            scheduleExpiry(connection);
+                        }
+                    });
+            }
+            else {
+                logger.warn("Connection: \"{}\" has been terminated due to priority status!", connection.getId()); 
+                terminateConnection(connection.getId());
             }
         }
     }
@@ -119,22 +144,47 @@ public abstract class ConnectionManager {
      */
 
     public void terminateConnection(String id) {
-        ConnectionDto remove = activeConnections.get(id);
-        logger.info("Terminated Connection: \n  ID:" + remove.getId() 
-            + "\n  IP - " + remove.getIp() + ":" + remove.getPort()
+        // Removed first so two threads terminating the same connection only do it once
+        ConnectionDto remove = activeConnections.remove(id);
+        if (remove == null) {
+            return;
+        }
+        expiryWheel.cancel(remove.getId());
+        new ConnectionDtoManager(remove).closeSender();
+        logger.info(
+            "Terminated Connection: \n  ID:{}\n  IP - {}:{}",
+            remove.getId(),
+            remove.getIp(),
+            remove.getPort()
         );
-        activeConnections.remove(remove.getId());
-
+        new ConnectionTerminatedEvent().commit(role, remove.getId(), remove.getIp(), remove.getPort(), remove.getPriority(), remove.getStats());
     }
 
 
     // Can allow for multiple connections to be added at once(if needed)
     public void addConnection(ConnectionDto... connection) {
         for(ConnectionDto connected : connection) {
-            activeConnections.put(connected.getId(), connected);
+            activeConnections.put(connected);
+            scheduleExpiry(connected);
+            new ConnectionAddedEvent().commit(role, connected.getId(), connected.getIp(), connected.getPort(), connected.getPriority());
         }
     }
 
+    // A packet from this connection shows it is alive, so its expiry is pushed back a full keep alive timeout
+    public boolean updateLastActivity(String id) {
+        ConnectionDto connection = activeConnections.get(id);
+        if (connection == null) {
+            return false;
+        }
+        connection.updateLastActivity();
+        scheduleExpiry(connection);
+        return true;
+    }
+
+    private void scheduleExpiry(ConnectionDto connection) {
+        expiryWheel.schedule(connection.getId(), TimeUnit.SECONDS.toMillis(connection.getKeepAliveTimeout()));
+    }
+
 
     /*
      *      Getters
@@ -147,22 +197,20 @@ public abstract class ConnectionManager {
 
     public ConnectionDto getConnectionInfoById(String id) { return activeConnections.get(id); }
 
-    public ConcurrentHashMap<String, ConnectionDto> getActiveConnections() { return activeConnections; }
-
-    public String[] getAllIds() { return activeConnections.keySet().toArray(new String[0]); }
+    // A consistent copy, safe to iterate while connections come and go
+    public Map<String, ConnectionDto> getActiveConnections() { return activeConnections.snapshotMap(); }
 
-    public int getActiveConnectionCount() {
+    public ConnectionRegistry<ConnectionDto> getRegistry() { return activeConnections; }
 
-        int connectionCount = 0;
+    public String[] getAllIds() { return activeConnections.ids().toArray(new String[0]); }
 
-        Iterator<Map.Entry<String, ConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()){
-            connectionCount++;
-        }
+    public int getActiveConnectionCount() { return activeConnections.size(); }
 
-        return connectionCount;
+    // Every connection's traffic counters right now, by ID (see connection.ConnectionStats)
+    public Map<String, ConnectionStats.Snapshot> getStatsSnapshots() {
+        Map<String, ConnectionStats.Snapshot> snapshots = new LinkedHashMap<>();
+        activeConnections.forEach((id, connection) -> snapshots.put(id, connection.getStats().snapshot()));
+        return snapshots;
     }
 
 
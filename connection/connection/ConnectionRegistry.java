@@ -0,0 +1,283 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The connection map shared by every tier's connection manager. Handler threads add and remove
+ *      connections while the expiry timer, keep alive senders and peer list requests read them, so it has to
+ *      be safe and cheap from any thread:
+ *
+ *          - Reads never lock, everything is held in ConcurrentHashMaps
+ *          - Writes lock one of a fixed set of stripes (picked by the connection id), so the connection and its
+ *            index entries change together while writes to other connections carry on
+ *          - Secondary indexes by ip:port, cluster id and priority, so finding those does not walk every entry
+ *          - snapshot() is a consistent point in time copy, taken without stopping writers unless they keep
+ *            landing in the middle of the copy
+ *
+ *      It works on any of the tier DTOs (ConnectionDto, ServerConnectionDto, ...) through the getters handed to
+ *      the constructor. If a DTO's ip, port, cluster or priority is changed after it was added, call reindex().
+ */
+package connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+public class ConnectionRegistry<D> {
+
+    private static final int STRIPES = 16;
+
+    // Tries at copying without any locks before snapshot() stops writers for a moment
+    private static final int OPTIMISTIC_SNAPSHOT_TRIES = 8;
+
+    private final Function<D, String> idOf;
+    private final Function<D, String> ipOf;
+    private final ToIntFunction<D> portOf;
+    private final Function<D, String> clusterOf;
+    private final Function<D, ? extends Enum<?>> priorityOf;
+
+    private final ConcurrentHashMap<String, D> byId = new ConcurrentHashMap<>();
+
+    // Secondary indexes, each maps to connection ids
+    private final ConcurrentHashMap<String, String> byAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byCluster = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Enum<?>, Set<String>> byPriority = new ConcurrentHashMap<>();
+
+    // What each connection was indexed under, so removing it takes out exactly what was put in
+    private final ConcurrentHashMap<String, IndexKeys> indexed = new ConcurrentHashMap<>();
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    // A write is in progress while these differ, snapshot() uses them to tell if a copy is consistent
+    private final AtomicLong writesStarted = new AtomicLong();
+    private final AtomicLong writesFinished = new AtomicLong();
+
+    private static final class IndexKeys {
+        final String address;
+        final String cluster;
+        final Enum<?> priority;
+
+        IndexKeys(String address, String cluster, Enum<?> priority) {
+            this.address = address;
+            this.cluster = cluster;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * @param idOf The connection's unique id, the primary key
+     * @param ipOf Used with portOf for the ip:port index
+     * @param portOf Used with ipOf for the ip:port index
+     * @param clusterOf The cluster the connection is in, may return null
+     * @param priorityOf The connection's priority, may return null
+     */
+    public ConnectionRegistry(
+        Function<D, String> idOf,
+        Function<D, String> ipOf,
+        ToIntFunction<D> portOf,
+        Function<D, String> clusterOf,
+        Function<D, ? extends Enum<?>> priorityOf
+    ) {
+        this.idOf = idOf;
+        this.ipOf = ipOf;
+        this.portOf = portOf;
+        this.clusterOf = clusterOf;
+        this.priorityOf = priorityOf;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /*
+     *      Writes
+     */
+
+    // @return the connection that was registered under the same id before, or null
+    public D put(D connection) {
+        String id = idOf.apply(connection);
+        ReentrantLock stripe = stripeOf(id);
+
+        stripe.lock();
+        writesStarted.incrementAndGet();
+        try {
+            D previous = byId.put(id, connection);
+            unindex(id);
+            index(id, connection);
+            return previous;
+        } finally {
+            writesFinished.incrementAndGet();
+            stripe.unlock();
+        }
+    }
+
+    // @return the removed connection, or null if there was none
+    public D remove(String id) {
+        if (id == null) {
+            return null;
+        }
+        ReentrantLock stripe = stripeOf(id);
+
+        stripe.lock();
+        writesStarted.incrementAndGet();
+        try {
+            D removed = byId.remove(id);
+            unindex(id);
+            return removed;
+        } finally {
+            writesFinished.incrementAndGet();
+            stripe.unlock();
+        }
+    }
+
+    // Rebuilds the index entries of a connection whose ip, port, cluster or priority changed
+    public void reindex(String id) {
+        ReentrantLock stripe = stripeOf(id);
+
+        stripe.lock();
+        writesStarted.incrementAndGet();
+        try {
+            unindex(id);
+            D connection = byId.get(id);
+            if (connection != null) {
+                index(id, connection);
+            }
+        } finally {
+            writesFinished.incrementAndGet();
+            stripe.unlock();
+        }
+    }
+
+    // Must hold the id's stripe
+    private void index(String id, D connection) {
+        IndexKeys keys = new IndexKeys(
+            address(ipOf.apply(connection), portOf.applyAsInt(connection)),
+            clusterOf.apply(connection),
+            priorityOf.apply(connection)
+        );
+        indexed.put(id, keys);
+
+        byAddress.put(keys.address, id);
+        if (keys.cluster != null) {
+            byCluster.computeIfAbsent(keys.cluster, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+        if (keys.priority != null) {
+            byPriority.computeIfAbsent(keys.priority, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    // Must hold the id's stripe
+    private void unindex(String id) {
+        IndexKeys keys = indexed.remove(id);
+        if (keys == null) {
+            return;
+        }
+
+        // Only if no other connection has since taken over the address
+        byAddress.remove(keys.address, id);
+        if (keys.cluster != null) {
+            byCluster.computeIfPresent(keys.cluster, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+        if (keys.priority != null) {
+            byPriority.computeIfPresent(keys.priority, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    /*
+     *      Reads - none of these lock
+     */
+
+    public D get(String id) { return id == null ? null : byId.get(id); }
+
+    public boolean containsKey(String id) { return id != null && byId.containsKey(id); }
+
+    public D getByAddress(String ip, int port) {
+        String id = byAddress.get(address(ip, port));
+        return id == null ? null : byId.get(id);
+    }
+
+    public List<D> getByCluster(String clusterId) { return resolve(byCluster.get(clusterId)); }
+
+    public List<D> getByPriority(Enum<?> priority) { return resolve(byPriority.get(priority)); }
+
+    private List<D> resolve(Set<String> ids) {
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        List<D> connections = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            D connection = byId.get(id);
+            if (connection != null) {
+                connections.add(connection);
+            }
+        }
+        return connections;
+    }
+
+    public int size() { return byId.size(); }
+
+    public boolean isEmpty() { return byId.isEmpty(); }
+
+    /*
+     *      Snapshots
+     */
+
+    /**
+     * Every connection as of one moment. The copy is retried while writes land in the middle of it, and
+     * only if they keep doing so are the writers held off (every stripe locked) for the length of one copy.
+     */
+    public Map<String, D> snapshotMap() {
+        for (int i = 0; i < OPTIMISTIC_SNAPSHOT_TRIES; i++) {
+            long started = writesStarted.get();
+            if (writesFinished.get() != started) {
+                Thread.onSpinWait();    // A write is half done
+                continue;
+            }
+            Map<String, D> copy = new LinkedHashMap<>(byId);
+            if (writesStarted.get() == started) {
+                return copy;
+            }
+        }
+
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            return new LinkedHashMap<>(byId);
+        } finally {
+            for (ReentrantLock stripe : stripes) {
+                stripe.unlock();
+            }
+        }
+    }
+
+    public List<D> snapshot() { return new ArrayList<>(snapshotMap().values()); }
+
+    public List<String> ids() { return new ArrayList<>(snapshotMap().keySet()); }
+
+    // Runs over a snapshot, so the action is free to add or remove connections
+    public void forEach(BiConsumer<String, D> action) { snapshotMap().forEach(action); }
+
+    /*
+     *      Helpers
+     */
+
+    private ReentrantLock stripeOf(String id) {
+        int h = id.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static String address(String ip, int port) { return ip + ":" + port; }
+}
@@ -0,0 +1,264 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Traffic counters for one connection - packets and bytes each way, how its packets were answered
+ *      (ACK, ERROR or nothing at all), how often they had to be retried and how long the round trips took.
+ *      Enough to tell which peers are hot, which are slow and which keep dropping out.
+ *
+ *      Every connection DTO has one. The sender made for the connection counts what goes out and what comes
+ *      back, the handlers count what the peer sends in. Nothing here takes a lock or allocates - the counters
+ *      are LongAdders (so threads sending to the same connection do not fight over one cache line), the RTTs
+ *      go in a lib.Histogram and the time stamps are System.nanoTime() written through a VarHandle.
+ *
+ *      Bytes are the packet bodies (the json), not counting the few bytes of frame header.
+ *
+ *      Usage:
+ *          ConnectionStats.Snapshot stats = connection.getStats().snapshot();
+ *          logger.info(stats);     // Or stats.toPayload() to send it on in a packet
+ */
+package connection;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lib.Histogram;
+
+public class ConnectionStats {
+
+    private static final VarHandle LAST_ACTIVITY_NANOS;
+    private static final VarHandle LAST_SENT_NANOS;
+    private static final VarHandle LAST_RESPONSE_NANOS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            LAST_ACTIVITY_NANOS = lookup.findVarHandle(ConnectionStats.class, "lastActivityNanos", long.class);
+            LAST_SENT_NANOS = lookup.findVarHandle(ConnectionStats.class, "lastSentNanos", long.class);
+            LAST_RESPONSE_NANOS = lookup.findVarHandle(ConnectionStats.class, "lastResponseNanos", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // The packets the peer sent to us, its responses to our packets are counted as ACKs/ERRORs below
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();     // Counts response bodies too
+
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    private final LongAdder acks = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder failures = new LongAdder();    // Sent, but no response came back (timed out, refused, ...)
+    private final LongAdder retries = new LongAdder();
+
+    // Time from the packet going out to its response being read
+    private final Histogram rtt = new Histogram("rtt", "us");
+
+    private final long createdNanos = System.nanoTime();
+
+    // Only ever read with getOpaque() - they are stamps for humans and expiry checks, nothing is ordered by them
+    @SuppressWarnings("unused") private long lastActivityNanos = createdNanos;
+    @SuppressWarnings("unused") private long lastSentNanos;
+    @SuppressWarnings("unused") private long lastResponseNanos;
+
+    /*
+     *      Recording - called from any thread
+     */
+
+    // Something came from the peer, pushes back when it is seen as gone (see updateLastActivity() on the DTOs)
+    public void touch() {
+        LAST_ACTIVITY_NANOS.setOpaque(this, System.nanoTime());
+    }
+
+    // A packet the peer sent to us
+    public void recordReceived(int bytes) {
+        packetsIn.increment();
+        bytesIn.add(bytes);
+        touch();
+    }
+
+    public void recordSent(int bytes) {
+        packetsOut.increment();
+        bytesOut.add(bytes);
+        LAST_SENT_NANOS.setOpaque(this, System.nanoTime());
+    }
+
+    /**
+     * The response to one of our packets
+     * @param ack True for an ACK, anything else is counted as an ERROR
+     * @param sentNanos System.nanoTime() from when the packet went out
+     */
+    public void recordResponse(int bytes, boolean ack, long sentNanos) {
+        long now = System.nanoTime();
+        if (ack) {
+            acks.increment();
+        } else {
+            errors.increment();
+        }
+        bytesIn.add(bytes);
+        rtt.record(TimeUnit.NANOSECONDS.toMicros(now - sentNanos));
+        LAST_RESPONSE_NANOS.setOpaque(this, now);
+        LAST_ACTIVITY_NANOS.setOpaque(this, now);
+    }
+
+    public void recordFailure() {
+        failures.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /*
+     *      Reading
+     */
+
+    public long getLastActivityNanos() { return (long) LAST_ACTIVITY_NANOS.getOpaque(this); }
+
+    public long nanosSinceLastActivity() { return System.nanoTime() - getLastActivityNanos(); }
+
+    public Histogram getRtt() { return rtt; }
+
+    /**
+     * A copy of every counter, for the coordinator or a metrics endpoint. The counters keep moving while it
+     * is taken, so two of them may be a packet apart, but each one is exact.
+     */
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        return new Snapshot(
+            packetsIn.sum(), bytesIn.sum(), packetsOut.sum(), bytesOut.sum(),
+            acks.sum(), errors.sum(), failures.sum(), retries.sum(),
+            rtt.getCount(), (long) rtt.getMean(), rtt.getPercentile(50), rtt.getPercentile(99), rtt.getMax(),
+            millisSince(now, createdNanos),
+            millisSince(now, getLastActivityNanos()),
+            millisSince(now, (long) LAST_SENT_NANOS.getOpaque(this)),
+            millisSince(now, (long) LAST_RESPONSE_NANOS.getOpaque(this))
+        );
+    }
+
+    // -1 when it never happened
+    private static long millisSince(long now, long stampNanos) {
+        return (stampNanos == 0) ? -1 : TimeUnit.NANOSECONDS.toMillis(now - stampNanos);
+    }
+
+    /*
+     *      The counters at one point in time
+     */
+    public static final class Snapshot {
+        private final long packetsIn;
+        private final long bytesIn;
+        private final long packetsOut;
+        private final long bytesOut;
+        private final long acks;
+        private final long errors;
+        private final long failures;
+        private final long retries;
+
+        private final long rttCount;
+        private final long rttMeanMicros;
+        private final long rttP50Micros;     // Upper bound of the bucket, see lib.Histogram
+        private final long rttP99Micros;
+        private final long rttMaxMicros;
+
+        private final long ageMillis;
+        private final long idleMillis;
+        private final long sinceLastSentMillis;
+        private final long sinceLastResponseMillis;
+
+        private Snapshot(
+            long packetsIn, long bytesIn, long packetsOut, long bytesOut,
+            long acks, long errors, long failures, long retries,
+            long rttCount, long rttMeanMicros, long rttP50Micros, long rttP99Micros, long rttMaxMicros,
+            long ageMillis, long idleMillis, long sinceLastSentMillis, long sinceLastResponseMillis
+        ) {
+            this.packetsIn = packetsIn;
+            this.bytesIn = bytesIn;
+            this.packetsOut = packetsOut;
+            this.bytesOut = bytesOut;
+            this.acks = acks;
+            this.errors = errors;
+            this.failures = failures;
+            this.retries = retries;
+            this.rttCount = rttCount;
+            this.rttMeanMicros = rttMeanMicros;
+            this.rttP50Micros = rttP50Micros;
+            this.rttP99Micros = rttP99Micros;
+            this.rttMaxMicros = rttMaxMicros;
+            this.ageMillis = ageMillis;
+            this.idleMillis = idleMillis;
+            this.sinceLastSentMillis = sinceLastSentMillis;
+            this.sinceLastResponseMillis = sinceLastResponseMillis;
+        }
+
+        /*
+         *      Getters
+         */
+        public long getPacketsIn() { return packetsIn; }
+
+        public long getBytesIn() { return bytesIn; }
+
+        public long getPacketsOut() { return packetsOut; }
+
+        public long getBytesOut() { return bytesOut; }
+
+        public long getAcks() { return acks; }
+
+        public long getErrors() { return errors; }
+
+        public long getFailures() { return failures; }
+
+        public long getRetries() { return retries; }
+
+        public long getRttCount() { return rttCount; }
+
+        public long getRttMeanMicros() { return rttMeanMicros; }
+
+        public long getRttP50Micros() { return rttP50Micros; }
+
+        public long getRttP99Micros() { return rttP99Micros; }
+
+        public long getRttMaxMicros() { return rttMaxMicros; }
+
+        public long getAgeMillis() { return ageMillis; }
+
+        public long getIdleMillis() { return idleMillis; }
+
+        public long getSinceLastSentMillis() { return sinceLastSentMillis; }
+
+        public long getSinceLastResponseMillis() { return sinceLastResponseMillis; }
+
+        // Flat string pairs, the shape of a packet payload, so a tier can pass its connections' stats up the hierarchy
+        public LinkedHashMap<String, String> toPayload() {
+            LinkedHashMap<String, String> payload = new LinkedHashMap<>();
+            payload.put("packetsIn", String.valueOf(packetsIn));
+            payload.put("bytesIn", String.valueOf(bytesIn));
+            payload.put("packetsOut", String.valueOf(packetsOut));
+            payload.put("bytesOut", String.valueOf(bytesOut));
+            payload.put("acks", String.valueOf(acks));
+            payload.put("errors", String.valueOf(errors));
+            payload.put("failures", String.valueOf(failures));
+            payload.put("retries", String.valueOf(retries));
+            payload.put("rttCount", String.valueOf(rttCount));
+            payload.put("rttMeanMicros", String.valueOf(rttMeanMicros));
+            payload.put("rttP50Micros", String.valueOf(rttP50Micros));
+            payload.put("rttP99Micros", String.valueOf(rttP99Micros));
+            payload.put("rttMaxMicros", String.valueOf(rttMaxMicros));
+            payload.put("ageMillis", String.valueOf(ageMillis));
+            payload.put("idleMillis", String.valueOf(idleMillis));
+            return payload;
+        }
+
+        @Override
+        public String toString() {
+            return "in=" + packetsIn + " (" + bytesIn + "B) out=" + packetsOut + " (" + bytesOut + "B)"
+                + " ack=" + acks + " error=" + errors + " failed=" + failures + " retried=" + retries
+                + " rtt mean=" + rttMeanMicros + "us p50<=" + rttP50Micros + "us p99<=" + rttP99Micros + "us max=" + rttMaxMicros + "us"
+                + " idle=" + idleMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A hashed timing wheel of connection deadlines, so expiry checks never walk the whole connection map.
+ *
+ *      The wheel is a ring of slots, one per tick. A connection sits in the slot of the tick its deadline
+ *      falls on, in a doubly linked list, and a lookup map finds its entry by id. That makes scheduling,
+ *      rescheduling (every keep alive) and cancelling O(1), and advance() only looks at the slots of the
+ *      ticks that have passed since the last call - which, as long as the wheel spans more than the
+ *      longest timeout, only hold connections that have actually expired.
+ *
+ *      Time comes from System.nanoTime(), so wall clock changes never expire (or revive) a connection.
+ *
+ *      Usage:
+ *          wheel.schedule(id, timeoutMillis);    // on connect, and again on every keep alive
+ *          for (String id : wheel.advance()) {   // once a tick
+ *              ...
+ *          }
+ */
+package connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ExpiryWheel<K> {
+
+    // One second ticks and a ~8.5 minute span, comfortably longer than the 60 second keep alive timeout
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+    public static final int DEFAULT_SLOTS = 512;
+
+    private static final class Entry<K> {
+        final K key;
+        long deadlineTick;
+        int slot;
+        Entry<K> prev;
+        Entry<K> next;
+
+        Entry(K key) { this.key = key; }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Entry<K>[] slots;
+    private final HashMap<K, Entry<K>> entries = new HashMap<>();
+
+    private final long startNanos;
+    private long currentTick = 0;   // The last tick advance() has handled
+
+    public ExpiryWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param tickMillis How precise a deadline is, a connection expires at most one tick late
+     * @param slots Rounded up to a power of two. Timeouts longer than slots * tickMillis still work, but are
+     *              looked at once per trip around the wheel until they are due
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(long tickMillis, int slots) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = (Entry<K>[]) new Entry<?>[size];
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets (or resets) when the key expires. Calling it again for the same key moves the existing deadline.
+     *
+     * @param timeoutMillis From now
+     */
+    public synchronized void schedule(K key, long timeoutMillis) {
+        Entry<K> entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry<>(key);
+            entries.put(key, entry);
+        } else {
+            unlink(entry);
+        }
+
+        long deadlineNanos = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+
+        // Rounded up so nothing expires early, and never into a tick that has already been handled
+        entry.deadlineTick = Math.max(currentTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+        link(entry);
+    }
+
+    // @return true if the key was scheduled
+    public synchronized boolean cancel(K key) {
+        Entry<K> entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * Moves the wheel up to now and takes out everything whose deadline has passed.
+     *
+     * @return the expired keys, each is no longer scheduled
+     */
+    public synchronized List<K> advance() {
+        long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+        List<K> expired = new ArrayList<>();
+
+        // After a long pause every slot is due at most once
+        long ticks = Math.min(nowTick - currentTick, slots.length);
+        for (long i = 1; i <= ticks; i++) {
+            int slot = (int) ((currentTick + i) & mask);
+
+            Entry<K> entry = slots[slot];
+            while (entry != null) {
+                Entry<K> next = entry.next;
+                // Anything still here with a later deadline is a long timeout on a later trip around
+                if (entry.deadlineTick <= nowTick) {
+                    unlink(entry);
+                    entries.remove(entry.key);
+                    expired.add(entry.key);
+                }
+                entry = next;
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return expired;
+    }
+
+    private void link(Entry<K> entry) {
+        int slot = (int) (entry.deadlineTick & mask);
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+    }
+
+    private void unlink(Entry<K> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    /*
+     *      Getters
+     */
+
+    public synchronized boolean contains(K key) { return entries.containsKey(key); }
+
+    public synchronized int size() { return entries.size(); }
+
+    public long getTickMillis() { return TimeUnit.NANOSECONDS.toMillis(tickNanos); }
+}
@@ -0,0 +1,108 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Caps how many keep alive probes are in flight at once, without ever blocking the caller.
+ *
+ *      This only counts permits. A probe that gets one is started on a probe worker, never on the thread that
+ *      submitted it (the expiry sweep, on the shared timer) or on the one that finished the probe before it,
+ *      so a probe that blocks on a connect holds up nothing but its worker. The expiry sweep hands its probes
+ *      over and moves on, so 100 dead connections cost it 100 queue adds instead of minutes of socket timeouts.
+ */
+package connection;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import lib.InstanceContext;
+
+public class ProbeLimiter {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    private static final AtomicInteger workerCount = new AtomicInteger();
+
+    // Starts the probes, shared by every limiter. Threads only exist while probes are starting and die off after a minute idle
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = InstanceContext.sharedThread(r, "Probe-Worker-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    public ProbeLimiter() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public ProbeLimiter(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * @param probe Starts the probe, e.g. () -> dtoManager.sendAsync(probePacket, timeoutMillis). Run on a probe
+     *              worker, and its future should always complete (the probe's own deadline sees to that)
+     * @return completes with the probe's result once it has been started and finished
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> probe) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        // Runs as the instance that submitted it, whichever thread ends up starting it
+        waiting.add(InstanceContext.capture(() -> {
+            CompletableFuture<T> started;
+            try {
+                started = probe.get();
+            } catch (RuntimeException e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            started.whenComplete((value, e) -> {
+                inFlight.decrementAndGet();
+                startWaiting();
+
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        }));
+
+        startWaiting();
+        return result;
+    }
+
+    // Hands queued probes to the workers while there are permits, from whichever thread got there
+    private void startWaiting() {
+        while (!waiting.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();     // Another thread took it first
+                continue;
+            }
+            workers.execute(next);
+        }
+    }
+
+    /*
+     *      Getters
+     */
+
+    public int getInFlight() { return inFlight.get(); }
+
+    public int getWaiting() { return waiting.size(); }
+
+    public int getMaxInFlight() { return maxInFlight; }
+}
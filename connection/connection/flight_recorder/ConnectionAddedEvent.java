@@ -0,0 +1,22 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      See ConnectionEvent.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("edge.ConnectionAdded")
+@Label("Connection Added")
+@Description("A connection added to a connection manager")
+public class ConnectionAddedEvent extends ConnectionEvent {
+
+    public void commit(String role, String connectionId, String ip, int port, Enum<?> priority) {
+        if (fill(role, connectionId, ip, port, priority)) {
+            commit();
+        }
+    }
+}
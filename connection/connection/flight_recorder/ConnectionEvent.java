@@ -0,0 +1,40 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Flight Recorder events for connections coming and going, see PacketEvent for how they are turned on.
+ *      Committed by the connection managers.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+@Category({"Edge", "Connections"})
+public abstract class ConnectionEvent extends Event {
+
+    @Label("Manager")
+    @Description("Role of the connection manager (Server, Node, Coordinator ...)")
+    protected String role;
+
+    @Label("Connection Id")
+    protected String connectionId;
+
+    @Label("Address")
+    protected String address;
+
+    @Label("Priority")
+    protected String priority;
+
+    protected boolean fill(String role, String connectionId, String ip, int port, Enum<?> priority) {
+        if (!shouldCommit()) {
+            return false;
+        }
+        this.role = role;
+        this.connectionId = connectionId;
+        this.address = ip + ":" + port;
+        this.priority = (priority == null) ? null : priority.name();
+        return true;
+    }
+}
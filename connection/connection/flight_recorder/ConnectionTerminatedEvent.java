@@ -0,0 +1,60 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      See ConnectionEvent. Carries what the connection's connection.ConnectionStats counted over its life.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import connection.ConnectionStats;
+
+@Name("edge.ConnectionTerminated")
+@Label("Connection Terminated")
+@Description("A connection removed from a connection manager, expired or closed")
+public class ConnectionTerminatedEvent extends ConnectionEvent {
+
+    @Label("Packets In")
+    protected long packetsIn;
+
+    @Label("Bytes In")
+    @DataAmount
+    protected long bytesIn;
+
+    @Label("Packets Out")
+    protected long packetsOut;
+
+    @Label("Bytes Out")
+    @DataAmount
+    protected long bytesOut;
+
+    @Label("Failures")
+    protected long failures;
+
+    @Label("Age")
+    @Timespan(Timespan.MILLISECONDS)
+    protected long age;
+
+    /**
+     * @param stats The connection's counters, null if it has none
+     */
+    public void commit(String role, String connectionId, String ip, int port, Enum<?> priority, ConnectionStats stats) {
+        if (!fill(role, connectionId, ip, port, priority)) {
+            return;
+        }
+        if (stats != null) {
+            ConnectionStats.Snapshot snapshot = stats.snapshot();
+            this.packetsIn = snapshot.getPacketsIn();
+            this.bytesIn = snapshot.getBytesIn();
+            this.packetsOut = snapshot.getPacketsOut();
+            this.bytesOut = snapshot.getBytesOut();
+            this.failures = snapshot.getFailures();
+            this.age = snapshot.getAgeMillis();
+        }
+        commit();
+    }
+}
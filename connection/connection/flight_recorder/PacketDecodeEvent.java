@@ -0,0 +1,16 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      See PacketEvent.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("edge.PacketDecode")
+@Label("Packet Decode")
+@Description("Time to rebuild a packet from a frame, a request in a handler or a response in a sender")
+public class PacketDecodeEvent extends PacketEvent {
+}
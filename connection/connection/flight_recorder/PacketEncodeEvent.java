@@ -0,0 +1,16 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      See PacketEvent.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("edge.PacketEncode")
+@Label("Packet Encode")
+@Description("Time a sender took to turn a packet into a frame")
+public class PacketEncodeEvent extends PacketEvent {
+}
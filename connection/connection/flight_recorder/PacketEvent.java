@@ -0,0 +1,59 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Java Flight Recorder events for the packet path, so a slow packet can be lined up against GC pauses,
+ *      lock contention and thread states in the same recording instead of being guessed at from the metrics.
+ *
+ *          edge.PacketEncode       - a sender turning a packet into a frame
+ *          edge.PacketDecode       - rebuilding a packet from a frame, a handler's request or a sender's response
+ *          edge.PacketHandle       - a handler running a packet, including any wait behind earlier packets
+ *                                    from the same connection
+ *          edge.PacketRoundTrip    - a response read back for a sent packet
+ *          edge.PacketRetry        - a failed packet being sent again
+ *          edge.ConnectionAdded / edge.ConnectionTerminated
+ *
+ *      Nothing is recorded unless a recording has them turned on, e.g.
+ *          java -XX:StartFlightRecording=filename=edge.jfr,settings=profile ...
+ *      or jcmd <pid> JFR.start. Turned off, an event is a begin() and a shouldCommit() that returns false,
+ *      and the JIT takes the unused event object away - its fields are only filled in once shouldCommit()
+ *      says it will be kept.
+ *
+ *      Usage:
+ *          PacketEncodeEvent event = new PacketEncodeEvent();
+ *          event.begin();
+ *          Frame frame = ...;
+ *          event.commit(packet.getPacketType(), peer(), frame.getBody().length);
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+@Category({"Edge", "Packets"})
+public abstract class PacketEvent extends Event {
+
+    @Label("Packet Type")
+    protected String packetType;
+
+    @Label("Peer")
+    @Description("Id of the connection on the other end, or its address when there is none yet")
+    protected String peer;
+
+    @Label("Size")
+    @Description("Bytes of the frame body")
+    @DataAmount
+    protected int bytes;
+
+    // Fills in the fields and commits, only if a recording wants this event
+    public void commit(Enum<?> packetType, String peer, int bytes) {
+        if (shouldCommit()) {
+            this.packetType = (packetType == null) ? null : packetType.name();
+            this.peer = peer;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      See PacketEvent.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("edge.PacketHandle")
+@Label("Packet Handle")
+@Description("Time a handler took with a packet, including any wait behind earlier packets from the same connection")
+public class PacketHandleEvent extends PacketEvent {
+}
@@ -0,0 +1,35 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      See PacketEvent. Committed as the retry goes out, the attempt itself shows up as its own
+ *      edge.PacketEncode and edge.PacketRoundTrip. No size, the packet is encoded again by the attempt.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("edge.PacketRetry")
+@Label("Packet Retry")
+@Description("A packet that got no ACK being sent again")
+@Category({"Edge", "Packets"})
+public class PacketRetryEvent extends Event {
+
+    @Label("Packet Type")
+    protected String packetType;
+
+    @Label("Peer")
+    @Description("Id of the connection on the other end, or its address when there is none yet")
+    protected String peer;
+
+    public void commit(Enum<?> packetType, String peer) {
+        if (shouldCommit()) {
+            this.packetType = (packetType == null) ? null : packetType.name();
+            this.peer = peer;
+            commit();
+        }
+    }
+}
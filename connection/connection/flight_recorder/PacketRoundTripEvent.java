@@ -0,0 +1,37 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      See PacketEvent. Committed when the response is read, the packet went out before this thread had
+ *      anything to do with it (an async send is answered on the pipeline's reader), so the round trip is a
+ *      field rather than the event's own duration.
+ */
+package connection.flight_recorder;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("edge.PacketRoundTrip")
+@Label("Packet Round Trip")
+@Description("A response read back for a sent packet, the size is the response's")
+public class PacketRoundTripEvent extends PacketEvent {
+
+    @Label("Response Type")
+    protected String responseType;
+
+    @Label("Round Trip")
+    @Timespan(Timespan.NANOSECONDS)
+    protected long roundTrip;
+
+    /**
+     * @param sentNanos The System.nanoTime() the packet went out at
+     */
+    public void commit(Enum<?> packetType, Enum<?> responseType, String peer, int bytes, long sentNanos) {
+        if (shouldCommit()) {
+            this.responseType = (responseType == null) ? null : responseType.name();
+            this.roundTrip = System.nanoTime() - sentNanos;
+            commit(packetType, peer, bytes);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A tiny HTTP server that answers GET /metrics with the registry in Prometheus text format, so the
+ *      tiers can be scraped (or just curl'd) while they run.
+ *
+ *      Started by the Edge classes when <Tier>.metricsPort is set, it listens on every interface. There is
+ *      one per process, the simulator does not start one for each instance.
+ *
+ *      GET /packets answers with the last packets in and out (see lib.PacketLog), for looking at what was
+ *      actually sent without logging every payload.
+ *
+ *      Usage:
+ *          MetricsEndpoint endpoint = MetricsEndpoint.start(9500);
+ *          curl http://localhost:9500/metrics
+ *          curl http://localhost:9500/packets
+ */
+package connection.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lib.InstanceContext;
+import lib.PacketLog;
+
+public class MetricsEndpoint {
+
+    private static final Logger logger = LogManager.getLogger(MetricsEndpoint.class);
+
+    public static final String PATH = "/metrics";
+    public static final String PACKETS_PATH = "/packets";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MetricsRegistry registry;
+
+    private MetricsEndpoint(HttpServer server, ExecutorService executor, MetricsRegistry registry) {
+        this.server = server;
+        this.executor = executor;
+        this.registry = registry;
+    }
+
+    public static MetricsEndpoint start(int port) throws IOException {
+        return start(port, MetricsRegistry.shared());
+    }
+
+    public static MetricsEndpoint start(int port, MetricsRegistry registry) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+
+        // Scrapes are a few a minute, one thread is plenty and it should never keep the process alive
+        ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = InstanceContext.sharedThread(task, "Metrics-Endpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        MetricsEndpoint endpoint = new MetricsEndpoint(server, executor, registry);
+        server.createContext(PATH, exchange -> endpoint.handle(exchange, registry::scrape));
+        server.createContext(PACKETS_PATH, exchange -> endpoint.handle(exchange, () -> PacketLog.shared().dump()));
+        server.setExecutor(executor);
+        server.start();
+
+        logger.info("Serving metrics on port {}{}", port, PATH);
+        return endpoint;
+    }
+
+    private void handle(HttpExchange exchange, Supplier<String> page) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = page.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to answer {}", exchange.getRequestURI(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public int getPort() { return server.getAddress().getPort(); }
+}
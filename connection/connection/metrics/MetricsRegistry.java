@@ -0,0 +1,274 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The numbers every tier keeps about itself - packets by type, how long encoding, decoding, handling
+ *      and round trips take, queue depths and connection counts - in one place, so they can be scraped
+ *      (see MetricsEndpoint) instead of being picked out of log lines.
+ *
+ *      There is one registry for the whole process. The simulator runs many instances in one JVM, so there
+ *      the counters add up over all of them.
+ *
+ *      Three kinds of metric:
+ *          Counter   - LongAdders, one per label value (the packet type), never go down
+ *          Latency   - a lib.Histogram per label value, fixed memory (64 power of two buckets) however many
+ *                      values are recorded. Recorded in microseconds, exported in seconds
+ *          Gauge     - read from a LongSupplier when scraped (a queue size, a connection count), so nothing
+ *                      is kept up to date on the hot path. counterOf() does the same for a total kept elsewhere
+ *
+ *      Recording a counter or latency is a map lookup and a couple of atomic adds, no lock.
+ *
+ *      Usage:
+ *          MetricsRegistry.shared().counter("edge_packets_sent_total", "Packets sent", "type").increment(packetType);
+ *          MetricsRegistry.shared().gauge("edge_active_connections", "Open connections", "manager", "node", manager::getActiveConnectionCount);
+ */
+package connection.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import lib.Histogram;
+
+public class MetricsRegistry {
+
+    private static final MetricsRegistry shared = new MetricsRegistry();
+
+    // Label value for a metric recorded without one (or with a null packet type)
+    public static final String NO_LABEL = "";
+
+    // Sorted so the scrape comes out in the same order every time
+    private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    public static MetricsRegistry shared() {
+        return shared;
+    }
+
+    /*
+     *      Registration - asking for a name that is already registered returns the one that is there
+     */
+
+    public Counter counter(String name, String help, String labelName) {
+        return register(name, () -> new Counter(name, help, labelName), Counter.class);
+    }
+
+    public Latency latency(String name, String help, String labelName) {
+        return register(name, () -> new Latency(name, help, labelName), Latency.class);
+    }
+
+    /**
+     * Registers (or replaces) one labelled value of a gauge
+     * @param supplier Read on every scrape, from the endpoint's thread, so it has to be thread safe and quick
+     */
+    public void gauge(String name, String help, String labelName, String labelValue, LongSupplier supplier) {
+        register(name, () -> new Gauge(name, help, labelName, "gauge"), Gauge.class).set(labelValue, supplier);
+    }
+
+    public void gauge(String name, String help, LongSupplier supplier) {
+        gauge(name, help, null, NO_LABEL, supplier);
+    }
+
+    // A total something else already keeps (e.g. AdmissionControl's shed count), read when scraped like a gauge
+    public void counterOf(String name, String help, String labelName, String labelValue, LongSupplier supplier) {
+        register(name, () -> new Gauge(name, help, labelName, "counter"), Gauge.class).set(labelValue, supplier);
+    }
+
+    private <M extends Metric> M register(String name, Supplier<M> create, Class<M> type) {
+        Metric metric = metrics.computeIfAbsent(name, n -> create.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + metric.type());
+        }
+        return type.cast(metric);
+    }
+
+    /*
+     *      Prometheus text format (version 0.0.4)
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics.values()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.write(out);
+        }
+        return out.toString();
+    }
+
+    // name{label="value"} - or just the name when the metric has no label
+    private static void series(StringBuilder out, String name, String labelName, String labelValue, String extraLabel) {
+        out.append(name);
+        boolean labelled = labelName != null && !NO_LABEL.equals(labelValue);
+        if (labelled || extraLabel != null) {
+            out.append('{');
+            if (labelled) {
+                out.append(labelName).append("=\"").append(escape(labelValue)).append('"');
+            }
+            if (extraLabel != null) {
+                out.append(labelled ? "," : "").append(extraLabel);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String labelOf(Enum<?> value) {
+        return (value == null) ? NO_LABEL : value.name();
+    }
+
+    /*
+     *      Metrics
+     */
+
+    public abstract static class Metric {
+        protected final String name;
+        protected final String help;
+        protected final String labelName;   // Null for a metric with no label
+
+        private Metric(String name, String help, String labelName) {
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+        }
+
+        protected abstract String type();
+
+        protected abstract void write(StringBuilder out);
+
+        public String getName() { return name; }
+    }
+
+    public static final class Counter extends Metric {
+        private final ConcurrentHashMap<String, LongAdder> values = new ConcurrentHashMap<>();
+
+        private Counter(String name, String help, String labelName) {
+            super(name, help, labelName);
+        }
+
+        public void increment(Enum<?> label) { add(labelOf(label), 1); }
+
+        public void add(Enum<?> label, long amount) { add(labelOf(label), amount); }
+
+        public void add(String label, long amount) {
+            LongAdder adder = values.get(label);
+            if (adder == null) {
+                adder = values.computeIfAbsent(label, l -> new LongAdder());
+            }
+            adder.add(amount);
+        }
+
+        public long get(String label) {
+            LongAdder adder = values.get(label);
+            return (adder == null) ? 0 : adder.sum();
+        }
+
+        @Override
+        protected String type() { return "counter"; }
+
+        @Override
+        protected void write(StringBuilder out) {
+            for (Map.Entry<String, LongAdder> value : new TreeMap<>(values).entrySet()) {
+                series(out, name, labelName, value.getKey(), null);
+                out.append(value.getValue().sum()).append('\n');
+            }
+        }
+    }
+
+    public static final class Latency extends Metric {
+        private final ConcurrentHashMap<String, Histogram> values = new ConcurrentHashMap<>();
+
+        private Latency(String name, String help, String labelName) {
+            super(name, help, labelName);
+        }
+
+        // Records the time since startNanos (a System.nanoTime() from when the work started)
+        public void recordSince(Enum<?> label, long startNanos) {
+            recordMicros(labelOf(label), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+        public void recordMicros(String label, long micros) {
+            histogram(label).record(micros);
+        }
+
+        public Histogram histogram(String label) {
+            Histogram histogram = values.get(label);
+            if (histogram == null) {
+                histogram = values.computeIfAbsent(label, l -> new Histogram(name + (l.isEmpty() ? "" : "." + l), "us"));
+            }
+            return histogram;
+        }
+
+        @Override
+        protected String type() { return "histogram"; }
+
+        // Every bucket up to the highest one in use, cumulative, with the bounds turned from microseconds into seconds
+        @Override
+        protected void write(StringBuilder out) {
+            for (Map.Entry<String, Histogram> value : new TreeMap<>(values).entrySet()) {
+                Histogram histogram = value.getValue();
+                int highest = 0;
+                for (int i = 0; i < histogram.getNumberOfBuckets(); i++) {
+                    if (histogram.getBucketCount(i) > 0) {
+                        highest = i;
+                    }
+                }
+                long cumulative = 0;
+                for (int i = 0; i <= highest; i++) {
+                    cumulative += histogram.getBucketCount(i);
+                    long upperMicros = (i == 0) ? 0 : (1L << i) - 1;
+                    series(out, name + "_bucket", labelName, value.getKey(), "le=\"" + seconds(upperMicros) + "\"");
+                    out.append(cumulative).append('\n');
+                }
+                // The count and buckets are read one after the other while recording carries on, +Inf is the count so they agree
+                series(out, name + "_bucket", labelName, value.getKey(), "le=\"+Inf\"");
+                out.append(Math.max(cumulative, histogram.getCount())).append('\n');
+                series(out, name + "_sum", labelName, value.getKey(), null);
+                out.append(seconds(histogram.getSum())).append('\n');
+                series(out, name + "_count", labelName, value.getKey(), null);
+                out.append(Math.max(cumulative, histogram.getCount())).append('\n');
+            }
+        }
+
+        private static String seconds(long micros) {
+            return String.valueOf(micros / 1_000_000.0);
+        }
+    }
+
+    public static final class Gauge extends Metric {
+        private final ConcurrentHashMap<String, LongSupplier> values = new ConcurrentHashMap<>();
+        private final String type;
+
+        private Gauge(String name, String help, String labelName, String type) {
+            super(name, help, labelName);
+            this.type = type;
+        }
+
+        private void set(String label, LongSupplier supplier) {
+            values.put(label, supplier);
+        }
+
+        @Override
+        protected String type() { return type; }
+
+        @Override
+        protected void write(StringBuilder out) {
+            for (Map.Entry<String, LongSupplier> value : new TreeMap<>(values).entrySet()) {
+                long reading;
+                try {
+                    reading = value.getValue().getAsLong();
+                } catch (RuntimeException e) {
+                    continue;   // One broken gauge should not take the whole scrape down
+                }
+                series(out, name, labelName, value.getKey(), null);
+                out.append(reading).append('\n');
+            }
+        }
+    }
+}
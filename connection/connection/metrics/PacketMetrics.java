@@ -0,0 +1,102 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The packet metrics every tier records, labelled by packet type. The senders record what goes out and
+ *      how it was answered, the handlers what comes in and how long it took to decode and handle.
+ *
+ *      The per connection numbers (which peer is slow, which keeps failing) are in connection.ConnectionStats,
+ *      these are the totals for the process.
+ *
+ *      Sampled packets also carry a packet.frame.HopTrace, the handler reports it here once it is done with
+ *      the packet - the gap before each hop goes into HOPS and the whole trace is logged with the packetId.
+ */
+package connection.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import packet.frame.Frame;
+import packet.frame.HopTrace;
+
+public final class PacketMetrics {
+
+    private static final Logger logger = LogManager.getLogger(PacketMetrics.class);
+
+    private static final MetricsRegistry registry = MetricsRegistry.shared();
+
+    public static final MetricsRegistry.Counter SENT = registry.counter(
+        "edge_packets_sent_total", "Packets sent, by packet type", "type");
+
+    public static final MetricsRegistry.Counter SENT_BYTES = registry.counter(
+        "edge_packet_bytes_sent_total", "Bytes of packet bodies sent, by packet type", "type");
+
+    public static final MetricsRegistry.Counter RECEIVED = registry.counter(
+        "edge_packets_received_total", "Packets received by the handlers, by packet type", "type");
+
+    public static final MetricsRegistry.Counter RECEIVED_BYTES = registry.counter(
+        "edge_packet_bytes_received_total", "Bytes of packet bodies received by the handlers, by packet type", "type");
+
+    public static final MetricsRegistry.Counter RESPONSES = registry.counter(
+        "edge_packet_responses_total", "Responses to sent packets, by response type (ACK, ERROR ...)", "type");
+
+    public static final MetricsRegistry.Counter FAILURES = registry.counter(
+        "edge_packet_send_failures_total", "Sent packets that got no usable response, by packet type", "type");
+
+    public static final MetricsRegistry.Counter RETRIES = registry.counter(
+        "edge_packet_retries_total", "Packets sent again after a failure, by packet type", "type");
+
+    public static final MetricsRegistry.Latency ENCODE = registry.latency(
+        "edge_packet_encode_seconds", "Time to turn a packet into a frame, by packet type", "type");
+
+    public static final MetricsRegistry.Latency DECODE = registry.latency(
+        "edge_packet_decode_seconds", "Time to rebuild a packet from a frame, by packet type", "type");
+
+    public static final MetricsRegistry.Latency HANDLE = registry.latency(
+        "edge_packet_handle_seconds", "Time for a handler to process a packet and build its response, by packet type", "type");
+
+    public static final MetricsRegistry.Latency ROUND_TRIP = registry.latency(
+        "edge_packet_round_trip_seconds", "Time from sending a packet to reading its response, by packet type", "type");
+
+    public static final MetricsRegistry.Latency HOPS = registry.latency(
+        "edge_trace_hop_seconds", "Time a traced packet took to reach each hop from the one before it", "hop");
+
+    private PacketMetrics() { }
+
+    public static void sent(Enum<?> packetType, int bytes) {
+        SENT.increment(packetType);
+        SENT_BYTES.add(packetType, bytes);
+    }
+
+    public static void received(Enum<?> packetType, int bytes) {
+        RECEIVED.increment(packetType);
+        RECEIVED_BYTES.add(packetType, bytes);
+    }
+
+    public static void response(Enum<?> packetType, Enum<?> responseType, long sentNanos) {
+        RESPONSES.increment(responseType);
+        ROUND_TRIP.recordSince(packetType, sentNanos);
+    }
+
+    // Nothing to do for the packets that were not sampled
+    public static void traceDecoded(Frame frame) {
+        if (frame.isTraced()) {
+            frame.getTrace().stamp(HopTrace.Hop.DECODED);
+        }
+    }
+
+    // Stamps HANDLED and reports the trace, the receiver is the last hop a trace goes through
+    public static void traceHandled(Frame frame, Enum<?> packetType, String packetId) {
+        HopTrace trace = frame.getTrace();
+        if (trace == null) {
+            return;
+        }
+        trace.stamp(HopTrace.Hop.HANDLED);
+        for (int i = 1; i < trace.getCount(); i++) {
+            HopTrace.Hop hop = trace.getHop(i);
+            if (hop != null) {
+                HOPS.recordMicros(hop.name(), trace.getMicrosSincePrevious(i));
+            }
+        }
+        logger.info("Trace of {} {}: {}", packetType, packetId, trace);
+    }
+}
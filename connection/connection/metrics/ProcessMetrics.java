@@ -0,0 +1,40 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Gauges for the pieces every tier shares - the timer wheel, the ordered executor, the pooled sockets
+ *      and the outbound batchers. Each Edge class registers these along with its own listeners and
+ *      connection managers before it starts the metrics endpoint.
+ */
+package connection.metrics;
+
+import lib.OrderedExecutor;
+import lib.SharedTimer;
+
+import sender.outbound_batcher.OutboundBatcher;
+import sender.persistent_connection.PersistentConnectionPool;
+
+public final class ProcessMetrics {
+
+    private ProcessMetrics() { }
+
+    public static void register(MetricsRegistry registry) {
+        registry.gauge("edge_timer_pending", "Tasks waiting on the shared timer wheel", () -> SharedTimer.wheel().getPendingCount());
+        registry.gauge("edge_timer_lag_millis", "How late the shared timer's last tick ran", () -> SharedTimer.wheel().getLagMillis());
+
+        registry.gauge("edge_ordered_executor_active_keys", "Connections with packets queued or running on the ordered executor",
+            () -> OrderedExecutor.shared().getActiveKeys());
+
+        registry.gauge("edge_pooled_connections", "Destinations with sockets in the persistent connection pool",
+            () -> PersistentConnectionPool.shared().getPooledCount());
+        registry.gauge("edge_pooled_sockets_open", "Open sockets in the persistent connection pool",
+            () -> PersistentConnectionPool.shared().getOpenCount());
+
+        registry.gauge("edge_outbound_batch_queued", "Packets waiting in an outbound batch, over every destination", () -> {
+            long queued = 0;
+            for (OutboundBatcher batcher : OutboundBatcher.getBatchers()) {
+                queued += batcher.getQueuedCount();
+            }
+            return queued;
+        });
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      One direction of an in memory connection, a bounded ring of bytes. A writer blocks while it is full
+ *      and a reader while it is empty, the same back pressure a socket gives, so a slow handler slows its
+ *      sender down instead of the heap filling up.
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class MemoryPipe {
+
+    // Roughly a socket's send buffer
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final byte[] buffer;
+    private int readPosition;
+    private int count;
+
+    private boolean writerClosed;   // No more bytes will come, the reader gets -1 once the rest are read
+    private boolean readerClosed;   // Nobody will read, the writer gets an exception
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    public MemoryPipe(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * @param timeoutMillis How long to wait for something to read, 0 waits for ever
+     * @return how many bytes were read, -1 once the writer has closed and everything is read
+     */
+    public int read(byte[] bytes, int offset, int length, int timeoutMillis) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (count == 0 && !writerClosed && !readerClosed) {
+                if (timeoutMillis <= 0) {
+                    notEmpty.await();
+                } else {
+                    if (remainingNanos <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    remainingNanos = notEmpty.awaitNanos(remainingNanos);
+                }
+            }
+            if (readerClosed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (count == 0) {
+                return -1;
+            }
+
+            int n = Math.min(length, count);
+            int first = Math.min(n, buffer.length - readPosition);
+            System.arraycopy(buffer, readPosition, bytes, offset, first);
+            System.arraycopy(buffer, 0, bytes, offset + first, n - first);
+            readPosition = (readPosition + n) % buffer.length;
+            count -= n;
+
+            notFull.signalAll();
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while reading");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until every byte is in the pipe
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            while (length > 0) {
+                while (count == buffer.length && !readerClosed && !writerClosed) {
+                    notFull.await();
+                }
+                if (readerClosed || writerClosed) {
+                    throw new SocketException("Broken pipe");
+                }
+
+                int writePosition = (readPosition + count) % buffer.length;
+                int n = Math.min(length, buffer.length - count);
+                int first = Math.min(n, buffer.length - writePosition);
+                System.arraycopy(bytes, offset, buffer, writePosition, first);
+                System.arraycopy(bytes, offset + first, buffer, 0, n - first);
+                count += n;
+                offset += n;
+                length -= n;
+
+                notEmpty.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while writing");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void closeWriter() {
+        lock.lock();
+        try {
+            writerClosed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void closeReader() {
+        lock.lock();
+        try {
+            readerClosed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The listening end of the in memory transport. Binds host:port in MemoryTransport so instances in the
+ *      same JVM can connect to it, and hands out each connection from accept() like a ServerSocket would.
+ *      Any number of instances can use the same port, each on its own host.
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryServerSocket extends ServerSocket {
+
+    // Put on the queue by close() to wake up accept()
+    private static final Socket CLOSED = new Socket();
+
+    private final InetAddress address;
+    private final int port;
+    private final LinkedBlockingQueue<Socket> pending = new LinkedBlockingQueue<>();
+
+    private volatile int soTimeout;
+    private volatile boolean closed;
+
+    /**
+     * @param host The IP to listen on, each simulated instance has its own
+     */
+    public MemoryServerSocket(String host, int port) throws IOException {
+        this.address = MemoryTransport.addressOf(host);
+        this.port = port;
+        MemoryTransport.bind(this);
+    }
+
+    @Override
+    public Socket accept() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        Socket accepted;
+        try {
+            accepted = (soTimeout > 0) ? pending.poll(soTimeout, TimeUnit.MILLISECONDS) : pending.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while accepting");
+        }
+        if (accepted == null) {
+            throw new SocketTimeoutException("Accept timed out");
+        }
+        if (accepted == CLOSED) {
+            throw new SocketException("Socket is closed");
+        }
+        return accepted;
+    }
+
+    // Called by MemoryTransport.connect(), returns the connecting end
+    Socket connect(InetAddress from) throws IOException {
+        if (closed) {
+            throw new SocketException("Connection refused");
+        }
+        MemoryPipe toServer = new MemoryPipe(MemoryPipe.DEFAULT_CAPACITY);
+        MemoryPipe toClient = new MemoryPipe(MemoryPipe.DEFAULT_CAPACITY);
+        pending.add(newSocket(toServer, toClient, from));
+        return new MemorySocket(toClient, toServer, address, port);
+    }
+
+    // What each accepted connection is wrapped in, overridden to hand out a subclass
+    protected Socket newSocket(MemoryPipe in, MemoryPipe out, InetAddress peer) throws IOException {
+        return new MemorySocket(in, out, peer, port);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        MemoryTransport.unbind(this);
+
+        // Anything not accepted yet is refused
+        Socket waiting;
+        while ((waiting = pending.poll()) != null) {
+            try {
+                waiting.close();
+            } catch (IOException ignored) {
+            }
+        }
+        pending.add(CLOSED);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() { return soTimeout; }
+
+    /*
+     *      Getters
+     */
+
+    @Override
+    public InetAddress getInetAddress() { return address; }
+
+    @Override
+    public int getLocalPort() { return port; }
+
+    @Override
+    public boolean isBound() { return true; }
+
+    @Override
+    public boolean isClosed() { return closed; }
+
+    @Override
+    public String toString() {
+        return "MemoryServerSocket[" + address.getHostAddress() + ":" + port + "]";
+    }
+}
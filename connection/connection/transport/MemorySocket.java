@@ -0,0 +1,158 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      One end of an in memory connection, made by MemoryTransport and MemoryServerSocket. Looks like any
+ *      other java.net.Socket to the senders and handlers, but the bytes only ever go through two MemoryPipes.
+ */
+package connection.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+public class MemorySocket extends Socket {
+
+    private final MemoryPipe in;
+    private final MemoryPipe out;
+    private final InetAddress peer;     // The instance at the other end
+    private final int port;             // The port the listening end is on
+
+    private volatile int soTimeout;
+    private volatile boolean closed;
+
+    private final InputStream input = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return (n < 0) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return in.read(bytes, offset, length, soTimeout);
+        }
+
+        @Override
+        public int available() {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            MemorySocket.this.close();
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            MemorySocket.this.close();
+        }
+    };
+
+    /**
+     * @param in What the other end writes
+     * @param out What the other end reads
+     */
+    public MemorySocket(MemoryPipe in, MemoryPipe out, InetAddress peer, int port) {
+        this.in = in;
+        this.out = out;
+        this.peer = peer;
+        this.port = port;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return output;
+    }
+
+    // The other end reads what is left and then sees the end of the stream
+    @Override
+    public void close() {
+        closed = true;
+        in.closeReader();
+        out.closeWriter();
+    }
+
+    @Override
+    public void shutdownOutput() {
+        out.closeWriter();
+    }
+
+    /*
+     *      Socket options, only the read timeout means anything here
+     */
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() { return soTimeout; }
+
+    @Override
+    public void setTcpNoDelay(boolean on) { }
+
+    @Override
+    public boolean getTcpNoDelay() { return true; }
+
+    @Override
+    public void setKeepAlive(boolean on) { }
+
+    @Override
+    public boolean getKeepAlive() { return false; }
+
+    /*
+     *      Getters
+     */
+
+    @Override
+    public InetAddress getInetAddress() { return peer; }
+
+    @Override
+    public int getPort() { return port; }
+
+    @Override
+    public boolean isConnected() { return true; }
+
+    @Override
+    public boolean isBound() { return true; }
+
+    @Override
+    public boolean isClosed() { return closed; }
+
+    @Override
+    public String toString() {
+        return "MemorySocket[peer=" + peer.getHostAddress() + ", port=" + port + "]";
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Connections between instances in the same JVM, with no sockets at all. Lets the cluster simulator run
+ *      a coordinator, servers and thousands of nodes in one process, each on a made up IP, and still go
+ *      through the same senders, framing, admission control and handlers as a real deployment.
+ *
+ *      Every MemoryServerSocket in the process is bound here by host:port.
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import lib.InstanceContext;
+
+public class MemoryTransport implements Transport {
+
+    private static final ConcurrentHashMap<String, MemoryServerSocket> listening = new ConcurrentHashMap<>();
+
+    // The connecting end is seen at its instance's host, the way a handler would see a real peer's IP
+    @Override
+    public Socket connect(String ip, int port) throws IOException {
+        MemoryServerSocket server = listening.get(key(addressOf(ip), port));
+        if (server == null) {
+            throw new ConnectException("Connection refused: nothing listening in memory on " + ip + ":" + port);
+        }
+        return server.connect(addressOf(InstanceContext.current().getHost()));
+    }
+
+    static void bind(MemoryServerSocket server) throws BindException {
+        if (listening.putIfAbsent(key(server.getInetAddress(), server.getLocalPort()), server) != null) {
+            throw new BindException("Address already in use: " + server);
+        }
+    }
+
+    static void unbind(MemoryServerSocket server) {
+        listening.remove(key(server.getInetAddress(), server.getLocalPort()), server);
+    }
+
+    // Hosts are IP literals, so this never does a lookup. An instance without a host is on loopback
+    static InetAddress addressOf(String host) throws UnknownHostException {
+        return (host == null) ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+    }
+
+    private static String key(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    // How many listeners are bound, for the simulator's report
+    public static int getListeningCount() { return listening.size(); }
+
+    @Override
+    public String getName() { return "memory"; }
+}
@@ -0,0 +1,29 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Plain TCP, the only way to reach a peer on another host.
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class TcpTransport implements Transport {
+
+    @Override
+    public Socket connect(String ip, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    @Override
+    public String getName() { return "tcp"; }
+}
@@ -0,0 +1,28 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Opens the socket a sender talks to a peer over. Everything above it (the pooled, pipelined and one
+ *      off connections) only ever sees a java.net.Socket, so it does not care which transport is under it.
+ *
+ *      Which one is used for a peer is up to TransportSelector.
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.net.Socket;
+
+public interface Transport {
+
+    // The longest a connect waits on a peer that does not answer, rather than the OS default of a minute or more
+    int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * @param ip The peer's IP, as it is known in the peer list
+     * @param port The port the peer listens on, a unix domain socket is found by this port too
+     * @throws java.net.SocketTimeoutException if the peer has not answered within CONNECT_TIMEOUT_MILLIS
+     */
+    Socket connect(String ip, int port) throws IOException;
+
+    String getName();
+}
@@ -0,0 +1,31 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      How a tier reaches its peers. Chosen per tier from its config file with the <Tier>.transport key.
+ *      A unix domain socket only reaches a peer on the same host, a remote peer is always reached over TCP.
+ */
+package connection.transport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public enum TransportMode {
+    TCP,    // TCP for every peer, nothing listens on a unix domain socket
+    UDS,    // A unix domain socket for every peer on this host, TCP for the rest
+    AUTO,   // A unix domain socket when the peer is on this host and listening on one, TCP otherwise
+    MEMORY; // No sockets, every peer is another instance in this JVM (simulator.ClusterSimulator)
+
+    private static final Logger logger = LogManager.getLogger(TransportMode.class);
+
+    public static TransportMode fromString(String value) {
+        if(value == null || value.isBlank()) {
+            return TCP;
+        }
+        try {
+            return TransportMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Unknown transport: ( {} ) using TCP instead", value);
+            return TCP;
+        }
+    }
+}
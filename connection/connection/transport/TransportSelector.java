@@ -0,0 +1,153 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Picks the transport for each peer, process wide. The edge servers and nodes often run on the same
+ *      box, yet they find each other by the IP that grabIP() discovers and would talk over TCP through the
+ *      loopback stack. With <Tier>.transport=auto (or uds) a peer on this host is reached over its unix domain
+ *      socket instead, anything remote still goes over TCP.
+ *
+ *      Every place that opens a connection to a peer (the senders, the pooled and pipelined connections)
+ *      goes through connect() here, and the listeners ask listensOnUnixSocket() whether to bind one as well.
+ *      In MEMORY mode every peer is another instance in this JVM and nothing touches a socket at all, the
+ *      listeners bind a MemoryServerSocket instead (listensInMemory()).
+ *
+ *      Usage:
+ *          TransportSelector.configure(TransportMode.AUTO, socketDir);   // Once at startup, from the tier's config
+ *          Socket socket = TransportSelector.shared().connect(ip, port);
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class TransportSelector {
+
+    private static final Logger logger = LogManager.getLogger(TransportSelector.class);
+
+    // Somewhere every process on the host can see, and short enough for the ~100 character socket path limit
+    public static final String DEFAULT_SOCKET_DIR = Paths.get(System.getProperty("java.io.tmpdir"), "des-sockets").toString();
+
+    private static volatile TransportSelector shared = new TransportSelector(TransportMode.TCP, Paths.get(DEFAULT_SOCKET_DIR));
+
+    private final TransportMode mode;
+    private final TcpTransport tcp = new TcpTransport();
+    private final UnixDomainTransport uds;
+    private final MemoryTransport memory = new MemoryTransport();
+
+    // Whether each peer IP is one of this host's addresses, they do not change while running
+    private final ConcurrentHashMap<String, Boolean> localIps = new ConcurrentHashMap<>();
+
+    public TransportSelector(TransportMode mode, Path socketDir) {
+        this.mode = mode;
+        this.uds = new UnixDomainTransport(socketDir);
+    }
+
+    /**
+     * Sets the transport for every connection made from here on, called once at startup.
+     *
+     * @param socketDir Where the unix domain sockets live, every tier on the host has to use the same one.
+     *        The default is used when it is null or blank
+     */
+    public static synchronized void configure(TransportMode mode, String socketDir) {
+        Path dir = Paths.get((socketDir == null || socketDir.isBlank()) ? DEFAULT_SOCKET_DIR : socketDir.trim());
+        shared = new TransportSelector(mode, dir);
+        if (mode == TransportMode.MEMORY) {
+            logger.info("Reaching peers in memory, every instance has to be in this JVM");
+        } else if (mode != TransportMode.TCP) {
+            logger.info("Reaching peers on this host over unix domain sockets in {} ({})", dir, mode);
+        }
+    }
+
+    public static TransportSelector shared() {
+        return shared;
+    }
+
+    // The transport to reach this peer with
+    public Transport forPeer(String ip, int port) {
+        switch (mode) {
+            case UDS:
+                return isLocal(ip) ? uds : tcp;
+            case AUTO:
+                return (isLocal(ip) && uds.isListening(port)) ? uds : tcp;
+            case MEMORY:
+                return memory;
+            default:
+                return tcp;
+        }
+    }
+
+    /**
+     * Opens a connection to the peer over whichever transport suits it. In AUTO mode a unix domain socket that
+     * can not be connected to (left behind by a peer that died, say) falls back to TCP.
+     */
+    public Socket connect(String ip, int port) throws IOException {
+        Transport transport = forPeer(ip, port);
+        if (transport != uds) {
+            return transport.connect(ip, port);
+        }
+        try {
+            return transport.connect(ip, port);
+        } catch (IOException e) {
+            if (mode != TransportMode.AUTO) {
+                throw e;
+            }
+            logger.debug("Could not connect over {}, using TCP", uds.socketPath(port), e);
+            return tcp.connect(ip, port);
+        }
+    }
+
+    // Whether the listeners should also listen on a unix domain socket
+    public boolean listensOnUnixSocket() {
+        return mode == TransportMode.UDS || mode == TransportMode.AUTO;
+    }
+
+    // Whether the listeners bind a MemoryServerSocket in place of their TCP one
+    public boolean listensInMemory() {
+        return mode == TransportMode.MEMORY;
+    }
+
+    // Loopback, or an address one of this host's interfaces has
+    public boolean isLocal(String ip) {
+        if (ip == null) {
+            return false;
+        }
+        return localIps.computeIfAbsent(ip, TransportSelector::lookupLocal);
+    }
+
+    private static boolean lookupLocal(String ip) {
+        try {
+            InetAddress address = InetAddress.getByName(ip);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (UnknownHostException | SocketException e) {
+            logger.warn("Could not tell if {} is on this host, using TCP for it", ip, e);
+            return false;
+        }
+    }
+
+    /*
+     *      Getters
+     */
+
+    public TransportMode getMode() { return mode; }
+
+    public Path socketPath(int port) { return uds.socketPath(port); }
+
+    public Transport getTcp() { return tcp; }
+
+    public UnixDomainTransport getUnixDomain() { return uds; }
+
+    public MemoryTransport getMemory() { return memory; }
+}
@@ -0,0 +1,155 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A java.net.ServerSocket over a unix domain ServerSocketChannel, so a tier listener can run its
+ *      usual accept loop on one. Each accepted connection is a UnixDomainSocket.
+ *
+ *      The socket file is removed when the socket is bound (one left behind by a process that died would
+ *      stop the bind) and again when it is closed.
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class UnixDomainServerSocket extends ServerSocket {
+
+    private static final Logger logger = LogManager.getLogger(UnixDomainServerSocket.class);
+
+    private final ServerSocketChannel channel;
+    private final Selector acceptSelector;     // accept() waits on this so setSoTimeout() can be honoured
+    private final Path path;
+    private final int port;
+
+    private volatile int soTimeout;
+    private volatile boolean closed;
+
+    /**
+     * @param path The socket file to bind, see UnixDomainTransport.socketPath()
+     * @param port The TCP port the tier listens on as well, handed on to every accepted socket
+     */
+    public UnixDomainServerSocket(Path path, int port) throws IOException {
+        this.path = path;
+        this.port = port;
+
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+
+        this.channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(path));
+            channel.configureBlocking(false);
+            this.acceptSelector = Selector.open();
+            channel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Socket accept() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+
+        long deadline = System.nanoTime() + soTimeout * 1_000_000L;
+        try {
+            while (true) {
+                SocketChannel accepted = channel.accept();
+                if (accepted != null) {
+                    return newSocket(accepted);
+                }
+
+                if (soTimeout <= 0) {
+                    acceptSelector.select();
+                } else {
+                    long remainingMillis = (deadline - System.nanoTime()) / 1_000_000L;
+                    if (remainingMillis <= 0) {
+                        throw new SocketTimeoutException("Accept timed out");
+                    }
+                    acceptSelector.select(remainingMillis);
+                }
+                acceptSelector.selectedKeys().clear();
+            }
+        } catch (ClosedSelectorException e) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    // What each accepted connection is wrapped in, overridden to hand out a subclass
+    protected Socket newSocket(SocketChannel accepted) throws IOException {
+        return new UnixDomainSocket(accepted, path, port);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+            acceptSelector.close();
+        } finally {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.warn("Could not remove {}", path, e);
+            }
+        }
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() { return soTimeout; }
+
+    /*
+     *      Getters
+     */
+
+    @Override
+    public InetAddress getInetAddress() { return InetAddress.getLoopbackAddress(); }
+
+    @Override
+    public int getLocalPort() { return port; }
+
+    @Override
+    public boolean isBound() { return true; }
+
+    @Override
+    public boolean isClosed() { return closed; }
+
+    public Path getPath() { return path; }
+
+    @Override
+    public String toString() {
+        return "UnixDomainServerSocket[path=" + path + ", port=" + port + "]";
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A java.net.Socket over a unix domain SocketChannel. The JDK only offers unix domain sockets as
+ *      channels, and everything that reads and writes packets here (the handlers, FrameReader, the pooled
+ *      connections, admission control) is written against Socket, so this makes one look like the other.
+ *
+ *      Only what the tiers use is implemented: the streams, the read timeout (setSoTimeout), close, and the
+ *      peer address, which is always loopback. The TCP only options are ignored.
+ */
+package connection.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.nio.file.Path;
+
+public class UnixDomainSocket extends Socket {
+
+    private static final int READ_BUFFER_BYTES = 8192;
+
+    private final SocketChannel channel;
+    private final Path path;
+    private final int port;     // The TCP port this socket stands in for
+
+    // The channel is non-blocking, reads and writes wait on these so setSoTimeout() can be honoured
+    private final Selector readSelector;
+    private final Selector writeSelector;
+
+    private final ChannelInput input = new ChannelInput();
+    private final ChannelOutput output = new ChannelOutput();
+
+    private volatile int soTimeout;
+    private volatile boolean closed;
+
+    /**
+     * Connects to the peer listening on the socket file.
+     *
+     * @param port The TCP port the peer is known by, only reported back by getPort()
+     */
+    public static UnixDomainSocket connect(Path path, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(path));
+            return new UnixDomainSocket(channel, path, port);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Wraps a connected channel, UnixDomainServerSocket uses this for the ones it accepts
+    protected UnixDomainSocket(SocketChannel channel, Path path, int port) throws IOException {
+        this.channel = channel;
+        this.path = path;
+        this.port = port;
+
+        channel.configureBlocking(false);
+        this.readSelector = Selector.open();
+        this.writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+    }
+
+    private final class ChannelInput extends InputStream {
+
+        // Whatever has been read off the channel but not handed out yet, kept ready for reading
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES).flip();
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return (n < 0) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining() && fill(true) < 0) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        // Never blocks, takes whatever the peer has already sent
+        @Override
+        public synchronized int available() throws IOException {
+            if (!buffer.hasRemaining()) {
+                fill(false);
+            }
+            return buffer.remaining();
+        }
+
+        /**
+         * Reads into the empty buffer.
+         *
+         * @param block Waits up to the read timeout for something to arrive
+         * @return how many bytes were read, -1 once the peer has closed
+         */
+        private int fill(boolean block) throws IOException {
+            buffer.clear();
+            try {
+                int n = channel.read(buffer);
+                if (block) {
+                    long deadline = System.nanoTime() + soTimeout * 1_000_000L;
+                    while (n == 0) {
+                        awaitReadable(deadline);
+                        n = channel.read(buffer);
+                    }
+                }
+                return n;
+            } finally {
+                buffer.flip();
+            }
+        }
+
+        private void awaitReadable(long deadlineNanos) throws IOException {
+            try {
+                if (soTimeout <= 0) {
+                    readSelector.select();
+                } else {
+                    long remainingMillis = (deadlineNanos - System.nanoTime()) / 1_000_000L;
+                    if (remainingMillis <= 0 || readSelector.select(remainingMillis) == 0 && System.nanoTime() >= deadlineNanos) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                }
+                readSelector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                throw new SocketException("Socket is closed");     // Closed by another thread while waiting
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            UnixDomainSocket.this.close();
+        }
+    }
+
+    private final class ChannelOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        // Blocks until every byte is written, the same as a socket stream
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    try {
+                        writeSelector.select();
+                        writeSelector.selectedKeys().clear();
+                    } catch (ClosedSelectorException e) {
+                        throw new SocketException("Socket is closed");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            UnixDomainSocket.this.close();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return output;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } finally {
+            // Wakes up a read or write waiting on the channel
+            readSelector.close();
+            writeSelector.close();
+        }
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        channel.shutdownInput();
+    }
+
+    /*
+     *      Socket options, only the read timeout means anything here
+     */
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() { return soTimeout; }
+
+    @Override
+    public void setTcpNoDelay(boolean on) { }   // Nothing is ever held back on a unix domain socket
+
+    @Override
+    public boolean getTcpNoDelay() { return true; }
+
+    @Override
+    public void setKeepAlive(boolean on) { }    // The kernel knows straight away when the other end is gone
+
+    @Override
+    public boolean getKeepAlive() { return false; }
+
+    /*
+     *      Getters
+     */
+
+    // The peer is always on this host
+    @Override
+    public InetAddress getInetAddress() { return InetAddress.getLoopbackAddress(); }
+
+    @Override
+    public InetAddress getLocalAddress() { return InetAddress.getLoopbackAddress(); }
+
+    @Override
+    public int getPort() { return port; }
+
+    @Override
+    public boolean isConnected() { return true; }
+
+    @Override
+    public boolean isBound() { return true; }
+
+    @Override
+    public boolean isClosed() { return closed; }
+
+    @Override
+    public boolean isInputShutdown() { return closed; }
+
+    @Override
+    public boolean isOutputShutdown() { return closed; }
+
+    public Path getPath() { return path; }
+
+    @Override
+    public String toString() {
+        return "UnixDomainSocket[path=" + path + ", port=" + port + "]";
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A hashed timing wheel behind the ScheduledExecutorService interface, so it can stand in anywhere a
+ *      ScheduledThreadPool was used. It is what SharedTimer hands out: keep alive emission, expiry ticks,
+ *      retry backoff, batch windows and request timeouts all run off this one thread.
+ *
+ *      The wheel is wheelSize slots of tickMillis each. A timeout goes in the slot its deadline falls in,
+ *      with the number of full turns of the wheel still to wait. Every tick the thread:
+ *
+ *          - unlinks timeouts that were cancelled since the last tick
+ *          - moves newly scheduled timeouts from the queue into their slots
+ *          - walks the current slot, running what is due and counting down the turns of the rest
+ *
+ *      Scheduling and cancelling only ever add to a lock free queue and the slots are doubly linked lists,
+ *      so both are O(1) however many timeouts are pending. The price is precision, a timeout fires up to one
+ *      tick late.
+ *
+ *      How late each tick starts is recorded as the lag, if it grows the thread is falling behind (a task that
+ *      blocks, or too much work per tick). Like SharedTimer says, tasks must be short and never block.
+ */
+package lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class HashedWheelTimer extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private static final Logger logger = LogManager.getLogger(HashedWheelTimer.class);
+
+    // Fine enough for the 2ms batch window, and a turn of the wheel is about a second
+    public static final long DEFAULT_TICK_MILLIS = 1;
+    public static final int DEFAULT_WHEEL_SIZE = 1024;
+
+    // Most timeouts moved from the queue into the wheel per tick, so a burst of schedules can not stall a tick
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final String name;
+    private final long tickNanos;
+    private final Slot[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout<?>> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<?>> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final Thread worker;
+    private final long startNanos;
+    private long tick;      // Only touched by the worker
+
+    private volatile boolean shutdown = false;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final List<Runnable> unprocessed = new ArrayList<>();
+
+    private final Histogram lag;
+    private volatile long lastLagNanos;
+
+    /*
+     *      Timeouts
+     */
+
+    private final class Timeout<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        volatile long deadlineNanos;
+        final long periodNanos;     // 0 runs once, > 0 at a fixed rate, < 0 with a fixed delay
+        long remainingRounds;
+
+        // Set while linked into a slot, only touched by the worker
+        Slot slot;
+        Timeout<?> prev;
+        Timeout<?> next;
+
+        Timeout(Runnable task, V result, long deadlineNanos, long periodNanos) {
+            super(task, result);
+            this.deadlineNanos = deadlineNanos;
+            this.periodNanos = periodNanos;
+        }
+
+        Timeout(Callable<V> task, long deadlineNanos) {
+            super(task);
+            this.deadlineNanos = deadlineNanos;
+            this.periodNanos = 0;
+        }
+
+        boolean isPeriodic() { return periodNanos != 0; }
+
+        // On the worker, once the timeout is due
+        void fire() {
+            if (isCancelled()) {
+                return;
+            }
+            if (!isPeriodic()) {
+                run();
+                pending.decrementAndGet();
+                return;
+            }
+            if (!runAndReset()) {
+                // Threw (or was cancelled while running), like a ScheduledThreadPool it does not run again
+                if (!isCancelled()) {
+                    pending.decrementAndGet();
+                }
+                return;
+            }
+            deadlineNanos = (periodNanos > 0) ? deadlineNanos + periodNanos : System.nanoTime() - periodNanos;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean wasCancelled = super.cancel(mayInterruptIfRunning);
+            if (wasCancelled) {
+                pending.decrementAndGet();
+                cancelled.add(this);    // The worker unlinks it on its next tick
+            }
+            return wasCancelled;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    // One slot of the wheel, a doubly linked list so a cancelled timeout is unlinked in O(1)
+    private static final class Slot {
+        Timeout<?> head;
+        Timeout<?> tail;
+
+        void add(Timeout<?> timeout) {
+            timeout.slot = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout<?> timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.slot = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    public HashedWheelTimer(String name) {
+        this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param name Names the timer thread and its lag histogram
+     * @param tickMillis How often the wheel turns one slot, and so how late a timeout can fire
+     * @param wheelSize Number of slots, rounded up to a power of two. Timeouts further out than a full turn
+     *        just wait more turns
+     */
+    public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.lag = new Histogram(name + " timer.lag", "ms");
+
+        this.startNanos = System.nanoTime();
+        this.worker = InstanceContext.sharedThread(this::work, name);
+        this.worker.setDaemon(true);    // Never keeps the process alive on its own
+        this.worker.start();
+    }
+
+    /*
+     *      The worker
+     */
+
+    private void work() {
+        try {
+            while (!shutdown) {
+                long tickDeadline = startNanos + (tick + 1) * tickNanos;
+                waitUntil(tickDeadline);
+                if (shutdown) {
+                    break;
+                }
+
+                long now = System.nanoTime();
+                lastLagNanos = now - tickDeadline;
+                lag.record(TimeUnit.NANOSECONDS.toMillis(lastLagNanos));
+
+                unlinkCancelled();
+                transferScheduled();
+                expire(wheel[(int) (tick & mask)], now);
+                tick++;
+            }
+        } finally {
+            collectUnprocessed();
+            terminated.countDown();
+        }
+    }
+
+    private void waitUntil(long deadlineNanos) {
+        long remaining;
+        while (!shutdown && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout<?> timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot != null) {
+                timeout.slot.remove(timeout);
+            }
+            // Otherwise it is still in the scheduled queue, transferScheduled() skips it
+        }
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout<?> timeout = scheduled.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (!timeout.isCancelled()) {
+                place(timeout, tick);
+            }
+        }
+    }
+
+    /* Only on the worker. The tick processed at startNanos + (t + 1) * tickNanos is the first one a deadline
+     * can fire on, one that is already overdue goes in the slot of earliestTick.
+     */
+    private void place(Timeout<?> timeout, long earliestTick) {
+        long dueTick = Math.max(earliestTick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos - 1);
+        timeout.remainingRounds = (dueTick - tick) / wheel.length;
+        wheel[(int) (dueTick & mask)].add(timeout);
+    }
+
+    private void expire(Slot slot, long now) {
+        List<Timeout<?>> again = null;
+
+        Timeout<?> timeout = slot.head;
+        while (timeout != null) {
+            Timeout<?> next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                slot.remove(timeout);
+                timeout.fire();
+                if (timeout.isPeriodic() && !timeout.isDone()) {
+                    // Put back after the walk, it could land in this very slot
+                    if (again == null) {
+                        again = new ArrayList<>();
+                    }
+                    again.add(timeout);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+
+        if (again != null) {
+            for (Timeout<?> periodic : again) {
+                place(periodic, tick + 1);  // Never the slot just walked, it would wait a whole turn
+            }
+        }
+    }
+
+    private void collectUnprocessed() {
+        for (Slot slot : wheel) {
+            for (Timeout<?> timeout = slot.head; timeout != null; timeout = timeout.next) {
+                if (!timeout.isCancelled()) {
+                    unprocessed.add(timeout);
+                }
+            }
+        }
+        Timeout<?> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                unprocessed.add(timeout);
+            }
+        }
+    }
+
+    /*
+     *      Scheduling
+     */
+
+    private <V> Timeout<V> add(Timeout<V> timeout) {
+        if (shutdown) {
+            throw new RejectedExecutionException(name + " has been shut down");
+        }
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    // Every instance in the process shares this timer, a task runs as the instance that scheduled it
+    private static Runnable owned(Runnable command) {
+        return InstanceContext.capture(command);
+    }
+
+    private static long deadline(long delay, TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(Math.max(0, delay));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(new Timeout<Void>(owned(command), null, deadline(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(new Timeout<>(InstanceContext.capture(callable), deadline(delay, unit)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return add(new Timeout<Void>(owned(command), null, deadline(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        return add(new Timeout<Void>(owned(command), null, deadline(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    // Runs on the next tick
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     *      Lifecycle
+     */
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(worker);
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        try {
+            if (!awaitTermination(1, TimeUnit.SECONDS)) {
+                return Collections.emptyList();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(unprocessed);
+    }
+
+    @Override
+    public boolean isShutdown() { return shutdown; }
+
+    @Override
+    public boolean isTerminated() { return terminated.getCount() == 0; }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public void logStats() {
+        logger.info("{}: pending={} last lag={}ms\n\t{}", name, getPendingCount(), getLagMillis(), lag);
+    }
+
+    /*
+     *      Getters
+     */
+
+    // Scheduled timeouts that have not fired or been cancelled yet, periodic ones count until cancelled
+    public long getPendingCount() { return pending.get(); }
+
+    // How late the most recent tick started
+    public long getLagMillis() { return TimeUnit.NANOSECONDS.toMillis(lastLagNanos); }
+
+    public Histogram getLag() { return lag; }
+
+    public long getTickMillis() { return TimeUnit.NANOSECONDS.toMillis(tickNanos); }
+
+    public int getWheelSize() { return wheel.length; }
+}
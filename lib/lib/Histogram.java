@@ -0,0 +1,119 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A lock free histogram of non-negative longs (sizes, latencies, ...) for tuning at runtime.
+ *
+ *      Values go into power of two buckets - bucket 0 holds 0, bucket n holds [2^(n-1), 2^n) - so a
+ *      percentile is only known to within a factor of two, which is plenty to see where a value sits.
+ *      Recording is a couple of atomic adds, safe from any thread.
+ */
+package lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final String unit;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param name Shown when the histogram is logged (e.g. batch.size)
+     * @param unit Shown after the values (e.g. packets, us), may be empty
+     */
+    public Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    private static int bucketOf(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return the upper bound of the bucket the percentile falls in, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(getMax(), (i == 0) ? 0 : (1L << i) - 1);
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /*
+     *      Getters
+     */
+
+    public String getName() { return name; }
+
+    public String getUnit() { return unit; }
+
+    public long getCount() { return count.sum(); }
+
+    public long getSum() { return sum.sum(); }
+
+    public long getMax() { return max.get(); }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    // Bucket i counts values up to (2^i) - 1, used by anything that exports the raw distribution
+    public long getBucketCount(int bucket) { return buckets.get(bucket); }
+
+    public int getNumberOfBuckets() { return BUCKETS; }
+
+    @Override
+    public String toString() {
+        String u = unit.isEmpty() ? "" : " " + unit;
+        return String.format(
+            "%s: count=%d mean=%.1f%s p50<=%d%s p90<=%d%s p99<=%d%s max=%d%s",
+            name, getCount(), getMean(), u,
+            getPercentile(50), u, getPercentile(90), u, getPercentile(99), u, getMax(), u
+        );
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Everything that belongs to one running tier instance - its ids, its connection managers, its
+ *      listeners - hangs off one of these instead of a static field, so one JVM can run a coordinator,
+ *      a few servers and thousands of nodes side by side (see simulator.ClusterSimulator).
+ *
+ *      The context is found from the thread. The threads an instance starts itself (listeners, handler
+ *      threads) inherit it, and the shared pools (OrderedExecutor, the timer wheel, the retry workers) carry
+ *      it over with capture(), so handler and packet code keeps calling EdgeServer.getServerId() or
+ *      ServerNodeConnectionManager.getInstance() and gets the instance it is running for.
+ *
+ *      A process that runs one instance (the usual main()) never binds one, and everything uses process().
+ *
+ *      Usage:
+ *          InstanceContext context = new InstanceContext("node-17", "10.0.2.17");
+ *          context.run(() -> node.init());
+ *          pool.execute(InstanceContext.capture(task));    // From a pool shared by every instance
+ */
+package lib;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class InstanceContext {
+
+    private static final InstanceContext process = new InstanceContext("process", null);
+
+    // Inherited so the threads an instance starts belong to it, the shared pools wrap their tasks instead
+    private static final InheritableThreadLocal<InstanceContext> bound = new InheritableThreadLocal<>();
+
+    private final String name;
+    private final String host;
+
+    // One of each per instance, keyed by their class (the connection managers, the Edge class itself...)
+    private final ConcurrentHashMap<Class<?>, Object> components = new ConcurrentHashMap<>();
+
+    /**
+     * @param name Used in thread names and logs (e.g. node-17)
+     * @param host The IP this instance is reached at, the in memory transport listens on it. Null for a real host
+     */
+    public InstanceContext(String name, String host) {
+        this.name = name;
+        this.host = host;
+    }
+
+    // The instance the calling thread is working for
+    public static InstanceContext current() {
+        InstanceContext context = bound.get();
+        return (context != null) ? context : process;
+    }
+
+    // Used by everything when there is only one instance in the process
+    public static InstanceContext process() {
+        return process;
+    }
+
+    /**
+     * The instance's one component of this type, made on first use. This is what the old singletons'
+     * getInstance() now returns.
+     */
+    public <T> T component(Class<T> type, Supplier<? extends T> create) {
+        Object existing = components.get(type);
+        if (existing == null) {
+            // Not computeIfAbsent, a component's constructor may well ask for another component
+            synchronized (this) {
+                existing = components.get(type);
+                if (existing == null) {
+                    existing = create.get();
+                    components.put(type, existing);
+                }
+            }
+        }
+        return type.cast(existing);
+    }
+
+    // The component of this type, or null if the instance has none
+    public <T> T component(Class<T> type) {
+        return type.cast(components.get(type));
+    }
+
+    public <T> void register(Class<T> type, T component) {
+        components.put(type, component);
+    }
+
+    /*
+     *      Running as the instance
+     */
+
+    // Runs the task as this instance, on the calling thread
+    public void run(Runnable task) {
+        InstanceContext previous = bound.get();
+        bound.set(this);
+        try {
+            task.run();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    public <V> V call(Callable<V> task) throws Exception {
+        InstanceContext previous = bound.get();
+        bound.set(this);
+        try {
+            return task.call();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    private static void restore(InstanceContext previous) {
+        if (previous == null) {
+            bound.remove();
+        } else {
+            bound.set(previous);
+        }
+    }
+
+    public Runnable wrap(Runnable task) {
+        return () -> run(task);
+    }
+
+    /**
+     * Ties the task to the caller's instance, for handing it to a pool that every instance shares. A pool
+     * thread otherwise keeps whichever instance happened to start it.
+     */
+    public static Runnable capture(Runnable task) {
+        return current().wrap(task);
+    }
+
+    public static <V> Callable<V> capture(Callable<V> task) {
+        InstanceContext context = current();
+        return () -> context.call(task);
+    }
+
+    // A thread that runs as this instance
+    public Thread newThread(Runnable task, String threadName) {
+        return new Thread(wrap(task), threadName);
+    }
+
+    /**
+     * A thread for a pool every instance shares. It does not inherit the instance that happened to start it,
+     * its tasks bring their own with capture().
+     */
+    public static Thread sharedThread(Runnable task, String threadName) {
+        return new Thread(null, task, threadName, 0, false);
+    }
+
+    /*
+     *      Getters
+     */
+
+    public String getName() { return name; }
+
+    public String getHost() { return host; }
+
+    public boolean isProcess() { return this == process; }
+
+    @Override
+    public String toString() { return "InstanceContext[" + name + (host != null ? "@" + host : "") + "]"; }
+}
@@ -0,0 +1,179 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Runs tasks in the order they were given for the same key, while tasks for different keys run in
+ *      parallel across one shared pool. Each key gets a mailbox; a mailbox is on at most one pool thread at a
+ *      time, and is dropped again once it runs empty, so idle connections cost nothing.
+ *
+ *      The handlers use it keyed on the connection id, so packets from one node are processed in the order
+ *      they arrived - a KEEP_ALIVE can no longer overtake the INITIALIZATION that registers the node - with
+ *      no lock shared between nodes.
+ *
+ *      A busy key gives its thread up every FAIR_SHARE tasks, so one chatty connection can not hold a pool
+ *      thread while others wait. A task must never wait on another task for its own key, that can never run.
+ *
+ *      Usage:
+ *          OrderedExecutor.shared().execute(connectionId, () -> ...);
+ *          OrderedExecutor.shared().executeAndWait(connectionId, () -> ...);   // From a handler that needs the result
+ */
+package lib;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class OrderedExecutor {
+
+    private static final Logger logger = LogManager.getLogger(OrderedExecutor.class);
+
+    // Packet handling does some blocking (registry writes, the odd send), so a couple of threads per core
+    public static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    // Tasks a key runs before letting other keys have the thread
+    private static final int FAIR_SHARE = 16;
+
+    // Set once at startup from the tier's config, see configure()
+    private static volatile int sharedThreads = DEFAULT_THREADS;
+    private static OrderedExecutor shared;
+
+    private final String name;
+    private final ExecutorService pool;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    private final class Mailbox implements Runnable {
+        final String key;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        int pending;    // Only read or changed inside mailboxes.compute() for this key
+
+        Mailbox(String key) { this.key = key; }
+
+        @Override
+        public void run() {
+            for (int ran = 0; ran < FAIR_SHARE; ran++) {
+                Runnable task = tasks.poll();
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // Errors too, a task that dies without being counted as done would stall its key for good
+                    logger.error("{} task for {} failed: ", name, key, e);
+                }
+                if (!finished()) {
+                    return;     // Ran empty, the mailbox is gone
+                }
+            }
+            pool.execute(this);     // Back of the line, other keys get a turn
+        }
+
+        // Counts one task as done, @return whether there are more to run
+        private boolean finished() {
+            boolean[] more = new boolean[1];
+            mailboxes.compute(key, (k, box) -> {
+                box.pending--;
+                more[0] = box.pending > 0;
+                return more[0] ? box : null;
+            });
+            return more[0];
+        }
+    }
+
+    /**
+     * @param name Used for the pool threads and the logs (e.g. Server-Ordered)
+     * @param threads Size of the shared pool, tasks for different keys run on up to this many at once
+     */
+    public OrderedExecutor(String name, int threads) {
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = InstanceContext.sharedThread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Sets the size of the shared executor, only has an effect before its first use
+    public static synchronized void configure(int threads) {
+        if (shared != null) {
+            logger.warn("OrderedExecutor is already running, ignoring a pool size of {}", threads);
+            return;
+        }
+        sharedThreads = (threads > 0) ? threads : DEFAULT_THREADS;
+    }
+
+    public static synchronized OrderedExecutor shared() {
+        if (shared == null) {
+            shared = new OrderedExecutor("Ordered", sharedThreads);
+            logger.info("Processing packets in order per connection on {} threads", sharedThreads);
+        }
+        return shared;
+    }
+
+    /**
+     * Runs the task after every task given before it for the same key.
+     *
+     * @param key What the ordering is per, e.g. the connection id
+     */
+    public void execute(String key, Runnable task) {
+        boolean[] start = new boolean[1];
+        Mailbox mailbox = mailboxes.compute(key, (k, box) -> {
+            if (box == null) {
+                box = new Mailbox(k);
+            }
+            box.tasks.add(InstanceContext.capture(task));     // The pool is shared, run it as the caller's instance
+            start[0] = (box.pending++ == 0);   // Nobody is running this key yet
+            return box;
+        });
+        if (start[0]) {
+            pool.execute(mailbox);
+        }
+    }
+
+    public <T> CompletableFuture<T> submit(String key, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(key, () -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);   // So a caller in executeAndWait() never waits on a task that died
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs the task in its key's order and waits for it, for callers that need it done before they go on
+     * (a handler that has to send back the response). Anything the task throws is thrown here.
+     */
+    public void executeAndWait(String key, Runnable task) {
+        try {
+            submit(key, () -> {
+                task.run();
+                return null;
+            }).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /*
+     *      Getters
+     */
+
+    // Keys with tasks waiting or running
+    public int getActiveKeys() { return mailboxes.size(); }
+
+    public String getName() { return name; }
+}
@@ -0,0 +1,113 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The routing fields of a received packet, read in a single streaming pass over the json without
+ *      building a tree. The payload (and anything else that is not a header field) is skipped over,
+ *      so a packet that is dropped or rejected on its header never has its payload decoded.
+ *
+ *      Header fields: packetType, id / senderId, clusterId, recipientId, packetId, responseTo
+ *
+ *      The full packet is only built when toPacket() is called, straight from the json through the
+ *      shared PacketRegistry.
+ *
+ *      Usage:
+ *          PacketHeader header = PacketHeader.read(json);
+ *          ServerPacketType type = header.packetType(ServerPacketType.class);
+ *          if (type != null) {
+ *              ServerPacket packet = header.toPacket(ServerPacket.class);
+ *          }
+ */
+package lib;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+public final class PacketHeader {
+
+    private final String json;
+
+    private String packetType;
+    private String senderId;
+    private String clusterId;
+    private String recipientId;
+    private String packetId;
+    private String responseTo;
+
+    private PacketHeader(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @param json A whole packet, without the ||END|| delimiter
+     * @throws JsonParseException if the json is not an object
+     */
+    public static PacketHeader read(String json) {
+        PacketHeader header = new PacketHeader(json);
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() != JsonToken.STRING) {
+                    reader.skipValue();     // The payload, counters and anything nested
+                    continue;
+                }
+                switch (name) {
+                    case "packetType":  header.packetType = reader.nextString();  break;
+                    case "id":
+                    case "senderId":    header.senderId = reader.nextString();    break;
+                    case "clusterId":   header.clusterId = reader.nextString();   break;
+                    case "recipientId": header.recipientId = reader.nextString(); break;
+                    case "packetId":    header.packetId = reader.nextString();    break;
+                    case "responseTo":  header.responseTo = reader.nextString();  break;
+                    default:            reader.skipValue();
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonParseException("Malformed packet: " + e.getMessage(), e);
+        }
+        return header;
+    }
+
+    /**
+     * @return the packetType as a constant of the given enum, null if it is missing or not one of its constants
+     */
+    public <E extends Enum<E>> E packetType(Class<E> types) {
+        if (packetType == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(types, packetType);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Builds the whole packet, payload included
+    public <T> T toPacket(Class<T> baseType) {
+        return PacketRegistry.fromJson(packetType, json, baseType);
+    }
+
+    /*
+     *      Getters
+     */
+
+    public String getPacketType() { return packetType; }
+
+    // The "id" of the tier packets or the "senderId" of an AbstractPacket
+    public String getSenderId() { return senderId; }
+
+    public String getClusterId() { return clusterId; }
+
+    public String getRecipientId() { return recipientId; }
+
+    public String getPacketId() { return packetId; }
+
+    // The packetId of the request this packet answers, null for requests and peers that do not set it
+    public String getResponseTo() { return responseTo; }
+
+    public String getJson() { return json; }
+}
@@ -0,0 +1,195 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      What gets said about each packet, without logging every one of them.
+ *
+ *      Two parts:
+ *          Sampling    - the per packet log lines (received, sent, response) are only written for 1 in every
+ *                        sampleRate packets of each type. The rate can be set per packet type, so e.g. every
+ *                        INITIALIZATION is logged while only 1 in 1000 KEEP_ALIVEs is
+ *          Last N      - every packet in and out is recorded in a fixed size ring, overwriting the oldest. The
+ *                        ring is only turned into text when someone asks for it - GET /packets on the metrics
+ *                        endpoint, or dump() / logDump() from code - so a packet costs a few field writes, not a
+ *                        log line
+ *
+ *      Recording keeps a reference to the frame body that was already read or written, nothing is copied or
+ *      allocated per packet. A slot written while it is being dumped is left out of that dump, and two
+ *      writers lapping the ring onto the same slot at once can leave a mixed entry - it is a debug aid, not
+ *      an audit log.
+ *
+ *      There is one for the whole process, see configure().
+ *
+ *      Usage:
+ *          PacketLog.shared().record(PacketLog.Direction.IN, nodeIP, packetType, frame.getBody());
+ *          if (PacketLog.shared().sample(packetType)) {
+ *              logger.info("Received {} from {}", packetType, nodeIP);
+ *          }
+ */
+package lib;
+
+import java.lang.invoke.VarHandle;
+
+import java.nio.charset.StandardCharsets;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class PacketLog {
+
+    private static final Logger logger = LogManager.getLogger(PacketLog.class);
+
+    public enum Direction { IN, OUT }
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    // 0 - never log, 1 - log every packet, otherwise 1 in every this many
+    public static final int DEFAULT_SAMPLE_RATE = 100;
+
+    // A body longer than this is cut short in a dump
+    private static final int MAX_DUMP_BODY_CHARS = 2048;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile PacketLog shared = new PacketLog(DEFAULT_CAPACITY, DEFAULT_SAMPLE_RATE, Collections.emptyMap());
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    private final int defaultRate;
+    private final Map<String, Integer> ratesByName;
+
+    // Filled in as each packet type is first seen, the rates are looked up by name once
+    private final ConcurrentHashMap<Enum<?>, Integer> rates = new ConcurrentHashMap<>();
+
+    private static final class Slot {
+        volatile long sequence = -1;    // -1 while empty or being written
+
+        long epochMillis;
+        Direction direction;
+        String peer;
+        Enum<?> packetType;
+        byte[] body;
+    }
+
+    /**
+     * @param capacity How many packets the ring holds, rounded up to a power of two
+     * @param defaultRate The sample rate of packet types with no rate of their own
+     * @param ratesByType Sample rates by packet type name (MESSAGE, KEEP_ALIVE ...)
+     */
+    public PacketLog(int capacity, int defaultRate, Map<String, Integer> ratesByType) {
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 16)) * 2 - 1);
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.defaultRate = Math.max(0, defaultRate);
+        this.ratesByName = new HashMap<>(ratesByType);
+    }
+
+    public static PacketLog shared() {
+        return shared;
+    }
+
+    // Set once at startup from the tier's config, packets recorded before then are dropped with the old ring
+    public static void configure(int capacity, int defaultRate, Map<String, Integer> ratesByType) {
+        shared = new PacketLog(capacity, defaultRate, ratesByType);
+        logger.info("Keeping the last {} packets, logging 1 in {} by default {}", shared.slots.length, defaultRate, ratesByType);
+    }
+
+    /*
+     *      Sampling
+     */
+
+    // Whether to write the log line for this packet
+    public boolean sample(Enum<?> packetType) {
+        int rate = rateOf(packetType);
+        return rate > 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    private int rateOf(Enum<?> packetType) {
+        if (packetType == null) {
+            return defaultRate;
+        }
+        Integer rate = rates.get(packetType);
+        if (rate == null) {
+            rate = rates.computeIfAbsent(packetType, t -> Math.max(0, ratesByName.getOrDefault(t.name(), defaultRate)));
+        }
+        return rate;
+    }
+
+    /*
+     *      Last N packets
+     */
+
+    /**
+     * @param peer Who it came from or went to, an IP or a connection id
+     * @param body The frame body as read or written, kept as is - the caller must not change it afterwards
+     */
+    public void record(Direction direction, String peer, Enum<?> packetType, byte[] body) {
+        long sequence = next.getAndIncrement();
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.sequence = -1;
+        slot.epochMillis = System.currentTimeMillis();
+        slot.direction = direction;
+        slot.peer = peer;
+        slot.packetType = packetType;
+        slot.body = body;
+        slot.sequence = sequence;
+    }
+
+    public long getRecordedCount() { return next.get(); }
+
+    public int getCapacity() { return slots.length; }
+
+    // The packets in the ring, oldest first, one per line with their bodies
+    public String dump() {
+        long end = next.get();
+        long start = Math.max(0, end - slots.length);
+
+        StringBuilder out = new StringBuilder(4096);
+        out.append("Last ").append(end - start).append(" of ").append(end).append(" packets:\n");
+        for (long sequence = start; sequence < end; sequence++) {
+            Slot slot = slots[(int) (sequence & mask)];
+            if (slot.sequence != sequence) {
+                continue;   // Being written, or already overwritten by a newer packet
+            }
+            long epochMillis = slot.epochMillis;
+            Direction direction = slot.direction;
+            String peer = slot.peer;
+            Enum<?> packetType = slot.packetType;
+            byte[] body = slot.body;
+            VarHandle.acquireFence();
+            if (slot.sequence != sequence) {
+                continue;
+            }
+
+            String text = (body == null) ? "" : new String(body, StandardCharsets.UTF_8);
+            if (text.length() > MAX_DUMP_BODY_CHARS) {
+                text = text.substring(0, MAX_DUMP_BODY_CHARS) + "... (" + body.length + " bytes)";
+            }
+            out.append(TIME.format(Instant.ofEpochMilli(epochMillis)))
+                .append(' ').append(direction == Direction.IN ? "IN  from " : "OUT to   ").append(peer)
+                .append(' ').append(packetType)
+                .append(' ').append(text)
+                .append('\n');
+        }
+        return out.toString();
+    }
+
+    public void logDump() {
+        logger.info(dump());
+    }
+}
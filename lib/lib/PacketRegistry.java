@@ -0,0 +1,84 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The one Gson used to rebuild received packets. Every packetType label of every tier is mapped
+ *      to its class here, once per process:
+ *
+ *          PacketType            -> the class in packet.codec.PacketClasses
+ *          ServerPacketType      -> ServerGenericPacket
+ *          NodePacketType        -> NodeGenericPacket
+ *          CoordinatorPacketType -> CoordinatorGenericPacket
+ *
+ *      Gson is thread safe, so handlers and senders on any thread share it.
+ *
+ *      fromJson() is the fast way in for a received String: it peeks the label and reads the json once,
+ *      straight into the concrete class, where gson().fromJson() would build a tree of it first.
+ *
+ *      Usage:
+ *          ServerPacket packet = PacketRegistry.fromJson(json, ServerPacket.class);
+ */
+package lib;
+
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import coordinator.coordinator_packet.CoordinatorPacket;
+import coordinator.coordinator_packet.CoordinatorPacketType;
+import coordinator.coordinator_packet.coordinator_packet_class.CoordinatorGenericPacket;
+
+import node.node_packet.NodePacket;
+import node.node_packet.NodePacketType;
+import node.node_packet.node_packet_class.NodeGenericPacket;
+
+import packet.AbstractPacket;
+
+import server.server_packet.ServerPacket;
+import server.server_packet.ServerPacketType;
+import server.server_packet.server_packet_class.ServerGenericPacket;
+
+public final class PacketRegistry {
+
+    private static final Map<Class<?>, PacketTypeAdapterFactory<?>> factories = Map.of(
+        AbstractPacket.class, PacketTypeAdapterFactory.create(),
+        ServerPacket.class, PacketTypeAdapterFactory.of(ServerPacket.class).registerLabels(ServerPacketType.class, ServerGenericPacket.class),
+        NodePacket.class, PacketTypeAdapterFactory.of(NodePacket.class).registerLabels(NodePacketType.class, NodeGenericPacket.class),
+        CoordinatorPacket.class, PacketTypeAdapterFactory.of(CoordinatorPacket.class).registerLabels(CoordinatorPacketType.class, CoordinatorGenericPacket.class)
+    );
+
+    private static final Gson gson = build();
+
+    private PacketRegistry() {}
+
+    private static Gson build() {
+        GsonBuilder builder = new GsonBuilder();
+        for (PacketTypeAdapterFactory<?> factory : factories.values()) {
+            builder.registerTypeAdapterFactory(factory);
+        }
+        return builder.create();
+    }
+
+    public static Gson gson() { return gson; }
+
+    /**
+     * Rebuilds a received packet as the class registered for its packetType, in a single pass over the json.
+     *
+     * @param baseType AbstractPacket or one of the tier packet classes
+     * @throws JsonParseException if the json is not a packet of that base type
+     */
+    public static <T> T fromJson(String json, Class<T> baseType) {
+        return fromJson(PacketTypeAdapterFactory.peekLabel(json), json, baseType);
+    }
+
+    // For a caller that has already read the label (see PacketHeader)
+    @SuppressWarnings("unchecked")
+    public static <T> T fromJson(String label, String json, Class<T> baseType) {
+        PacketTypeAdapterFactory<T> factory = (PacketTypeAdapterFactory<T>) factories.get(baseType);
+        Class<? extends T> type = factory == null || label == null ? null : factory.classOf(label);
+
+        // No label, or not a registered one, goes through the base type's adapter and fails there as it always has
+        return gson.fromJson(json, type != null ? type : baseType);
+    }
+}
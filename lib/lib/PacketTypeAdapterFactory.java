@@ -0,0 +1,169 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Lets Gson build an abstract packet class (AbstractPacket, ServerPacket, ...) by reading its
+ *      "packetType" label and handing the json to the concrete class registered for that label.
+ *
+ *      Unlike RuntimeTypeAdapterFactory, many labels can map to the same class, so every label of a
+ *      packet type enum can be registered up front once instead of building a factory (and a Gson)
+ *      around the one label of each received packet. The label is also left in the json, so the
+ *      rebuilt packet keeps its packetType.
+ *
+ *      Reading through the adapter needs the label before the fields, and Gson's JsonReader can not be
+ *      rewound, so a JsonReader is read into a tree first. Packets received as a String skip all of that:
+ *      peekLabel() streams up to the label and stops, and the concrete class's own adapter reads the json
+ *      once (see PacketRegistry.fromJson()).
+ *
+ *      Registries are built once, see PacketRegistry.
+ */
+package lib;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+import packet.codec.PacketClasses;
+
+public final class PacketTypeAdapterFactory<T> implements TypeAdapterFactory {
+
+    public static final String LABEL_FIELD = "packetType";
+
+    private final Class<T> baseType;
+    private final Map<String, Class<? extends T>> labelToClass = new HashMap<>();
+
+    private PacketTypeAdapterFactory(Class<T> baseType) {
+        this.baseType = baseType;
+    }
+
+    public static <T> PacketTypeAdapterFactory<T> of(Class<T> baseType) {
+        return new PacketTypeAdapterFactory<>(baseType);
+    }
+
+    // Every shared PacketType label mapped to its class in packet.codec.PacketClasses
+    public static PacketTypeAdapterFactory<AbstractPacket> create() {
+        PacketTypeAdapterFactory<AbstractPacket> factory = of(AbstractPacket.class);
+        for (PacketType type : PacketType.values()) {
+            factory.registerLabel(type.name(), PacketClasses.classOf(type));
+        }
+        return factory;
+    }
+
+    public PacketTypeAdapterFactory<T> registerLabel(String label, Class<? extends T> type) {
+        if (labelToClass.containsKey(label)) {
+            throw new IllegalArgumentException("Label " + label + " is already registered for " + baseType.getSimpleName());
+        }
+        labelToClass.put(label, type);
+        return this;
+    }
+
+    // Registers every constant of the enum as a label for the same class (e.g. all ServerPacketTypes -> ServerGenericPacket)
+    public <E extends Enum<E>> PacketTypeAdapterFactory<T> registerLabels(Class<E> labels, Class<? extends T> type) {
+        for (E label : labels.getEnumConstants()) {
+            registerLabel(label.name(), type);
+        }
+        return this;
+    }
+
+    /**
+     * @return the class registered for the label, null if there is none
+     */
+    public Class<? extends T> classOf(String label) {
+        return labelToClass.get(label);
+    }
+
+    /**
+     * Streams over the json up to its packetType label and stops there, the fields before it are skipped
+     * without being decoded.
+     *
+     * @return the label, null if the json is null or has no label
+     * @throws JsonParseException if the json is not an object
+     */
+    public static String peekLabel(String json) {
+        if (json == null) {
+            return null;
+        }
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            if (reader.peek() == JsonToken.NULL) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(LABEL_FIELD) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonParseException("Malformed packet: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <R> TypeAdapter<R> create(Gson gson, TypeToken<R> type) {
+        if (type.getRawType() != baseType) {
+            return null;
+        }
+
+        // Looked up once per Gson, reads never touch the factory list again
+        Map<String, TypeAdapter<?>> labelToAdapter = new HashMap<>();
+        Map<Class<?>, TypeAdapter<?>> classToAdapter = new HashMap<>();
+        for (Map.Entry<String, Class<? extends T>> entry : labelToClass.entrySet()) {
+            TypeAdapter<?> adapter = classToAdapter.computeIfAbsent(
+                entry.getValue(),
+                c -> gson.getDelegateAdapter(this, TypeToken.get(c))
+            );
+            labelToAdapter.put(entry.getKey(), adapter);
+        }
+
+        return new TypeAdapter<R>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public R read(JsonReader in) throws IOException {
+                // The label is not the first field of every packet, the tree lets the fields before it be read again
+                JsonObject jsonObj = JsonParser.parseReader(in).getAsJsonObject();
+                JsonElement label = jsonObj.get(LABEL_FIELD);
+                if (label == null || label.isJsonNull()) {
+                    throw new JsonParseException(
+                        "Cannot deserialize " + baseType.getSimpleName() + ", it has no " + LABEL_FIELD
+                    );
+                }
+                TypeAdapter<?> adapter = labelToAdapter.get(label.getAsString());
+                if (adapter == null) {
+                    throw new JsonParseException(
+                        "Cannot deserialize " + baseType.getSimpleName() + " of unknown " + LABEL_FIELD + " " + label.getAsString()
+                    );
+                }
+                return (R) adapter.fromJsonTree(jsonObj);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void write(JsonWriter out, R value) throws IOException {
+                TypeAdapter<R> adapter = (TypeAdapter<R>) classToAdapter.get(value.getClass());
+                if (adapter == null) {
+                    // A subclass no label maps to, written as its own class all the same
+                    adapter = (TypeAdapter<R>) gson.getDelegateAdapter(PacketTypeAdapterFactory.this, TypeToken.get(value.getClass()));
+                }
+                adapter.write(out, value);
+            }
+        }.nullSafe();
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The one timer thread for the whole process. Senders, the outbound batcher and the connection pool
+ *      used to each start their own ScheduledThreadPool - one per sender, and a sender was made for every
+ *      packet sent - so the thread count grew with traffic and never came back down. The Edge classes'
+ *      keep alive and expiry timers run off it as well.
+ *
+ *      It is a HashedWheelTimer, so scheduling and cancelling stay O(1) with any number of timeouts pending
+ *      (every in flight request has one), at the cost of firing up to a tick late.
+ *
+ *      Everything scheduled here runs on the same thread, so tasks must be short (complete a future, close
+ *      a socket, log a line) and never block. Anything slow should be handed off to another executor. If they
+ *      do not, the lag in logStats() shows it.
+ */
+package lib;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+public final class SharedTimer {
+
+    // Its thread is a daemon so it never keeps the process alive on its own
+    private static final HashedWheelTimer timer = new HashedWheelTimer("Shared-Timer");
+
+    private SharedTimer() { }
+
+    public static ScheduledExecutorService get() { return timer; }
+
+    // The timer itself, for its pending count and lag
+    public static HashedWheelTimer wheel() { return timer; }
+
+    public static void logStats() { timer.logStats(); }
+}
@@ -0,0 +1,29 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      How a tier accepts and reads connections. Chosen per tier from its config file with the
+ *      <Tier>.listenerMode key.
+ */
+package listener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public enum ListenerMode {
+    BLOCKING,   // A ServerSocket accept loop with one handler thread per connection
+    NIO;        // A Selector event loop with a small fixed set of I/O threads
+
+    private static final Logger logger = LogManager.getLogger(ListenerMode.class);
+
+    public static ListenerMode fromString(String value) {
+        if(value == null || value.isBlank()) {
+            return BLOCKING;
+        }
+        try {
+            return ListenerMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Unknown listener mode: ( {} ) using BLOCKING instead", value);
+            return BLOCKING;
+        }
+    }
+}
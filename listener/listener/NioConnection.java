@@ -0,0 +1,200 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The state for a single non-blocking connection owned by one NioEventLoop. Bytes are read into
+ *      a reusable buffer until a full packet has arrived, the packet is handed to this connection's
+ *      PacketProcessor and the response is queued to be written back.
+ *
+ *      A packet is either a length prefixed frame or a legacy ||END|| line, told apart by its first byte
+ *      (see FrameCodec). A frame's body is allocated once, at its exact size, after the header is checked.
+ *      A BATCH frame is answered with one BATCH, see PacketProcessor.processAll.
+ *
+ *      Only the event loop thread that owns the connection ever touches it, so nothing here is locked.
+ */
+package listener;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameTooLargeException;
+import packet.frame.FrameType;
+
+class NioConnection {
+
+    private static final Logger logger = LogManager.getLogger(NioConnection.class);
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final PacketProcessor processor;
+    private final String remoteIp;
+
+    private final ByteBuffer readBuffer;
+
+    // Frame in progress - the header first, then the body once its length is known
+    private final byte[] header = new byte[FrameCodec.HEADER_BYTES];
+    private int headerRead = 0;
+    private byte[] body;
+    private int bodyRead = 0;
+
+    // Legacy line in progress, grows only when a line is larger than any seen so far
+    private byte[] line = new byte[1024];
+    private int lineLength = 0;
+
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    private long lastActivityNanos;
+
+    NioConnection(SocketChannel channel, SelectionKey key, PacketProcessor processor, String remoteIp, ByteBuffer readBuffer) {
+        this.channel = channel;
+        this.key = key;
+        this.processor = processor;
+        this.remoteIp = remoteIp;
+        this.readBuffer = readBuffer;
+        this.lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Reads whatever is available and processes every complete packet.
+     *
+     * @return false once the connection should be closed
+     */
+    boolean read() throws IOException {
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            return false;   // The sender closed the connection
+        }
+        lastActivityNanos = System.nanoTime();
+        readBuffer.flip();
+
+        try {
+            while (readBuffer.hasRemaining()) {
+                if (headerRead > 0) {
+                    readFrame();
+                } else if (lineLength > 0) {
+                    readLine();
+                } else if (readBuffer.get(readBuffer.position()) == 0) {
+                    readFrame();    // A frame's length always starts with a 0 byte
+                } else {
+                    readLine();
+                }
+            }
+        } catch (FrameTooLargeException e) {
+            logger.error("Packet from {} rejected, closing connection: {}", remoteIp, e.getMessage());
+            return false;
+        }
+
+        return flush();
+    }
+
+    private void readFrame() throws IOException {
+        if (headerRead < FrameCodec.HEADER_BYTES) {
+            int count = Math.min(FrameCodec.HEADER_BYTES - headerRead, readBuffer.remaining());
+            readBuffer.get(header, headerRead, count);
+            headerRead += count;
+            if (headerRead < FrameCodec.HEADER_BYTES) {
+                return;
+            }
+            body = new byte[FrameCodec.readLength(header)];
+            bodyRead = 0;
+        }
+
+        int count = Math.min(body.length - bodyRead, readBuffer.remaining());
+        readBuffer.get(body, bodyRead, count);
+        bodyRead += count;
+
+        if (bodyRead == body.length) {
+            Frame frame = Frame.fromWire(header[4], header[5], body);
+            headerRead = 0;
+            body = null;
+            handle(frame);
+        }
+    }
+
+    private void readLine() throws FrameTooLargeException {
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                int length = lineLength;
+                // println on the sending side may have used \r\n
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                lineLength = 0;
+                if (length > 0) {
+                    handle(new Frame(FrameCodec.VERSION_LEGACY, FrameType.UNKNOWN, Arrays.copyOf(line, length)));
+                }
+                return;
+            }
+            if (lineLength == FrameCodec.MAX_FRAME_BYTES) {
+                throw new FrameTooLargeException(lineLength + 1);
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, Math.min(line.length * 2, FrameCodec.MAX_FRAME_BYTES));
+            }
+            line[lineLength++] = b;
+        }
+    }
+
+    private void handle(Frame request) {
+        Frame response;
+        try {
+            response = processor.processAll(request);
+        } catch (Exception e) {
+            logger.error("Error handling packet from {}", remoteIp, e);
+            return;
+        }
+
+        if (response != null) {
+            writeQueue.add(FrameCodec.encode(response));
+        }
+    }
+
+    /**
+     * Writes as much of the queued responses as the socket will take. If the socket is full the
+     * connection asks the selector to be told when it can write again.
+     *
+     * @return false if the connection failed
+     */
+    boolean flush() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer head = writeQueue.peek();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return true;
+            }
+            writeQueue.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing connection from {}", remoteIp, e);
+        }
+    }
+
+    /*
+     *      Getters
+     */
+
+    boolean isIdle(long nowNanos, long idleTimeoutNanos) { return nowNanos - lastActivityNanos >= idleTimeoutNanos; }
+
+    String getRemoteIp() { return remoteIp; }
+}
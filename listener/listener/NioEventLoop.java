@@ -0,0 +1,160 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      One I/O thread of the NIO listener. It owns a Selector and every connection registered with it,
+ *      reading packets, running them through the connection's handler and writing back the responses.
+ *
+ *      New connections are handed over from the accepting thread through a queue, since a channel can
+ *      only be safely registered from the thread that is selecting on it.
+ */
+package listener;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+class NioEventLoop implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(NioEventLoop.class);
+
+    // How often the loop wakes up on its own to look for idle connections
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    private final Selector selector;
+    private final Function<String, PacketProcessor> processorFactory;
+    private final long idleTimeoutNanos;
+
+    private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+    // Shared by every connection on this loop, a read is always fully consumed before the next one
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    private volatile boolean on = true;
+
+    NioEventLoop(Function<String, PacketProcessor> processorFactory, long idleTimeoutNanos) throws IOException {
+        this.selector = Selector.open();
+        this.processorFactory = processorFactory;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    // Called from the accepting thread
+    void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (on) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+
+                closeIdle();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                logger.error("I/O Exception in event loop!", e);
+            }
+        }
+        closeAll();
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                // A unix domain socket has no IP, its peer is always on this host
+                SocketAddress remote = channel.getRemoteAddress();
+                String remoteIp = (remote instanceof InetSocketAddress)
+                    ? ((InetSocketAddress) remote).getAddress().getHostAddress()
+                    : InetAddress.getLoopbackAddress().getHostAddress();
+
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, processorFactory.apply(remoteIp), remoteIp, readBuffer));
+
+                logger.info("Connected: \n\t{}", remoteIp);
+            } catch (IOException e) {
+                logger.error("Error registering connection!", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        boolean open = true;
+
+        try {
+            if (key.isValid() && key.isReadable()) {
+                open = connection.read();
+            }
+            if (open && key.isValid() && key.isWritable()) {
+                open = connection.flush();
+            }
+        } catch (IOException e) {
+            logger.error("I/O Error with {}", connection.getRemoteIp(), e);
+            open = false;
+        }
+
+        if (!open) {
+            connection.close();
+        }
+    }
+
+    private void closeIdle() {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null && connection.isIdle(now, idleTimeoutNanos)) {
+                logger.info("Closing idle connection from {}", connection.getRemoteIp());
+                connection.close();
+            }
+        }
+    }
+
+    // Called from any thread, the loop closes its own connections once it sees the flag
+    void close() {
+        on = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Error closing selector!", e);
+        }
+    }
+}
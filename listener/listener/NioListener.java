@@ -0,0 +1,163 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The non-blocking listener. Instead of one thread per accepted socket, the thread running this
+ *      listener only accepts and hands each new connection to one of a small fixed set of I/O threads
+ *      (NioEventLoop), round robin. The I/O threads read full packets and pass them to the handler
+ *      created for that connection, so the tier's packet handling code is reused as is.
+ *
+ *      The tier listeners create one of these instead of a ServerSocket when <Tier>.listenerMode=nio
+ *
+ *      When peers on this host may connect over a unix domain socket (see TransportSelector) it accepts on
+ *      that as well, on a second accepting thread, and hands those connections to the same I/O threads.
+ */
+package listener;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import sender.persistent_connection.PersistentConnectionPool;
+
+public class NioListener implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(NioListener.class);
+
+    private final ServerSocketChannel serverChannel;
+    private final ServerSocketChannel unixChannel;    // Null unless peers on this host may connect over a unix domain socket
+    private final Path unixSocketPath;
+    private final NioEventLoop[] loops;
+    private final String name;
+    private final int port;
+
+    private int next = 0;   // The loop the next connection goes to
+
+    private volatile boolean on = true;
+
+    /**
+     * Binds the port straight away so a port that is in use fails here, the same as a ServerSocket would.
+     *
+     * @param port The port to listen on
+     * @param ioThreads How many I/O threads to spread connections across
+     * @param name Used to name the threads (e.g. Server-node)
+     * @param processorFactory Creates the handler for a new connection from the remote IP
+     */
+    public NioListener(int port, int ioThreads, String name, Function<String, PacketProcessor> processorFactory) throws IOException {
+        this(port, ioThreads, name, processorFactory, null);
+    }
+
+    /**
+     * @param unixSocketPath Also accepts on this unix domain socket, unless it is null
+     */
+    public NioListener(int port, int ioThreads, String name, Function<String, PacketProcessor> processorFactory, Path unixSocketPath) throws IOException {
+        this.port = port;
+        this.name = name;
+        this.unixSocketPath = unixSocketPath;
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.serverChannel.bind(new InetSocketAddress(port));
+
+        if (unixSocketPath != null) {
+            // One left behind by a process that died would stop the bind
+            Files.createDirectories(unixSocketPath.getParent());
+            Files.deleteIfExists(unixSocketPath);
+            this.unixChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            this.unixChannel.bind(UnixDomainSocketAddress.of(unixSocketPath));
+        } else {
+            this.unixChannel = null;
+        }
+
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(PersistentConnectionPool.RECEIVER_IDLE_TIMEOUT_MILLIS);
+
+        this.loops = new NioEventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(processorFactory, idleTimeoutNanos);
+        }
+    }
+
+    @Override
+    public void run() {
+
+        for (int i = 0; i < loops.length; i++) {
+            Thread ioThread = new Thread(loops[i], name + "-io-" + i);
+            ioThread.start();
+        }
+
+        if (unixChannel != null) {
+            new Thread(() -> acceptLoop(unixChannel), name + "-uds-accept").start();
+            logger.info("Listening (NIO) on {}", unixSocketPath);
+        }
+
+        logger.info("Listening (NIO, {} I/O threads) on port {}", loops.length, port);
+        acceptLoop(serverChannel);
+    }
+
+    private void acceptLoop(ServerSocketChannel acceptingChannel) {
+        // The accepting thread blocks in accept(), it never touches a connection after handing it off
+        while (on) {
+            try {
+                SocketChannel channel = acceptingChannel.accept();
+                channel.configureBlocking(false);
+                if (acceptingChannel == serverChannel) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);    // Not an option on a unix domain socket
+                }
+
+                nextLoop().register(channel);
+            } catch (ClosedChannelException e) {
+                break;  // closeSocket() was called
+            } catch (IOException e) {
+                logger.error("IOException!", e);
+            }
+        }
+    }
+
+    // Round robin, both accepting threads share it
+    private synchronized NioEventLoop nextLoop() {
+        NioEventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        return loop;
+    }
+
+    public boolean close() {
+        on = false;
+        for (NioEventLoop loop : loops) {
+            loop.close();
+        }
+        try {
+            serverChannel.close();
+            if (unixChannel != null) {
+                unixChannel.close();
+                Files.deleteIfExists(unixSocketPath);
+            }
+        } catch (IOException e) {
+            logger.error("Error Closing socket on port: ( {} )", port, e);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     *      Getters
+     */
+
+    public int getPort() { return port; }
+
+    public int getIoThreadCount() { return loops.length; }
+}
@@ -0,0 +1,47 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Anything that can take one received packet and produce the response for it. The tier handlers
+ *      implement this so the non-blocking listener can hand them complete packets without giving them
+ *      the socket.
+ */
+package listener;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import packet.frame.Frame;
+import packet.frame.FrameBatch;
+import packet.frame.FrameType;
+
+public interface PacketProcessor {
+
+    /**
+     * Handles one packet exactly as it came off the wire.
+     *
+     * @param request The packet, either a frame or a legacy line (with ||END|| still attached)
+     * @return The response in the same format as the request, or null if nothing should be sent back
+     */
+    Frame process(Frame request);
+
+    /**
+     * Handles whatever was read off the wire. A BATCH has each of its packets run through process() in
+     * order, and is answered with one BATCH holding every packet's response (see FrameBatch).
+     *
+     * @throws IOException if a BATCH does not split into whole frames
+     */
+    default Frame processAll(Frame request) throws IOException {
+        if (request.getType() != FrameType.BATCH) {
+            return process(request);
+        }
+
+        List<Frame> packets = FrameBatch.decode(request);
+        List<Frame> responses = new ArrayList<>(packets.size());
+        for (Frame packet : packets) {
+            responses.add(packet == null ? null : process(packet));
+        }
+        return FrameBatch.encode(request.getVersion(), responses);
+    }
+}
@@ -0,0 +1,674 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Sits between a blocking listener and its HandlerExecutor so a burst of connections (every node
+ *      sending INITIALIZATION at once, say) can not run the tier out of threads or heap:
+ *
+ *          - At most maxConcurrent handlers run at once. A worker that finishes one connection takes the
+ *            next waiting one
+ *          - Up to maxQueued accepted connections wait their turn in each lane, oldest first
+ *          - Past that, or once a connection has waited longer than maxQueueWaitMillis, it is shed: a single
+ *            shedding thread reads its packet and answers with the tier's OverloadResponse (an ERROR with a
+ *            retry after hint that the senders honor), then closes it
+ *
+ *      Connections are sorted into lanes by their first packet (see packet.lane.Lane). CONTROL connections
+ *      (keep alives, the handshake) are taken before any other, and on top of the maxConcurrent shared
+ *      handlers they have reservedControl handlers only they can use - so a flood of MESSAGE packets can
+ *      fill the bulk queue without ever holding up a keep alive. A connection whose first packet has not
+ *      arrived yet is sorted by a triage thread that waits a moment for it.
+ *
+ *      A slot is held while a handler works, not while its connection sits idle. Persistent and pipelined
+ *      senders keep their socket open between packets, so a handler reads every packet after the first
+ *      through whileIdle(), which gives the slot back until the next packet arrives and then takes one
+ *      again (waiting up to maxQueueWaitMillis, past that the connection is closed and its sender has to
+ *      reconnect - and go through admission like any other). Connections that woke up get a freed slot
+ *      before any connection still queued, they were let in already.
+ *
+ *      An idle connection still has its handler thread parked on the read though, so the threads are capped
+ *      separately: never more than maxThreads handler threads, working or idle (and never more than the pool
+ *      has, in POOL mode, so idle connections can not pin it). When a connection is waiting, a slot is free
+ *      and every thread is taken, the connection that has been idle longest is closed to make room. Its
+ *      sender reconnects when it next has something to send, like after the receiver's idle timeout.
+ *
+ *      Queue depth, running handlers, admitted / shed counts and the time spent queued are kept for
+ *      logStats() and the getters.
+ *
+ *      The NIO listener does not go through this, it serves every connection from its fixed I/O threads.
+ */
+package listener.admission_control;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.Socket;
+
+import java.io.InterruptedIOException;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lib.Histogram;
+
+import connection.metrics.MetricsRegistry;
+
+import listener.handler_executor.HandlerExecutor;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+import packet.lane.Lane;
+
+public class AdmissionControl {
+
+    private static final Logger logger = LogManager.getLogger(AdmissionControl.class);
+
+    public static final int DEFAULT_MAX_CONCURRENT = 256;
+    public static final int DEFAULT_MAX_QUEUED = 512;
+    public static final int DEFAULT_RETRY_AFTER_MILLIS = 2000;
+    public static final int DEFAULT_MAX_QUEUE_WAIT_MILLIS = 5000;
+    public static final int DEFAULT_RESERVED_CONTROL = 16;
+    public static final int DEFAULT_MAX_THREADS = 1024;
+
+    // How long the shedding thread waits for a turned away connection to send its packet
+    private static final int SHED_READ_TIMEOUT_MILLIS = 200;
+
+    // How long triage waits for a connection's first packet before calling it bulk
+    private static final int TRIAGE_TIMEOUT_MILLIS = 100;
+
+    // The slot of the handler running on this thread, null on threads admission control did not start
+    private static final ThreadLocal<Slot> slots = new ThreadLocal<>();
+
+    // Lanes in the order the shared handlers take from them
+    private static final Lane[] SHARED_ORDER = { Lane.CONTROL, Lane.CRITICAL, Lane.BULK };
+
+    private final String name;
+    private final HandlerExecutor executor;
+    private final OverloadResponse overloadResponse;
+
+    private final int maxConcurrent;
+    private final int reservedControl;
+    private final int maxThreads;
+    private final long retryAfterMillis;
+    private final long maxQueueWaitNanos;
+
+    private final Map<Lane, ArrayBlockingQueue<Queued>> queues = new EnumMap<>(Lane.class);
+
+    private final AtomicInteger running = new AtomicInteger();            // Shared handlers, any lane
+    private final AtomicInteger controlRunning = new AtomicInteger();     // Reserved handlers, CONTROL only
+    private final AtomicInteger threads = new AtomicInteger();            // Handler threads, working or idle
+
+    // Handlers whose connection woke up and are waiting for a slot, by the kind of slot. Signalled when one comes free
+    private final ReentrantLock slotLock = new ReentrantLock();
+    private final Condition sharedFreed = slotLock.newCondition();
+    private final Condition controlFreed = slotLock.newCondition();
+    private final AtomicInteger sharedWaiting = new AtomicInteger();
+    private final AtomicInteger controlWaiting = new AtomicInteger();
+
+    // Handlers blocked reading an idle connection, longest idle first (guarded by slotLock)
+    private final LinkedHashSet<Slot> idle = new LinkedHashSet<>();
+    private final AtomicInteger evicting = new AtomicInteger();     // Idle connections closed whose threads have not exited yet
+
+    // One thread, with its own small queue. If even that is full the connection is just closed
+    private final ThreadPoolExecutor shedder;
+
+    // One thread waiting on connections whose first packet is late. If it falls behind they go in as bulk
+    private final ThreadPoolExecutor triage;
+
+    private final Map<Lane, LongAdder> admitted = new EnumMap<>(Lane.class);
+    private final LongAdder shedQueueFull = new LongAdder();
+    private final LongAdder shedQueueWait = new LongAdder();
+    private final LongAdder evictedIdle = new LongAdder();
+    private final Histogram queueWait;
+
+    private static final class Queued {
+        final Socket socket;
+        final Runnable handler;
+        final long queuedNanos = System.nanoTime();
+        Lane lane = Lane.BULK;
+
+        Queued(Socket socket, Runnable handler) {
+            this.socket = socket;
+            this.handler = handler;
+        }
+    }
+
+    // A read that blocks until the next packet on a connection, see whileIdle()
+    @FunctionalInterface
+    public interface IdleRead<T> {
+        T read() throws IOException;
+    }
+
+    private final class Slot {
+        final boolean reserved;
+        boolean held = true;
+        boolean firstRead;      // The first packet of a connection is what got it admitted, it is read holding the slot
+        Socket socket;          // The connection being handled, closed if it is evicted while idle
+        boolean evicted;        // Guarded by slotLock
+
+        Slot(boolean reserved) { this.reserved = reserved; }
+
+        AtomicInteger counter() { return reserved ? controlRunning : running; }
+
+        // Gives the slot back while the connection waits for its next packet
+        void release() {
+            held = false;
+            slotLock.lock();
+            try {
+                idle.add(this);
+            } finally {
+                slotLock.unlock();
+            }
+            giveBack(reserved);
+            startWaiting();
+        }
+
+        // The read returned (or failed), the connection can no longer be evicted
+        void wake() {
+            slotLock.lock();
+            try {
+                idle.remove(this);
+            } finally {
+                slotLock.unlock();
+            }
+        }
+
+        // Blocks until a slot is given back, or maxQueueWaitNanos have passed
+        void take() throws IOException {
+            AtomicInteger waiting = reserved ? controlWaiting : sharedWaiting;
+            Condition freed = reserved ? controlFreed : sharedFreed;
+            int limit = reserved ? reservedControl : maxConcurrent;
+
+            waiting.incrementAndGet();      // Before trying, so giveBack() knows to signal
+            slotLock.lock();
+            try {
+                long remainingNanos = maxQueueWaitNanos;
+                while (!tryTake(counter(), limit)) {
+                    if (remainingNanos <= 0) {
+                        shedQueueWait.increment();
+                        throw new IOException(name + " is overloaded, closing a connection that waited too long for a handler");
+                    }
+                    remainingNanos = freed.awaitNanos(remainingNanos);
+                }
+                held = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(name + " handler was interrupted waiting for a slot");
+            } finally {
+                slotLock.unlock();
+                waiting.decrementAndGet();
+                startWaiting();     // Queued connections wait while woken ones do, their turn may have come
+            }
+        }
+    }
+
+    private final class Triage implements Runnable {
+        final Queued queued;
+
+        Triage(Queued queued) { this.queued = queued; }
+
+        @Override
+        public void run() {
+            try {
+                Lane lane = ((LaneAware) queued.socket).awaitLane(TRIAGE_TIMEOUT_MILLIS);
+                queued.lane = (lane == null) ? Lane.BULK : lane;
+            } catch (IOException e) {
+                queued.lane = Lane.BULK;    // The handler will find out what is wrong with it
+            }
+            admit(queued);
+        }
+    }
+
+    private final class Shed implements Runnable {
+        final Socket socket;
+
+        Shed(Socket socket) { this.socket = socket; }
+
+        @Override
+        public void run() { respondOverloaded(socket); }
+    }
+
+    public AdmissionControl(String name, HandlerExecutor executor, OverloadResponse overloadResponse) {
+        this(
+            name, executor, DEFAULT_MAX_CONCURRENT, DEFAULT_RESERVED_CONTROL, DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED,
+            DEFAULT_RETRY_AFTER_MILLIS, DEFAULT_MAX_QUEUE_WAIT_MILLIS, overloadResponse
+        );
+    }
+
+    /**
+     * @param name Used for the shedding thread and the logs (e.g. Server-node)
+     * @param executor Runs the handlers that are let in
+     * @param maxConcurrent Most connections handled at once by the shared handlers
+     * @param reservedControl Extra handlers only CONTROL connections can use
+     * @param maxThreads Most handler threads, working or parked on an idle connection. Capped at the pool size in POOL mode
+     * @param maxQueued Most accepted connections waiting for a handler, in each lane
+     * @param retryAfterMillis The hint sent back to a connection that is turned away
+     * @param maxQueueWaitMillis A connection that waited longer than this is turned away instead of handled
+     * @param overloadResponse Builds the tier's ERROR packet for connections that are turned away
+     */
+    public AdmissionControl(
+        String name,
+        HandlerExecutor executor,
+        int maxConcurrent,
+        int reservedControl,
+        int maxThreads,
+        int maxQueued,
+        long retryAfterMillis,
+        long maxQueueWaitMillis,
+        OverloadResponse overloadResponse
+    ) {
+        this.name = name;
+        this.executor = executor;
+        this.overloadResponse = overloadResponse;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.reservedControl = Math.max(0, reservedControl);
+        this.maxThreads = Math.max(1, Math.min(maxThreads, executor.getMaxThreads()));
+        this.retryAfterMillis = Math.max(0, retryAfterMillis);
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxQueueWaitMillis));
+        this.queueWait = new Histogram(name + " admission.queueWait", "ms");
+
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayBlockingQueue<>(Math.max(1, maxQueued)));
+            admitted.put(lane, new LongAdder());
+        }
+
+        this.shedder = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(64),
+            r -> {
+                Thread t = new Thread(r, name + "-Shedder");
+                t.setDaemon(true);
+                return t;
+            },
+            (r, pool) -> closeQuietly(((Shed) r).socket)
+        );
+
+        this.triage = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, maxQueued)),
+            r -> {
+                Thread t = new Thread(r, name + "-Triage");
+                t.setDaemon(true);
+                return t;
+            },
+            (r, pool) -> admit(((Triage) r).queued)
+        );
+
+        logger.info(
+            "{} admission: {} handlers (+{} for control) on at most {} threads, {} queued per lane, retry after {}ms when overloaded",
+            name,
+            this.maxConcurrent,
+            this.reservedControl,
+            this.maxThreads,
+            Math.max(1, maxQueued),
+            this.retryAfterMillis
+        );
+    }
+
+    /**
+     * Hands an accepted connection over, the listener goes straight back to accepting.
+     *
+     * @param socket The accepted connection, answered and closed here if it is turned away. Only a LaneAware socket
+     *        (see LaneServerSocket and LaneUnixServerSocket) can be sorted into a lane, anything else is taken as bulk
+     * @param handler The tier's handler for it
+     */
+    public void submit(Socket socket, Runnable handler) {
+        Queued queued = new Queued(socket, handler);
+
+        if (socket instanceof LaneAware) {
+            Lane lane;
+            try {
+                lane = ((LaneAware) socket).peekLane();
+            } catch (IOException e) {
+                lane = Lane.BULK;
+            }
+            if (lane == null) {
+                triage.execute(new Triage(queued));     // Its first packet is not here yet
+                return;
+            }
+            queued.lane = lane;
+        }
+        admit(queued);
+    }
+
+    private void admit(Queued queued) {
+        if (!queues.get(queued.lane).offer(queued)) {
+            shedQueueFull.increment();
+            shed(queued.socket);
+            return;
+        }
+        startWaiting();
+    }
+
+    // Starts workers for queued connections while there are free slots and threads, the reserved slots first.
+    // A slot handlers that woke up are waiting for is left to them
+    private void startWaiting() {
+        while (true) {
+            boolean reserved;
+            if (!queues.get(Lane.CONTROL).isEmpty() && controlWaiting.get() == 0 && tryTake(controlRunning, reservedControl)) {
+                reserved = true;
+            } else if (hasWaiting() && sharedWaiting.get() == 0 && tryTake(running, maxConcurrent)) {
+                reserved = false;
+            } else {
+                return;
+            }
+
+            if (!tryTake(threads, maxThreads)) {
+                giveBack(reserved);
+                evictIdle();    // Its thread exits and starts this again
+                return;
+            }
+
+            Queued first = reserved ? queues.get(Lane.CONTROL).poll() : pollShared();
+            if (first == null) {
+                threads.decrementAndGet();      // Another thread took it first
+                giveBack(reserved);
+                continue;
+            }
+            start(reserved, first);
+        }
+    }
+
+    private void start(boolean reserved, Queued first) {
+        try {
+            executor.execute(() -> work(reserved, first));
+        } catch (RuntimeException e) {
+            threads.decrementAndGet();
+            giveBack(reserved);
+            logger.error("{} could not start a handler", name, e);
+            shed(first.socket);
+        }
+    }
+
+    // Frees a slot and wakes a handler waiting for one, if there is any
+    private void giveBack(boolean reserved) {
+        (reserved ? controlRunning : running).decrementAndGet();
+        if ((reserved ? controlWaiting : sharedWaiting).get() == 0) {
+            return;
+        }
+        slotLock.lock();
+        try {
+            (reserved ? controlFreed : sharedFreed).signal();
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    // Closes the connection that has been idle longest, so its thread can go to one that is waiting
+    private void evictIdle() {
+        Slot oldest;
+        slotLock.lock();
+        try {
+            if (idle.isEmpty() || evicting.get() >= getQueueDepth()) {
+                return;     // Nothing to close, or enough are closing already for what is waiting
+            }
+            Iterator<Slot> longestIdle = idle.iterator();
+            oldest = longestIdle.next();
+            longestIdle.remove();
+            oldest.evicted = true;
+            evicting.incrementAndGet();
+        } finally {
+            slotLock.unlock();
+        }
+        evictedIdle.increment();
+        logger.debug("{} closing an idle connection to make room for a waiting one", name);
+        closeQuietly(oldest.socket);
+    }
+
+    // Handles connections one after another until none are waiting, then gives the slot back
+    private void work(boolean reserved, Queued first) {
+        Slot slot = new Slot(reserved);
+        slots.set(slot);
+        Queued next = first;
+        try {
+            while (next != null) {
+                long waitedNanos = System.nanoTime() - next.queuedNanos;
+                queueWait.record(TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+
+                if (waitedNanos > maxQueueWaitNanos) {
+                    // Its sender has likely given up on it already, better to say so than to serve it late
+                    shedQueueWait.increment();
+                    shed(next.socket);
+                } else {
+                    admitted.get(next.lane).increment();
+                    slot.socket = next.socket;
+                    slot.firstRead = true;
+                    try {
+                        next.handler.run();
+                    } catch (RuntimeException e) {
+                        logger.error("{} handler failed", name, e);
+                    }
+                }
+                if (!slot.held) {
+                    break;  // Its connection closed while idle, the slot was already given back
+                }
+                if ((reserved ? controlWaiting : sharedWaiting).get() > 0) {
+                    break;  // A handler whose connection woke up gets the slot before anything queued
+                }
+                // A reserved handler only ever serves control connections
+                next = reserved ? queues.get(Lane.CONTROL).poll() : pollShared();
+            }
+        } finally {
+            slots.remove();
+            if (slot.held) {
+                giveBack(reserved);
+            }
+            slotLock.lock();
+            try {
+                if (slot.evicted) {
+                    evicting.decrementAndGet();
+                }
+            } finally {
+                slotLock.unlock();
+            }
+            threads.decrementAndGet();
+            startWaiting();     // Something may have been queued between the last poll and giving the slot and thread back
+        }
+    }
+
+    /**
+     * Reads the next packet on a connection that stays open between packets, without holding a handler slot
+     * while it waits for one. The handler's first read runs as it is. Outside a handler admission control
+     * started, the read just runs.
+     *
+     * @return what the read returned, null (the connection closed) leaves the slot given back
+     * @throws IOException from the read, or if no slot came free within maxQueueWaitMillis of the packet arriving
+     */
+    public static <T> T whileIdle(IdleRead<T> read) throws IOException {
+        Slot slot = slots.get();
+        if (slot == null || !slot.held) {
+            return read.read();
+        }
+        if (slot.firstRead) {
+            slot.firstRead = false;
+            return read.read();
+        }
+
+        slot.release();
+        T result;
+        try {
+            result = read.read();     // Throwing here leaves it released, the handler is done with the connection
+        } finally {
+            slot.wake();
+        }
+        if (result != null) {
+            slot.take();
+        }
+        return result;
+    }
+
+    private Queued pollShared() {
+        for (Lane lane : SHARED_ORDER) {
+            Queued queued = queues.get(lane).poll();
+            if (queued != null) {
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasWaiting() {
+        for (ArrayBlockingQueue<Queued> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean tryTake(AtomicInteger counter, int limit) {
+        while (true) {
+            int current = counter.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void shed(Socket socket) {
+        shedder.execute(new Shed(socket));
+    }
+
+    // Reads the request so the response goes back in its format (and the close does not reset the connection)
+    private void respondOverloaded(Socket socket) {
+        try {
+            socket.setSoTimeout(SHED_READ_TIMEOUT_MILLIS);
+
+            Frame request = new FrameReader(socket.getInputStream()).read();
+            byte version = (request == null) ? FrameCodec.VERSION_LEGACY : request.getVersion();
+
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            FrameCodec.write(output, overloadResponse.build(version, retryAfterMillis));
+            output.flush();
+        } catch (IOException e) {
+            // The sender gave up or never sent anything, there is no one to tell
+        } catch (RuntimeException e) {
+            logger.error("{} could not answer an overloaded connection", name, e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    public void logStats() {
+        logger.info(
+            "{} admission: running={}/{}"
+            + " control={}/{}"
+            + " threads={}/{}"
+            + " queued={}/{}/{}"
+            + " (control/critical/bulk) admitted={} (control {})"
+            + " shed={}"
+            + " (queue full {}, waited too long {})"
+            + " idle closed={}"
+            + "\n\t{}",
+            name,
+            getRunning(),
+            maxConcurrent,
+            controlRunning.get(),
+            reservedControl,
+            threads.get(),
+            maxThreads,
+            queues.get(Lane.CONTROL).size(),
+            queues.get(Lane.CRITICAL).size(),
+            queues.get(Lane.BULK).size(),
+            getAdmittedCount(),
+            getAdmittedCount(Lane.CONTROL),
+            getShedCount(),
+            shedQueueFull.sum(),
+            shedQueueWait.sum(),
+            evictedIdle.sum(),
+            queueWait
+        );
+    }
+
+    // The same numbers as logStats(), read by the metrics endpoint when it is scraped
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("edge_listener_queue_depth", "Connections waiting for a handler, by listener", "listener", name, this::getQueueDepth);
+        registry.gauge("edge_listener_running_handlers", "Handlers running (shared and reserved control), by listener", "listener", name,
+            () -> getRunning() + getControlRunning());
+        registry.gauge("edge_listener_handler_threads", "Handler threads, working or parked on an idle connection, by listener", "listener", name, this::getThreads);
+        registry.counterOf("edge_listener_admitted_total", "Connections handed to a handler, by listener", "listener", name, this::getAdmittedCount);
+        registry.counterOf("edge_listener_shed_total", "Connections turned away as overloaded, by listener", "listener", name, this::getShedCount);
+    }
+
+    // The HandlerExecutor may be shared with another listener, so it is left to whoever created it
+    public void shutdown() {
+        triage.shutdown();
+        shedder.shutdown();
+    }
+
+    /*
+     *      Getters
+     */
+
+    public String getName() { return name; }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ArrayBlockingQueue<Queued> queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public int getQueueDepth(Lane lane) { return queues.get(lane).size(); }
+
+    // Shared handlers only, see getControlRunning() for the reserved ones
+    public int getRunning() { return running.get(); }
+
+    public int getControlRunning() { return controlRunning.get(); }
+
+    public int getMaxConcurrent() { return maxConcurrent; }
+
+    public int getReservedControl() { return reservedControl; }
+
+    // Working or parked on an idle connection, never more than getMaxThreads()
+    public int getThreads() { return threads.get(); }
+
+    public int getMaxThreads() { return maxThreads; }
+
+    public long getAdmittedCount() {
+        long total = 0;
+        for (LongAdder count : admitted.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    public long getAdmittedCount(Lane lane) { return admitted.get(lane).sum(); }
+
+    public long getShedCount() { return shedQueueFull.sum() + shedQueueWait.sum(); }
+
+    public long getShedQueueFullCount() { return shedQueueFull.sum(); }
+
+    public long getShedQueueWaitCount() { return shedQueueWait.sum(); }
+
+    // Idle connections closed to free a thread for a waiting one
+    public long getEvictedIdleCount() { return evictedIdle.sum(); }
+
+    public Histogram getQueueWait() { return queueWait; }
+
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+}
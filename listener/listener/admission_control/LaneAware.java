@@ -0,0 +1,28 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      An accepted socket that can tell which lane its first packet belongs in before a handler is picked
+ *      for it. AdmissionControl sorts these into lanes, any other socket is taken as bulk.
+ */
+package listener.admission_control;
+
+import java.io.IOException;
+
+import packet.lane.Lane;
+
+public interface LaneAware {
+
+    /**
+     * Looks only at what has already arrived, never blocks.
+     *
+     * @return the lane of the first packet, or null if not enough of it has arrived yet
+     */
+    Lane peekLane() throws IOException;
+
+    /**
+     * Waits up to timeoutMillis for enough of the first packet to tell its lane.
+     *
+     * @return the lane, or null if it could not be told in time
+     */
+    Lane awaitLane(int timeoutMillis) throws IOException;
+}
@@ -0,0 +1,27 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      LaneServerSocket for the in memory transport. The tier listeners bind one of these in place of their
+ *      TCP port when every instance runs in the one JVM (see TransportSelector.listensInMemory()).
+ */
+package listener.admission_control;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import connection.transport.MemoryPipe;
+import connection.transport.MemoryServerSocket;
+
+public class LaneMemoryServerSocket extends MemoryServerSocket {
+
+    public LaneMemoryServerSocket(String host, int port) throws IOException {
+        super(host, port);
+    }
+
+    @Override
+    protected Socket newSocket(MemoryPipe in, MemoryPipe out, InetAddress peer) throws IOException {
+        return new LaneMemorySocket(in, out, peer, getLocalPort());
+    }
+}
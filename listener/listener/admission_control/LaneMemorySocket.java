@@ -0,0 +1,43 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      LaneSocket for the in memory transport. Made by LaneMemoryServerSocket.
+ */
+package listener.admission_control;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetAddress;
+
+import connection.transport.MemoryPipe;
+import connection.transport.MemorySocket;
+
+import packet.lane.Lane;
+
+public class LaneMemorySocket extends MemorySocket implements LaneAware {
+
+    private final LanePeeker peeker;
+
+    LaneMemorySocket(MemoryPipe in, MemoryPipe out, InetAddress peer, int port) throws IOException {
+        super(in, out, peer, port);
+        this.peeker = new LanePeeker(this, super.getInputStream());
+    }
+
+    // Every caller gets the same buffered stream, so what peekLane() looked at is still there for the handler
+    @Override
+    public InputStream getInputStream() throws IOException {
+        super.getInputStream();     // Throws once closed
+        return peeker.stream();
+    }
+
+    @Override
+    public Lane peekLane() throws IOException {
+        return peeker.peekLane();
+    }
+
+    @Override
+    public Lane awaitLane(int timeoutMillis) throws IOException {
+        return peeker.awaitLane(timeoutMillis);
+    }
+}
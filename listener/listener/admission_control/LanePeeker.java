@@ -0,0 +1,91 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Looks at the start of a connection's first packet without taking it off the stream, for the lane
+ *      aware sockets (LaneSocket over TCP, LaneUnixSocket over a unix domain socket). The socket hands out
+ *      stream() as its input stream, so the handler reads every byte that was looked at.
+ */
+package listener.admission_control;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import packet.lane.Lane;
+
+final class LanePeeker {
+
+    // Enough to reach the packetType of a legacy line, a frame names it in its 6 byte header
+    private static final int PEEK_BYTES = 512;
+
+    private final Socket socket;
+    private final BufferedInputStream in;
+    private final byte[] peeked = new byte[PEEK_BYTES];
+
+    /**
+     * @param socket Whose read timeout awaitLane() borrows
+     * @param raw The socket's own input stream
+     */
+    LanePeeker(Socket socket, InputStream raw) {
+        this.socket = socket;
+        this.in = new BufferedInputStream(raw, PEEK_BYTES * 2);
+    }
+
+    InputStream stream() { return in; }
+
+    // See LaneAware.peekLane()
+    synchronized Lane peekLane() throws IOException {
+        int available = Math.min(in.available(), PEEK_BYTES);
+        if (available <= 0) {
+            return null;
+        }
+
+        in.mark(PEEK_BYTES);
+        try {
+            int read = in.read(peeked, 0, available);
+            return Lane.peek(peeked, read);
+        } finally {
+            in.reset();
+        }
+    }
+
+    // See LaneAware.awaitLane()
+    synchronized Lane awaitLane(int timeoutMillis) throws IOException {
+        int previousTimeout = socket.getSoTimeout();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+
+        in.mark(PEEK_BYTES);
+        int read = 0;
+        try {
+            while (read < PEEK_BYTES) {
+                int remainingMillis = (int) ((deadline - System.nanoTime()) / 1_000_000L);
+                if (remainingMillis <= 0) {
+                    return null;
+                }
+                socket.setSoTimeout(remainingMillis);
+
+                // Blocks for the first byte, then only takes what has arrived
+                int want = (read == 0) ? 1 : Math.max(1, Math.min(in.available(), PEEK_BYTES - read));
+                int n = in.read(peeked, read, want);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+
+                Lane lane = Lane.peek(peeked, read);
+                if (lane != null) {
+                    return lane;
+                }
+            }
+            return null;
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            in.reset();
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+}
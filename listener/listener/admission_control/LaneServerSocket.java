@@ -0,0 +1,30 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A ServerSocket whose accepted sockets are LaneSockets, so AdmissionControl can see which lane each
+ *      connection's first packet belongs in. Otherwise exactly a ServerSocket.
+ */
+package listener.admission_control;
+
+import java.io.IOException;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+public class LaneServerSocket extends ServerSocket {
+
+    public LaneServerSocket(int port) throws IOException {
+        super(port);
+    }
+
+    @Override
+    public Socket accept() throws IOException {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        LaneSocket socket = new LaneSocket();
+        implAccept(socket);
+        return socket;
+    }
+}
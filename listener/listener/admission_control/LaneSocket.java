@@ -0,0 +1,50 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      An accepted socket that can look at the start of its first packet without taking it off the stream,
+ *      so AdmissionControl can tell a KEEP_ALIVE from a MESSAGE before a handler is picked for it. The
+ *      handler reads the same buffered stream afterwards and sees every byte.
+ *
+ *      Made by LaneServerSocket, the tier listeners accept through one of those. LaneUnixSocket is the same
+ *      over a unix domain socket.
+ */
+package listener.admission_control;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.Socket;
+
+import packet.lane.Lane;
+
+public class LaneSocket extends Socket implements LaneAware {
+
+    private LanePeeker peeker;
+
+    // Only made by LaneServerSocket.accept()
+    LaneSocket() { }
+
+    // Made on first use, the socket is only connected once implAccept() is done with it
+    private synchronized LanePeeker peeker() throws IOException {
+        if (peeker == null) {
+            peeker = new LanePeeker(this, super.getInputStream());
+        }
+        return peeker;
+    }
+
+    // Every caller gets the same buffered stream, so what peekLane() looked at is still there for the handler
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return peeker().stream();
+    }
+
+    @Override
+    public Lane peekLane() throws IOException {
+        return peeker().peekLane();
+    }
+
+    @Override
+    public Lane awaitLane(int timeoutMillis) throws IOException {
+        return peeker().awaitLane(timeoutMillis);
+    }
+}
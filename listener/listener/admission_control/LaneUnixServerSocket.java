@@ -0,0 +1,29 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      LaneServerSocket over a unix domain socket. The tier listeners bind one of these next to their TCP
+ *      port when peers on this host may connect over a unix domain socket (see TransportSelector).
+ */
+package listener.admission_control;
+
+import java.io.IOException;
+
+import java.net.Socket;
+
+import java.nio.channels.SocketChannel;
+
+import java.nio.file.Path;
+
+import connection.transport.UnixDomainServerSocket;
+
+public class LaneUnixServerSocket extends UnixDomainServerSocket {
+
+    public LaneUnixServerSocket(Path path, int port) throws IOException {
+        super(path, port);
+    }
+
+    @Override
+    protected Socket newSocket(SocketChannel accepted) throws IOException {
+        return new LaneUnixSocket(accepted, getPath(), getLocalPort());
+    }
+}
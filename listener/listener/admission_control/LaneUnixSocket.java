@@ -0,0 +1,44 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      LaneSocket over a unix domain socket, for the peers on this host. Made by LaneUnixServerSocket.
+ */
+package listener.admission_control;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.channels.SocketChannel;
+
+import java.nio.file.Path;
+
+import connection.transport.UnixDomainSocket;
+
+import packet.lane.Lane;
+
+public class LaneUnixSocket extends UnixDomainSocket implements LaneAware {
+
+    private final LanePeeker peeker;
+
+    LaneUnixSocket(SocketChannel channel, Path path, int port) throws IOException {
+        super(channel, path, port);
+        this.peeker = new LanePeeker(this, super.getInputStream());
+    }
+
+    // Every caller gets the same buffered stream, so what peekLane() looked at is still there for the handler
+    @Override
+    public InputStream getInputStream() throws IOException {
+        super.getInputStream();     // Throws once closed
+        return peeker.stream();
+    }
+
+    @Override
+    public Lane peekLane() throws IOException {
+        return peeker.peekLane();
+    }
+
+    @Override
+    public Lane awaitLane(int timeoutMillis) throws IOException {
+        return peeker.awaitLane(timeoutMillis);
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Builds the packet a tier answers with when its listener is too busy to take a connection: an ERROR
+ *      whose payload holds RetryPolicy.RETRY_AFTER_KEY, so the sender knows how long to stay away. Each tier
+ *      listener has one of these, since only the tier knows how to build its own packets.
+ */
+package listener.admission_control;
+
+import packet.frame.Frame;
+
+@FunctionalInterface
+public interface OverloadResponse {
+
+    /**
+     * @param version The format the turned away request came in, the response goes back in the same one
+     * @param retryAfterMillis How long the sender should wait before trying again
+     */
+    Frame build(byte version, long retryAfterMillis);
+}
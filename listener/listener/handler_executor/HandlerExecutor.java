@@ -0,0 +1,122 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Runs the handler for each connection accepted by a blocking listener. The handlers themselves stay
+ *      simple blocking code, only what they run on changes:
+ *
+ *          THREAD  - new Thread(handler).start(), one platform thread per connection
+ *          POOL    - a fixed pool of platform threads. Since a persistent connection holds its handler
+ *                    for as long as it is open, the pool size caps how many connections are served at once
+ *          VIRTUAL - one virtual thread per connection. Built through reflection so the project still
+ *                    compiles and runs on Java 17, where it falls back to THREAD
+ */
+package listener.handler_executor;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lib.InstanceContext;
+
+public class HandlerExecutor {
+
+    private static final Logger logger = LogManager.getLogger(HandlerExecutor.class);
+
+    private final HandlerExecutorMode mode;
+    private final String name;
+
+    // Null in THREAD mode, where every handler simply gets its own new thread
+    private final ExecutorService executor;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    // The pool size in POOL mode, where handlers past it would sit in the pool's queue. No limit otherwise
+    private final int maxThreads;
+
+    private HandlerExecutor(HandlerExecutorMode mode, String name, ExecutorService executor, int maxThreads) {
+        this.mode = mode;
+        this.name = name;
+        this.executor = executor;
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * @param mode How handlers should be run
+     * @param poolSize Number of threads, only used by POOL
+     * @param name Used to name the handler threads (e.g. Server-Handler)
+     */
+    public static HandlerExecutor create(HandlerExecutorMode mode, int poolSize, String name) {
+        switch (mode) {
+            case POOL:
+                logger.info("{} running handlers on a pool of {} threads", name, poolSize);
+                return new HandlerExecutor(mode, name, Executors.newFixedThreadPool(Math.max(1, poolSize), namedFactory(name)), Math.max(1, poolSize));
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    logger.info("{} running handlers on virtual threads", name);
+                    return new HandlerExecutor(mode, name, virtual, Integer.MAX_VALUE);
+                }
+                logger.warn("Virtual threads need Java 21+, {} is running a thread per connection instead", name);
+                return new HandlerExecutor(HandlerExecutorMode.THREAD, name, null, Integer.MAX_VALUE);
+            case THREAD:
+            default:
+                return new HandlerExecutor(HandlerExecutorMode.THREAD, name, null, Integer.MAX_VALUE);
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if this JVM has it, otherwise null
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + count.incrementAndGet());
+    }
+
+    // Hands the handler off, the listener goes straight back to accepting
+    public void execute(Runnable handler) {
+        handler = InstanceContext.capture(handler);    // The pool may be shared, the handler runs as the listener's instance
+        if (executor == null) {
+            Thread handlerThread = new Thread(handler, name + "-" + threadCount.incrementAndGet());
+            handlerThread.start();
+            return;
+        }
+        executor.execute(handler);
+    }
+
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     *      Getters
+     */
+
+    public HandlerExecutorMode getMode() { return mode; }
+
+    public int getMaxThreads() { return maxThreads; }
+}
@@ -0,0 +1,30 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      How the blocking listeners run the handler for each accepted connection. Chosen per tier from
+ *      its config file with the <Tier>.handlerMode key.
+ */
+package listener.handler_executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public enum HandlerExecutorMode {
+    THREAD,     // A new platform thread per connection (the original behaviour)
+    POOL,       // A fixed size pool of platform threads, connections past the pool size wait their turn
+    VIRTUAL;    // A virtual thread per connection, needs Java 21+ and falls back to THREAD otherwise
+
+    private static final Logger logger = LogManager.getLogger(HandlerExecutorMode.class);
+
+    public static HandlerExecutorMode fromString(String value) {
+        if(value == null || value.isBlank()) {
+            return THREAD;
+        }
+        try {
+            return HandlerExecutorMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Unknown handler mode: ( {} ) using THREAD instead", value);
+            return THREAD;
+        }
+    }
+}
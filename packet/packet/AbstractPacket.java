@@ -14,7 +14,7 @@ import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.UUID;
 
-import com.google.gson.Gson;
+import packet.codec.JsonPacketCodec;
 
 public abstract class AbstractPacket {
 
@@ -26,6 +26,9 @@ public abstract class AbstractPacket {
 
     protected String packetId = null;
 
+    // Set on responses to the packetId of the request they answer, so a sender with several requests in flight can match them up
+    protected String responseTo = null;
+
     protected PacketType packetType;     // Enum for easy constant assignment
 
     protected String timeStamp;
@@ -62,6 +65,8 @@ public abstract class AbstractPacket {
 
     public String getPacketId() { return packetId; }
 
+    public String getResponseTo() { return responseTo; }
+
     public String getTimeStamp() { return timeStamp; }
     
     public LinkedHashMap<String, String> getPayload() { return payload; }
@@ -83,8 +88,16 @@ public abstract class AbstractPacket {
 
     public void setPacketId(String packetId) { this.packetId = packetId; }
 
+    public void setResponseTo(String responseTo) { this.responseTo = responseTo; }
+
     public void setTimeStamp() { this.timeStamp = String.valueOf(System.currentTimeMillis()); }
 
+    // Used when rebuilding a received packet, keeps the sender's time stamp
+    public void setTimeStamp(String timeStamp) { this.timeStamp = timeStamp; }
+
+    // Replaces the whole payload, the pair counter is left as is
+    public void setPayload(LinkedHashMap<String, String> payload) { this.payload = payload; }
+
     public void setPayloadPairCounter(int payloadPairCounter) { this.payloadPairCounter = payloadPairCounter; }
 
     public void addKeyValueToPayload(String key, String value) { payload.put(key, value); payloadPairCounter++; }
@@ -117,11 +130,11 @@ public abstract class AbstractPacket {
         Stringify Methods
     */
 
-    // converts the packet to a key/value String
-    public String toJson() { return new Gson().toJson(this); }
+    // converts the packet to a key/value String, the Gson instance is shared rather than built per call
+    public String toJson() { return JsonPacketCodec.gson().toJson(this); }
 
     // adds a clear end of message line that will be handled 
-    public String toDelimitedString() { return new Gson().toJson(this) + "||END||"; }
+    public String toDelimitedString() { return toJson() + "||END||"; }
 
     
 }
@@ -69,5 +69,12 @@ public abstract class AbstractPacketManager {
      *      End Abstraction
      */
 
+    // Marks a response with the packetId of the packet it answers, so pipelined senders can match it
+    protected AbstractPacket answering(AbstractPacket response) {
+        if (incomingPacket != null) {
+            response.setResponseTo(incomingPacket.getPacketId());
+        }
+        return response;
+    }
 
 }
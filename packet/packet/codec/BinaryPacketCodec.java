@@ -0,0 +1,312 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Compact form of a packet. A keep alive is around 70 bytes instead of the 240 or so of its json.
+ *
+ *          | format (1) | packetType ordinal (1) | payloadPairCounter (varint) |
+ *          | senderId | clusterId | recipientId | packetId | responseTo | timeStamp |
+ *          | payload size (varint) | key | value | key | value | ...
+ *
+ *      Ids are a tag byte followed by 16 bytes when the id is a UUID, or by a string otherwise, so ids
+ *      that are not UUIDs (e.g. the "1" given to an upstream connection) still round trip exactly. The
+ *      time stamp is a tag byte followed by 8 bytes when it is a number of millis, which is what
+ *      setTimeStamp() writes, or by a string otherwise.
+ *
+ *      Which codec a process sends with, and how a receiver tells them apart, is up to PacketCodecs.
+ *
+ *      Strings are a varint of (UTF-8 length + 1) and the bytes, 0 meaning null.
+ *
+ *      The PacketType ordinal is part of the format, new types must be added to the end of the enum.
+ */
+package packet.codec;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+
+public class BinaryPacketCodec implements PacketCodec {
+
+    public static final BinaryPacketCodec INSTANCE = new BinaryPacketCodec();
+
+    public static final byte FORMAT_VERSION = 1;
+
+    private static final PacketType[] TYPES = PacketType.values();
+
+    // Every tag has its own value, a field can be read without knowing which field it is
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_UUID = 1;     // 16 bytes
+    private static final byte TAG_STRING = 2;
+    private static final byte TAG_LONG = 3;     // 8 bytes
+
+    @Override
+    public byte[] encode(AbstractPacket packet) {
+        Writer out = new Writer(64);
+
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(packet.getPacketType().ordinal());
+        out.writeVarint(packet.getPayloadPairCounter());
+
+        writeId(out, packet.getSenderId());
+        writeId(out, packet.getClusterId());
+        writeId(out, packet.getRecipientId());
+        writeId(out, packet.getPacketId());
+        writeId(out, packet.getResponseTo());
+        writeTimeStamp(out, packet.getTimeStamp());
+
+        LinkedHashMap<String, String> payload = packet.getPayload();
+        out.writeVarint(payload.size());
+        for (Map.Entry<String, String> pair : payload.entrySet()) {
+            out.writeString(pair.getKey());
+            out.writeString(pair.getValue());
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public AbstractPacket decode(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes);
+
+        int format = in.readByte();
+        if (format != FORMAT_VERSION) {
+            throw new IOException("Unsupported binary packet format " + format);
+        }
+        int ordinal = in.readByte();
+        if (ordinal >= TYPES.length) {
+            throw new IOException("Unknown packet type " + ordinal);
+        }
+        PacketType type = TYPES[ordinal];
+        int payloadPairCounter = in.readVarint();
+
+        String senderId = readId(in);
+        String clusterId = readId(in);
+        String recipientId = readId(in);
+        String packetId = readId(in);
+        String responseTo = readId(in);
+        String timeStamp = readTimeStamp(in);
+
+        int size = in.readVarint();
+        LinkedHashMap<String, String> payload = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            payload.put(in.readString(), in.readString());
+        }
+
+        AbstractPacket packet = PacketClasses.create(type, senderId, clusterId, recipientId);
+        packet.setRecipientId(recipientId);
+        packet.setPacketId(packetId);
+        packet.setResponseTo(responseTo);
+        packet.setTimeStamp(timeStamp);
+        packet.setPayload(payload);
+        packet.setPayloadPairCounter(payloadPairCounter);
+        return packet;
+    }
+
+    private static void writeId(Writer out, String id) {
+        if (id == null) {
+            out.writeByte(TAG_NULL);
+        } else if (isUuid(id)) {
+            UUID uuid = UUID.fromString(id);
+            out.writeByte(TAG_UUID);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(TAG_STRING);
+            out.writeString(id);
+        }
+    }
+
+    private static String readId(Reader in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_UUID:
+                return new UUID(in.readLong(), in.readLong()).toString();
+            case TAG_STRING:
+                return in.readString();
+            default:
+                throw new IOException("Unknown id tag " + tag);
+        }
+    }
+
+    private static void writeTimeStamp(Writer out, String timeStamp) {
+        if (timeStamp == null) {
+            out.writeByte(TAG_NULL);
+            return;
+        }
+        long millis = parseMillis(timeStamp);
+        if (millis >= 0) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(millis);
+        } else {
+            out.writeByte(TAG_STRING);
+            out.writeString(timeStamp);
+        }
+    }
+
+    private static String readTimeStamp(Reader in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_LONG:
+                return Long.toString(in.readLong());
+            case TAG_STRING:
+                return in.readString();
+            default:
+                throw new IOException("Unknown time stamp tag " + tag);
+        }
+    }
+
+    // Only ids whose text is exactly what UUID.toString() gives back, anything else is kept as a string
+    private static boolean isUuid(String id) {
+        if (id.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The millis in a time stamp written by setTimeStamp(), -1 if it is anything else (leading zeros, signs, text)
+    private static long parseMillis(String timeStamp) {
+        int length = timeStamp.length();
+        if (length == 0 || length > 18 || (length > 1 && timeStamp.charAt(0) == '0')) {
+            return -1;
+        }
+        long millis = 0;
+        for (int i = 0; i < length; i++) {
+            char c = timeStamp.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            millis = millis * 10 + (c - '0');
+        }
+        return millis;
+    }
+
+    @Override
+    public String getName() { return "binary"; }
+
+    /*
+     *      Buffers
+     */
+
+    private static final class Writer {
+
+        private byte[] bytes;
+        private int length = 0;
+
+        Writer(int capacity) { this.bytes = new byte[capacity]; }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (v >>> shift);
+            }
+        }
+
+        // Unsigned LEB128, 7 bits per byte with the high bit set on every byte but the last
+        void writeVarint(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[length++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length + 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        byte[] toByteArray() { return Arrays.copyOf(bytes, length); }
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private int position = 0;
+
+        Reader(byte[] bytes) { this.bytes = bytes; }
+
+        private void require(int count) throws IOException {
+            if (count < 0 || bytes.length - position < count) {
+                throw new IOException("Binary packet truncated at byte " + position);
+            }
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return bytes[position++] & 0xFF;
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (bytes[position++] & 0xFF);
+            }
+            return v;
+        }
+
+        int readVarint() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint at byte " + position);
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            require(length);
+            String s = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+    }
+}
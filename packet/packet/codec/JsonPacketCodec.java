@@ -0,0 +1,54 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The original json form of a packet. The Gson instance is built once and shared, Gson is thread safe.
+ */
+package packet.codec;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import lib.PacketTypeAdapterFactory;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+
+public class JsonPacketCodec implements PacketCodec {
+
+    public static final JsonPacketCodec INSTANCE = new JsonPacketCodec();
+
+    private static final Gson gson = new Gson();
+
+    @Override
+    public byte[] encode(AbstractPacket packet) {
+        return gson.toJson(packet).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public AbstractPacket decode(byte[] bytes) throws IOException {
+        return decode(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    public AbstractPacket decode(String json) throws IOException {
+        try {
+            // Peeks the label and reads the json once into its class, no tree in between
+            String type = PacketTypeAdapterFactory.peekLabel(json);
+            if (type == null) {
+                throw new IOException("Packet has no packetType");
+            }
+            return gson.fromJson(json, PacketClasses.classOf(PacketType.valueOf(type)));
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Malformed json packet: " + e.getMessage(), e);
+        }
+    }
+
+    // Shared so packets do not have to build their own
+    public static Gson gson() { return gson; }
+
+    @Override
+    public String getName() { return "json"; }
+}
@@ -0,0 +1,66 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The concrete class behind each PacketType, used by the codecs to rebuild a received packet.
+ */
+package packet.codec;
+
+import java.util.EnumMap;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+
+import packet.initalization.InitalizationPacket;
+import packet.keep_alive.KeepAlivePacket;
+import packet.message_packet.MessagePacket;
+import packet.peerlist_packet.PeerListReqPacket;
+import packet.peerlist_packet.PeerListResPacket;
+import packet.response_packet.AckResponse;
+import packet.response_packet.ErrorResponse;
+import packet.response_packet.InitializationResponse;
+
+public final class PacketClasses {
+
+    @FunctionalInterface
+    public interface PacketCreator {
+        AbstractPacket create(String senderId, String clusterId, String recipientId);
+    }
+
+    private static final EnumMap<PacketType, Class<? extends AbstractPacket>> classes = new EnumMap<>(PacketType.class);
+    private static final EnumMap<PacketType, PacketCreator> creators = new EnumMap<>(PacketType.class);
+
+    static {
+        register(PacketType.INITIALIZATION, InitalizationPacket.class, InitalizationPacket::new);
+        register(PacketType.INITIALIZATION_RES, InitializationResponse.class, InitializationResponse::new);
+        register(PacketType.MESSAGE, MessagePacket.class, MessagePacket::new);
+        register(PacketType.KEEP_ALIVE, KeepAlivePacket.class, (s, c, r) -> new KeepAlivePacket(s, c, r, false));
+        register(PacketType.ERROR, ErrorResponse.class, ErrorResponse::new);
+        register(PacketType.ACK, AckResponse.class, AckResponse::new);
+        register(PacketType.PEER_LIST_REQ, PeerListReqPacket.class, PeerListReqPacket::new);
+        register(PacketType.PEER_LIST_RES, PeerListResPacket.class, PeerListResPacket::new);
+    }
+
+    private PacketClasses() {}
+
+    private static void register(PacketType type, Class<? extends AbstractPacket> packetClass, PacketCreator creator) {
+        classes.put(type, packetClass);
+        creators.put(type, creator);
+    }
+
+    public static Class<? extends AbstractPacket> classOf(PacketType type) {
+        Class<? extends AbstractPacket> packetClass = classes.get(type);
+        if (packetClass == null) {
+            throw new IllegalArgumentException("No packet class registered for " + type);
+        }
+        return packetClass;
+    }
+
+    // A new packet of the type, its id, time stamp and payload are expected to be overwritten by the caller
+    public static AbstractPacket create(PacketType type, String senderId, String clusterId, String recipientId) {
+        PacketCreator creator = creators.get(type);
+        if (creator == null) {
+            throw new IllegalArgumentException("No packet class registered for " + type);
+        }
+        return creator.create(senderId, clusterId, recipientId);
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Turns an AbstractPacket into bytes and back. Two implementations exist:
+ *
+ *          JsonPacketCodec   - the same json that toJson() has always produced
+ *          BinaryPacketCodec - a compact form for small, frequent packets such as keep alives
+ *
+ *      Both decode to the concrete packet class for the packet's type (see PacketClasses).
+ */
+package packet.codec;
+
+import java.io.IOException;
+
+import packet.AbstractPacket;
+
+public interface PacketCodec {
+
+    byte[] encode(AbstractPacket packet);
+
+    /**
+     * @throws IOException if the bytes are not a packet this codec can read
+     */
+    AbstractPacket decode(byte[] bytes) throws IOException;
+
+    // Short name used in logs and config (e.g. json, binary)
+    String getName();
+}
@@ -0,0 +1,109 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Which PacketCodec this process writes its packets with, and reading a packet back out of a frame
+ *      whichever codec wrote it.
+ *
+ *      The codec is chosen from the tier's config with the <Tier>.packetCodec key (json or binary). A binary
+ *      body is marked on the frame's type byte (FrameCodec.BINARY_BODY), so the receiver never has to guess,
+ *      and is only sent to a peer that agreed to VERSION_4 frames during INITIALIZATION. Legacy lines and
+ *      older peers always get json.
+ *
+ *      The tier packets (ServerPacket, NodePacket, ...) are not AbstractPackets, so only the shared senders
+ *      can write a binary body. Every receiver can read one - the tier handlers go through json(), which
+ *      hands them the json of the decoded packet.
+ *
+ *      Usage:
+ *          Frame frame = PacketCodecs.toFrame(frameVersion, packet);
+ *          AbstractPacket packet = PacketCodecs.decode(frame);
+ */
+package packet.codec;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import packet.AbstractPacket;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+
+public final class PacketCodecs {
+
+    private static final Logger logger = LogManager.getLogger(PacketCodecs.class);
+
+    public static final String DEFAULT_CODEC = "json";
+
+    // Set once at startup from the tier's config, see configure()
+    private static volatile PacketCodec configured = JsonPacketCodec.INSTANCE;
+
+    private PacketCodecs() {}
+
+    public static void configure(String name) {
+        configured = forName(name);
+        if (configured != JsonPacketCodec.INSTANCE) {
+            logger.info("Writing packets to peers that read them with the {} codec", configured.getName());
+        }
+    }
+
+    public static PacketCodec forName(String name) {
+        if (name == null || name.isBlank()) {
+            return JsonPacketCodec.INSTANCE;
+        }
+        switch (name.trim().toLowerCase()) {
+            case "json":
+                return JsonPacketCodec.INSTANCE;
+            case "binary":
+                return BinaryPacketCodec.INSTANCE;
+            default:
+                logger.error("Unknown packet codec: ( {} ) using json instead", name);
+                return JsonPacketCodec.INSTANCE;
+        }
+    }
+
+    public static PacketCodec shared() {
+        return configured;
+    }
+
+    /**
+     * Frames the packet with the configured codec, or with json if the peer does not read binary bodies.
+     *
+     * @param version The frame version agreed with the peer, VERSION_1 or later
+     */
+    public static Frame toFrame(byte version, AbstractPacket packet) {
+        return toFrame(version, packet, configured);
+    }
+
+    public static Frame toFrame(byte version, AbstractPacket packet, PacketCodec codec) {
+        if (codec == BinaryPacketCodec.INSTANCE && version >= FrameCodec.VERSION_4) {
+            return Frame.ofBinary(version, packet.getPacketType(), codec.encode(packet));
+        }
+        return Frame.of(version, packet.getPacketType(), packet.toJson());
+    }
+
+    /**
+     * @param frame A framed packet, not a legacy line
+     * @throws IOException if the body is not a packet
+     */
+    public static AbstractPacket decode(Frame frame) throws IOException {
+        return frame.isBinaryBody()
+            ? BinaryPacketCodec.INSTANCE.decode(frame.getBody())
+            : JsonPacketCodec.INSTANCE.decode(frame.getBody());
+    }
+
+    /**
+     * The body as json, for the readers that work on json. A binary body is decoded and written back out as
+     * the json of the same packet.
+     *
+     * @throws IOException if the body is binary but not a packet
+     */
+    public static String json(Frame frame) throws IOException {
+        if (!frame.isBinaryBody()) {
+            return frame.bodyAsString();
+        }
+        return new String(JsonPacketCodec.INSTANCE.encode(BinaryPacketCodec.INSTANCE.decode(frame.getBody())), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      One message on the wire. Either a length prefixed frame:
+ *
+ *          | length (4 bytes, big endian) | version (1 byte) | type (1 byte) | body (length bytes) |
+ *
+ *      or, for peers that have not negotiated framing, a legacy line (json + ||END|| + newline). Legacy
+ *      messages use version 0 and keep the whole line, delimiter included, as the body.
+ *
+ *      A sampled frame may also carry a HopTrace, which goes on the wire in front of the body.
+ *
+ *      The body is a packet's json, unless the frame is marked as having a binary body (see packet.codec.PacketCodecs).
+ */
+package packet.frame;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+public class Frame {
+
+    private final byte version;
+    private final FrameType type;
+    private final byte[] body;
+
+    // Null for all but the sampled frames
+    private final HopTrace trace;
+
+    // The body was written by BinaryPacketCodec, not as json
+    private final boolean binaryBody;
+
+    public Frame(byte version, FrameType type, byte[] body) {
+        this(version, type, body, null);
+    }
+
+    public Frame(byte version, FrameType type, byte[] body, HopTrace trace) {
+        this(version, type, body, trace, false);
+    }
+
+    public Frame(byte version, FrameType type, byte[] body, HopTrace trace, boolean binaryBody) {
+        this.version = version;
+        this.type = type;
+        this.body = body;
+        this.trace = trace;
+        this.binaryBody = binaryBody;
+    }
+
+    /**
+     * A frame as it was read off the wire, the trace (if the TRACED bit is set) is split off the front of the body
+     * and given its READ stamp.
+     * @throws IOException if the frame says it is traced but has no room for the trace
+     */
+    public static Frame fromWire(byte version, byte typeCode, byte[] wireBody) throws IOException {
+        FrameType type = FrameCodec.typeOf(typeCode);
+        boolean binaryBody = (typeCode & FrameCodec.BINARY_BODY) != 0;
+        if ((typeCode & HopTrace.TRACED) == 0) {
+            return new Frame(version, type, wireBody, null, binaryBody);
+        }
+        HopTrace trace = HopTrace.readFrom(wireBody);
+        byte[] body = Arrays.copyOfRange(wireBody, trace.wireSize(), wireBody.length);
+        trace.stamp(HopTrace.Hop.READ);
+        return new Frame(version, type, body, trace, binaryBody);
+    }
+
+    // The same frame, traced from here on
+    public Frame withTrace(HopTrace trace) {
+        return new Frame(version, type, body, trace, binaryBody);
+    }
+
+    // A framed packet, the json is the body as is
+    public static Frame of(int version, Enum<?> packetType, String json) {
+        return new Frame((byte) version, FrameType.fromName(packetType), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A framed packet written by BinaryPacketCodec, only for peers on VERSION_4 or later
+    public static Frame ofBinary(int version, Enum<?> packetType, byte[] body) {
+        return new Frame((byte) version, FrameType.fromName(packetType), body, null, true);
+    }
+
+    // A ||END|| delimited line for peers that do not speak frames
+    public static Frame legacy(String delimitedJson) {
+        return new Frame(FrameCodec.VERSION_LEGACY, FrameType.UNKNOWN, delimitedJson.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean isLegacy() { return version == FrameCodec.VERSION_LEGACY; }
+
+    /*
+     *      Getters
+     */
+
+    public byte getVersion() { return version; }
+
+    public FrameType getType() { return type; }
+
+    public byte[] getBody() { return body; }
+
+    public HopTrace getTrace() { return trace; }
+
+    public boolean isTraced() { return trace != null; }
+
+    public boolean isBinaryBody() { return binaryBody; }
+
+    // The type byte that goes on the wire, with the TRACED bit when there is a trace and BINARY_BODY for a binary body
+    public byte getWireType() {
+        int wireType = type.getCode();
+        if (trace != null) {
+            wireType |= HopTrace.TRACED;
+        }
+        if (binaryBody) {
+            wireType |= FrameCodec.BINARY_BODY;
+        }
+        return (byte) wireType;
+    }
+
+    // The body plus the trace in front of it
+    public int getWireLength() {
+        return (trace == null) ? body.length : trace.wireSize() + body.length;
+    }
+
+    // Writes the trace (if any) and the body into out, getWireLength() bytes from offset
+    public void writeWireBody(byte[] out, int offset) {
+        if (trace != null) {
+            trace.writeTo(out, offset);
+            offset += trace.wireSize();
+        }
+        System.arraycopy(body, 0, out, offset, body.length);
+    }
+
+    public String bodyAsString() { return new String(body, StandardCharsets.UTF_8); }
+}
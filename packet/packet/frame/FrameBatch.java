@@ -0,0 +1,92 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Packs several frames into the body of one BATCH frame, so small packets going to the same peer
+ *      cost one write (and one response) instead of one each.
+ *
+ *      The body is just the frames one after another, each with its usual 6 byte header. The response to
+ *      a batch is a batch with a slot for every packet, in the same order - the packet's own ACK or ERROR,
+ *      or an empty frame when the receiver had nothing to send back for it.
+ *
+ *      Only sent to peers that negotiated VERSION_2 or newer. A traced packet keeps its trace inside the
+ *      batch, see HopTrace.
+ */
+package packet.frame;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class FrameBatch {
+
+    private FrameBatch() {}
+
+    /**
+     * @param version The frame version agreed with the peer
+     * @param frames The packets (or responses) to send, a null is sent as an empty slot
+     */
+    public static Frame encode(byte version, List<Frame> frames) {
+        int size = 0;
+        for (Frame frame : frames) {
+            if (frame != null && frame.isTraced()) {
+                frame.getTrace().stamp(HopTrace.Hop.WRITTEN);
+            }
+            size += FrameCodec.HEADER_BYTES + (frame == null ? 0 : frame.getWireLength());
+        }
+        if (size > FrameCodec.MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Batch of " + size + " bytes is over the " + FrameCodec.MAX_FRAME_BYTES + " byte limit");
+        }
+
+        byte[] body = new byte[size];
+        int offset = 0;
+        for (Frame frame : frames) {
+            int length = (frame == null) ? 0 : frame.getWireLength();
+            body[offset] = (byte) (length >>> 24);
+            body[offset + 1] = (byte) (length >>> 16);
+            body[offset + 2] = (byte) (length >>> 8);
+            body[offset + 3] = (byte) length;
+            body[offset + 4] = (frame == null) ? version : frame.getVersion();
+            body[offset + 5] = (frame == null) ? FrameType.UNKNOWN.getCode() : frame.getWireType();
+            if (frame != null) {
+                frame.writeWireBody(body, offset + FrameCodec.HEADER_BYTES);
+            }
+            offset += FrameCodec.HEADER_BYTES + length;
+        }
+        return new Frame(version, FrameType.BATCH, body);
+    }
+
+    /**
+     * @return the frames in the batch, in order. An empty slot comes back as null
+     * @throws IOException if the body does not split into whole frames
+     */
+    public static List<Frame> decode(Frame batch) throws IOException {
+        byte[] body = batch.getBody();
+        List<Frame> frames = new ArrayList<>();
+
+        int offset = 0;
+        while (offset < body.length) {
+            if (body.length - offset < FrameCodec.HEADER_BYTES) {
+                throw new IOException("Batch ends in the middle of a frame header");
+            }
+            int length = ((body[offset] & 0xFF) << 24)
+                | ((body[offset + 1] & 0xFF) << 16)
+                | ((body[offset + 2] & 0xFF) << 8)
+                | (body[offset + 3] & 0xFF);
+            int start = offset + FrameCodec.HEADER_BYTES;
+            if (length < 0 || length > body.length - start) {
+                throw new IOException("Batch holds a frame of " + length + " bytes but only " + (body.length - start) + " are left");
+            }
+
+            if (length == 0) {
+                frames.add(null);
+            } else {
+                byte[] frameBody = new byte[length];
+                System.arraycopy(body, start, frameBody, 0, length);
+                frames.add(Frame.fromWire(body[offset + 4], body[offset + 5], frameBody));
+            }
+            offset = start + length;
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Writes frames to the wire and holds the constants of the framed format. Reading is done by
+ *      FrameReader (blocking sockets) and the NIO listener's connections.
+ *
+ *      Framing is negotiated during INITIALIZATION: a peer that understands frames adds "frameVersion" to
+ *      the ACK of an INITIALIZATION packet, and only then does the sender switch over. Receivers accept
+ *      both formats on any socket, a frame always starts with a 0 byte (the length is < 16MB) while a
+ *      legacy line always starts with '{', and they answer in the format they were sent.
+ */
+package packet.frame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+public final class FrameCodec {
+
+    public static final byte VERSION_LEGACY = 0;   // ||END|| delimited json lines
+    public static final byte VERSION_1 = 1;        // length prefixed json body
+    public static final byte VERSION_2 = 2;        // VERSION_1, and the peer also reads BATCH frames
+    public static final byte VERSION_3 = 3;        // VERSION_2, and the peer also reads traced frames (see HopTrace)
+    public static final byte VERSION_4 = 4;        // VERSION_3, and the peer also reads binary packet bodies (see packet.codec.PacketCodecs)
+
+    // The newest version this build can send and read
+    public static final byte CURRENT_VERSION = VERSION_4;
+
+    // Set on the frame type byte when the body is a BinaryPacketCodec packet instead of json, like HopTrace.TRACED
+    public static final int BINARY_BODY = 0x40;
+
+    // The bits of the type byte that are flags, not part of the FrameType code
+    private static final int TYPE_FLAGS = HopTrace.TRACED | BINARY_BODY;
+
+    // The key added to an INITIALIZATION ACK by peers that read frames
+    public static final String FRAME_VERSION_KEY = "frameVersion";
+
+    public static final String DELIMITER = "||END||";
+
+    public static final int HEADER_BYTES = 6;
+
+    // Anything bigger is rejected from the header alone, before any of the body is buffered
+    public static final int MAX_FRAME_BYTES = 1 << 20;
+
+    private FrameCodec() {}
+
+    public static void write(OutputStream out, Frame frame) throws IOException {
+        if (frame.isLegacy()) {
+            out.write(frame.getBody());
+            out.write('\n');
+            return;
+        }
+        if (frame.isTraced()) {
+            out.write(encode(frame).array());   // Stamps WRITTEN
+            return;
+        }
+        byte[] header = new byte[HEADER_BYTES];
+        putHeader(header, frame);
+        out.write(header);
+        out.write(frame.getBody());
+    }
+
+    // The whole frame in one buffer, ready for a non-blocking write
+    public static ByteBuffer encode(Frame frame) {
+        byte[] body = frame.getBody();
+        if (frame.isLegacy()) {
+            ByteBuffer buffer = ByteBuffer.allocate(body.length + 1);
+            buffer.put(body).put((byte) '\n');
+            return buffer.flip();
+        }
+        if (frame.isTraced()) {
+            frame.getTrace().stamp(HopTrace.Hop.WRITTEN);
+        }
+        byte[] bytes = new byte[HEADER_BYTES + frame.getWireLength()];
+        putHeader(bytes, frame);
+        frame.writeWireBody(bytes, HEADER_BYTES);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void putHeader(byte[] header, Frame frame) {
+        int length = frame.getWireLength();
+        if (length > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes is over the " + MAX_FRAME_BYTES + " byte limit");
+        }
+        header[0] = (byte) (length >>> 24);
+        header[1] = (byte) (length >>> 16);
+        header[2] = (byte) (length >>> 8);
+        header[3] = (byte) length;
+        header[4] = frame.getVersion();
+        header[5] = frame.getWireType();
+    }
+
+    // The FrameType named by a type byte off the wire, whatever flags are set on it
+    public static FrameType typeOf(byte wireType) {
+        return FrameType.fromCode((byte) (wireType & ~TYPE_FLAGS));
+    }
+
+    // Length from the first 4 header bytes, checked against the limit so the caller can allocate the body safely
+    public static int readLength(byte[] header) throws FrameTooLargeException {
+        int length = ((header[0] & 0xFF) << 24)
+            | ((header[1] & 0xFF) << 16)
+            | ((header[2] & 0xFF) << 8)
+            | (header[3] & 0xFF);
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new FrameTooLargeException(length);
+        }
+        return length;
+    }
+
+    /**
+     * The version to use with a peer, given the frameVersion it advertised in its INITIALIZATION ACK.
+     *
+     * @param advertised The frameVersion value, null if the peer did not send one
+     * @return VERSION_LEGACY for old peers, otherwise the highest version both sides support
+     */
+    public static byte negotiate(String advertised) {
+        if (advertised == null) {
+            return VERSION_LEGACY;
+        }
+        try {
+            int version = Integer.parseInt(advertised.trim());
+            return (byte) Math.max(VERSION_LEGACY, Math.min(version, CURRENT_VERSION));
+        } catch (NumberFormatException e) {
+            return VERSION_LEGACY;
+        }
+    }
+}
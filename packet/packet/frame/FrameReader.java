@@ -0,0 +1,91 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Reads messages from a blocking socket, frames or legacy lines, telling them apart by the first
+ *      byte. A frame's body is allocated once, at its exact size, after the length has been checked.
+ */
+package packet.frame;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Arrays;
+
+public class FrameReader {
+
+    private final InputStream in;
+
+    private final byte[] header = new byte[FrameCodec.HEADER_BYTES];
+
+    // Reused between legacy lines, grows when a line is bigger than any seen before
+    private byte[] line = new byte[1024];
+
+    public FrameReader(InputStream in) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * @return the next message, or null if the other side closed the connection between messages
+     * @throws FrameTooLargeException if a frame or line is over the limit
+     */
+    public Frame read() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        if (first == 0) {
+            return readFrame();
+        }
+        return readLine(first);
+    }
+
+    private Frame readFrame() throws IOException {
+        header[0] = 0;
+        readFully(header, 1, FrameCodec.HEADER_BYTES - 1);
+
+        int length = FrameCodec.readLength(header);
+
+        byte[] body = new byte[length];
+        readFully(body, 0, length);
+
+        return Frame.fromWire(header[4], header[5], body);
+    }
+
+    private Frame readLine(int first) throws IOException {
+        int length = 0;
+        int b = first;
+
+        while (b != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed in the middle of a packet");
+            }
+            if (length == FrameCodec.MAX_FRAME_BYTES) {
+                throw new FrameTooLargeException(length + 1);
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(line.length * 2, FrameCodec.MAX_FRAME_BYTES));
+            }
+            line[length++] = (byte) b;
+            b = in.read();
+        }
+
+        // println on the sending side may have used \r\n
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new Frame(FrameCodec.VERSION_LEGACY, FrameType.UNKNOWN, Arrays.copyOf(line, length));
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
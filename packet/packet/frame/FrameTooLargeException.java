@@ -0,0 +1,18 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Thrown when a frame header announces a body over FrameCodec.MAX_FRAME_BYTES. The connection
+ *      should be dropped, there is no way to skip the body safely.
+ */
+package packet.frame;
+
+import java.io.IOException;
+
+public class FrameTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FrameTooLargeException(int length) {
+        super("Frame of " + length + " bytes is over the " + FrameCodec.MAX_FRAME_BYTES + " byte limit");
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      The packet type byte in a frame header. Every tier has its own packet type enum, so the frame
+ *      uses this shared list and maps to and from the tier enums by name. A name this list does not
+ *      know is sent as UNKNOWN, the receiver still reads the real type from the body.
+ *
+ *      Codes are part of the wire format - only ever add to the end.
+ */
+package packet.frame;
+
+public enum FrameType {
+    UNKNOWN(0),
+    INITIALIZATION(1),
+    INITIALIZATION_RES(2),
+    MESSAGE(3),
+    KEEP_ALIVE(4),
+    ERROR(5),
+    ACK(6),
+    PEER_LIST_REQ(7),
+    PEER_LIST_RES(8),
+    DISCONNECT(9),
+    BATCH(10);      // Several packets in one frame, see FrameBatch
+
+    private static final FrameType[] byCode = new FrameType[256];
+
+    static {
+        for (FrameType type : values()) {
+            byCode[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    FrameType(int code) { this.code = code; }
+
+    public byte getCode() { return (byte) code; }
+
+    public static FrameType fromCode(byte code) {
+        FrameType type = byCode[code & 0xFF];
+        return type == null ? UNKNOWN : type;
+    }
+
+    // Works with any of the tier packet type enums (PacketType, ServerPacketType, ...)
+    public static FrameType fromName(Enum<?> packetType) {
+        if (packetType == null) {
+            return UNKNOWN;
+        }
+        try {
+            return FrameType.valueOf(packetType.name());
+        } catch (IllegalArgumentException e) {
+            return UNKNOWN;
+        }
+    }
+}
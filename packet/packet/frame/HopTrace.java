@@ -0,0 +1,209 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Timestamps a sampled packet picks up on its way through the tiers, so the time between two of them
+ *      says where a slow packet spent it - waiting for a socket, on the wire, in the Gson decode or in the
+ *      handler.
+ *
+ *          ENCODED   - the sender has built the frame
+ *          WRITTEN   - the frame is being written, the socket has been connected (or borrowed from the pool)
+ *                      and any batch window is over
+ *          READ      - the listener on the other side has the whole frame
+ *          DECODED   - the handler has rebuilt the packet
+ *          HANDLED   - the handler is done with it, the trace is reported (see connection.metrics.PacketMetrics)
+ *
+ *      A traced frame has the TRACED bit set in its type byte and the trace in front of the json:
+ *
+ *          | count (1 byte) | origin (8 bytes, epoch micros) | count x ( hop (1 byte) | micros since origin (4 bytes) ) | json |
+ *
+ *      Only sent to peers that negotiated VERSION_3 or newer, and only for one packet in every sampleRate
+ *      (see configure()), so untraced packets pay nothing but the sampling check.
+ *
+ *      The stamps are wall clock micros, so READ is off by however far apart the two hosts' clocks are.
+ *      The other gaps are measured on one host.
+ */
+package packet.frame;
+
+import java.io.IOException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public final class HopTrace {
+
+    public enum Hop {
+        ENCODED(0),
+        WRITTEN(1),
+        READ(2),
+        DECODED(3),
+        HANDLED(4);     // Codes are part of the wire format - only ever add to the end
+
+        private static final Hop[] byCode = values();
+
+        private final int code;
+
+        Hop(int code) { this.code = code; }
+
+        public byte getCode() { return (byte) code; }
+
+        // A hop from a newer build comes back as null
+        public static Hop fromCode(byte code) {
+            int index = code & 0xFF;
+            return (index < byCode.length) ? byCode[index] : null;
+        }
+    }
+
+    // Set on the frame type byte of a traced frame, the type codes never get this high
+    public static final int TRACED = 0x80;
+
+    // Enough for every hop between a node and the coordinator, anything past this is not stamped
+    public static final int MAX_STAMPS = 16;
+
+    private static final int HEADER_BYTES = 9;
+    private static final int STAMP_BYTES = 5;
+
+    // 0 - off, otherwise 1 packet in every this many is traced
+    public static final int DEFAULT_SAMPLE_RATE = 0;
+
+    // Set once at startup from the tier's config, see configure()
+    private static volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+
+    // Wall clock micros from nanoTime, so the stamps on one host never go backwards
+    private static final long EPOCH_MICROS_BASE = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private static final long NANOS_BASE = System.nanoTime();
+
+    private final long originMicros;
+    private final byte[] hops = new byte[MAX_STAMPS];
+    private final int[] offsets = new int[MAX_STAMPS];     // Micros since the origin
+    private int count;
+
+    private HopTrace(long originMicros) {
+        this.originMicros = originMicros;
+    }
+
+    /**
+     * @param sampleRate Trace 1 packet in every sampleRate, 0 turns tracing off
+     */
+    public static void configure(int sampleRate) {
+        HopTrace.sampleRate = Math.max(0, sampleRate);
+    }
+
+    public static int getSampleRate() { return sampleRate; }
+
+    // Whether the packet being sent now should be traced
+    public static boolean sample() {
+        int rate = sampleRate;
+        return rate > 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    // A trace with its first stamp, ENCODED, taken now
+    public static HopTrace start() {
+        HopTrace trace = new HopTrace(nowMicros());
+        trace.stamp(Hop.ENCODED);
+        return trace;
+    }
+
+    public static long nowMicros() {
+        return EPOCH_MICROS_BASE + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - NANOS_BASE);
+    }
+
+    // Only the thread handling the frame stamps it, one hop after the other, so there is no locking
+    public void stamp(Hop hop) {
+        if (count == MAX_STAMPS) {
+            return;
+        }
+        long offset = nowMicros() - originMicros;
+        hops[count] = hop.getCode();
+        offsets[count] = (int) Math.max(0, Math.min(offset, Integer.MAX_VALUE));
+        count++;
+    }
+
+    /*
+     *      Wire format
+     */
+
+    public int wireSize() {
+        return HEADER_BYTES + count * STAMP_BYTES;
+    }
+
+    public void writeTo(byte[] out, int offset) {
+        out[offset++] = (byte) count;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[offset++] = (byte) (originMicros >>> shift);
+        }
+        for (int i = 0; i < count; i++) {
+            out[offset++] = hops[i];
+            out[offset++] = (byte) (offsets[i] >>> 24);
+            out[offset++] = (byte) (offsets[i] >>> 16);
+            out[offset++] = (byte) (offsets[i] >>> 8);
+            out[offset++] = (byte) offsets[i];
+        }
+    }
+
+    /**
+     * @return the trace at the start of a traced frame's body, read its size with wireSize()
+     * @throws IOException if the body is too short to hold the trace it says it has
+     */
+    public static HopTrace readFrom(byte[] in) throws IOException {
+        if (in.length < HEADER_BYTES) {
+            throw new IOException("Traced frame of " + in.length + " bytes is too short for a trace");
+        }
+        int count = in[0] & 0xFF;
+        if (count > MAX_STAMPS || in.length < HEADER_BYTES + count * STAMP_BYTES) {
+            throw new IOException("Traced frame of " + in.length + " bytes can not hold " + count + " stamps");
+        }
+        long origin = 0;
+        for (int i = 1; i < HEADER_BYTES; i++) {
+            origin = (origin << 8) | (in[i] & 0xFF);
+        }
+        HopTrace trace = new HopTrace(origin);
+        int offset = HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            trace.hops[i] = in[offset];
+            trace.offsets[i] = ((in[offset + 1] & 0xFF) << 24)
+                | ((in[offset + 2] & 0xFF) << 16)
+                | ((in[offset + 3] & 0xFF) << 8)
+                | (in[offset + 4] & 0xFF);
+            offset += STAMP_BYTES;
+        }
+        trace.count = count;
+        return trace;
+    }
+
+    /*
+     *      Getters
+     */
+
+    public int getCount() { return count; }
+
+    // Null for a hop this build does not know
+    public Hop getHop(int index) { return Hop.fromCode(hops[index]); }
+
+    // Micros between this stamp and the one before it, 0 for the first
+    public long getMicrosSincePrevious(int index) {
+        return (index == 0) ? 0 : Math.max(0, offsets[index] - offsets[index - 1]);
+    }
+
+    public long getTotalMicros() {
+        return (count == 0) ? 0 : offsets[count - 1];
+    }
+
+    public long getOriginMicros() { return originMicros; }
+
+    // ENCODED, WRITTEN +120us, READ +840us, ...
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            Hop hop = getHop(i);
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(hop == null ? "hop " + (hops[i] & 0xFF) : hop.name());
+            if (i > 0) {
+                out.append(" +").append(getMicrosSincePrevious(i)).append("us");
+            }
+        }
+        return out.append(" (").append(getTotalMicros()).append("us)").toString();
+    }
+}
@@ -53,7 +53,7 @@ public class InitalizationPacketManager extends AbstractPacketManager {
     @Override
     public AbstractPacket createGoodResponsePacket() {
 
-        responsePacket = new InitializationResponse(senderId, clusterId, recipientId);
+        responsePacket = answering(new InitializationResponse(senderId, clusterId, recipientId));
 
         return responsePacket;
     }
@@ -61,7 +61,7 @@ public class InitalizationPacketManager extends AbstractPacketManager {
     @Override
     public AbstractPacket createBadResponsePacket() {
 
-        responsePacket = new ErrorResponse(senderId, clusterId, recipientId);
+        responsePacket = answering(new ErrorResponse(senderId, clusterId, recipientId));
 
         return responsePacket;
     }
@@ -112,7 +112,7 @@ public class InitalizationPacketManager extends AbstractPacketManager {
         } catch(UnknownPacketException upe) {
             logger.error("Unexpected Packet Type! {}", upe);
         } catch(Exception e) {
-            logger.error("Unchecked Exception! {}", e);
+            logger.error("Unchecked Exception!", e);
             responsePacket = createBadResponsePacket();
         }
 
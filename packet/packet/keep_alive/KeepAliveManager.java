@@ -46,7 +46,7 @@ public class KeepAliveManager extends AbstractPacketManager {
     @Override
     public AbstractPacket createGoodResponsePacket() {
 
-        responsePacket = new AckResponse(senderId, clusterId, recipientId);
+        responsePacket = answering(new AckResponse(senderId, clusterId, recipientId));
 
         return responsePacket;
     }
@@ -54,7 +54,7 @@ public class KeepAliveManager extends AbstractPacketManager {
     @Override
     public AbstractPacket createBadResponsePacket() {
 
-        responsePacket = new ErrorResponse(senderId, clusterId, recipientId);
+        responsePacket = answering(new ErrorResponse(senderId, clusterId, recipientId));
 
         return responsePacket;
     }
@@ -83,7 +83,7 @@ public class KeepAliveManager extends AbstractPacketManager {
             logger.error("Invalid format in processed packet! {}", ife);
             responsePacket = createBadResponsePacket();
         } catch(Exception e) {
-            logger.error("Unchecked Exception! {}", e);
+            logger.error("Unchecked Exception!", e);
             responsePacket = createBadResponsePacket();
         }
 
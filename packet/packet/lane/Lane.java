@@ -0,0 +1,102 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Which lane a packet travels in, both when it is sent and when it is handled. Keep alives and the
+ *      handshake must never wait behind a flood of MESSAGE packets - if they do, checkExpiredConnections
+ *      expires nodes that are perfectly healthy - so they get a lane (and capacity) of their own:
+ *
+ *          CONTROL  - INITIALIZATION, KEEP_ALIVE, ACK, ERROR, DISCONNECT... whatever the priority
+ *          CRITICAL - any other packet to or from a CRITICAL connection
+ *          BULK     - everything else, MESSAGE traffic mostly
+ *
+ *      Like FrameType this works on any tier's packet type and priority enums, by name.
+ */
+package packet.lane;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Set;
+
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+
+public enum Lane {
+    CONTROL,
+    CRITICAL,
+    BULK;
+
+    private static final Set<String> controlTypes = Set.of(
+        "INITIALIZATION",
+        "INITIALIZATION_RES",
+        "KEEP_ALIVE",
+        "ACK",
+        "ERROR",
+        "DISCONNECT"
+    );
+
+    private static final String TYPE_FIELD = "\"packetType\":\"";
+
+    public static Lane of(Enum<?> packetType) {
+        return of(packetType, null);
+    }
+
+    /**
+     * @param packetType Any of the tier packet type enums (PacketType, ServerPacketType, ...)
+     * @param priority The connection's priority, any of the tier priority enums, may be null
+     */
+    public static Lane of(Enum<?> packetType, Enum<?> priority) {
+        if (packetType != null && controlTypes.contains(packetType.name())) {
+            return CONTROL;
+        }
+        if (priority != null && priority.name().equals("CRITICAL")) {
+            return CRITICAL;
+        }
+        return BULK;
+    }
+
+    // A BATCH on its own says nothing, see peek() for how its lane is found
+    public static Lane of(FrameType frameType) {
+        return controlTypes.contains(frameType.name()) ? CONTROL : BULK;
+    }
+
+    /**
+     * Works out the lane from the first bytes of a message, before it has been read properly.
+     *
+     * @param start The start of a frame or legacy line, as much of it as has arrived
+     * @return the lane, or null if not enough has arrived to tell
+     */
+    public static Lane peek(byte[] start, int length) {
+        if (length <= 0) {
+            return null;
+        }
+
+        // A frame names its type in the header, less the bits that mark it traced or binary
+        if (start[0] == 0) {
+            if (length < FrameCodec.HEADER_BYTES) {
+                return null;
+            }
+            FrameType type = FrameCodec.typeOf(start[FrameCodec.HEADER_BYTES - 1]);
+            if (type != FrameType.BATCH) {
+                return of(type);
+            }
+
+            // A batch only ever holds packets of one lane (see OutboundBatcher), the header of the first one says which
+            return (length < 2 * FrameCodec.HEADER_BYTES)
+                ? null
+                : of(FrameCodec.typeOf(start[2 * FrameCodec.HEADER_BYTES - 1]));
+        }
+
+        // A legacy line only names it in the json
+        String json = new String(start, 0, length, StandardCharsets.UTF_8);
+        int field = json.indexOf(TYPE_FIELD);
+        if (field < 0) {
+            return null;
+        }
+        int from = field + TYPE_FIELD.length();
+        int to = json.indexOf('"', from);
+        if (to < 0) {
+            return null;
+        }
+        return controlTypes.contains(json.substring(from, to)) ? CONTROL : BULK;
+    }
+}
@@ -0,0 +1,17 @@
+/*
+        Author: Nathaniel Brewer
+
+        Generic text/data message, the payload carries whatever is being sent
+*/
+
+package packet.message_packet;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+
+public class MessagePacket extends AbstractPacket {
+
+    public MessagePacket(String senderId, String clusterId, String recipientId) {
+        super(senderId, PacketType.MESSAGE, clusterId, recipientId);
+    }
+}
@@ -29,7 +29,7 @@ public class PeerListPacketManager extends AbstractPacketManager {
     
     @Override
     public AbstractPacket createGoodResponsePacket() {
-        responsePacket = new PeerListResPacket(senderId, clusterId, recipientId);
+        responsePacket = answering(new PeerListResPacket(senderId, clusterId, recipientId));
 
         return responsePacket;
     }
@@ -37,7 +37,7 @@ public class PeerListPacketManager extends AbstractPacketManager {
     @Override
     public AbstractPacket createBadResponsePacket() {
 
-        packet = new ErrorResponse(senderId, clusterId, recipientId);
+        packet = answering(new ErrorResponse(senderId, clusterId, recipientId));
 
         return packet;
     }
@@ -10,8 +10,6 @@ import packet.PacketType;
 
 public class ErrorResponse extends AbstractPacket{
 
-    protected PacketType packetType = PacketType.ERROR;
-
     public ErrorResponse(String senderId, String clusterId, String recipientId) {
         super(senderId, PacketType.ERROR, clusterId, recipientId);
     }
@@ -1,35 +1,55 @@
 package sender;
 
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 
 // This will allow for Jsonification of packets before sending
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
-import lib.PacketTypeAdapterFactory;
+import lib.PacketLog;
+import lib.PacketRegistry;
+import lib.SharedTimer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import packet.AbstractPacket;
 import packet.PacketType;
+
+import packet.codec.PacketCodecs;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+import packet.frame.HopTrace;
+import packet.lane.Lane;
+
+import sender.outbound_batcher.OutboundBatcher;
+import sender.persistent_connection.PersistentConnectionPool;
+import sender.retry_policy.RetryPolicy;
+
+import connection.ConnectionStats;
+import connection.flight_recorder.PacketDecodeEvent;
+import connection.flight_recorder.PacketEncodeEvent;
+import connection.flight_recorder.PacketRetryEvent;
+import connection.flight_recorder.PacketRoundTripEvent;
+import connection.metrics.PacketMetrics;
+import connection.transport.TransportSelector;
+
 public abstract class AbstractSender {
     
     protected static final Logger logger = LogManager.getLogger(AbstractSender.class);
 
-    // A timer for retry and for other time based sending
-    protected final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // A timer for retry and for other time based sending, the process wide one so a sender costs no thread
+    protected static final ScheduledExecutorService scheduler = SharedTimer.get();
 
     protected Socket socket;    // Socket that sends the packet - will be instantiated on initalization
 
@@ -37,107 +57,360 @@ public abstract class AbstractSender {
     protected String ip;
     protected int sendingPort;
 
-    // Gson instance configured with packet type adapter for proper serialization/deserialization
-    protected static final Gson gson = new GsonBuilder()
-        .registerTypeAdapterFactory(PacketTypeAdapterFactory.create())
-        .create();
+    // When true the socket is kept open in the shared pool and reused for later packets
+    protected boolean persistent = false;
+
+    // Which wire format packets to this destination use, see packet.frame.FrameCodec
+    protected volatile byte frameVersion = FrameCodec.VERSION_LEGACY;
+
+    // How failed sends are retried, see retry()
+    protected volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    // The priority of the connection this sends to, CRITICAL packets take a lane ahead of bulk traffic (see laneOf())
+    protected volatile Enum<?> priority;
+
+    // Set when the peer turns a packet away as overloaded, nothing is sent to it before then (see backOff())
+    protected volatile long overloadedUntilNanos = System.nanoTime();
+
+    // The traffic counters of the connection this sends to, set by its DtoManager. Null for a sender made on its own
+    protected volatile ConnectionStats stats;
+
+    // Id of the connection this sends to, set by its DtoManager. Only used to say who a flight recorder event was for
+    protected volatile String peerId;
+
+    // The process wide Gson that knows every packet type label, see lib.PacketRegistry
+    protected static final Gson gson = PacketRegistry.gson();
 
     /*
             Abstract Methods
     */
-    public abstract boolean retry(AbstractPacket packet);
+    public abstract CompletableFuture<Boolean> retry(AbstractPacket packet);
 
     /*
             End Abstraction
     */
 
     public void startSocket() throws IOException, SocketTimeoutException {
-        socket = new Socket(
-            ip,
-            sendingPort
-        );
+        socket = TransportSelector.shared().connect(ip, sendingPort);   // A unix domain socket if the peer is on this host
         socket.setSoTimeout(1000);
     }
 
     /* Deserializes JSON response into the appropriate packet subtype.
-     * Uses the centralized PacketTypeAdapterFactory which handles all packet types.
+     * Uses the shared PacketRegistry which handles all packet types.
      */
     public AbstractPacket deserializePacket(String json) {
-        return gson.fromJson(json, AbstractPacket.class);
+        return PacketRegistry.fromJson(json, AbstractPacket.class);
     }
 
-    // This will send the completed packet
-    public boolean send(AbstractPacket packet){
+    // Turns on the long lived connection mode - packets to this destination will share one pooled socket
+    public void setPersistent(boolean persistent) { this.persistent = persistent; }
 
-        try{
-            startSocket();  
+    public boolean isPersistent() { return persistent; }
 
-            //If the acknowledgement is not recieved then it will call upon retry (if the child class uses a retry method)
-            boolean ackReceived = false;
+    // The framing agreed with this destination, VERSION_LEGACY (||END|| lines) until an INITIALIZATION ACK says otherwise
+    public void setFrameVersion(byte frameVersion) { this.frameVersion = frameVersion; }
 
-            String json = packet.toDelimitedString();     
+    public byte getFrameVersion() { return frameVersion; }
 
-            // Initalized inside nested control structure
-            AbstractPacket responsePacket;
+    public void setRetryPolicy(RetryPolicy retryPolicy) { this.retryPolicy = retryPolicy; }
 
-            // Creates the input and the output for the socket.
-            PrintWriter output = new PrintWriter(
-                this.socket.getOutputStream(), 
-                true
-            );
+    public RetryPolicy getRetryPolicy() { return retryPolicy; }
+
+    public void setPriority(Enum<?> priority) { this.priority = priority; }
+
+    public Enum<?> getPriority() { return priority; }
+
+    public void setStats(ConnectionStats stats) { this.stats = stats; }
+
+    public ConnectionStats getStats() { return stats; }
+
+    public void setPeerId(String peerId) { this.peerId = peerId; }
+
+    // Who the flight recorder events are about, the connection id or the ip of a sender made on its own
+    protected String peer() {
+        String peerId = this.peerId;
+        return (peerId != null) ? peerId : ip;
+    }
+
+    // Keep alives and the handshake go in the control lane, anything else to a CRITICAL connection ahead of bulk
+    protected Lane laneOf(AbstractPacket packet) { return Lane.of(packet.getPacketType(), priority); }
+
+    // Holds off sending to this peer for as long as its overload ERROR asked, if it gave a retry after hint
+    protected void backOff(String retryAfterMillis) {
+        if(retryAfterMillis == null) {
+            return;
+        }
+        try {
+            long millis = Long.parseLong(retryAfterMillis);
+            overloadedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            logger.warn("{}:{} is overloaded, holding off for {}ms", ip, sendingPort, millis);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring a bad retry after hint from {}:{}: {}", ip, sendingPort, retryAfterMillis);
+        }
+    }
+
+    // How much longer this peer asked to be left alone, 0 once it can be sent to again
+    public long remainingBackoffMillis() {
+        long remaining = overloadedUntilNanos - System.nanoTime();
+        return (remaining > 0) ? TimeUnit.NANOSECONDS.toMillis(remaining) + 1 : 0;
+    }
+
+    /*
+     *      Traffic counting - against the connection (connection.ConnectionStats) and the process totals
+     *      (connection.metrics.PacketMetrics). None of these lock
+     */
+
+    // Returns when the packet went out, for the round trip time once its response is back
+    protected long countSent(AbstractPacket packet, Frame request) {
+        PacketMetrics.sent(packet.getPacketType(), request.getBody().length);
+        PacketLog.shared().record(PacketLog.Direction.OUT, ip, packet.getPacketType(), request.getBody());
+        ConnectionStats stats = this.stats;
+        if (stats != null) {
+            stats.recordSent(request.getBody().length);
+        }
+        return System.nanoTime();
+    }
+
+    protected void countResponse(AbstractPacket packet, Frame responseFrame, AbstractPacket responsePacket, long sentNanos) {
+        PacketMetrics.response(packet.getPacketType(), responsePacket.getPacketType(), sentNanos);
+        new PacketRoundTripEvent().commit(packet.getPacketType(), responsePacket.getPacketType(), peer(), responseFrame.getBody().length, sentNanos);
+        PacketLog.shared().record(PacketLog.Direction.IN, ip, responsePacket.getPacketType(), responseFrame.getBody());
+        ConnectionStats stats = this.stats;
+        if (stats != null) {
+            stats.recordResponse(responseFrame.getBody().length, responsePacket.getPacketType() == PacketType.ACK, sentNanos);
+        }
+    }
+
+    // Nothing usable came back, the socket failed, the read timed out or the response was not a packet
+    protected void countFailure(AbstractPacket packet) {
+        PacketMetrics.FAILURES.increment(packet.getPacketType());
+        ConnectionStats stats = this.stats;
+        if (stats != null) {
+            stats.recordFailure();
+        }
+    }
+
+    protected void countRetry(AbstractPacket packet) {
+        PacketMetrics.RETRIES.increment(packet.getPacketType());
+        new PacketRetryEvent().commit(packet.getPacketType(), peer());
+        ConnectionStats stats = this.stats;
+        if (stats != null) {
+            stats.recordRetry();
+        }
+    }
+
+    // Reads the response to an async send and counts it either way
+    private AbstractPacket readCountedResponse(AbstractPacket packet, Frame responseFrame, long sentNanos) {
+        try {
+            AbstractPacket responsePacket = readResponse(packet, responseFrame);
+            countResponse(packet, responseFrame, responsePacket, sentNanos);
+            return responsePacket;
+        } catch (RuntimeException e) {
+            countFailure(packet);
+            throw e;
+        }
+    }
+
+    /* Lets go of the sockets pooled for this destination, called once its connection is terminated.
+     * There is no thread to stop, the timer is shared by every sender.
+     */
+    public void close() {
+        PersistentConnectionPool.shared().close(ip, sendingPort);
+    }
+
+    /* Writes the packet and returns the response, in whichever format the peer answered in.
+     * In persistent mode the socket is borrowed from the shared pool (one per lane) and left open for the next packet,
+     * otherwise a socket is opened just for this packet and closed once the response is read.
+     */
+    protected Frame exchange(Frame request, Lane lane) throws IOException {
+        if (persistent) {
+            return PersistentConnectionPool.shared().acquire(ip, sendingPort, lane).exchange(request);
+        }
+
+        // A socket of its own rather than this.socket, one sender is shared by every thread sending to the connection
+        try (Socket socket = TransportSelector.shared().connect(ip, sendingPort)) {
+            socket.setSoTimeout(1000);
 
-            // Sends the packet through the socket to the Coordinator
-            output.println(json);
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            FrameCodec.write(output, request);
             output.flush();
-            logger.info("Sending packet of type: {}", packet.getPacketType());
 
-            // Will be where the response is read from
-            BufferedReader input = new BufferedReader(
-                new InputStreamReader(this.socket.getInputStream())
-            );
+            return new FrameReader(socket.getInputStream()).read();
+        }   // Closed either way, we cannot reuse the same socket connection if a retry is needed
+    }
 
-            // Retrieves the response packet from the Coordinator
-            String response = input.readLine();
+    // Frames once the peer has agreed to them during INITIALIZATION, the ||END|| line format until then.
+    // The body is written with the configured codec, binary only to a peer that reads it (see PacketCodecs)
+    protected Frame toFrame(AbstractPacket packet) {
+        long encodeStart = System.nanoTime();
+        PacketEncodeEvent encodeEvent = new PacketEncodeEvent();
+        encodeEvent.begin();
+        Frame frame = (frameVersion == FrameCodec.VERSION_LEGACY)
+            ? Frame.legacy(packet.toDelimitedString())
+            : PacketCodecs.toFrame(frameVersion, packet);
+        PacketMetrics.ENCODE.recordSince(packet.getPacketType(), encodeStart);
+        encodeEvent.commit(packet.getPacketType(), peer(), frame.getBody().length);
+
+        // A sampled packet carries the time it reaches each hop, to a peer that can read it
+        if (frameVersion >= FrameCodec.VERSION_3 && HopTrace.sample()) {
+            frame = frame.withTrace(HopTrace.start());
+        }
+        return frame;
+    }
 
-            // Checks if the payload is properly terminated. If not, the packet is incomplete or an unsafe packet was sent
-            try{
-                if(response == null){
-                    throw new Exception("No Response Packet Received!");
-                }
-                else if(!response.endsWith("||END||")){
-                    throw new IllegalArgumentException(
-                        "Payload not properly terminated. "
-                        + "\tPossible Causes:\n\t"
-                        + "- Incomplete Packet\n\t"
-                        + "- Unsafe Packet"
-                    );
-                }
+    /* Checks and rebuilds the response to a packet, for both send() and sendAsync().
+     * A missing or unterminated response throws an IllegalArgumentException.
+     */
+    protected AbstractPacket readResponse(AbstractPacket packet, Frame responseFrame) {
+        long decodeStart = System.nanoTime();
+        PacketDecodeEvent decodeEvent = new PacketDecodeEvent();
+        decodeEvent.begin();
+        AbstractPacket responsePacket;
+
+        // A binary body says so in the frame header, it is decoded by its codec instead of as json
+        if(responseFrame != null && responseFrame.isBinaryBody()) {
+            try {
+                responsePacket = PacketCodecs.decode(responseFrame);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Malformed binary response: " + e.getMessage(), e);
+            }
+        }
+        else {
+            String response = (responseFrame == null) ? null : responseFrame.bodyAsString();
 
-                // If true, the packet will remove the delimiter so it can properly deserialize the Json (Since ||END|| is not json)
+            if(response == null){
+                throw new IllegalArgumentException("No Response Packet Received!");
+            }
+            else if(responseFrame.isLegacy() && !response.endsWith("||END||")){
+                throw new IllegalArgumentException(
+                    "Payload not properly terminated. "
+                    + "\tPossible Causes:\n\t"
+                    + "- Incomplete Packet\n\t"
+                    + "- Unsafe Packet"
+                );
+            }
+
+            // If legacy, the packet will remove the delimiter so it can properly deserialize the Json (Since ||END|| is not json)
+            if(responseFrame.isLegacy()) {
                 response = response.substring(
                     0, 
                     response.length() - "||END||".length()
                 );
+            }
+
+            // Builds the response straight from the json in a single pass, the registry routes on its packetType
+            responsePacket = deserializePacket(response);
+        }
+        PacketMetrics.DECODE.recordSince(responsePacket.getPacketType(), decodeStart);
+        decodeEvent.commit(responsePacket.getPacketType(), peer(), responseFrame.getBody().length);
+
+        // Print out the packet, for the sampled ones
+        if (PacketLog.shared().sample(responsePacket.getPacketType())) {
+            logger.info(
+                "Response Recieved:\n\tSender ID:\t{}\n\tPacket Type:\t{}",
+                responsePacket.getSenderId(),
+                responsePacket.getPacketType()
+            );
+        }
+        /* Deserialize the JSON response into the appropriate packet type
+        responsePacket = (AbstractPacket) deserializePacket(response);
+                    EdgeServer.setServerId(v);
+                }
+            });
+        */
 
-                // Pre-parses the Json in order to grab the packetType to use for the switch statement
-                JsonObject jsonObj = JsonParser.parseString(response).getAsJsonObject();
-                String responseJson = jsonObj.toString();
+        // An overloaded peer turns the packet away with an ERROR saying how long to stay away (see AdmissionControl)
+        if(responsePacket.getPacketType() == PacketType.ERROR) {
+            backOff(responsePacket.getPayload().get(RetryPolicy.RETRY_AFTER_KEY));
+        }
 
-                // Sends the the json and the packetType to be built by Gson dynamically
-                responsePacket = deserializePacket(responseJson);
+        // A peer that reads frames says so in its ACK to INITIALIZATION, later packets to it are framed
+        if(packet.getPacketType() == PacketType.INITIALIZATION) {
+            frameVersion = FrameCodec.negotiate(responsePacket.getPayload().get(FrameCodec.FRAME_VERSION_KEY));
+        }
 
-                // Print out the packet 
-                logger.info(
-                    "Response Recieved:"
-                    + "\n\tSender ID:\t" + responsePacket.getSenderId() 
-                    + "\n\tPacket Type:\t" + responsePacket.getPacketType() 
-                );
-                /* Deserialize the JSON response into the appropriate packet type
-                responsePacket = (AbstractPacket) deserializePacket(response);
-                            EdgeServer.setServerId(v);
-                        }
-                    });
-                */
+        return responsePacket;
+    }
+
+    /* Sends the packet without waiting for the response. The packet goes out over the destination's
+     * pipelined connection, so any number of packets can be in flight at once; the future completes
+     * with the response matched back to this packet (see PipelinedConnection), or exceptionally if it
+     * could not be sent, timed out, or was not a valid response.
+     */
+    public CompletableFuture<AbstractPacket> sendAsync(AbstractPacket packet) {
+        return sendAsync(packet, PersistentConnectionPool.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    public CompletableFuture<AbstractPacket> sendAsync(AbstractPacket packet, long timeoutMillis) {
+        if (PacketLog.shared().sample(packet.getPacketType())) {
+            logger.debug("Sending packet of type: {} (async)", packet.getPacketType());
+        }
+        Frame request = toFrame(packet);
+        long sentNanos = countSent(packet, request);
+        CompletableFuture<Frame> response = PersistentConnectionPool.shared()
+            .acquirePipelined(ip, sendingPort, laneOf(packet))
+            .send(request, packet.getPacketId(), timeoutMillis);
+        // A timeout or a dropped connection never gets to readCountedResponse()
+        response.exceptionally(e -> { countFailure(packet); return null; });
+        return response.thenApply(responseFrame -> readCountedResponse(packet, responseFrame, sentNanos));
+    }
+
+    /* Like sendAsync(), but the packet may wait a moment to share one frame with other packets going to the
+     * same destination in the same lane (see OutboundBatcher). Control and CRITICAL packets batch on their own
+     * lane, which does not wait out the batch window. Peers that can not read batches get it on its own.
+     */
+    public CompletableFuture<AbstractPacket> sendBatched(AbstractPacket packet) {
+        if (frameVersion < FrameCodec.VERSION_2) {
+            return sendAsync(packet);
+        }
+        if (PacketLog.shared().sample(packet.getPacketType())) {
+            logger.debug("Sending packet of type: {} (batched)", packet.getPacketType());
+        }
+        Frame request = toFrame(packet);
+        long sentNanos = countSent(packet, request);
+        CompletableFuture<Frame> response = OutboundBatcher.forDestination(ip, sendingPort, laneOf(packet)).submit(request);
+        response.exceptionally(e -> { countFailure(packet); return null; });
+        return response.thenApply(responseFrame -> readCountedResponse(packet, responseFrame, sentNanos));
+    }
+
+    /* Like send(), but the first attempt runs on a retry worker and any retries are spaced out on the shared
+     * timer (see retry()), so the calling thread is never held up. Completes with whether an ACK came back in the end.
+     */
+    public CompletableFuture<Boolean> sendWithRetry(AbstractPacket packet) {
+        return CompletableFuture.supplyAsync(() -> send(packet), RetryPolicy.workers())
+            .thenCompose(sent -> sent ? CompletableFuture.completedFuture(true) : retry(packet));
+    }
+
+    // This will send the completed packet
+    public boolean send(AbstractPacket packet){
+
+        // The peer said it is overloaded, going again now would only get turned away
+        long backoff = remainingBackoffMillis();
+        if(backoff > 0) {
+            logger.warn("Not sending {}, {}:{} asked to be left alone for another {}ms", packet.getPacketType(), ip, sendingPort, backoff);
+            return false;
+        }
+
+        try{
+            //If the acknowledgement is not recieved then it will call upon retry (if the child class uses a retry method)
+            boolean ackReceived = false;
+
+            Frame request = toFrame(packet);
+            long sentNanos = countSent(packet, request);
+
+            // Initalized inside nested control structure
+            AbstractPacket responsePacket;
+
+            // Sends the packet to the destination and retrieves the response packet
+            if (PacketLog.shared().sample(packet.getPacketType())) {
+                logger.debug("Sending packet of type: {}", packet.getPacketType());
+            }
+            Frame responseFrame = exchange(request, laneOf(packet));
+
+            // Rebuilds the response, then checks that it is an ACK
+            try{
+                responsePacket = readResponse(packet, responseFrame);
+                countResponse(packet, responseFrame, responsePacket, sentNanos);
 
                 // If the packet type is a ACK packet - then it is a good connection made and the coordinator will close this socket.
                 if (responsePacket.getPacketType() != PacketType.ACK) {
@@ -146,27 +419,25 @@ public abstract class AbstractSender {
                     ackReceived = true; // Break out of while loop to contiune initalization
                 }
             } catch(IllegalArgumentException illegalArg) {
+                countFailure(packet);
                 // The exception if the packet is empty or has no termination 
-                logger.error("Error: " + illegalArg);
+                logger.error("Unusable response", illegalArg);
             } catch(IllegalStateException illegalState) {
                 // The exception if the packet is not of the type ACK
-                logger.error("Error: " + illegalState);
-            } finally {
-                // Always close the ports no matter the success status. 
-                output.close();          //
-                input.close();          // Close the port, we cannot reuse the same socket connection if a retry is needed
-                this.socket.close();   //
+                logger.error("Unexpected response", illegalState);
             }
                 
             // Return the true/false value of the packet being recieved
             return ackReceived;
                 
         } catch(SocketTimeoutException e) {
-            logger.error("Failed waiting on a response from coordinator at " + this.ip + ":" + this.sendingPort + "\n" + e);
+            countFailure(packet);
+            logger.error("Failed waiting on a response from coordinator at {}:{}", this.ip, this.sendingPort, e);
         } catch(IOException e) {
-            logger.error("Failed to connect to coordinator at " + this.ip + ":" + this.sendingPort + "\n" + e);
+            countFailure(packet);
+            logger.error("Failed to connect to coordinator at {}:{}", this.ip, this.sendingPort, e);
         } catch (Exception e) {
-            logger.error("Unknown Error! " + e);
+            logger.error("Unknown Error!", e);
         }
 
         // Return false as if this section is reached, the packet was not sent properly meaning an error occurred early i
@@ -0,0 +1,357 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Coalesces small packets going to the same destination (keep alives, ACKs, small MESSAGEs) into one
+ *      BATCH frame. The first packet queued opens a short window, every packet that arrives before it closes
+ *      goes out in the same frame, and the receiver answers with one BATCH holding each packet's own
+ *      response (see FrameBatch). A batch is sent early once it holds maxPackets packets or maxBytes bytes.
+ *
+ *      Each lane of a destination batches on its own, over its own connection (see packet.lane.Lane), so a
+ *      keep alive never shares a frame - or a window - with a flood of MESSAGEs. The CONTROL and CRITICAL
+ *      lanes have their own window, 0 by default: nothing waits, the packets that queue up while the last
+ *      batch is being sent go out together in the next one.
+ *
+ *      Batches go over the destination's PipelinedConnection, so the next batch does not wait on the last.
+ *      They are built and handed to it on a flush worker, one at a time per destination so they go out in
+ *      order - the shared timer only closes the window, and the thread submitting never does the sending.
+ *
+ *      Each destination keeps a histogram of the batch sizes and of the latency from queueing to response,
+ *      logged by logStats(), to tune the window against.
+ */
+package sender.outbound_batcher;
+
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lib.Histogram;
+import lib.InstanceContext;
+import lib.SharedTimer;
+
+import packet.lane.Lane;
+
+import packet.frame.Frame;
+import packet.frame.FrameBatch;
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+
+import sender.persistent_connection.PersistentConnectionPool;
+import sender.persistent_connection.PipelinedConnection;
+
+public class OutboundBatcher {
+
+    private static final Logger logger = LogManager.getLogger(OutboundBatcher.class);
+
+    public static final int DEFAULT_WINDOW_MILLIS = 2;
+    public static final int DEFAULT_CONTROL_WINDOW_MILLIS = 0;
+    public static final int DEFAULT_MAX_PACKETS = 32;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    // Set once at startup from the tier's config, see configure()
+    private static volatile int windowMillis = DEFAULT_WINDOW_MILLIS;
+    private static volatile int controlWindowMillis = DEFAULT_CONTROL_WINDOW_MILLIS;
+    private static volatile int maxPackets = DEFAULT_MAX_PACKETS;
+    private static volatile int maxBytes = DEFAULT_MAX_BYTES;
+
+    // Each running instance batches on its own connections (see lib.InstanceContext)
+    private static final class Destinations {
+        final ConcurrentHashMap<String, OutboundBatcher> map = new ConcurrentHashMap<>();
+    }
+
+    // Closes the window on batches that did not fill up
+    private static final ScheduledExecutorService timer = SharedTimer.get();
+
+    private static final AtomicInteger flusherCount = new AtomicInteger();
+
+    // Sends the batches. Threads only exist while there are batches to send and die off after a minute idle
+    private static final ExecutorService flushers = Executors.newCachedThreadPool(r -> {
+        Thread t = InstanceContext.sharedThread(r, "Batch-Flush-" + flusherCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String ip;
+    private final int port;
+    private final Lane lane;
+
+    private final Histogram batchSizes;
+    private final Histogram latencies;
+
+    // Packets waiting for the window to close, guarded by this
+    private List<Queued> queued = new ArrayList<>();
+    private int queuedBytes = 0;
+    private ScheduledFuture<?> windowTask;
+
+    // Batches closed and waiting for the flush worker, and whether one is running. Guarded by this
+    private final ArrayDeque<List<Queued>> ready = new ArrayDeque<>();
+    private boolean flushing = false;
+
+    private static final class Queued {
+        final Frame packet;
+        final long queuedNanos = System.nanoTime();
+        final CompletableFuture<Frame> future = new CompletableFuture<>();
+
+        Queued(Frame packet) { this.packet = packet; }
+    }
+
+    private OutboundBatcher(String ip, int port, Lane lane) {
+        this.ip = ip;
+        this.port = port;
+        this.lane = lane;
+        this.batchSizes = new Histogram(ip + ":" + port + " " + lane + " batch.size", "packets");
+        this.latencies = new Histogram(ip + ":" + port + " " + lane + " batch.latency", "us");
+    }
+
+    public static void configure(int windowMillis, int maxPackets, int maxBytes) {
+        configure(windowMillis, DEFAULT_CONTROL_WINDOW_MILLIS, maxPackets, maxBytes);
+    }
+
+    /**
+     * @param windowMillis How long the first packet of a BULK batch waits for company, 0 sends every packet at once
+     * @param controlWindowMillis The same for the CONTROL and CRITICAL lanes
+     * @param maxPackets A batch is sent as soon as it holds this many packets
+     * @param maxBytes A batch is sent as soon as it holds this many bytes, capped at the frame limit
+     */
+    public static void configure(int windowMillis, int controlWindowMillis, int maxPackets, int maxBytes) {
+        OutboundBatcher.windowMillis = Math.max(0, windowMillis);
+        OutboundBatcher.controlWindowMillis = Math.max(0, controlWindowMillis);
+        OutboundBatcher.maxPackets = Math.max(1, maxPackets);
+        OutboundBatcher.maxBytes = Math.max(FrameCodec.HEADER_BYTES, Math.min(maxBytes, FrameCodec.MAX_FRAME_BYTES));
+
+        logger.info(
+            "Outbound batching: window {}ms ({}ms for control), up to {} packets / {} bytes",
+            OutboundBatcher.windowMillis,
+            OutboundBatcher.controlWindowMillis,
+            OutboundBatcher.maxPackets,
+            OutboundBatcher.maxBytes
+        );
+    }
+
+    // The BULK lane's batcher
+    public static OutboundBatcher forDestination(String ip, int port) {
+        return forDestination(ip, port, Lane.BULK);
+    }
+
+    public static OutboundBatcher forDestination(String ip, int port, Lane lane) {
+        return batchers().computeIfAbsent(ip + ":" + port + ":" + lane, k -> new OutboundBatcher(ip, port, lane));
+    }
+
+    private static ConcurrentHashMap<String, OutboundBatcher> batchers() {
+        return InstanceContext.current().component(Destinations.class, Destinations::new).map;
+    }
+
+    public static Collection<OutboundBatcher> getBatchers() { return batchers().values(); }
+
+    // Logs the histograms of every destination that has sent something
+    public static void logStats() {
+        for (OutboundBatcher batcher : batchers().values()) {
+            if (batcher.batchSizes.getCount() > 0) {
+                logger.info("Outbound batches:\n\t{}\n\t{}", batcher.batchSizes, batcher.latencies);
+            }
+        }
+    }
+
+    /**
+     * Queues a packet for this destination.
+     *
+     * @param packet A framed packet for a peer that negotiated VERSION_2 or newer, legacy lines can not be batched
+     * @return completes with this packet's own response, or exceptionally if the batch failed or the
+     *         receiver had no response for it
+     */
+    public CompletableFuture<Frame> submit(Frame packet) {
+        if (packet.isLegacy()) {
+            throw new IllegalArgumentException("Legacy packets can not be batched");
+        }
+
+        Queued entry = new Queued(packet);
+        int size = FrameCodec.HEADER_BYTES + packet.getBody().length;
+
+        boolean flush;
+        synchronized (this) {
+            // Never let a batch grow past maxBytes, what is already queued goes out on its own first
+            if (!queued.isEmpty() && queuedBytes + size > maxBytes) {
+                ready.add(drain());
+            }
+
+            queued.add(entry);
+            queuedBytes += size;
+
+            int window = windowMillis();
+            if (queued.size() >= maxPackets || queuedBytes >= maxBytes) {
+                ready.add(drain());
+            } else if (window > 0 && windowTask == null) {
+                windowTask = timer.schedule(this::closeWindow, window, TimeUnit.MILLISECONDS);
+            }
+            flush = startFlushing();
+        }
+
+        if (flush) {
+            flushers.execute(InstanceContext.capture(this::flush));
+        }
+        return entry.future;
+    }
+
+    // The window closed. Runs on the shared timer, so it only hands the batch over
+    private void closeWindow() {
+        boolean flush;
+        synchronized (this) {
+            windowTask = null;
+            if (queued.isEmpty()) {
+                return;
+            }
+            ready.add(drain());
+            flush = startFlushing();
+        }
+        if (flush) {
+            flushers.execute(InstanceContext.capture(this::flush));
+        }
+    }
+
+    private int windowMillis() {
+        return (lane == Lane.BULK) ? windowMillis : controlWindowMillis;
+    }
+
+    // Must hold the lock. True if there is something to send and no flush worker on it yet, the caller starts one
+    private boolean startFlushing() {
+        if (flushing || (ready.isEmpty() && (windowMillis() > 0 || queued.isEmpty()))) {
+            return false;
+        }
+        flushing = true;
+        return true;
+    }
+
+    // Runs on a flush worker until every ready batch is sent, packets keep queueing meanwhile. Without a window
+    // whatever queued up while the last batch went out is the next batch
+    private void flush() {
+        while (true) {
+            List<Queued> batch;
+            synchronized (this) {
+                batch = ready.poll();
+                if (batch == null && windowMillis() == 0 && !queued.isEmpty()) {
+                    batch = drain();
+                }
+                if (batch == null) {
+                    flushing = false;
+                    return;
+                }
+            }
+            try {
+                send(batch);
+            } catch (RuntimeException e) {
+                failAll(batch, e);     // Not the end of the worker, the batches behind it still go out
+            }
+        }
+    }
+
+    // Must hold the lock
+    private List<Queued> drain() {
+        if (windowTask != null) {
+            windowTask.cancel(false);
+            windowTask = null;
+        }
+        List<Queued> batch = queued;
+        queued = new ArrayList<>();
+        queuedBytes = 0;
+        return batch;
+    }
+
+    private void send(List<Queued> batch) {
+        batchSizes.record(batch.size());
+
+        PipelinedConnection connection = PersistentConnectionPool.shared().acquirePipelined(ip, port, lane);
+
+        // A batch of one goes out as the packet itself, there is nothing to save by wrapping it
+        if (batch.size() == 1) {
+            Queued only = batch.get(0);
+            connection.send(only.packet, null, PersistentConnectionPool.DEFAULT_READ_TIMEOUT_MILLIS)
+                .whenComplete((response, e) -> complete(only, response, e));
+            return;
+        }
+
+        List<Frame> packets = new ArrayList<>(batch.size());
+        for (Queued entry : batch) {
+            packets.add(entry.packet);
+        }
+
+        Frame request;
+        try {
+            request = FrameBatch.encode(batch.get(0).packet.getVersion(), packets);
+        } catch (IllegalArgumentException e) {
+            failAll(batch, e);
+            return;
+        }
+
+        connection.send(request, null, PersistentConnectionPool.DEFAULT_READ_TIMEOUT_MILLIS)
+            .whenComplete((response, e) -> {
+                if (e != null) {
+                    failAll(batch, e);
+                    return;
+                }
+
+                List<Frame> responses;
+                try {
+                    if (response.getType() != FrameType.BATCH) {
+                        throw new IOException("Expected a BATCH response from " + ip + ":" + port + " but got " + response.getType());
+                    }
+                    responses = FrameBatch.decode(response);
+                } catch (IOException decodeError) {
+                    failAll(batch, decodeError);
+                    return;
+                }
+
+                // One slot per packet, in the order they were sent
+                for (int i = 0; i < batch.size(); i++) {
+                    Frame slot = (i < responses.size()) ? responses.get(i) : null;
+                    complete(batch.get(i), slot, null);
+                }
+            });
+    }
+
+    private void complete(Queued entry, Frame response, Throwable e) {
+        if (e != null) {
+            entry.future.completeExceptionally(e);
+        } else if (response == null) {
+            entry.future.completeExceptionally(new IOException("No response from " + ip + ":" + port + " for a batched packet"));
+        } else {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - entry.queuedNanos));
+            entry.future.complete(response);
+        }
+    }
+
+    private void failAll(List<Queued> batch, Throwable e) {
+        logger.error("Batch of {} packets to {}:{} failed", batch.size(), ip, port, e);
+        for (Queued entry : batch) {
+            entry.future.completeExceptionally(e);
+        }
+    }
+
+    /*
+     *      Getters
+     */
+
+    public String getIp() { return ip; }
+
+    public int getPort() { return port; }
+
+    public Lane getLane() { return lane; }
+
+    public Histogram getBatchSizes() { return batchSizes; }
+
+    public Histogram getLatencies() { return latencies; }
+
+    public synchronized int getQueuedCount() { return queued.size(); }
+}
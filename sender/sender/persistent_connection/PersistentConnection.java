@@ -0,0 +1,186 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A long lived socket to a single ip:port. Instead of opening a new socket for every packet, the
+ *      sender writes the packet (a frame or a delimited line) and reads the one response over the same socket.
+ *
+ *      If the other side has hung up since the last packet (EOF or reset) the socket is reopened and the
+ *      packet is written once more. A receiver that closes after every packet never reads that stale write,
+ *      so older peers keep working. A read timeout is NOT retried here, the peer may have the packet already.
+ *
+ *      One exchange at a time per connection. The idle evictor only ever tries the lock, a connection that is in
+ *      the middle of an exchange is busy, not idle, and is skipped.
+ */
+package sender.persistent_connection;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+
+import connection.transport.TransportSelector;
+
+public class PersistentConnection {
+
+    private static final Logger logger = LogManager.getLogger(PersistentConnection.class);
+
+    private final String ip;
+    private final int port;
+    private final int readTimeoutMillis;
+
+    // Held for a whole exchange
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile Socket socket;
+    private OutputStream output;
+    private FrameReader input;
+
+    // When the last exchange started or finished, read by the idle evictor without taking the lock
+    private volatile long lastUsedNanos;
+
+    public PersistentConnection(String ip, int port, int readTimeoutMillis) {
+        this.ip = ip;
+        this.port = port;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * Writes one packet and waits for its response.
+     *
+     * @param request The packet, framed or a legacy line
+     * @return The response, in the same format the peer answered in
+     * @throws IOException if the packet could not be delivered or no response was read
+     */
+    public Frame exchange(Frame request) throws IOException {
+        lock.lock();
+        try {
+            // Recorded up front, a slow response must not make the socket look idle while it is being waited on
+            lastUsedNanos = System.nanoTime();
+
+            boolean reused = isOpen();
+
+            try {
+                return writeAndRead(request);
+            } catch (SocketTimeoutException timeout) {
+                // The peer may still be working on the packet, resending could duplicate it
+                close();
+                throw timeout;
+            } catch (IOException stale) {
+                close();
+                if (!reused) {
+                    throw stale;
+                }
+                logger.debug("Pooled socket to {}:{} went stale, reconnecting", ip, port);
+                return writeAndRead(request);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame writeAndRead(Frame request) throws IOException {
+        if (!isOpen()) {
+            open();
+        }
+
+        FrameCodec.write(output, request);
+        output.flush();
+
+        Frame response = input.read();
+        if (response == null) {
+            throw new EOFException("Connection closed by " + ip + ":" + port);
+        }
+
+        lastUsedNanos = System.nanoTime();
+        return response;
+    }
+
+    private void open() throws IOException {
+        socket = TransportSelector.shared().connect(ip, port);    // A unix domain socket if the peer is on this host
+        socket.setSoTimeout(readTimeoutMillis);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+
+        output = new BufferedOutputStream(socket.getOutputStream());
+        input = new FrameReader(socket.getInputStream());
+
+        logger.info("Opened persistent connection to {}:{}", ip, port);
+    }
+
+    /*
+     *      Lifecycle
+     */
+
+    /**
+     * Closes the socket if nothing has been sent for the given time. The object stays usable,
+     * the next exchange simply reconnects.
+     *
+     * @return true if a socket was closed
+     */
+    public boolean closeIfIdle(long idleTimeoutNanos) {
+        if (System.nanoTime() - lastUsedNanos < idleTimeoutNanos) {
+            return false;
+        }
+        // The evictor runs on the shared timer and must not wait behind an exchange, a held lock means busy
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (isOpen() && System.nanoTime() - lastUsedNanos >= idleTimeoutNanos) {
+                logger.info("Closing idle connection to {}:{}", ip, port);
+                close();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.warn("Error closing connection to {}:{} {}", ip, port, e.toString());
+            }
+            socket = null;
+            output = null;
+            input = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     *      Getters
+     */
+
+    public boolean isOpen() {
+        Socket current = socket;
+        return current != null && !current.isClosed();
+    }
+
+    public long getLastUsedNanos() { return lastUsedNanos; }
+
+    public String getIp() { return ip; }
+
+    public int getPort() { return port; }
+}
@@ -0,0 +1,189 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Pool of PersistentConnections, one per destination ip:port, per running instance (one per process
+ *      outside of the cluster simulator, see lib.InstanceContext). Every sender that is in
+ *      persistent mode shares the socket to its destination, so keep alives and messages to the same
+ *      peer stop paying for a TCP handshake (and a TIME_WAIT entry) each time.
+ *
+ *      Asynchronous senders get a PipelinedConnection to the destination instead, a separate socket that
+ *      can carry many requests at once.
+ *
+ *      Each destination has a socket per lane (see packet.lane.Lane), so a keep alive never queues behind a
+ *      run of MESSAGE packets on the same socket, and the receiver can tell the lanes apart on accept.
+ *
+ *      A background sweep closes sockets that have not been used within the idle timeout. The entry
+ *      itself is kept, the next packet to that destination will reconnect.
+ */
+package sender.persistent_connection;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonParseException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lib.InstanceContext;
+import lib.PacketHeader;
+import lib.SharedTimer;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+import packet.lane.Lane;
+
+public class PersistentConnectionPool {
+
+    private static final Logger logger = LogManager.getLogger(PersistentConnectionPool.class);
+
+    // Keep alives go out every 30 seconds, so a healthy link is never idle this long
+    public static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 90_000;
+
+    // Same response timeout the per-packet sockets use
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 1000;
+
+    // Receivers give up on a silent persistent socket after this long - longer than the sender side so the sender closes first
+    public static final int RECEIVER_IDLE_TIMEOUT_MILLIS = DEFAULT_IDLE_TIMEOUT_MILLIS * 2;
+
+    private final ConcurrentHashMap<String, PersistentConnection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PipelinedConnection> pipelined = new ConcurrentHashMap<>();
+
+    private final long idleTimeoutNanos;
+    private final int readTimeoutMillis;
+
+    // Sweeps idle sockets, and times out the requests of pipelined connections
+    private final ScheduledExecutorService evictor;
+
+    public PersistentConnectionPool(int idleTimeoutMillis, int readTimeoutMillis) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.readTimeoutMillis = readTimeoutMillis;
+
+        this.evictor = SharedTimer.get();
+
+        // Sweep a few times per idle period so a socket never lives much longer than the timeout
+        long sweepMillis = Math.max(1000, idleTimeoutMillis / 3);
+        evictor.scheduleWithFixedDelay(this::evictIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // The calling instance's pool, a simulated node must not send over another node's socket
+    public static PersistentConnectionPool shared() {
+        return InstanceContext.current().component(
+            PersistentConnectionPool.class,
+            () -> new PersistentConnectionPool(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS)
+        );
+    }
+
+    /**
+     * @return the pooled connection for this destination, created (but not yet connected) if needed
+     */
+    public PersistentConnection acquire(String ip, int port) {
+        return acquire(ip, port, Lane.BULK);
+    }
+
+    // The pooled connection for this destination's lane
+    public PersistentConnection acquire(String ip, int port, Lane lane) {
+        return connections.computeIfAbsent(
+            key(ip, port, lane),
+            k -> new PersistentConnection(ip, port, readTimeoutMillis)
+        );
+    }
+
+    /**
+     * @return the pooled pipelined connection for this destination, created (but not yet connected) if needed
+     */
+    public PipelinedConnection acquirePipelined(String ip, int port) {
+        return acquirePipelined(ip, port, Lane.BULK);
+    }
+
+    // The pooled pipelined connection for this destination's lane
+    public PipelinedConnection acquirePipelined(String ip, int port, Lane lane) {
+        return pipelined.computeIfAbsent(
+            key(ip, port, lane),
+            k -> new PipelinedConnection(ip, port, PersistentConnectionPool::responseTo, evictor)
+        );
+    }
+
+    // The packetId a response answers, read from its header without decoding the payload. A BATCH has no single id
+    private static String responseTo(Frame response) {
+        if (response.getType() == FrameType.BATCH) {
+            return null;
+        }
+        String json = response.bodyAsString();
+        if (response.isLegacy() && json.endsWith(FrameCodec.DELIMITER)) {
+            json = json.substring(0, json.length() - FrameCodec.DELIMITER.length());
+        }
+        try {
+            return PacketHeader.read(json).getResponseTo();
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    public void evictIdle() {
+        try {
+            int closed = 0;
+            for (PersistentConnection connection : connections.values()) {
+                if (connection.closeIfIdle(idleTimeoutNanos)) {
+                    closed++;
+                }
+            }
+            for (PipelinedConnection connection : pipelined.values()) {
+                if (connection.closeIfIdle(idleTimeoutNanos)) {
+                    closed++;
+                }
+            }
+            if (closed > 0) {
+                logger.info("Evicted {} idle connection(s)", closed);
+            }
+        } catch (Exception e) {
+            logger.error("Exception evicting idle connections: ", e);
+        }
+    }
+
+    // Used when a destination is known to be gone (e.g. its connection was terminated)
+    public void close(String ip, int port) {
+        for (Lane lane : Lane.values()) {
+            PersistentConnection removed = connections.remove(key(ip, port, lane));
+            if (removed != null) {
+                removed.close();
+            }
+            PipelinedConnection removedPipeline = pipelined.remove(key(ip, port, lane));
+            if (removedPipeline != null) {
+                removedPipeline.close();
+            }
+        }
+    }
+
+    public void closeAll() {
+        connections.values().forEach(PersistentConnection::close);
+        connections.clear();
+        pipelined.values().forEach(PipelinedConnection::close);
+        pipelined.clear();
+    }
+
+    /*
+     *      Getters
+     */
+
+    public int getPooledCount() { return connections.size(); }
+
+    public int getOpenCount() {
+        int open = 0;
+        for (PersistentConnection connection : connections.values()) {
+            if (connection.isOpen()) {
+                open++;
+            }
+        }
+        for (PipelinedConnection connection : pipelined.values()) {
+            if (connection.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    private static String key(String ip, int port, Lane lane) { return ip + ":" + port + "/" + lane; }
+}
@@ -0,0 +1,385 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A long lived socket that can have many requests in flight at once. Requests are written as soon as
+ *      they are sent and a reader thread matches each response back to its request:
+ *
+ *          - by id, when the response names the packetId it answers ("responseTo")
+ *          - otherwise in order, since a receiver answers the packets on one socket in the order it read them
+ *
+ *      The socket is opened on a connect worker, never on the thread sending, so a peer that does not answer
+ *      holds up nobody - requests sent while it connects are written once it is open, or failed if it can
+ *      not be reached.
+ *
+ *      Requests are not written on the thread sending either (often the shared timer, for keep alives). They
+ *      are queued and a write worker drains the queue, one at a time per connection so frames never interleave,
+ *      and outside the lock, so a peer that is slow to read holds up neither senders nor the reader thread.
+ *
+ *      Each request has its own timeout. When a request times out on a peer that does not echo ids, the
+ *      order of the responses still to come is unknown, so the socket is closed and every request still
+ *      waiting on it fails. The next request reconnects.
+ */
+package sender.persistent_connection;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+
+import lib.InstanceContext;
+
+import connection.transport.TransportSelector;
+
+public class PipelinedConnection {
+
+    private static final Logger logger = LogManager.getLogger(PipelinedConnection.class);
+
+    private static final AtomicInteger connectorCount = new AtomicInteger();
+    private static final AtomicInteger writerCount = new AtomicInteger();
+
+    // Opens the sockets. Threads only exist while connects are happening and die off after a minute idle
+    private static final ExecutorService connectors = Executors.newCachedThreadPool(r -> {
+        Thread t = InstanceContext.sharedThread(r, "Pipeline-Connect-" + connectorCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Writes the queued requests. Like the connectors, threads only exist while there is something to write
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread t = InstanceContext.sharedThread(r, "Pipeline-Write-" + writerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String ip;
+    private final int port;
+
+    // Reads the id of the request a response answers, null if the response does not say
+    private final Function<Frame, String> responseTo;
+
+    // Runs the per request timeouts
+    private final ScheduledExecutorService timer;
+
+    // Requests waiting on a response, in the order they were written
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private Socket socket;
+    private OutputStream output;
+
+    // Requests not written yet, in the order they were sent. Drained by a write worker once the socket is open
+    private final LinkedHashMap<String, Frame> unwritten = new LinkedHashMap<>();
+
+    // True while a connect worker is opening the socket
+    private boolean connecting = false;
+
+    // True while a write worker is draining unwritten, there is only ever one per connection
+    private boolean writing = false;
+
+    // Set once the peer answers with ids, from then on a timeout only fails its own request
+    private volatile boolean peerEchoesIds = false;
+
+    private volatile long lastUsedNanos;
+
+    private static final class Pending {
+        final CompletableFuture<Frame> future = new CompletableFuture<>();
+        ScheduledFuture<?> timeout;
+    }
+
+    public PipelinedConnection(String ip, int port, Function<Frame, String> responseTo, ScheduledExecutorService timer) {
+        this.ip = ip;
+        this.port = port;
+        this.responseTo = responseTo;
+        this.timer = timer;
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * Queues the request to be written straight away (or as soon as the socket is open), without waiting for
+     * the responses of earlier requests. Never blocks on connecting or writing.
+     *
+     * @param request The packet, framed or a legacy line
+     * @param requestId The packetId of the request, null if the packet has none
+     * @param timeoutMillis How long to wait for the response
+     * @return Completed with the response, or exceptionally on timeout or if the socket fails
+     */
+    public CompletableFuture<Frame> send(Frame request, String requestId, long timeoutMillis) {
+        String key = (requestId != null) ? requestId : "#" + sequence.incrementAndGet();
+        Pending waiting = new Pending();
+
+        boolean connect = false;
+        boolean write = false;
+
+        synchronized (this) {
+            // Registered before the write, the response can arrive before write() returns
+            pending.put(key, waiting);
+            unwritten.put(key, request);
+            if (isOpen()) {
+                write = !writing;
+                writing = true;
+            } else {
+                connect = !connecting;
+                connecting = true;
+            }
+        }
+
+        if (connect) {
+            connectors.execute(InstanceContext.capture(this::open));
+        }
+        if (write) {
+            writers.execute(InstanceContext.capture(this::drain));
+        }
+
+        waiting.timeout = timer.schedule(() -> timeout(key, waiting, timeoutMillis), timeoutMillis, TimeUnit.MILLISECONDS);
+        waiting.future.whenComplete((r, e) -> {
+            if (waiting.timeout != null) {
+                waiting.timeout.cancel(false);
+            }
+        });
+        return waiting.future;
+    }
+
+    private void timeout(String key, Pending waiting, long timeoutMillis) {
+        boolean closeSocket;
+        synchronized (this) {
+            if (pending.remove(key) == null) {
+                return;     // Answered in the meantime
+            }
+            closeSocket = !peerEchoesIds;
+        }
+        TimeoutException e = new TimeoutException("No response from " + ip + ":" + port + " within " + timeoutMillis + "ms");
+        waiting.future.completeExceptionally(e);
+        if (closeSocket) {
+            closeAndFail(new IOException("Connection to " + ip + ":" + port + " closed after a request timed out"));
+        }
+    }
+
+    // Runs on a connect worker, then has whatever was sent while it connected written
+    private void open() {
+        Socket opened;
+        FrameReader input;
+        try {
+            opened = TransportSelector.shared().connect(ip, port);    // A unix domain socket if the peer is on this host
+            opened.setTcpNoDelay(true);
+            opened.setKeepAlive(true);
+            input = new FrameReader(opened.getInputStream());
+        } catch (IOException e) {
+            synchronized (this) {
+                connecting = false;
+            }
+            logger.warn("Could not open pipelined connection to {}:{} {}", ip, port, e.toString());
+            closeAndFail(e);
+            return;
+        }
+
+        IOException failed = null;
+        boolean write = false;
+        synchronized (this) {
+            connecting = false;
+            if (pending.isEmpty()) {
+                unwritten.clear();     // Closed, or everything timed out, while it connected
+                try {
+                    opened.close();
+                } catch (IOException e) {
+                    logger.warn("Error closing connection to {}:{} {}", ip, port, e.toString());
+                }
+                return;
+            }
+            socket = opened;
+            try {
+                output = new BufferedOutputStream(opened.getOutputStream());
+
+                Thread reader = new Thread(() -> readLoop(opened, input), "Pipeline-" + ip + ":" + port);
+                reader.setDaemon(true);
+                reader.start();
+
+                write = !writing;
+                writing = true;
+            } catch (IOException e) {
+                failed = e;
+            }
+        }
+        if (failed != null) {
+            closeAndFail(failed);
+            return;
+        }
+        if (write) {
+            writers.execute(InstanceContext.capture(this::drain));
+        }
+
+        logger.info("Opened pipelined connection to {}:{}", ip, port);
+    }
+
+    // Runs on a write worker until there is nothing left to write, or no socket to write it to
+    private void drain() {
+        while (true) {
+            List<Frame> requests = new ArrayList<>();
+            Socket writingTo;
+            OutputStream out;
+            synchronized (this) {
+                if (unwritten.isEmpty() || !isOpen()) {
+                    writing = false;     // The next send(), or open(), starts another
+                    return;
+                }
+                // A request that timed out or was failed while it waited is no longer waiting, it is not sent
+                for (Map.Entry<String, Frame> request : unwritten.entrySet()) {
+                    if (pending.containsKey(request.getKey())) {
+                        requests.add(request.getValue());
+                    }
+                }
+                unwritten.clear();
+                writingTo = socket;
+                out = output;
+            }
+
+            try {
+                for (Frame request : requests) {
+                    FrameCodec.write(out, request);
+                }
+                out.flush();
+                lastUsedNanos = System.nanoTime();
+            } catch (IOException e) {
+                boolean current;
+                synchronized (this) {
+                    current = socket == writingTo;
+                }
+                if (current) {
+                    closeAndFail(e);     // Otherwise it was already closed, and maybe reopened for later requests
+                }
+            }
+        }
+    }
+
+    // Runs on the reader thread until the socket closes
+    private void readLoop(Socket reading, FrameReader input) {
+        IOException failure;
+        try {
+            Frame response;
+            while ((response = input.read()) != null) {
+                complete(response);
+            }
+            failure = new EOFException("Connection closed by " + ip + ":" + port);
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            if (socket != reading) {
+                return;     // Already closed and maybe reopened, the new socket has its own reader
+            }
+        }
+        closeAndFail(failure);
+    }
+
+    private void complete(Frame response) {
+        String id = responseTo.apply(response);
+        Pending waiting = null;
+
+        synchronized (this) {
+            lastUsedNanos = System.nanoTime();
+            if (id != null) {
+                peerEchoesIds = true;
+                waiting = pending.remove(id);
+            } else {
+                Iterator<Pending> oldest = pending.values().iterator();
+                if (oldest.hasNext()) {
+                    waiting = oldest.next();
+                    oldest.remove();
+                }
+            }
+        }
+
+        if (waiting == null) {
+            logger.debug("Dropped a response from {}:{} that no waiting request matches", ip, port);
+            return;
+        }
+        waiting.future.complete(response);
+    }
+
+    // Closes the socket and fails every request still waiting on it
+    private void closeAndFail(IOException cause) {
+        List<Pending> failed;
+        synchronized (this) {
+            failed = new ArrayList<>(pending.values());
+            pending.clear();
+            unwritten.clear();
+            closeSocket();
+        }
+        for (Pending waiting : failed) {
+            waiting.future.completeExceptionally(cause);
+        }
+    }
+
+    private void closeSocket() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warn("Error closing connection to {}:{} {}", ip, port, e.toString());
+        }
+        socket = null;
+        output = null;
+    }
+
+    /*
+     *      Lifecycle
+     */
+
+    /**
+     * Closes the socket if nothing is waiting and nothing has been sent or received for the given time.
+     *
+     * @return true if a socket was closed
+     */
+    public synchronized boolean closeIfIdle(long idleTimeoutNanos) {
+        if (isOpen() && pending.isEmpty() && System.nanoTime() - lastUsedNanos >= idleTimeoutNanos) {
+            logger.info("Closing idle pipelined connection to {}:{}", ip, port);
+            closeSocket();
+            return true;
+        }
+        return false;
+    }
+
+    public void close() {
+        closeAndFail(new IOException("Connection to " + ip + ":" + port + " closed"));
+    }
+
+    /*
+     *      Getters
+     */
+
+    public synchronized boolean isOpen() { return socket != null && !socket.isClosed(); }
+
+    public synchronized int getInFlightCount() { return pending.size(); }
+
+    public String getIp() { return ip; }
+
+    public int getPort() { return port; }
+}
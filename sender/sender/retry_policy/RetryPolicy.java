@@ -0,0 +1,186 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      How a failed send is retried: how many more times, how long to wait between them, and when to give up
+ *      altogether. Nothing here sleeps on the caller's thread - each wait is a task on the shared timer, and
+ *      each attempt runs on a small pool of retry workers (attempts are blocking socket sends, which must
+ *      not hold up the timer). The caller just gets a future.
+ *
+ *      The wait doubles after every attempt (baseDelayMillis, 2x, 4x, ... up to maxDelayMillis), and up to
+ *      jitter of it is taken off at random, so senders that failed together do not all come back at once.
+ *      If the peer said how long to stay away (an overloaded listener answers with RETRY_AFTER_KEY in an
+ *      ERROR, see AdmissionControl), the wait is at least that long.
+ *
+ *      Usage:
+ *          RetryPolicy.DEFAULT.retry(() -> send(packet), sent -> sent)
+ *              .thenAccept(sent -> ...);
+ */
+package sender.retry_policy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import lib.InstanceContext;
+import lib.SharedTimer;
+
+public class RetryPolicy {
+
+    // Roughly what the old sleep loop did (3 retries, 1 second apart), but backing off and capped at 15 seconds
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 1000, 8000, 0.5, 15_000);
+
+    // The payload key an overloaded peer puts in its ERROR, how many milliseconds to wait before sending again
+    public static final String RETRY_AFTER_KEY = "retryAfterMs";
+
+    private static final LongSupplier NO_HINT = () -> 0;
+
+    private static final AtomicInteger workerCount = new AtomicInteger();
+
+    // Runs the attempts themselves. Threads only exist while retries are happening and die off after a minute idle
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = InstanceContext.sharedThread(r, "Retry-Worker-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double jitter;
+    private final long deadlineMillis;
+
+    /**
+     * @param maxAttempts How many times to try again after the first failure, at least once
+     * @param baseDelayMillis The wait before the first retry, doubled for each one after
+     * @param maxDelayMillis The longest any one wait can get
+     * @param jitter Between 0 and 1, the most of each wait that can be taken off at random (0.5 = half)
+     * @param deadlineMillis No retry is started after this long, no matter how many attempts are left
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, double jitter, long deadlineMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(0, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.jitter = Math.min(1, Math.max(0, jitter));
+        this.deadlineMillis = Math.max(0, deadlineMillis);
+    }
+
+    /**
+     * Tries again, for something whose first attempt has already failed.
+     *
+     * @param attempt One attempt, run on a retry worker so it may block
+     * @param succeeded Whether an attempt's result means there is no need to go again
+     * @return completes with the first result that succeeded, otherwise the last result once the attempts or the
+     *         deadline run out, or exceptionally if the last attempt threw
+     */
+    public <T> CompletableFuture<T> retry(Supplier<T> attempt, Predicate<? super T> succeeded) {
+        return retry(attempt, succeeded, NO_HINT);
+    }
+
+    /**
+     * Same as above, but no attempt starts before notBeforeMillis says it may.
+     *
+     * @param notBeforeMillis Checked before every wait, the least it can be (e.g. the retry after hint an overloaded peer
+     *        sent back), 0 for no lower bound
+     */
+    public <T> CompletableFuture<T> retry(Supplier<T> attempt, Predicate<? super T> succeeded, LongSupplier notBeforeMillis) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        long delay = Math.max(delayBefore(1), notBeforeMillis.getAsLong());
+        schedule(1, delay, attempt, succeeded, notBeforeMillis, deadlineNanos, result);
+        return result;
+    }
+
+    private <T> void schedule(
+        int attemptNumber,
+        long delayMillis,
+        Supplier<T> attempt,
+        Predicate<? super T> succeeded,
+        LongSupplier notBeforeMillis,
+        long deadlineNanos,
+        CompletableFuture<T> result
+    ) {
+        SharedTimer.get().schedule(
+            // The timer only hands the attempt over, it never runs it
+            () -> workers().execute(() -> run(attemptNumber, attempt, succeeded, notBeforeMillis, deadlineNanos, result)),
+            delayMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    private <T> void run(
+        int attemptNumber,
+        Supplier<T> attempt,
+        Predicate<? super T> succeeded,
+        LongSupplier notBeforeMillis,
+        long deadlineNanos,
+        CompletableFuture<T> result
+    ) {
+        T value;
+        try {
+            value = attempt.get();
+        } catch (RuntimeException e) {
+            long delay = nextDelay(attemptNumber, notBeforeMillis, deadlineNanos);
+            if (delay < 0) {
+                result.completeExceptionally(e);
+                return;
+            }
+            schedule(attemptNumber + 1, delay, attempt, succeeded, notBeforeMillis, deadlineNanos, result);
+            return;
+        }
+
+        if (succeeded.test(value)) {
+            result.complete(value);
+            return;
+        }
+        long delay = nextDelay(attemptNumber, notBeforeMillis, deadlineNanos);
+        if (delay < 0) {
+            result.complete(value);
+            return;
+        }
+        schedule(attemptNumber + 1, delay, attempt, succeeded, notBeforeMillis, deadlineNanos, result);
+    }
+
+    // The wait before the next attempt, or -1 if there are none left or it would start past the deadline
+    private long nextDelay(int attemptNumber, LongSupplier notBeforeMillis, long deadlineNanos) {
+        if (attemptNumber >= maxAttempts) {
+            return -1;
+        }
+        long delay = Math.max(delayBefore(attemptNumber + 1), notBeforeMillis.getAsLong());
+        long startsAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        return (startsAt - deadlineNanos < 0) ? delay : -1;
+    }
+
+    // Doubles each attempt from baseDelayMillis up to maxDelayMillis, less a random part of up to jitter of it
+    private long delayBefore(int attemptNumber) {
+        long delay = baseDelayMillis << Math.min(attemptNumber - 1, 30);
+        if (delay < 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+        long jitterMillis = (long) (delay * jitter);
+        return (jitterMillis == 0) ? delay : delay - ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+    }
+
+    /*
+     *      Getters
+     */
+
+    public int getMaxAttempts() { return maxAttempts; }
+
+    public long getBaseDelayMillis() { return baseDelayMillis; }
+
+    public long getMaxDelayMillis() { return maxDelayMillis; }
+
+    public double getJitter() { return jitter; }
+
+    public long getDeadlineMillis() { return deadlineMillis; }
+
+    // For sending without blocking the caller, e.g. the first attempt before any retries. Each task runs as the instance that handed it over
+    public static Executor workers() { return task -> workers.execute(InstanceContext.capture(task)); }
+}
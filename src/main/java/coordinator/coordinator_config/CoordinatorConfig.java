@@ -31,6 +31,7 @@ public class CoordinatorConfig {
     
     private static String defaultConfigPath = "config/coordinator_config/coordinatorConfig.properties";
     private String instanceConfigPath;
+    private boolean detached;   // Never touches the disk, see CoordinatorConfig(Properties)
 
     static {
         try {
@@ -39,7 +40,7 @@ public class CoordinatorConfig {
             properties.load(in);
             in.close();
         } catch (IOException e){
-            logger.error("Error reading in file!\n" + e);
+            logger.error("Error reading in file!", e);
         }
     }
 
@@ -60,22 +61,34 @@ public class CoordinatorConfig {
             FileInputStream in = new FileInputStream(instanceConfigPath);
             instanceProperties.load(in);
             in.close();
-            logger.info("Loaded instance config for: " + instanceId + " from path: " + instanceConfigPath);
-            logger.info("Instance config contains " + instanceProperties.size() + " properties:");
+            logger.info("Loaded instance config for: {} from path: {}", instanceId, instanceConfigPath);
+            logger.info("Instance config contains {} properties:", instanceProperties.size());
             for (String key : instanceProperties.stringPropertyNames()) {
-                logger.info("  " + key + " = " + instanceProperties.getProperty(key));
+                logger.info("  {} = {}", key, instanceProperties.getProperty(key));
             }
         } catch(IOException e) {
-            logger.error("No instance config found for: " + instanceId + ". using default config instead.");
+            logger.error("No instance config found for: {}. using default config instead.", instanceId);
             instanceProperties = properties;
             instanceConfigPath = null; // Clear the failed path so writeToConfig uses default
-            logger.info("Fallback to default config contains " + instanceProperties.size() + " properties:");
+            logger.info("Fallback to default config contains {} properties:", instanceProperties.size());
             for (String key : instanceProperties.stringPropertyNames()) {
-                logger.info("  " + key + " = " + instanceProperties.getProperty(key));
+                logger.info("  {} = {}", key, instanceProperties.getProperty(key));
             }
         }
     }
     
+    /**
+     *  A config that lives only in memory - nothing is loaded from or written back to a file, and grabIP()
+     *  hands back Coordinator.IP instead of looking at the interfaces. For running many coordinators in one JVM
+     *  (see simulator.ClusterSimulator), where each one is on its own made up IP
+     *  @param instanceProperties - every setting the coordinator needs, the defaults file is not consulted
+     */
+    public CoordinatorConfig(Properties instanceProperties) {
+        this.instanceProperties = instanceProperties;
+        this.instanceId = null;
+        this.detached = true;
+    }
+
     /**
      *   Grabs the machines IP and will return the IP.
      *   @return a string of the IP if found, if not found then a Null value
@@ -83,6 +96,10 @@ public class CoordinatorConfig {
 
     public String grabIP() throws UnknownHostException, SocketException {
 
+        if(detached) {
+            return instanceProperties.getProperty("Coordinator.IP");
+        }
+
         String realIp = null;
 
         for(NetworkInterface ni: java.util.Collections.list(NetworkInterface.getNetworkInterfaces())) {
@@ -113,22 +130,54 @@ public class CoordinatorConfig {
         try{
             String portString = instanceProperties.getProperty(key);
             port = Integer.parseInt(portString);
-            logger.info("Retrieved port for key '" + key + "': " + port + " from " + 
+            logger.info(
+                "Retrieved port for key '{}': {} from {}",
+                key,
+                port,
                 (instanceId != null ? "instance config (ID: " + instanceId + ")" : "default config"));
         } catch (Exception e){
-            logger.error("Error getting port from config file!\n" + e);
+            logger.error("Error getting port from config file!", e);
         }
         return port;
     }
 
+    /**
+     *  Grabs a setting from the config, falling back to a default when the key is missing.
+     *  @param key - the key of the setting
+     *  @param defaultValue - returned if the key is not in the config
+     *  @return the value of the setting, or the default
+     */
+    public String getPropertyByKey(String key, String defaultValue) {
+
+        String value = instanceProperties.getProperty(key);
+        if(value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public int getIntByKey(String key, int defaultValue) {
+
+        String value = getPropertyByKey(key, null);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.error("Config value for key '{}' is not a number: ( {} ) using {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
     public String getIPByKey(String key) {
 
         String IP = "";
         try{
             // Try and grab the IP by the key
-            IP = properties.getProperty(key);
+            IP = (detached ? instanceProperties : properties).getProperty(key);
         } catch (Exception e) {
-            logger.error("Error getting " + key + "'s IP from config file!\n" + e);
+            logger.error("Error getting {}'s IP from config file!", key, e);
         }
         return IP;
     }
@@ -160,32 +209,36 @@ public class CoordinatorConfig {
             // Set the property in the instance properties
             instanceProperties.setProperty(key, value);
 
+            if(detached) {
+                return;
+            }
+
             // Determine which file path to use - instance config if available, otherwise default
             String configPath = (instanceId != null && instanceConfigPath != null) ? instanceConfigPath : defaultConfigPath;
 
             // Write the key/value back to the appropriate file
             try(OutputStream outputStream = openFile(configPath)){
                 instanceProperties.store(outputStream, null);
-                logger.info("Overwrote:\t Key: ( " + key + " )\t Value: ( " + value + " ) in file: " + configPath);
+                logger.info("Overwrote:\t Key: ( {} )\t Value: ( {} ) in file: {}", key, value, configPath);
             } catch(IOException ioe) {
-                logger.error("Error adding value: ( " + value + " ) to key: ( " + key + " ) to config file: " + configPath + "\n" + ioe);
+                logger.error("Error adding value: ( {} ) to key: ( {} ) to config file: {}\n{}", value, key, configPath, ioe);
                 
                 // If instance config fails and we were trying to write to instance, fall back to default
                 if(instanceId != null && instanceConfigPath != null && !configPath.equals(defaultConfigPath)) {
                     logger.info("Falling back to default config file...");
                     try(OutputStream outputStream = openFile(defaultConfigPath)) {
                         instanceProperties.store(outputStream, null);
-                        logger.info("Overwrote:\t Key: ( " + key + " )\t Value: ( " + value + " ) in default file: " + defaultConfigPath);
+                        logger.info("Overwrote:\t Key: ( {} )\t Value: ( {} ) in default file: {}", key, value, defaultConfigPath);
                     } catch(IOException e) {
-                        logger.error("Error adding value: ( " + value + " ) to key: ( " + key + " ) to default config file!\n" + e);
+                        logger.error("Error adding value: ( {} ) to key: ( {} ) to default config file!", value, key, e);
                     }
                 }
             } catch(Exception e) {
-                logger.error("Unknown error adding value: ( " + value + " ) to key: ( " + key + " ) to config file!\n" + e);
+                logger.error("Unknown error adding value: ( {} ) to key: ( {} ) to config file!", value, key, e);
             }
 
         }catch (Exception e) { // Generic Exception
-            logger.error("Error writing key: ( " + key + " ) to config file!\n" + e);
+            logger.error("Error writing key: ( {} ) to config file!", key, e);
         }
     }
 }
\ No newline at end of file
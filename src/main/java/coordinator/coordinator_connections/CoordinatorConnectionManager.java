@@ -9,13 +9,22 @@
  */
 package coordinator.coordinator_connections;
 
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import lib.InstanceContext;
+
+import connection.ConnectionRegistry;
+import connection.ConnectionStats;
+import connection.ExpiryWheel;
+import connection.ProbeLimiter;
+import connection.flight_recorder.ConnectionAddedEvent;
+import connection.flight_recorder.ConnectionTerminatedEvent;
+
 import coordinator.edge_coordinator.EdgeCoordinator;
 
 import coordinator.coordinator_connections.CoordinatorConnectionDto;
@@ -31,52 +40,67 @@ public class CoordinatorConnectionManager {
     // Each class can have its own logger instance
     private static final Logger logger = LogManager.getLogger(CoordinatorConnectionManager.class);
         
-    // This "ConcurentHashMap" allows for multi-threaded visability.
-    private final Map<String, CoordinatorConnectionDto> activeConnections = new ConcurrentHashMap<>();
+    // Thread safe, with indexes by ip:port, cluster and priority - see connection.ConnectionRegistry
+    private final ConnectionRegistry<CoordinatorConnectionDto> activeConnections = new ConnectionRegistry<>(
+        CoordinatorConnectionDto::getId, CoordinatorConnectionDto::getIp, CoordinatorConnectionDto::getPort, CoordinatorConnectionDto::getClusterId, CoordinatorConnectionDto::getPriority
+    );
+
+    // When each connection expires, pushed back on every keep alive so expiry checks only see what is due
+    protected final ExpiryWheel<String> expiryWheel = new ExpiryWheel<>();
+
+    // Expired CRITICAL connections are probed in parallel, capped so a mass expiry can not flood the network
+    protected final ProbeLimiter probes = new ProbeLimiter();
 
-    // Step 1: (For my sanity) create an instance variable
-    private static CoordinatorConnectionManager instance;
+    // How long a probed connection has to answer before it is terminated
+    public static final long PROBE_TIMEOUT_MILLIS = 2000;
 
-    // Step 2: No-Args private constructor to prevent external instantiation
+    // Step 1: No-Args private constructor to prevent external instantiation
     private CoordinatorConnectionManager() { }
 
-    // Step 3: Get instance (if one is not there it is created then returned)
-    public static synchronized CoordinatorConnectionManager getInstance() {
-        if (instance == null) {
-            instance = new CoordinatorConnectionManager();
-        }
-        return instance;
+    // Step 2: Get instance (if one is not there it is created then returned). One per running instance, see lib.InstanceContext
+    public static CoordinatorConnectionManager getInstance() {
+        return InstanceContext.current().component(CoordinatorConnectionManager.class, CoordinatorConnectionManager::new);
     }
 
+    // Run once a tick. Only connections whose keep alive timeout has passed come out of the wheel, and nothing here waits on I/O
     public void checkExpiredConnections() {
 
-        // Create an iterator for the ConccurentHashMap since it needs an iterator
-        Iterator<Map.Entry<String , CoordinatorConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()) {
-            // Check if each entry is expired, if it is, check the priority to see if it needs to be removed or kept alive
-            Map.Entry<String, CoordinatorConnectionDto> entry = iterator.next();
-            if(new CoordinatorConnectionDtoManager(entry.getValue()).isExpired()){
-                
-                if(entry.getValue().getPriority() == CoordinatorPriority.CRITICAL){
-
-                    CoordinatorPacket keepAliveProbe =  
-                        CoordinatorKeepAliveService.createKeepAliveProbe(
-                            EdgeCoordinator.getCoordinatorId(),
-                            entry.getValue().getId()
-                        );
-
-                    boolean sendSuccess = new CoordinatorConnectionDtoManager(entry.getValue()).send( keepAliveProbe );
-                    if(!sendSuccess) {
-                        logger.warn("Connection with Server: {} has been terminated due to failed retry!", entry.getValue().getId());
-                        terminateConnection(entry.getValue().getId());
-                    }
-                }
-                else {
-                    logger.warn("Connection with Server: {} has been terminated due to priority status!", entry.getValue().getId()); 
-                    terminateConnection(entry.getValue().getId());
-                }
+        for (String id : expiryWheel.advance()) {
+            CoordinatorConnectionDto connection = activeConnections.get(id);
+
+            // Already gone, or a keep alive came in and rescheduled it since it was taken out of the wheel
+            if (connection == null || expiryWheel.contains(id)) {
+                continue;
+            }
+
+            // Check the priority to see if it needs to be removed or kept alive
+            if(connection.getPriority() == CoordinatorPriority.CRITICAL){
+
+                CoordinatorPacket keepAliveProbe =  
+                    CoordinatorKeepAliveService.createKeepAliveProbe(
+                        EdgeCoordinator.getCoordinatorId(),
+                        connection.getId()
+                    );
+
+                // Probes go out in parallel (up to the limit) and never hold up the sweep, a probe that fails or times out terminates the connection
+                probes.submit(() -> new CoordinatorConnectionDtoManager(connection).sendAsync(keepAliveProbe, PROBE_TIMEOUT_MILLIS))
+                    .whenComplete((response, e) -> {
+                        // Rescheduled by a keep alive while the probe was out, or already terminated
+                        if (expiryWheel.contains(id) || !activeConnections.containsKey(id)) {
+                            return;
+                        }
+                        if (e != null) {
+                            logger.warn("Connection with Server: {} has been terminated due to a failed keep alive probe!", connection.getId());
+                            terminateConnection(connection.getId());
+                        } else {
+                            // It answered the probe, so it gets another full timeout
+                            scheduleExpiry(connection);
+                        }
+                    });
+            }
+            else {
+                logger.warn("Connection with Server: {} has been terminated due to priority status!", connection.getId()); 
+                terminateConnection(connection.getId());
             }
         }
     }
@@ -87,28 +111,35 @@ public class CoordinatorConnectionManager {
 
     public boolean sendKeepAlive(CoordinatorPacket keepAliveProbe) {
 
-        activeConnections.forEach((id, connection) -> {
-            if(connection.getPriority() == CoordinatorPriority.CRITICAL){
-
-                boolean keptAlive;
-
-                keptAlive = new CoordinatorConnectionDtoManager(connection).send(keepAliveProbe);
+        // Straight from the priority index, and a copy so terminating inside the loop is safe
+        for (CoordinatorConnectionDto connection : activeConnections.getByPriority(CoordinatorPriority.CRITICAL)) {
 
+            // Retried off this thread, so one flapping connection does not hold up the rest
+            new CoordinatorConnectionDtoManager(connection).sendWithRetry(keepAliveProbe).thenAccept(keptAlive -> {
                 // If the packet fails to send
                 if(!keptAlive) {
-                    terminateConnection(id);
+                    terminateConnection(connection.getId());
                 }
-            }
-        });
+            });
+        }
         return true;
     }
 
     public void terminateConnection(String id) {
-        CoordinatorConnectionDto remove = activeConnections.get(id);
-        logger.info("Terminated Connection: \n  ID:" + remove.getId() 
-            + "\n  IP - " + remove.getIp() + ":" + remove.getPort()
+        // Removed first so two threads terminating the same connection only do it once
+        CoordinatorConnectionDto remove = activeConnections.remove(id);
+        if (remove == null) {
+            return;
+        }
+        expiryWheel.cancel(remove.getId());
+        new CoordinatorConnectionDtoManager(remove).closeSender();
+        logger.info(
+            "Terminated Connection: \n  ID:{}\n  IP - {}:{}",
+            remove.getId(),
+            remove.getIp(),
+            remove.getPort()
         );
-        activeConnections.remove(remove.getId());
+        new ConnectionTerminatedEvent().commit("Coordinator", remove.getId(), remove.getIp(), remove.getPort(), remove.getPriority(), remove.getStats());
     }
 
     /*
@@ -118,8 +149,25 @@ public class CoordinatorConnectionManager {
     // Can allow for multiple connections to be added at once(if needed)
     public void addConnection(CoordinatorConnectionDto... connection) {
         for(CoordinatorConnectionDto connected : connection) {
-            activeConnections.put(connected.getId(), connected);
+            activeConnections.put(connected);
+            scheduleExpiry(connected);
+            new ConnectionAddedEvent().commit("Coordinator", connected.getId(), connected.getIp(), connected.getPort(), connected.getPriority());
+        }
+    }
+
+    // A packet from this connection shows it is alive, so its expiry is pushed back a full keep alive timeout
+    public boolean updateLastActivity(String id) {
+        CoordinatorConnectionDto connection = activeConnections.get(id);
+        if (connection == null) {
+            return false;
         }
+        connection.updateLastActivity();
+        scheduleExpiry(connection);
+        return true;
+    }
+
+    private void scheduleExpiry(CoordinatorConnectionDto connection) {
+        expiryWheel.schedule(connection.getId(), TimeUnit.SECONDS.toMillis(connection.getKeepAliveTimeout()));
     }
 
     // When recieving a 
@@ -138,25 +186,21 @@ public class CoordinatorConnectionManager {
         return activeConnections.get(id);
     }
 
-    public Map<String, CoordinatorConnectionDto> getActiveConnections() {
-        return activeConnections;
-    }
+    // A consistent copy, safe to iterate while connections come and go
+    public Map<String, CoordinatorConnectionDto> getActiveConnections() { return activeConnections.snapshotMap(); }
+
+    public ConnectionRegistry<CoordinatorConnectionDto> getRegistry() { return activeConnections; }
 
     public String[] getAllIds() {
-        return activeConnections.keySet().toArray(new String[0]);
+        return activeConnections.ids().toArray(new String[0]);
     }
 
-    public int getActiveConnectionCount() {
-
-        int connectionCount = 0;
-
-        Iterator<Map.Entry<String , CoordinatorConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()){
-            connectionCount++;
-        }
+    public int getActiveConnectionCount() { return activeConnections.size(); }
 
-        return connectionCount;
+    // Every connection's traffic counters right now, by ID (see connection.ConnectionStats)
+    public Map<String, ConnectionStats.Snapshot> getStatsSnapshots() {
+        Map<String, ConnectionStats.Snapshot> snapshots = new LinkedHashMap<>();
+        activeConnections.forEach((id, connection) -> snapshots.put(id, connection.getStats().snapshot()));
+        return snapshots;
     }
 }
@@ -62,7 +62,7 @@ public class CoordinatorInitalizationHandler extends CoordinatorPacketHandler{
             packetResponse.addCustomKeyValuePair("id", recievedPacket.getId());
 
         } catch(Exception e) {
-            logger.error("Error Handling packet.\n" + e);
+            logger.error("Error Handling packet.", e);
             e.printStackTrace();
             // Generates the response to be put into the failure packet
             packetResponse = new CoordinatorHandlerResponse(false, e, "Error Handling Packet.");
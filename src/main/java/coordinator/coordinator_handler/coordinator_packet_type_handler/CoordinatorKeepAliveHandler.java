@@ -18,7 +18,7 @@ import coordinator.coordinator_connections.*;
 
 public class CoordinatorKeepAliveHandler extends CoordinatorPacketHandler{
 
-    private static CoordinatorConnectionManager serverManager = CoordinatorConnectionManager.getInstance();
+    private CoordinatorConnectionManager serverManager = CoordinatorConnectionManager.getInstance();
     
     private static final Logger logger = LogManager.getLogger(CoordinatorKeepAliveHandler.class);
 
@@ -31,7 +31,7 @@ public class CoordinatorKeepAliveHandler extends CoordinatorPacketHandler{
             // Generates the success response to be put into the ack packet 
             packetResponse = new CoordinatorHandlerResponse(true, "Recieved");
         } catch(Exception e) {
-            logger.error("Error handling Keep Alive packet from server: {}.\n {} ", recievedPacket.getId(), e);
+            logger.error("Error handling Keep Alive packet from server: {}.", recievedPacket.getId(), e);
             // Generates the response to be put into the failure packet
             packetResponse = new CoordinatorHandlerResponse(false, e, "Error Handling Packet.");
         }
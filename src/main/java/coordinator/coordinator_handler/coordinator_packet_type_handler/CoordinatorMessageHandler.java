@@ -42,7 +42,7 @@ public class CoordinatorMessageHandler extends CoordinatorPacketHandler{
             packetResponse = new CoordinatorHandlerResponse(true, "Recieved");
 
         } catch(Exception e) {
-            logger.error("Error Handling packet!\n" + e);
+            logger.error("Error Handling packet!", e);
             // Generates the response to be put into the failure packet
             packetResponse = new CoordinatorHandlerResponse(false, e, "Error Handling Packet.");
         }
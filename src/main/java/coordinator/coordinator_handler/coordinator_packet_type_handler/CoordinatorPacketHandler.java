@@ -14,6 +14,8 @@ package coordinator.coordinator_handler.coordinator_packet_type_handler;
 
 import java.util.LinkedHashMap;
 
+import lib.PacketLog;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -23,7 +25,7 @@ import coordinator.coordinator_packet.*;
 
 public abstract class CoordinatorPacketHandler {
 
-    protected static CoordinatorConnectionManager connectionManager = CoordinatorConnectionManager.getInstance();
+    protected CoordinatorConnectionManager connectionManager = CoordinatorConnectionManager.getInstance();
 
     private static final Logger logger = LogManager.getLogger(CoordinatorPacketHandler.class);
 
@@ -41,11 +43,14 @@ public abstract class CoordinatorPacketHandler {
         this.recievedPacket = recievedPacket;
 
         // Print out the packet 
-        logger.info(
-            "\n\tID: \t" + recievedPacket.getId() 
-            + "\n\tPacket Type: \t" + recievedPacket.getPacketType() 
-            + "\n\tPayload: \t" + recievedPacket.getPayload()  
-        );
+        if (PacketLog.shared().sample(recievedPacket.getPacketType())) {
+            logger.info(
+                "\n\tID: \t{}\n\tPacket Type: \t{}\n\tPayload: \t{}",
+                recievedPacket.getId(),
+                recievedPacket.getPacketType(),
+                recievedPacket.getPayload()
+            );
+        }
 
         // Grab the payload from the packet
         LinkedHashMap<String, String> payload = recievedPacket.getPayload();
@@ -75,8 +80,8 @@ public abstract class CoordinatorPacketHandler {
             return process();
         }
 
-        // This gets the connected senders ID from storage and updates the last activity since it is clearly sending packets
-        connectionManager.getConnectionInfoById(recievedPacket.getId()).updateLastActivity();
+        // Updates the last activity of the sender since it is clearly sending packets, which also pushes back its expiry
+        connectionManager.updateLastActivity(recievedPacket.getId());
 
         return process();
     }
@@ -18,29 +18,89 @@ import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.SocketTimeoutException;
 
+import java.nio.file.Path;
+
+import java.util.LinkedHashMap;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import listener.ListenerMode;
+import listener.NioListener;
+import listener.admission_control.AdmissionControl;
+import listener.admission_control.LaneMemoryServerSocket;
+import listener.admission_control.LaneServerSocket;
+import listener.admission_control.LaneUnixServerSocket;
+import listener.handler_executor.HandlerExecutor;
+import listener.handler_executor.HandlerExecutorMode;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+
+import sender.retry_policy.RetryPolicy;
+
+import connection.transport.TransportSelector;
+
+import lib.InstanceContext;
+
 import coordinator.coordinator_handler.CoordinatorServerHandler;
+import coordinator.coordinator_packet.CoordinatorPacketType;
+import coordinator.coordinator_packet.coordinator_packet_class.CoordinatorGenericPacket;
+import coordinator.edge_coordinator.EdgeCoordinator;
 
 public class CoordinatorListener implements Runnable {
 
     private static final Logger logger = LogManager.getLogger(CoordinatorListener.class);
 
-    private Socket connected;   // The socket that will be created once a connection is made, this will be passed to the thread that handles the packet
     private ServerSocket listenerSocket;    // This is the active listening socket, only recieves
+    private ServerSocket unixListenerSocket;    // Only opened when peers on this host may connect over a unix domain socket
     private int port;       // The port the listener is on
     private int timeout;        // How long the listener refreshes
 
     private boolean on;     // The boolean value for our while loop for our listener
 
+    private NioListener nioListener;    // Only created when the listener runs in NIO mode, then listenerSocket is never opened
+
+    private AdmissionControl admissionControl;    // Queues (or turns away) each accepted connection before its handler runs, in blocking mode
+
     // Constructor for the listener
     public CoordinatorListener(int port, int timeout) throws IOException {
+        this(
+            port, timeout, ListenerMode.BLOCKING, 0,
+            new AdmissionControl(
+                "Coordinator",
+                HandlerExecutor.create(HandlerExecutorMode.THREAD, 0, "Coordinator-Handler"),
+                CoordinatorListener::overloadResponse
+            )
+        );
+    }
+
+    // Constructor that lets the config pick between the blocking and the NIO listener, and how handlers are run and admitted
+    public CoordinatorListener(int port, int timeout, ListenerMode mode, int ioThreads, AdmissionControl admissionControl) throws IOException {
         this.port = port;
         this.timeout = timeout;
-        this.listenerSocket = new ServerSocket(port);
-        this.listenerSocket.setSoTimeout(timeout);
         this.on = true;
+        this.admissionControl = admissionControl;
+
+        // Every instance is in this JVM, so there is nothing for the NIO selector to select on
+        boolean inMemory = TransportSelector.shared().listensInMemory();
+        if(mode == ListenerMode.NIO && inMemory) {
+            logger.warn("NIO listeners can not listen in memory, listening on port {} in blocking mode instead", port);
+        }
+
+        if(mode == ListenerMode.NIO && !inMemory) {
+            this.nioListener = new NioListener(port, ioThreads, "Coordinator", CoordinatorServerHandler::new, unixSocketPath());
+        } else if(inMemory) {
+            this.listenerSocket = new LaneMemoryServerSocket(InstanceContext.current().getHost(), port);
+            this.listenerSocket.setSoTimeout(timeout);
+        } else {
+            this.listenerSocket = new LaneServerSocket(port);    // Lets admission control see each connection's lane
+            this.listenerSocket.setSoTimeout(timeout);
+            if(unixSocketPath() != null) {
+                this.unixListenerSocket = new LaneUnixServerSocket(unixSocketPath(), port);
+                this.unixListenerSocket.setSoTimeout(timeout);
+            }
+        }
     }
 
     // This is the method that is called that will start the thread, once the thread is started, then 
@@ -48,24 +108,63 @@ public class CoordinatorListener implements Runnable {
     @Override
     public void run(){  
 
-        logger.info("Listening on port " + this.port);
+        // The NIO listener runs its own accept loop and I/O threads
+        if(nioListener != null) {
+            nioListener.run();
+            return;
+        }
 
+        // Peers on this host connect here instead, handled exactly the same
+        if(unixListenerSocket != null) {
+            new Thread(() -> acceptLoop(unixListenerSocket), "Coordinator-uds").start();
+            logger.info("Listening on {}", unixSocketPath());
+        }
+
+        logger.info("Listening on port {}", this.port);
+        acceptLoop(listenerSocket);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
         // Main loop that will constantly be running, this allows for constant listening for new packets
         while(on){
             try {
-                connected = listenerSocket.accept();        // if a packet comes, create the socket to handle the packet
-                Thread handlerThread = new Thread(new CoordinatorServerHandler(connected)); // sends the packet to the packet handler, simultaneously starting a new thread
-                handlerThread.start(); // Begins the new thread
+                Socket connected = serverSocket.accept();        // if a packet comes, create the socket to handle the packet
+                admissionControl.submit(connected, new CoordinatorServerHandler(connected)); // sends the packet to the packet handler, on a thread, pool or virtual thread depending on Coordinator.handlerMode, once there is room for it
 
                 // Keeping the 'SocketTimeoutException' catch statement empty. Since we want to constantly be reseting our listener, we want this exception to be thrown
             } catch (SocketTimeoutException sto) {  
             } catch (IOException ioe) {     
-                logger.error("IOException!\n" + ioe);
+                if(!serverSocket.isClosed()) {
+                    logger.error("IOException!\n{}", ioe);
+                }
             }
         }
     }
 
+    // Where this listener's unix domain socket goes, null when the tier only uses TCP
+    private Path unixSocketPath() {
+        TransportSelector transports = TransportSelector.shared();
+        return transports.listensOnUnixSocket() ? transports.socketPath(port) : null;
+    }
+
+    // What a connection that is turned away gets back, an ERROR telling the sender how long to stay away
+    public static Frame overloadResponse(byte version, long retryAfterMillis) {
+        LinkedHashMap<String, String> payload = new LinkedHashMap<>();
+        payload.put("message", "Coordinator is overloaded");
+        payload.put(RetryPolicy.RETRY_AFTER_KEY, String.valueOf(retryAfterMillis));
+
+        CoordinatorGenericPacket errorPacket = new CoordinatorGenericPacket(CoordinatorPacketType.ERROR, EdgeCoordinator.getCoordinatorId(), payload);
+
+        return (version == FrameCodec.VERSION_LEGACY)
+            ? Frame.legacy(errorPacket.toDelimitedString())
+            : Frame.of(version, errorPacket.getPacketType(), errorPacket.toJson());
+    }
+
     /*          Accessor methods        */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
     public int getActivePort() {
         return port;
     }
@@ -84,24 +183,38 @@ public class CoordinatorListener implements Runnable {
     public void changeTimeout(int newTimeout) {
         int oldTimeout = timeout;   // Store the oldtime out locally in case of error. If error we can retain the old timeout
         timeout = newTimeout;   // store new timeout inside the global variable
+        if(nioListener != null) {
+            return;     // The NIO accept loop blocks without a timeout
+        }
         try {
             // Try and set new timeout
             listenerSocket.setSoTimeout(timeout);
+            if(unixListenerSocket != null) {
+                unixListenerSocket.setSoTimeout(timeout);
+            }
         } catch (Exception e) {
             // Resets the timeout to what it was prior
             timeout = oldTimeout;
-            logger.error("Error setting new timeout on socket: ( " + port + " )\n" + e);
+            logger.error("Error setting new timeout on socket: ( {} )", port, e);
         }
     }
 
     // This will execute a graceful shutdown of the socket
     public boolean closeSocket() {
+        if(nioListener != null) {
+            on = false;
+            logger.info("Closing socket on port: + ( {} ) ", port);
+            return nioListener.close();
+        }
         try{
             on = false;     // Turn off our while loop for redundancy
-            logger.info("Closing socket on port: + ( " + port + " ) ");
+            logger.info("Closing socket on port: + ( {} ) ", port);
             listenerSocket.close();     // Fully close the socket
+            if(unixListenerSocket != null) {
+                unixListenerSocket.close();
+            }
         } catch(Exception e) {
-            logger.error("Error Closing socket on port: ( " + port + " )\n"+e);
+            logger.error("Error Closing socket on port: ( {} )", port, e);
             return false;       // ungraceful shutdown
         }
         return true;        // Graceful shutdown complete
@@ -17,6 +17,7 @@ import java.util.LinkedHashMap;
 import java.util.Arrays;
 
 import com.google.gson.Gson;    // external library that allows for jsonify of java objects. Located in root/lib 
+import com.google.gson.annotations.SerializedName;
 
 import coordinator.edge_coordinator.EdgeCoordinator;
 
@@ -24,6 +25,8 @@ public abstract class CoordinatorPacket {
 
     protected int payloadPairCounter = 0;
 
+    // An AbstractPacket (see PacketCodecs.json()) names the same field senderId
+    @SerializedName(value = "id", alternate = {"senderId"})
     protected String id = EdgeCoordinator.getCoordinatorId();
     
     protected CoordinatorPacketType packetType;     // Enum for easy constant assignment
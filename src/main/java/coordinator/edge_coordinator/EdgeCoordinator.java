@@ -15,6 +15,10 @@
  *      After these items are grabbed, a listener for the server will be instantiated to be used later. This
  *      will finish the initalization process. Once this is done, the listener will be thrown into the thread
  *      to be constantly ran seperate of this project
+ *
+ *      The EdgeCoordinator belongs to the InstanceContext it was made in, like the servers and nodes, so the
+ *      cluster simulator can run it in the same JVM as them. Its CoordinatorConnectionManager2 is still
+ *      one per process, so there can only be one coordinator in a JVM.
  */
 package coordinator.edge_coordinator;
 
@@ -23,9 +27,10 @@ import java.io.IOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import org.apache.logging.log4j.LogManager;
@@ -35,29 +40,69 @@ import coordinator.coordinator_config.CoordinatorConfig;
 
 import coordinator.coordinator_listener.CoordinatorListener;
 
+import listener.ListenerMode;
+import listener.admission_control.AdmissionControl;
+import listener.handler_executor.HandlerExecutor;
+import listener.handler_executor.HandlerExecutorMode;
+
+import connection.ExpiryWheel;
+
+import lib.InstanceContext;
+import lib.OrderedExecutor;
+import lib.PacketLog;
+import lib.SharedTimer;
+
+import connection.transport.TransportMode;
+import connection.transport.TransportSelector;
+
+import connection.metrics.MetricsEndpoint;
+import connection.metrics.MetricsRegistry;
+import connection.metrics.ProcessMetrics;
+
+import packet.codec.PacketCodecs;
+
+import packet.frame.HopTrace;
+
+import coordinator.coordinator_packet.CoordinatorPacketType;
+
+import sender.outbound_batcher.OutboundBatcher;
+
 import coordinator.coordinator_connections.CoordinatorConnectionManager2;
 
 public class EdgeCoordinator {
 
     private static final Logger logger = LogManager.getLogger(EdgeCoordinator.class);
 
-    private static volatile String coordinatorId = null;
+    private volatile String coordinatorId = null;
+
+    private CoordinatorConnectionManager2 serverConnectionManager;
+
+    private String IP;
+
+    private CoordinatorListener serverListener;  // The socket that will be listening to requests from the Edge server.
 
-    private static CoordinatorConnectionManager2 serverConnectionManager;
+    private ScheduledExecutorService timerScheduler;
 
-    private static String IP;
+    private MetricsEndpoint metricsEndpoint;     // Null unless Coordinator.metricsPort is set
 
-    private static CoordinatorListener serverListener;  // The socket that will be listening to requests from the Edge server.
+    private final CoordinatorConfig config;
 
-    private static ScheduledExecutorService timerScheduler;
+    // The coordinator is the one running in the calling thread's instance (the whole process, outside of the simulator)
+    public EdgeCoordinator(CoordinatorConfig config) {
+        this.config = config;
+        InstanceContext.current().register(EdgeCoordinator.class, this);
+    }
 
-    private static CoordinatorConfig config;
+    // The coordinator the calling thread is running for, null if there is none
+    public static EdgeCoordinator current() {
+        return InstanceContext.current().component(EdgeCoordinator.class);
+    }
 
     /*
      *  Initalizes the Node Coordinator - This will be the first thing that runs when the Node Coordinator is started up
      */
 
-    public static void init() {
+    public void init() {
 
         // Give the Coordinator an ID
         setCoordinatorId(UUID.randomUUID().toString());
@@ -70,28 +115,82 @@ public class EdgeCoordinator {
             // Get the IP address for this coordinator
             IP = config.grabIP(); 
         } catch (UnknownHostException e) {
-            logger.error("Error: Unable to determine local host IP address.\n" + e);
+            logger.error("Error: Unable to determine local host IP address.", e);
         } catch (SocketException e) {
             logger.error("Error: Unable to determine IP Address");
         }
 
+        // These are process wide, the simulator sets them up once for every instance it runs
+        if(InstanceContext.current().isProcess()) {
+            // Small packets to the same destination wait up to the window (or until the batch is full) and go out as one frame,
+            // keep alives and the rest of the control lane wait up to the control window (0 - not at all)
+            OutboundBatcher.configure(
+                config.getIntByKey("Coordinator.batchWindowMillis", OutboundBatcher.DEFAULT_WINDOW_MILLIS),
+                config.getIntByKey("Coordinator.batchControlWindowMillis", OutboundBatcher.DEFAULT_CONTROL_WINDOW_MILLIS),
+                config.getIntByKey("Coordinator.batchMaxPackets", OutboundBatcher.DEFAULT_MAX_PACKETS),
+                config.getIntByKey("Coordinator.batchMaxBytes", OutboundBatcher.DEFAULT_MAX_BYTES)
+            );
+
+            // Packets from the same connection are processed in order, different connections in parallel on this many threads (0 - two per core)
+            OrderedExecutor.configure(config.getIntByKey("Coordinator.orderedThreads", 0));
+
+            // tcp, uds - a unix domain socket for peers on this host, auto - the same, but only if the peer is listening on one
+            TransportSelector.configure(
+                TransportMode.fromString(config.getPropertyByKey("Coordinator.transport", "tcp")),
+                config.getPropertyByKey("Coordinator.socketDir", TransportSelector.DEFAULT_SOCKET_DIR)
+            );
+
+            // 1 packet in every this many carries a hop trace (see HopTrace), 0 - off
+            HopTrace.configure(config.getIntByKey("Coordinator.traceSampleRate", HopTrace.DEFAULT_SAMPLE_RATE));
+
+            // json, binary - the codec packets from the shared senders are written with, to peers that read it (see PacketCodecs)
+            PacketCodecs.configure(config.getPropertyByKey("Coordinator.packetCodec", PacketCodecs.DEFAULT_CODEC));
+
+            // The per packet log lines are sampled by packet type, and the last packets are kept for GET /packets
+            PacketLog.configure(
+                config.getIntByKey("Coordinator.packetLogSize", PacketLog.DEFAULT_CAPACITY),
+                config.getIntByKey("Coordinator.logSampleRate", PacketLog.DEFAULT_SAMPLE_RATE),
+                logSampleRates()
+            );
+        }
+
         // Try to create a serverSocket to listen to requests 
         try {
             // Construct the listener - sending the
             serverListener = new CoordinatorListener(
                 config.getPortByKey("Coordinator.listeningPort"),
-                 5000
+                 5000,
+                 ListenerMode.fromString(config.getPropertyByKey("Coordinator.listenerMode", "blocking")),
+                 config.getIntByKey("Coordinator.ioThreads", 2),
+                 // Past maxConcurrentHandlers running and maxQueuedConnections waiting, connections are turned away with a retry after hint.
+                 // Keep alives and handshakes get reservedControlHandlers more on top, so MESSAGE floods can not starve them
+                 // Handler threads parked on idle persistent connections count against maxHandlerThreads too, the longest idle is closed to make room
+                 new AdmissionControl(
+                     "Coordinator",
+                     HandlerExecutor.create(
+                         HandlerExecutorMode.fromString(config.getPropertyByKey("Coordinator.handlerMode", "thread")),
+                         config.getIntByKey("Coordinator.handlerPoolSize", 32),
+                         "Coordinator-Handler"
+                     ),
+                     config.getIntByKey("Coordinator.maxConcurrentHandlers", AdmissionControl.DEFAULT_MAX_CONCURRENT),
+                     config.getIntByKey("Coordinator.reservedControlHandlers", AdmissionControl.DEFAULT_RESERVED_CONTROL),
+                     config.getIntByKey("Coordinator.maxHandlerThreads", AdmissionControl.DEFAULT_MAX_THREADS),
+                     config.getIntByKey("Coordinator.maxQueuedConnections", AdmissionControl.DEFAULT_MAX_QUEUED),
+                     config.getIntByKey("Coordinator.overloadRetryAfterMillis", AdmissionControl.DEFAULT_RETRY_AFTER_MILLIS),
+                     config.getIntByKey("Coordinator.maxQueueWaitMillis", AdmissionControl.DEFAULT_MAX_QUEUE_WAIT_MILLIS),
+                     CoordinatorListener::overloadResponse
+                 )
             );  
 
         } catch (IOException e) {
             logger.error(
-                "Error creating Listening Socket on port " 
-                + config.getPortByKey("Coordinator.listeningPort")
-                + "\n" + e
+                "Error creating Listening Socket on port {}",
+                config.getPortByKey("Coordinator.listeningPort"),
+                e
             );
             // TODO: try to grab new port if this one is unavailable
         } catch (Exception e) {
-            logger.error("Unknown Error creating listener ports!\n" + e);
+            logger.error("Unknown Error creating listener ports!", e);
         }
         /*
          *      Try and Create timers
@@ -99,7 +198,12 @@ public class EdgeCoordinator {
         try {
             initializeTimers();
         } catch (Exception e) {
-            logger.error("Error creating Timers: \n" + e);
+            logger.error("Error creating Timers", e);
+        }
+
+        // There is one metrics endpoint for the process, the simulator runs without one
+        if(InstanceContext.current().isProcess()) {
+            startMetrics();
         }
     }
 
@@ -107,36 +211,104 @@ public class EdgeCoordinator {
      *      ID assignment 
      */
 
-    // Thread-safe setter for ID assignment
-    public static synchronized void setCoordinatorId(String id) {
-        coordinatorId = id;
-        logger.info("Coordinator ID assigned: " + id);
+    // Thread-safe setter for ID assignment, for the coordinator the calling thread runs for
+    public static void setCoordinatorId(String id) {
+        current().coordinatorId = id;
+        logger.info("Coordinator ID assigned: {}", id);
     }
 
-    public static synchronized String getCoordinatorId() {
-        return coordinatorId;
+    public static String getCoordinatorId() {
+        EdgeCoordinator coordinator = current();
+        return (coordinator != null) ? coordinator.coordinatorId : null;
+    }
+
+    // Starts listening for the servers
+    public void start() {
+        // Instaniate the thread and send the serverListener to it
+        Thread listeningThread = new Thread(serverListener, "Coordinator-listener");
+
+        // Start the thread
+        listeningThread.start();
     }
 
         /*
      *      Timer creation
      */
-    private static void initializeTimers() {
-        // Creates the timer for 
-        timerScheduler = Executors.newScheduledThreadPool(2, r -> {
-            Thread t = new Thread(r, "EdgeCoordinator-Timer");
-            //t.setDaemon(true);
-            return t;
-        });
-        // Schedules overdue packet check every 20 seconds
+    private void initializeTimers() {
+        // Everything periodic runs off the process wide timer wheel, none of these tasks block
+        timerScheduler = SharedTimer.get();
+        // Advances the connection expiry wheel once a tick, only connections that are actually overdue get checked
         timerScheduler.scheduleAtFixedRate(() -> {
             try{
                 serverConnectionManager.checkExpiredConnections();
             } catch (Exception e){
                 logger.error("Exception in expiry timer: ", e);
             }
-        }, 20, 20, TimeUnit.SECONDS);
+        }, ExpiryWheel.DEFAULT_TICK_MILLIS, ExpiryWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
         logger.info("Timer for checking Expired connections created!");
+
+        // Logs how deep the listener queue is and how many connections were turned away
+        timerScheduler.scheduleAtFixedRate(() -> {
+            try{
+                if(serverListener != null) {
+                    serverListener.getAdmissionControl().logStats();
+                }
+            } catch (Exception e){
+                logger.error("Exception in admission stats timer: ", e);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        // Logs how far behind the timer thread is running, it should stay within a tick or two. There is one timer for the whole process
+        if(InstanceContext.current().isProcess()) {
+            timerScheduler.scheduleAtFixedRate(() -> {
+                try{
+                    SharedTimer.logStats();
+                } catch (Exception e){
+                    logger.error("Exception in timer stats timer: ", e);
+                }
+            }, 60, 60, TimeUnit.SECONDS);
+        }
+    }
+
+
+    // Coordinator.logSampleRate.<PACKET_TYPE> overrides the default sample rate for that packet type
+    private Map<String, Integer> logSampleRates() {
+        Map<String, Integer> rates = new HashMap<>();
+        for (CoordinatorPacketType type : CoordinatorPacketType.values()) {
+            int rate = config.getIntByKey("Coordinator.logSampleRate." + type.name(), -1);
+            if(rate >= 0) {
+                rates.put(type.name(), rate);
+            }
+        }
+        return rates;
     }
+
+    /*
+     *      Metrics
+     */
+
+    // Serves the packet, latency, queue and connection metrics in Prometheus text format on Coordinator.metricsPort, 0 leaves it off
+    private void startMetrics() {
+        MetricsRegistry registry = MetricsRegistry.shared();
+        ProcessMetrics.register(registry);
+        if(serverConnectionManager != null) {
+            registry.gauge("edge_active_connections", "Open connections, by who they are to", "peer", "server", serverConnectionManager::getActiveConnectionCount);
+        }
+        if(serverListener != null) {
+            serverListener.getAdmissionControl().registerMetrics(registry);
+        }
+
+        int metricsPort = config.getIntByKey("Coordinator.metricsPort", 0);
+        if(metricsPort <= 0) {
+            return;
+        }
+        try {
+            metricsEndpoint = MetricsEndpoint.start(metricsPort);
+        } catch (IOException e) {
+            logger.error("Could not start the metrics endpoint on port {}", metricsPort, e);
+        }
+    }
+
     /*
      *          MAIN
      */
@@ -144,6 +316,7 @@ public class EdgeCoordinator {
 
         String instanceId = args.length > 0 ? args[0] : null; // Can start multiple instances of the Coordinator that can load the
 
+        CoordinatorConfig config;
         if(instanceId != null) {
             // Start up new instance of a coordinator with a specific config file
             config = new CoordinatorConfig(instanceId);
@@ -153,13 +326,10 @@ public class EdgeCoordinator {
             logger.info("Starting default Coordinator Config");
         }
 
-        init();         // Begins the initalization process 
+        EdgeCoordinator coordinator = new EdgeCoordinator(config);
+        coordinator.init();         // Begins the initalization process 
 
-        // Instaniate the thread and send the serverListener to it
-        Thread listeningThread = new Thread(serverListener);
-
-        // Start the thread
-        listeningThread.start();
+        coordinator.start();
 
         /* 
         // TODO: DEMO
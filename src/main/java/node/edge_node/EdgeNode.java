@@ -10,15 +10,23 @@
  *      
  *      If the initalization is successful, then a listener will be created for the 
  *      server. A sender will also be for the server
+ *
+ *      Each EdgeNode belongs to the InstanceContext it was made in, so the cluster simulator can run
+ *      thousands of them in one JVM. The static getters (getNodeID() ...) answer for the node the
+ *      calling thread is running for.
  */
 package node.edge_node;
 
+import java.io.IOException;
+
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.Scanner;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -27,6 +35,29 @@ import org.apache.logging.log4j.Logger;
 
 import node.node_listener.NodeListener;
 
+import listener.ListenerMode;
+import listener.admission_control.AdmissionControl;
+import listener.handler_executor.HandlerExecutor;
+import listener.handler_executor.HandlerExecutorMode;
+
+import lib.InstanceContext;
+import lib.OrderedExecutor;
+import lib.PacketLog;
+import lib.SharedTimer;
+
+import connection.transport.TransportMode;
+import connection.transport.TransportSelector;
+
+import connection.metrics.MetricsEndpoint;
+import connection.metrics.MetricsRegistry;
+import connection.metrics.ProcessMetrics;
+
+import packet.codec.PacketCodecs;
+
+import packet.frame.HopTrace;
+
+import sender.outbound_batcher.OutboundBatcher;
+
 import node.node_packet.*;
 import node.node_packet.node_packet_class.*;
 
@@ -39,35 +70,48 @@ import node.node_services.*;
 
 public class EdgeNode {
 
-    private static volatile String nodeId = null;
+    private volatile String nodeId = null;
 
-    private static volatile String clusterId = null;
+    private volatile String clusterId = null;
 
-    private static String IP;
+    private String IP;
 
-    private static NodeListener serverListener;            // The socket that will be listening to requests from the Edge server.
-    private static NodeListener peerListener;
+    private NodeListener serverListener;            // The socket that will be listening to requests from the Edge server.
+    private NodeListener peerListener;
 
     // Each class can have its own logger instance
     private static final Logger logger = LogManager.getLogger(EdgeNode.class);
 
-    private static NodeServerConnectionManager serverConnectionManager; // Manage the connection between the server and the node
+    private NodeServerConnectionManager serverConnectionManager; // Manage the connection between the server and the node
 
-    private static NodeServerConnectionManager peerConnectionManager;
+    private NodeServerConnectionManager peerConnectionManager;
     // Timer components
-    private static ScheduledExecutorService timerScheduler; //the timer that will send out the keepAlives to server
+    private ScheduledExecutorService timerScheduler; //the timer that will send out the keepAlives to server
+
+    private MetricsEndpoint metricsEndpoint;     // Null unless Node.metricsPort is set
 
-    private static NodeConfig config;
+    private final NodeConfig config;
+
+    // The node is the one running in the calling thread's instance (the whole process, outside of the simulator)
+    public EdgeNode(NodeConfig config) {
+        this.config = config;
+        InstanceContext.current().register(EdgeNode.class, this);
+    }
+
+    // The node the calling thread is running for, null if there is none
+    public static EdgeNode current() {
+        return InstanceContext.current().component(EdgeNode.class);
+    }
 
     /*
      *  Initalizes the Edge Node
      */
-    public static void init() {
+    public void init() {
 
         // try/catch to generate the IP from ../config/Config.java - Throws UnknownHostException if it cannot determine the IP
         try{
             IP = config.grabIP();
-            logger.info("Starting Node at " + IP);
+            logger.info("Starting Node at {}", IP);
         } catch (UnknownHostException e) {
             logger.error("Error: Unable to determine local host IP address.");
             e.printStackTrace();
@@ -80,16 +124,19 @@ public class EdgeNode {
             // init connection with the server
             serverConnectionManager = NodeServerConnectionManager.getInstance();
 
-            // Add connection to connection manager
-            serverConnectionManager.addConnection(
-                new NodeConnectionDto(
-                    "1",
-                    config.getIPByKey("Server.IP"),
-                    config.getPortByKey("Server.listeningPort"),
-                    NodePriority.CRITICAL
-                )
+            NodeConnectionDto serverConnection = new NodeConnectionDto(
+                "1",
+                config.getIPByKey("Server.IP"),
+                config.getPortByKey("Server.listeningPort"),
+                NodePriority.CRITICAL
             );
 
+            // Keep alives and messages to the server all go over one long lived socket
+            serverConnection.setPersistentConnection(true);
+
+            // Add connection to connection manager
+            serverConnectionManager.addConnection(serverConnection);
+
             // Create and store payload for INITALIZATION packet
             LinkedHashMap<String, String> payload = new LinkedHashMap<>();
             payload.put(
@@ -114,23 +161,77 @@ public class EdgeNode {
             }
 
         } catch(Exception e){
-            logger.error("Error Sending Initalization Packet: " + e);
+            logger.error("Error Sending Initalization Packet", e);
         }
 
         /*
          *          Listeners
          */
 
+        // These are process wide, the simulator sets them up once for every instance it runs
+        if(InstanceContext.current().isProcess()) {
+            // Small packets to the same destination wait up to the window (or until the batch is full) and go out as one frame,
+            // keep alives and the rest of the control lane wait up to the control window (0 - not at all)
+            OutboundBatcher.configure(
+                config.getIntByKey("Node.batchWindowMillis", OutboundBatcher.DEFAULT_WINDOW_MILLIS),
+                config.getIntByKey("Node.batchControlWindowMillis", OutboundBatcher.DEFAULT_CONTROL_WINDOW_MILLIS),
+                config.getIntByKey("Node.batchMaxPackets", OutboundBatcher.DEFAULT_MAX_PACKETS),
+                config.getIntByKey("Node.batchMaxBytes", OutboundBatcher.DEFAULT_MAX_BYTES)
+            );
+
+            // Packets from the same connection are processed in order, different connections in parallel on this many threads (0 - two per core)
+            OrderedExecutor.configure(config.getIntByKey("Node.orderedThreads", 0));
+
+            // tcp, uds - a unix domain socket for peers on this host, auto - the same, but only if the peer is listening on one
+            TransportSelector.configure(
+                TransportMode.fromString(config.getPropertyByKey("Node.transport", "tcp")),
+                config.getPropertyByKey("Node.socketDir", TransportSelector.DEFAULT_SOCKET_DIR)
+            );
+
+            // 1 packet in every this many carries a hop trace (see HopTrace), 0 - off
+            HopTrace.configure(config.getIntByKey("Node.traceSampleRate", HopTrace.DEFAULT_SAMPLE_RATE));
+
+            // json, binary - the codec packets from the shared senders are written with, to peers that read it (see PacketCodecs)
+            PacketCodecs.configure(config.getPropertyByKey("Node.packetCodec", PacketCodecs.DEFAULT_CODEC));
+
+            // The per packet log lines are sampled by packet type, and the last packets are kept for GET /packets
+            PacketLog.configure(
+                config.getIntByKey("Node.packetLogSize", PacketLog.DEFAULT_CAPACITY),
+                config.getIntByKey("Node.logSampleRate", PacketLog.DEFAULT_SAMPLE_RATE),
+                logSampleRates()
+            );
+        }
+
         try {
             serverListener = new NodeListener(
                 config.getPortByKey("Node.listeningPort"), 
-                2000
+                2000,
+                ListenerMode.fromString(config.getPropertyByKey("Node.listenerMode", "blocking")),
+                config.getIntByKey("Node.ioThreads", 1),
+                // Past maxConcurrentHandlers running and maxQueuedConnections waiting, connections are turned away with a retry after hint.
+                // Keep alives and handshakes get reservedControlHandlers more on top, so MESSAGE floods can not starve them
+                // Handler threads parked on idle persistent connections count against maxHandlerThreads too, the longest idle is closed to make room
+                new AdmissionControl(
+                    "Node",
+                    HandlerExecutor.create(
+                        HandlerExecutorMode.fromString(config.getPropertyByKey("Node.handlerMode", "thread")),
+                        config.getIntByKey("Node.handlerPoolSize", 8),
+                        "Node-Handler"
+                    ),
+                    config.getIntByKey("Node.maxConcurrentHandlers", AdmissionControl.DEFAULT_MAX_CONCURRENT),
+                    config.getIntByKey("Node.reservedControlHandlers", AdmissionControl.DEFAULT_RESERVED_CONTROL),
+                    config.getIntByKey("Node.maxHandlerThreads", AdmissionControl.DEFAULT_MAX_THREADS),
+                    config.getIntByKey("Node.maxQueuedConnections", AdmissionControl.DEFAULT_MAX_QUEUED),
+                    config.getIntByKey("Node.overloadRetryAfterMillis", AdmissionControl.DEFAULT_RETRY_AFTER_MILLIS),
+                    config.getIntByKey("Node.maxQueueWaitMillis", AdmissionControl.DEFAULT_MAX_QUEUE_WAIT_MILLIS),
+                    NodeListener::overloadResponse
+                )
             );
         } catch (Exception e) {
             logger.error(
-                "Error creating Listening Socket on port " 
-                + config.getPortByKey("Node.listeningPort")
-                + e
+                "Error creating Listening Socket on port {}",
+                config.getPortByKey("Node.listeningPort"),
+                e
             );
             // TODO: try to grab new port if this one is unavailable
         }
@@ -140,33 +241,46 @@ public class EdgeNode {
         try {
             initializeTimers();
         } catch (Exception e) {
-            logger.error("Error creating Timers: \n" + e);
+            logger.error("Error creating Timers", e);
+        }
+
+        // There is one metrics endpoint for the process, the simulator runs without one
+        if(InstanceContext.current().isProcess()) {
+            startMetrics();
         }
     }
     /*
      *      ID assignment 
      */
-    // Thread-safe setter for ID assignment
-    public static synchronized void setNodeID(String id) {
-        nodeId = id;
-        logger.info("Node ID assigned: " + id);
+    // Thread-safe setter for ID assignment, for the node the calling thread runs for
+    public static void setNodeID(String id) {
+        current().nodeId = id;
+        logger.info("Node ID assigned: {}", id);
     }
 
-    public static synchronized String getNodeID() {
-        return nodeId;
+    public static String getNodeID() {
+        EdgeNode node = current();
+        return (node != null) ? node.nodeId : null;
     }
 
-    public static synchronized void setClusterId(String newClusterId) {
-        clusterId = newClusterId;
-        logger.info("Cluster ID assigned: " + newClusterId);
+    public static void setClusterId(String newClusterId) {
+        current().clusterId = newClusterId;
+        logger.info("Cluster ID assigned: {}", newClusterId);
     }
 
-    public static synchronized String getClusterId() {
-        return clusterId;
+    public static String getClusterId() {
+        EdgeNode node = current();
+        return (node != null) ? node.clusterId : null;
+    }
+
+    // Starts listening for the server
+    public void start() {
+        Thread serverThread = new Thread(serverListener, "Node-listener");
+        serverThread.start();
     }
 
     // Peer list request 
-    public static synchronized void peerListReq() {
+    public synchronized void peerListReq() {
                 // Try and and get a peer list from the connected server
         try {
             boolean peerListReqSent;
@@ -183,41 +297,126 @@ public class EdgeNode {
 
             }
         } catch(Exception e) {
-            logger.error("Could not get Peer List: " + e);
+            logger.error("Could not get Peer List", e);
         }
     }
 
+    // Sends a packet to the server and waits for its ACK. A MESSAGE may share a frame with the others going to the server (see OutboundBatcher),
+    // if it does not get its ACK that way it is sent again on its own, with the usual retries
+    public boolean send(NodePacket packet) {
+        NodeConnectionDtoManager server = new NodeConnectionDtoManager(serverConnectionManager.getConnectionInfoById("1"));
+        if(packet.getPacketType() == NodePacketType.MESSAGE && sendBatched(server, packet).join()) {
+            return true;
+        }
+        return server.send(packet);
+    }
+
+    // Completes with whether the server answered with an ACK, never exceptionally
+    private static CompletableFuture<Boolean> sendBatched(NodeConnectionDtoManager server, NodePacket packet) {
+        return server.sendBatched(packet)
+            .thenApply(response -> response.getPacketType() == NodePacketType.ACK)
+            .exceptionally(e -> {
+                logger.warn("Batched {} to the server failed: {}", packet.getPacketType(), e.toString());
+                return false;
+            });
+    }
+
     /*
      *      Timer creation
      */
-    private static void initializeTimers() {
-        // Creates the timer for 
-        timerScheduler = Executors.newScheduledThreadPool(2, r -> {
-            Thread t = new Thread(r, "EdgeNode-Timer");
-            //t.setDaemon(true);
-            return t;
-        });
+    private void initializeTimers() {
+        // Everything periodic runs off the process wide timer wheel, none of these tasks block
+        timerScheduler = SharedTimer.get();
         // Schedules the sending for the keepAlive packet every 30 seconds
         timerScheduler.scheduleAtFixedRate(() -> {
             try {
-                boolean keepAliveSent;
-
-                keepAliveSent = serverConnectionManager.sendKeepAlive(
+                // Sent without blocking so a slow peer never holds up the timer thread
+                serverConnectionManager.sendKeepAliveAsync(
                     NodeKeepAliveService.createKeepAlivePacket(
                         getNodeID(),
                         IP
                     )
-                );
-
-                if(!keepAliveSent){
-                    logger.error("Keep alive was not sent!");
-                    //TODO: something to stop the keep alive sender
-                }
+                ).thenAccept(keepAliveSent -> {
+                    if(!keepAliveSent){
+                        logger.error("Keep alive was not sent!");
+                        //TODO: something to stop the keep alive sender
+                    }
+                });
 
             } catch(Exception e) {
                 logger.error("Exception in keep-alive timer: ", e);
             }
         }, 5, 30, TimeUnit.SECONDS);
+
+        // Logs the outbound batch size and latency histograms every minute, to tune the batch window against
+        timerScheduler.scheduleAtFixedRate(() -> {
+            try{
+                OutboundBatcher.logStats();
+            } catch (Exception e){
+                logger.error("Exception in batch stats timer: ", e);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        // Logs how deep the listener queue is and how many connections were turned away
+        timerScheduler.scheduleAtFixedRate(() -> {
+            try{
+                if(serverListener != null) {
+                    serverListener.getAdmissionControl().logStats();
+                }
+            } catch (Exception e){
+                logger.error("Exception in admission stats timer: ", e);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        // Logs how far behind the timer thread is running, it should stay within a tick or two. There is one timer for the whole process
+        if(InstanceContext.current().isProcess()) {
+            timerScheduler.scheduleAtFixedRate(() -> {
+                try{
+                    SharedTimer.logStats();
+                } catch (Exception e){
+                    logger.error("Exception in timer stats timer: ", e);
+                }
+            }, 60, 60, TimeUnit.SECONDS);
+        }
+    }
+
+
+    // Node.logSampleRate.<PACKET_TYPE> overrides the default sample rate for that packet type
+    private Map<String, Integer> logSampleRates() {
+        Map<String, Integer> rates = new HashMap<>();
+        for (NodePacketType type : NodePacketType.values()) {
+            int rate = config.getIntByKey("Node.logSampleRate." + type.name(), -1);
+            if(rate >= 0) {
+                rates.put(type.name(), rate);
+            }
+        }
+        return rates;
+    }
+
+    /*
+     *      Metrics
+     */
+
+    // Serves the packet, latency, queue and connection metrics in Prometheus text format on Node.metricsPort, 0 leaves it off
+    private void startMetrics() {
+        MetricsRegistry registry = MetricsRegistry.shared();
+        ProcessMetrics.register(registry);
+        if(serverConnectionManager != null) {
+            registry.gauge("edge_active_connections", "Open connections, by who they are to", "peer", "server", serverConnectionManager::getActiveConnectionCount);
+        }
+        if(serverListener != null) {
+            serverListener.getAdmissionControl().registerMetrics(registry);
+        }
+
+        int metricsPort = config.getIntByKey("Node.metricsPort", 0);
+        if(metricsPort <= 0) {
+            return;
+        }
+        try {
+            metricsEndpoint = MetricsEndpoint.start(metricsPort);
+        } catch (IOException e) {
+            logger.error("Could not start the metrics endpoint on port {}", metricsPort, e);
+        }
     }
 
     /*
@@ -230,6 +429,7 @@ public class EdgeNode {
 
         String instanceId = args.length > 0 ? args[0] : null; // When starting the server arguments depicting an instance number (i.e. server1, server2)
 
+        NodeConfig config;
         if(instanceId != null) {
             config = new NodeConfig(instanceId);
             logger.info("Starting Edge Node Instance with ID: {}", instanceId);
@@ -238,13 +438,13 @@ public class EdgeNode {
             logger.info("Starting default Node config");
         }
 
-        init();         // Begins the initalization process 
+        EdgeNode node = new EdgeNode(config);
+        node.init();         // Begins the initalization process 
 
-        Thread serverThread = new Thread(serverListener);
-        serverThread.start();
+        node.start();
 
         // Request the peer list   
-        peerListReq();
+        node.peerListReq();
 
         Scanner in = new Scanner(System.in);
 
@@ -262,7 +462,7 @@ public class EdgeNode {
                     message
                 );
 
-                new NodeConnectionDtoManager(serverConnectionManager.getConnectionInfoById("1")).send(messagePacket);
+                node.send(messagePacket);
             }
         }       
         in.close();
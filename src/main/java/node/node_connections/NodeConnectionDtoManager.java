@@ -10,20 +10,20 @@
 
  package node.node_connections;
 
-import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import sender.persistent_connection.PersistentConnectionPool;
+
 import node.node_sender.NodePacketSender;
 
 import node.node_packet.*;
 
 public class NodeConnectionDtoManager {
     private NodeConnectionDto connectionInfo;
-    // Gives each node connection it's own sender that will be created whenever 
-    private NodePacketSender sender;
-    private Boolean hasSender = false;
 
     private static final Logger logger = LogManager.getLogger(NodeConnectionDtoManager.class);
 
@@ -36,34 +36,62 @@ public class NodeConnectionDtoManager {
      */
     
     public boolean isExpired() {
-        return connectionInfo.getLastActivity().plusSeconds(connectionInfo.getKeepAliveTimeout())
-            .isBefore(LocalDateTime.now());
+        return connectionInfo.getStats().nanosSinceLastActivity() > TimeUnit.SECONDS.toNanos(connectionInfo.getKeepAliveTimeout());
     }
 
     public void createSender() {
 
         if(connectionInfo.getPort() == 0) {
-            logger.error("Port is not set for Server " + connectionInfo.getId() +"!");
+            logger.error("Port is not set for Server {}!", connectionInfo.getId());
             return;
         }
         // Create sender for this node
         try {
-            this.sender = new NodePacketSender(connectionInfo.getIp(), connectionInfo.getPort());
-            hasSender = true;
-            logger.info("Sender Created for Server: " + connectionInfo.getId() + " - " + connectionInfo.getIp() +":" + connectionInfo.getPort());
+            NodePacketSender sender = new NodePacketSender(connectionInfo.getIp(), connectionInfo.getPort());
+            sender.setPersistent(connectionInfo.isPersistentConnection());
+            sender.setFrameVersion(connectionInfo.getFrameVersion());
+            sender.setStats(connectionInfo.getStats());     // What the sender sends and gets back is counted against this connection
+            sender.setPeerId(connectionInfo.getId());
+            connectionInfo.setSender(sender);
+            logger.info("Sender Created for Server: {} - {}:{}", connectionInfo.getId(), connectionInfo.getIp(), connectionInfo.getPort());
         } catch (Exception e) {
-            logger.error("Failed to create sender for Server " + connectionInfo.getId() + ":" + connectionInfo.getPort() + "\n" + e);
+            logger.error("Failed to create sender for Server {}:{}", connectionInfo.getId(), connectionInfo.getPort(), e);
         }
     }
 
-    public boolean send(NodePacket packet) {
-        if (sender == null || !hasSender) {
-            // if no sender, create one
-            createSender();
+    // The connection's sender, made on first use and then reused by every manager for this connection
+    private NodePacketSender sender() {
+        synchronized (connectionInfo) {
+            if (connectionInfo.getSender() == null) {
+                createSender();
+            }
+            // Picked up on every send since the priority can change after the sender is made, it decides the sender's lanes
+            if (connectionInfo.getSender() != null) {
+                connectionInfo.getSender().setPriority(connectionInfo.getPriority());
+            }
+            return connectionInfo.getSender();
+        }
+    }
+
+    // Called when the connection is terminated, the next send (if any) would start a fresh sender
+    public void closeSender() {
+        NodePacketSender closing;
+        synchronized (connectionInfo) {
+            closing = connectionInfo.getSender();
+            connectionInfo.setSender(null);
+        }
+        if (closing != null) {
+            closing.close();
         }
+    }
+
+    public boolean send(NodePacket packet) {
+        NodePacketSender sender = sender();
         boolean sent = sender.send(packet);
+        connectionInfo.setFrameVersion(sender.getFrameVersion());    // Keeps what was negotiated for the next sender
         if(!sent) {
-            boolean retry = sender.retry(packet);
+            boolean retry = sender.retry(packet).join();     // send() is for callers that have to wait, see sendWithRetry()
+            connectionInfo.setFrameVersion(sender.getFrameVersion());
             if(!retry){
                 logger.error("Sender was not created for Connection: {}! Cannot send packet", connectionInfo.getId());
                 return false;
@@ -75,10 +103,53 @@ public class NodeConnectionDtoManager {
         }
     }
 
+    // Same as send(), retries and all, but nothing blocks the calling thread
+    public CompletableFuture<Boolean> sendWithRetry(NodePacket packet) {
+        NodePacketSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendWithRetry(packet).whenComplete((sent, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
+    /* Sends without waiting for the response, which the future completes with (ACK, ERROR, ...).
+     * Unlike send() there is no blocking retry, a failed or timed out packet completes the future exceptionally.
+     */
+    public CompletableFuture<NodePacket> sendAsync(NodePacket packet) {
+        return sendAsync(packet, PersistentConnectionPool.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    // Fails the future with a TimeoutException if no response comes back within the timeout
+    public CompletableFuture<NodePacket> sendAsync(NodePacket packet, long timeoutMillis) {
+        NodePacketSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendAsync(packet, timeoutMillis).whenComplete((response, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
+    // Same as sendAsync(), but small packets to this connection may be coalesced into one frame
+    public CompletableFuture<NodePacket> sendBatched(NodePacket packet) {
+        NodePacketSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendBatched(packet).whenComplete((response, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
     /*
      *      Getters
      */
-    public boolean getSenderStatus() { return hasSender; }
+    public boolean getSenderStatus() { return connectionInfo.getSender() != null; }
 
     public NodeConnectionDto getConnectionDto() { return connectionInfo; }
 
@@ -9,13 +9,23 @@
  */
 package node.node_connections.node_connection_manager;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import connection.ConnectionRegistry;
+import connection.ConnectionStats;
+import connection.ExpiryWheel;
+import connection.ProbeLimiter;
+import connection.flight_recorder.ConnectionAddedEvent;
+import connection.flight_recorder.ConnectionTerminatedEvent;
+
 import node.edge_node.EdgeNode;
 
 import node.node_connections.NodeConnectionDto;
@@ -34,54 +44,116 @@ public abstract class NodeConnectionManager {
 
     public abstract boolean sendKeepAlive(NodePacket packet);
 
-    protected final Map<String, NodeConnectionDto> activeConnections = new ConcurrentHashMap<>();
+    // Thread safe, with indexes by ip:port, cluster and priority - see connection.ConnectionRegistry
+    protected final ConnectionRegistry<NodeConnectionDto> activeConnections = new ConnectionRegistry<>(
+        NodeConnectionDto::getId, NodeConnectionDto::getIp, NodeConnectionDto::getPort, NodeConnectionDto::getClusterId, NodeConnectionDto::getPriority
+    );
+
+    // When each connection expires, pushed back on every keep alive so expiry checks only see what is due
+    protected final ExpiryWheel<String> expiryWheel = new ExpiryWheel<>();
+
+    // Expired CRITICAL connections are probed in parallel, capped so a mass expiry can not flood the network
+    protected final ProbeLimiter probes = new ProbeLimiter();
+
+    // How long a probed connection has to answer before it is terminated
+    public static final long PROBE_TIMEOUT_MILLIS = 2000;
 
     // Each class can have its own logger instance
     private static final Logger logger = LogManager.getLogger(NodeConnectionManager.class);
 
+    // Run once a tick. Only connections whose keep alive timeout has passed come out of the wheel, and nothing here waits on I/O
     public void checkExpiredConnections() {
 
-        // Create an iterator for the ConccurentHashMap since it needs an iterator
-        Iterator<Map.Entry<String , NodeConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()) {
-            // Check if each entry is expired, if it is, check the priority to see if it needs to be removed or kept alive
-            Map.Entry<String, NodeConnectionDto> entry = iterator.next();
-            if(new NodeConnectionDtoManager(entry.getValue()).isExpired()){
-                
-                if(entry.getValue().getPriority() == NodePriority.CRITICAL){
-
-                    NodePacket keepAliveProbe =  
-                        NodeKeepAliveService.createKeepAlivePacket(
-                            EdgeNode.getNodeID(),
-                            entry.getValue().getId()
-                        );
-
-                    boolean sendSuccess = new NodeConnectionDtoManager(entry.getValue()).send( keepAliveProbe );
-                    if(!sendSuccess) {
-                        logger.warn("Connection with Server: {} has been terminated due to failed retry!", entry.getValue().getId());
-                        terminateConnection(entry.getValue().getId());
-                    }
-                }
-                else {
-                    logger.warn("Connection with Server: {} has been terminated due to priority status!", entry.getValue().getId()); 
-                    terminateConnection(entry.getValue().getId());
-                }
+        for (String id : expiryWheel.advance()) {
+            NodeConnectionDto connection = activeConnections.get(id);
+
+            // Already gone, or a keep alive came in and rescheduled it since it was taken out of the wheel
+            if (connection == null || expiryWheel.contains(id)) {
+                continue;
+            }
+
+            // Check the priority to see if it needs to be removed or kept alive
+            if(connection.getPriority() == NodePriority.CRITICAL){
+
+                NodePacket keepAliveProbe =  
+                    NodeKeepAliveService.createKeepAlivePacket(
+                        EdgeNode.getNodeID(),
+                        connection.getId()
+                    );
+
+                // Probes go out in parallel (up to the limit) and never hold up the sweep, a probe that fails or times out terminates the connection
+                probes.submit(() -> new NodeConnectionDtoManager(connection).sendAsync(keepAliveProbe, PROBE_TIMEOUT_MILLIS))
+                    .whenComplete((response, e) -> {
+                        // Rescheduled by a keep alive while the probe was out, or already terminated
+                        if (expiryWheel.contains(id) || !activeConnections.containsKey(id)) {
+                            return;
+                        }
+                        if (e != null) {
+                            logger.warn("Connection with Server: {} has been terminated due to a failed keep alive probe!", connection.getId());
+                            terminateConnection(connection.getId());
+                        } else {
+                            // It answered the probe, so it gets another full timeout
+                            scheduleExpiry(connection);
+                        }
+                    });
+            }
+            else {
+                logger.warn("Connection with Server: {} has been terminated due to priority status!", connection.getId()); 
+                terminateConnection(connection.getId());
             }
         }
     }
 
+    /*
+     *      Asynchronous sending
+     */
+
+    /* Sends the packet to every connection at once without blocking the calling thread, batched with
+     * anything else going to the same connection.
+     * Completes with true once every connection has answered with an ACK, false if any did not (or there are none).
+     */
+    public CompletableFuture<Boolean> sendToAllAsync(NodePacket packet) {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+
+        for (NodeConnectionDto connection : activeConnections.snapshot()) {
+            acks.add(
+                new NodeConnectionDtoManager(connection).sendBatched(packet)
+                    .thenApply(response -> response.getPacketType() == NodePacketType.ACK)
+                    .exceptionally(e -> {
+                        logger.error("Failed sending {} to {}", packet.getPacketType(), connection.getId(), e);
+                        return false;
+                    })
+            );
+        }
+
+        if (acks.isEmpty()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.allOf(acks.toArray(CompletableFuture<?>[]::new))
+            .thenApply(done -> acks.stream().allMatch(CompletableFuture::join));
+    }
+
+    public CompletableFuture<Boolean> sendKeepAliveAsync(NodePacket packet) { return sendToAllAsync(packet); }
+
     /*
      *      Response to expiry
      */
 
     public void terminateConnection(String id) {
-        NodeConnectionDto remove = activeConnections.get(id);
-        logger.info("Terminated Connection: \n  ID:" + remove.getId() 
-            + "\n  IP - " + remove.getIp() + ":" + remove.getPort()
+        // Removed first so two threads terminating the same connection only do it once
+        NodeConnectionDto remove = activeConnections.remove(id);
+        if (remove == null) {
+            return;
+        }
+        expiryWheel.cancel(remove.getId());
+        new NodeConnectionDtoManager(remove).closeSender();
+        logger.info(
+            "Terminated Connection: \n  ID:{}\n  IP - {}:{}",
+            remove.getId(),
+            remove.getIp(),
+            remove.getPort()
         );
-        activeConnections.remove(remove.getId());
+        new ConnectionTerminatedEvent().commit("Node", remove.getId(), remove.getIp(), remove.getPort(), remove.getPriority(), remove.getStats());
     }
 
     /*
@@ -91,10 +163,27 @@ public abstract class NodeConnectionManager {
     // Can allow for multiple connections to be added at once(if needed)
     public void addConnection(NodeConnectionDto... connection) {
         for(NodeConnectionDto connected : connection) {
-            activeConnections.put(connected.getId(), connected);
+            activeConnections.put(connected);
+            scheduleExpiry(connected);
+            new ConnectionAddedEvent().commit("Node", connected.getId(), connected.getIp(), connected.getPort(), connected.getPriority());
         }
     }
 
+    // A packet from this connection shows it is alive, so its expiry is pushed back a full keep alive timeout
+    public boolean updateLastActivity(String id) {
+        NodeConnectionDto connection = activeConnections.get(id);
+        if (connection == null) {
+            return false;
+        }
+        connection.updateLastActivity();
+        scheduleExpiry(connection);
+        return true;
+    }
+
+    private void scheduleExpiry(NodeConnectionDto connection) {
+        expiryWheel.schedule(connection.getId(), TimeUnit.SECONDS.toMillis(connection.getKeepAliveTimeout()));
+    }
+
     // When recieving a 
     public void updateById(String id, Object updator) {
         NodeConnectionDto updatee = activeConnections.get(id);
@@ -111,25 +200,21 @@ public abstract class NodeConnectionManager {
         return activeConnections.get(id);
     }
 
-    public Map<String, NodeConnectionDto> getActiveConnections() {
-        return activeConnections;
-    }
+    // A consistent copy, safe to iterate while connections come and go
+    public Map<String, NodeConnectionDto> getActiveConnections() { return activeConnections.snapshotMap(); }
+
+    public ConnectionRegistry<NodeConnectionDto> getRegistry() { return activeConnections; }
 
     public String[] getAllIds() {
-        return activeConnections.keySet().toArray(new String[0]);
+        return activeConnections.ids().toArray(new String[0]);
     }
 
-    public int getActiveConnectionCount() {
-
-        int connectionCount = 0;
-
-        Iterator<Map.Entry<String , NodeConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()){
-            connectionCount++;
-        }
+    public int getActiveConnectionCount() { return activeConnections.size(); }
 
-        return connectionCount;
+    // Every connection's traffic counters right now, by ID (see connection.ConnectionStats)
+    public Map<String, ConnectionStats.Snapshot> getStatsSnapshots() {
+        Map<String, ConnectionStats.Snapshot> snapshots = new LinkedHashMap<>();
+        activeConnections.forEach((id, connection) -> snapshots.put(id, connection.getStats().snapshot()));
+        return snapshots;
     }
 }
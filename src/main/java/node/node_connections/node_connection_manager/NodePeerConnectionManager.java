@@ -10,33 +10,24 @@
  */
 package node.node_connections.node_connection_manager;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import lib.InstanceContext;
+
 import node.node_connections.*;
 import node.node_packet.*;
 
 public class NodePeerConnectionManager extends NodeConnectionManager {
 
-    protected final Map<String, NodeConnectionDto> activeConnections = new ConcurrentHashMap<>();
-
     private static final Logger logger = LogManager.getLogger(NodePeerConnectionManager.class);
 
-        // Step 1: (For my sanity) create an instance variable
-    private static NodePeerConnectionManager instance;
-
-    // Step 2: No-Args private constructor to prevent external instantiation
+    // Step 1: No-Args private constructor to prevent external instantiation
     private NodePeerConnectionManager() { }
 
-    // Step 3: Get instance (if one is not there it is created then returned)
-    public static synchronized NodePeerConnectionManager getInstance() {
-        if (instance == null) {
-            instance = new NodePeerConnectionManager();
-        }
-        return instance;
+    // Step 2: Get instance (if one is not there it is created then returned). One per running instance, see lib.InstanceContext
+    public static NodePeerConnectionManager getInstance() {
+        return InstanceContext.current().component(NodePeerConnectionManager.class, NodePeerConnectionManager::new);
     }
 
     /*
@@ -5,15 +5,14 @@
  */
 package node.node_connections.node_connection_manager;
 
-import java.util.Iterator;
-import java.util.Map;
-
 import node.node_connections.NodeConnectionDto;
 import node.node_connections.NodeConnectionDtoManager;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import lib.InstanceContext;
+
 import node.node_packet.*;
 
 public class NodeServerConnectionManager extends NodeConnectionManager {
@@ -21,15 +20,9 @@ public class NodeServerConnectionManager extends NodeConnectionManager {
         // Each class can have its own logger instance
     private static final Logger logger = LogManager.getLogger(NodeServerConnectionManager.class);
         
-    // Step 1: (For my sanity) create an instance variable
-    private static NodeServerConnectionManager instance;
-
-    // Step 2: Get instance (if one is not there it is created then returned)
-    public static synchronized NodeServerConnectionManager getInstance() {
-        if (instance == null) {
-            instance = new NodeServerConnectionManager();
-        }
-        return instance;
+    // Step 1: Get instance (if one is not there it is created then returned). One per running instance, see lib.InstanceContext
+    public static NodeServerConnectionManager getInstance() {
+        return InstanceContext.current().component(NodeServerConnectionManager.class, NodeServerConnectionManager::new);
     }
 
     @Override
@@ -37,12 +30,8 @@ public class NodeServerConnectionManager extends NodeConnectionManager {
 
         boolean sent = false;
         logger.info(keepAliveProbe.toJson());
-        Iterator<Map.Entry<String , NodeConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()){
-            Map.Entry<String, NodeConnectionDto> entry = iterator.next();
-            sent = new NodeConnectionDtoManager(entry.getValue()).send(keepAliveProbe);
+        for (NodeConnectionDto connection : activeConnections.snapshot()) {
+            sent = new NodeConnectionDtoManager(connection).send(keepAliveProbe);
         }
         return sent;
     }
@@ -51,13 +40,8 @@ public class NodeServerConnectionManager extends NodeConnectionManager {
 
         boolean sent = false;
         logger.info(peerListReq.toJson());
-        Iterator<Map.Entry<String , NodeConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-
-        while(iterator.hasNext()){
-            Map.Entry<String, NodeConnectionDto> entry = iterator.next();
-            sent = new NodeConnectionDtoManager(entry.getValue()).send(peerListReq);
+        for (NodeConnectionDto connection : activeConnections.snapshot()) {
+            sent = new NodeConnectionDtoManager(connection).send(peerListReq);
         }
 
         return sent;
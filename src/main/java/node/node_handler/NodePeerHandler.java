@@ -20,35 +20,47 @@
 
 package node.node_handler;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 import java.util.Map;
 import java.util.HashMap;
 import java.util.function.Function;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import listener.PacketProcessor;
+import listener.admission_control.AdmissionControl;
+
+import packet.codec.PacketCodecs;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+
+import sender.persistent_connection.PersistentConnectionPool;
+
 import node.edge_node.EdgeNode;
 
 import node.node_handler.node_packet_type_handler.*;
 
-import node.node_lib.RuntimeTypeAdapterFactory;
+import lib.PacketLog;
+import lib.OrderedExecutor;
+import lib.PacketHeader;
+
+import connection.flight_recorder.PacketDecodeEvent;
+import connection.flight_recorder.PacketHandleEvent;
+import connection.metrics.PacketMetrics;
 
 import node.node_packet.*;
 import node.node_packet.node_packet_class.*;
 
-public class NodePeerHandler implements Runnable {
+public class NodePeerHandler implements Runnable, PacketProcessor {
 
     private static final Logger logger = LogManager.getLogger(NodePeerHandler.class);
 
@@ -57,7 +69,14 @@ public class NodePeerHandler implements Runnable {
 
     private NodePacket serverPacket;
 
-    private BufferedReader reader;
+    private FrameReader reader;
+    private OutputStream output;
+
+    // The response to the packet being processed when running under the NIO listener
+    private Frame pendingResponse;
+
+    // The format of the packet being handled, the response is sent back in the same one
+    private byte requestVersion = FrameCodec.VERSION_LEGACY;
 
     // This will will be instantiated based on the PacketType that needs to handle this. I.e initalizationHandler
     NodePacketHandler packetHandler;    
@@ -72,6 +91,13 @@ public class NodePeerHandler implements Runnable {
 
     public NodePeerHandler(Socket socket) {
         this.serverSocket = socket;
+        this.serverIP = socket.getInetAddress().getHostAddress();
+        initActionMap();
+    }
+
+    // Used by the NIO listener, which reads the packets itself and only hands over the remote IP
+    public NodePeerHandler(String remoteIp) {
+        this.serverIP = remoteIp;
         initActionMap();
     }
 
@@ -105,6 +131,11 @@ public class NodePeerHandler implements Runnable {
      * 
      */
 
+    // Connection id once the sender has one, before that (INITIALIZATION) the address it came from
+    private String orderKey(NodePacket packet) {
+        return (packet.getId() != null) ? packet.getId() : serverIP;
+    }
+
     private void readAction(NodePacketType packetAction, NodePacket serverPacket) {
         // Dictionary lookup
         actionMap.get(packetAction).apply(serverPacket);
@@ -127,17 +158,9 @@ public class NodePeerHandler implements Runnable {
      * 
      */
 
-    private NodePacket buildGsonWithPacketSubtype(NodePacketType type, String json) {
-        RuntimeTypeAdapterFactory<NodePacket> packetAdapterFactory =
-        RuntimeTypeAdapterFactory
-            .of(NodePacket.class, "packetType")
-            .registerSubtype(NodeGenericPacket.class, type.name());
-
-        Gson tempGson = new GsonBuilder()
-            .registerTypeAdapterFactory(packetAdapterFactory)
-            .create();
-
-        return tempGson.fromJson(json, NodePacket.class);
+    // Builds the whole packet, payload included, once its header has been accepted
+    private NodePacket rebuildPacket(PacketHeader header) {
+        return header.toPacket(NodePacket.class);
     }
 
     /*          End Packet Reconstruction
@@ -181,48 +204,54 @@ public class NodePeerHandler implements Runnable {
     // Takes an already initalized response packet and returns to sender
     private void respond() {
 
-        // Puts the contents of the packet to JSON with a non-JSON compatable delimiter at the end to be handled prior to pakcet content hanlding
-        String json = responsePacket.toDelimitedString();
+        // Puts the packet into the same format the request came in - a frame, or JSON with the non-JSON compatable delimiter at the end.
+        // It is handed back to whoever read the packet - the socket loop in run(), or the NIO event loop
+        pendingResponse = (requestVersion == FrameCodec.VERSION_LEGACY)
+            ? Frame.legacy(responsePacket.toDelimitedString())
+            : Frame.of(requestVersion, responsePacket.getPacketType(), responsePacket.toJson());
+    }
 
-        try{
-            // The responder object
-            PrintWriter output = new PrintWriter(
-                serverSocket.getOutputStream(), 
-                true
+    // Handles one packet and returns its response, for both the socket loop and the NIO listener
+    @Override
+    public Frame process(Frame request) {
+        pendingResponse = null;
+        handleFrame(request);
+
+        // Every packet gets an answer, a pipelined sender matches the responses on a socket to its requests in order
+        if (pendingResponse == null) {
+            failure(new NodeHandlerResponse(
+                false,
+                new Exception("Packet was dropped without a response."),
+                "Unhandled Packet")
             );
-            // Send the jsonified packet as a response
-            output.println(json);
-            output.close();
-        } catch (IOException e) {
-            logger.error("Error sending response packet of type: " + responsePacket.getPacketType() + "\n"+ e);
         }
+        return pendingResponse;
     }
-    /*
-     *                      Main run loop
-     */
 
-    @Override
-    public void run() {
-        
-        logger.info(
-            "Server connected: \n\t"
-            + serverSocket.getInetAddress().toString()
-            + ":" 
-            + serverSocket.getPort()
-        );
+    // Handles a single packet, the response (if any) is left in pendingResponse
+    private void handleFrame(Frame frame) {
 
-        // Handle client events
+        // The handler is chosen per packet, never carry one over from the previous packet on this socket
+        packetHandler = null;
+
+        // Answer in the format the packet came in
+        requestVersion = frame.getVersion();
+
+        // A binary body (sent by a shared sender, see PacketCodecs) is read as the json of the same packet
+        String payload;
         try {
-            // This is what decodes the incoming packet
-            reader = new BufferedReader(
-                new InputStreamReader(
-                    serverSocket.getInputStream()
-                )
+            payload = PacketCodecs.json(frame);
+        } catch (IOException e) {
+            failure(new NodeHandlerResponse(
+                false,
+                e,
+                "Malformed Packet")
             );
+            return; // Early exit
+        }
 
-            // Stores the payload as a string to check (and potentially remove) the delimiter
-            String payload = reader.readLine();
-
+        // A frame carries its length up front, only legacy lines end in the delimiter
+        if(frame.isLegacy()) {
             // Checks if the payload is properly terminated. If not, the packet is incomplete or an unsafe packet was sent
             if(payload.endsWith("||END||")){
                 payload = payload.substring(0, payload.length() - "||END||".length());
@@ -235,43 +264,101 @@ public class NodePeerHandler implements Runnable {
                 );
                 return; // Early exit
             }
+        }
+
+        // Reads the packet as json
+        String json = payload;
+
+        // Checks if empty packet
+        if (json != null) {
+
+            long decodeStart = System.nanoTime();
+            PacketDecodeEvent decodeEvent = new PacketDecodeEvent();
+            decodeEvent.begin();
+
+            // Reads only the header fields, the payload is skipped over until the packet is known to be handled
+            PacketHeader header = PacketHeader.read(json);
 
-            // Reads the packet as json
-            String json = payload;
+            String packetTypeStr = header.getPacketType();
 
-            // Checks if empty packet
-            if (json != null) {
+            // Covert the string to the ENUM packetType, null if it is not one
+            NodePacketType packetType = header.packetType(NodePacketType.class);
 
-                // Grabs the server IP in order to be saved in config file
-                serverIP = serverSocket.getInetAddress().toString();
-                serverIP = serverIP.substring(1); // Removes the forward slash
+            // Packets this handler has no action for are dropped without decoding their payload
+            if (packetType == null || !actionMap.containsKey(packetType)) {
+                logger.error("Recieved unknown packet of type: {}", packetTypeStr);
+                return; // Early exit
+            }
+
+            try {
+                // Reconstruct the recieved packet into a 'NodePacket' type 
+                serverPacket = rebuildPacket(header);
+                PacketMetrics.DECODE.recordSince(packetType, decodeStart);
+                decodeEvent.commit(packetType, serverPacket.getId(), frame.getBody().length);
+                PacketMetrics.received(packetType, frame.getBody().length);
+                PacketLog.shared().record(PacketLog.Direction.IN, serverIP, packetType, frame.getBody());
+                PacketMetrics.traceDecoded(frame);
+                //logger.info("Recieved:\n" + serverPacket.toJson());
+                // Packets from the same connection are processed one at a time, in the order they came in, on the shared pool
+                long handleStart = System.nanoTime();
+                PacketHandleEvent handleEvent = new PacketHandleEvent();
+                handleEvent.begin();
+                OrderedExecutor.shared().executeAndWait(orderKey(serverPacket), () -> readAction(packetType, serverPacket));
+                PacketMetrics.HANDLE.recordSince(packetType, handleStart);     // Includes any wait behind earlier packets from the same connection
+                handleEvent.commit(packetType, serverPacket.getId(), frame.getBody().length);
+                PacketMetrics.traceHandled(frame, packetType, header.getPacketId());
+            } catch(IllegalArgumentException e) {
+                logger.error("Recieved unknown packet of type: {}", packetTypeStr);
+                return; // Early exit
+            }
+        }
+    }
+
+    /*
+     *                      Main run loop
+     */
+
+    @Override
+    public void run() {
+        
+        logger.info(
+            "Server connected: \n\t{}:{}",
+            serverSocket.getInetAddress().toString(),
+            serverSocket.getPort()
+        );
+
+        // Handle client events
+        try {
+            // Persistent senders keep the socket open between packets, so give up on it once it goes quiet
+            serverSocket.setSoTimeout(PersistentConnectionPool.RECEIVER_IDLE_TIMEOUT_MILLIS);
 
-                // Pre-parses the Json in order to grab the packetType to use for the switch statement
-                JsonObject jsonObj = JsonParser.parseString(json).getAsJsonObject();
+            // This is what decodes the incoming packets, framed or ||END|| delimited lines
+            reader = new FrameReader(serverSocket.getInputStream());
 
-                String packetTypeStr = jsonObj.get("packetType").getAsString();
+            // Every response on this socket is written through the same stream
+            output = new BufferedOutputStream(serverSocket.getOutputStream());
 
-                // Covert the string to the ENUM packetType
-                NodePacketType packetType = NodePacketType.valueOf(packetTypeStr);
+            Frame frame;
 
-                try {
-                    // Reconstruct the recieved packet into a 'NodePacket' type 
-                    serverPacket = buildGsonWithPacketSubtype(packetType, json);
-                    //logger.info("Recieved:\n" + serverPacket.toJson());
-                    readAction(packetType, serverPacket); 
-                } catch(IllegalArgumentException e) {
-                    logger.error("Recieved unknown packet of type: " + packetTypeStr);
-                    return; // Early exit
+            // A sender may send any number of packets over this socket, one response is written per packet (or per batch)
+            while ((frame = AdmissionControl.whileIdle(reader::read)) != null) {
+                Frame response = processAll(frame);
+                if (response != null) {
+                    // The stream is left open since the sender may reuse this socket
+                    FrameCodec.write(output, response);
+                    output.flush();
                 }
             }
+        } catch (SocketTimeoutException e) {
+            logger.info("Closing idle connection from {}", serverSocket.getInetAddress());
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             try {
-                if( reader != null){ reader.close(); }
+                if( output != null){ output.close(); }
                 if( serverSocket != null && !serverSocket.isClosed()) { serverSocket.close(); }
             } catch (IOException e) {
-                logger.error("Error closing socket!\n" + e);
+                logger.error("Error closing socket!", e);
             }
         }
     }
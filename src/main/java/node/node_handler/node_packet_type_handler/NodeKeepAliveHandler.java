@@ -34,7 +34,7 @@ public class NodeKeepAliveHandler extends NodePacketHandler{
             packetResponse = new NodeHandlerResponse(true, "Recieved");
 
         } catch(Exception e) {
-            logger.error("Error Handling packet" + e);
+            logger.error("Error Handling packet", e);
             // Generates the response to be put into the failure packet
             packetResponse = new NodeHandlerResponse(false, e, "Error Handling Packet.");
         }
@@ -35,7 +35,7 @@ public class NodeMessageHandler extends NodePacketHandler{
         try{
             // Lambda function - HashMap has a ForEach function that receives the all the keys(k) and their corresponding values(v) and will loop through each one individually and send it to the config
             PayloadKeyValuePairs.forEach( (k, v) -> { 
-                logger.info("Message" + messageCounter + ":\n\t\t" + v );
+                logger.info("Message{}:\n\t\t{}", messageCounter, v);
                 messageCounter++;
             });
 
@@ -43,7 +43,7 @@ public class NodeMessageHandler extends NodePacketHandler{
             packetResponse = new NodeHandlerResponse(true, "Recieved");
 
         } catch(Exception e) {
-            logger.error("Error Handling packet" + e);
+            logger.error("Error Handling packet", e);
             // Generates the response to be put into the failure packet
             packetResponse = new NodeHandlerResponse(false, e, "Error Handling Packet.");
         }
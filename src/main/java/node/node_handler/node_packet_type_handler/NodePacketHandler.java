@@ -14,6 +14,8 @@ package node.node_handler.node_packet_type_handler;
 
 import java.util.LinkedHashMap;
 
+import lib.PacketLog;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -34,11 +36,14 @@ public abstract class NodePacketHandler {
     public NodeHandlerResponse handle(NodePacket recievedPacket){
 
         // Print out the packet 
-        logger.info(
-            "Packet recieved from ID: " + recievedPacket.getId() 
-            + "\nPacket Type: \t" + recievedPacket.getPacketType() 
-            + "\nPayload: \t" + recievedPacket.getPayload()
-        );
+        if (PacketLog.shared().sample(recievedPacket.getPacketType())) {
+            logger.info(
+                "Packet recieved from ID: {}\nPacket Type: \t{}\nPayload: \t{}",
+                recievedPacket.getId(),
+                recievedPacket.getPacketType(),
+                recievedPacket.getPayload()
+            );
+        }
 
         // Grab the payload from the packet
         LinkedHashMap<String, String> payload = recievedPacket.getPayload();
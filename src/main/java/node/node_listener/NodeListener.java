@@ -11,48 +11,148 @@ import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.SocketTimeoutException;
 
+import java.nio.file.Path;
+
+import java.util.LinkedHashMap;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import listener.ListenerMode;
+import listener.NioListener;
+import listener.admission_control.AdmissionControl;
+import listener.admission_control.LaneMemoryServerSocket;
+import listener.admission_control.LaneServerSocket;
+import listener.admission_control.LaneUnixServerSocket;
+import listener.handler_executor.HandlerExecutor;
+import listener.handler_executor.HandlerExecutorMode;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+
+import sender.retry_policy.RetryPolicy;
+
+import connection.transport.TransportSelector;
+
+import lib.InstanceContext;
+
+import node.edge_node.EdgeNode;
 import node.node_handler.NodeServerHandler;
+import node.node_packet.NodePacketType;
+import node.node_packet.node_packet_class.NodeGenericPacket;
 
 public class NodeListener implements Runnable {
 
     // Each class can have its own logger instance
     private static final Logger logger = LogManager.getLogger(NodeListener.class);
     
-    private Socket connected;
     private ServerSocket listenerSocket;
+    private ServerSocket unixListenerSocket;    // Only opened when peers on this host may connect over a unix domain socket
     private int port;
     private int timeout;
 
+    private NioListener nioListener;    // Only created when the listener runs in NIO mode
+
+    private AdmissionControl admissionControl;    // Queues (or turns away) each accepted connection before its handler runs, in blocking mode
+
     public NodeListener(int port, int timeout) throws IOException {
+        this(
+            port, timeout, ListenerMode.BLOCKING, 0,
+            new AdmissionControl(
+                "Node",
+                HandlerExecutor.create(HandlerExecutorMode.THREAD, 0, "Node-Handler"),
+                NodeListener::overloadResponse
+            )
+        );
+    }
+
+    public NodeListener(int port, int timeout, ListenerMode mode, int ioThreads, AdmissionControl admissionControl) throws IOException {
         this.port = port;
         this.timeout = timeout;
-        this.listenerSocket = new ServerSocket(port);
-        this.listenerSocket.setSoTimeout(timeout);
+        this.admissionControl = admissionControl;
+
+        // Every instance is in this JVM, so there is nothing for the NIO selector to select on
+        boolean inMemory = TransportSelector.shared().listensInMemory();
+        if(mode == ListenerMode.NIO && inMemory) {
+            logger.warn("NIO listeners can not listen in memory, listening on port {} in blocking mode instead", port);
+        }
+
+        if(mode == ListenerMode.NIO && !inMemory) {
+            this.nioListener = new NioListener(port, ioThreads, "Node", NodeServerHandler::new, unixSocketPath());
+        } else if(inMemory) {
+            this.listenerSocket = new LaneMemoryServerSocket(InstanceContext.current().getHost(), port);
+            this.listenerSocket.setSoTimeout(timeout);
+        } else {
+            this.listenerSocket = new LaneServerSocket(port);    // Lets admission control see each connection's lane
+            this.listenerSocket.setSoTimeout(timeout);
+            if(unixSocketPath() != null) {
+                this.unixListenerSocket = new LaneUnixServerSocket(unixSocketPath(), port);
+                this.unixListenerSocket.setSoTimeout(timeout);
+            }
+        }
     }
 
     @Override
     public void run(){  
 
-        logger.info("Listening on port " + port);
+        // The NIO listener runs its own accept loop and I/O threads
+        if(nioListener != null) {
+            nioListener.run();
+            return;
+        }
 
+        // Peers on this host connect here instead, handled exactly the same
+        if(unixListenerSocket != null) {
+            new Thread(() -> acceptLoop(unixListenerSocket), "Node-uds").start();
+            logger.info("Listening on {}", unixSocketPath());
+        }
+
+        logger.info("Listening on port {}", port);
+        acceptLoop(listenerSocket);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
         boolean on = true;
         while(on){
             try {
-                connected = listenerSocket.accept();
-                Thread handlerThread = new Thread(new NodeServerHandler(connected)); // sends the message to a handler
-                handlerThread.start(); // Begins the new thread
+                Socket connected = serverSocket.accept();
+                admissionControl.submit(connected, new NodeServerHandler(connected)); // sends the message to a handler, once there is room for it
             } catch (SocketTimeoutException sto) {
             } catch (IOException ioe) {
-                logger.error("I/O Exception! " + ioe);
+                if(serverSocket.isClosed()) {
+                    on = false;     // closeSocket() was called
+                } else {
+                    logger.error("I/O Exception! {}", ioe);
+                }
             }
         }
     }
 
+    // Where this listener's unix domain socket goes, null when the tier only uses TCP
+    private Path unixSocketPath() {
+        TransportSelector transports = TransportSelector.shared();
+        return transports.listensOnUnixSocket() ? transports.socketPath(port) : null;
+    }
+
+    // What a connection that is turned away gets back, an ERROR telling the sender how long to stay away
+    public static Frame overloadResponse(byte version, long retryAfterMillis) {
+        LinkedHashMap<String, String> payload = new LinkedHashMap<>();
+        payload.put("message", "Node is overloaded");
+        payload.put(RetryPolicy.RETRY_AFTER_KEY, String.valueOf(retryAfterMillis));
+
+        NodeGenericPacket errorPacket = new NodeGenericPacket(NodePacketType.ERROR, EdgeNode.getNodeID(), payload);
+
+        return (version == FrameCodec.VERSION_LEGACY)
+            ? Frame.legacy(errorPacket.toDelimitedString())
+            : Frame.of(version, errorPacket.getPacketType(), errorPacket.toJson());
+    }
+
     /*          Accessor methods        */
 
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
     public int getActivePort() {
         return port;
     }
@@ -70,19 +170,32 @@ public class NodeListener implements Runnable {
 
     public void changeTimeout(int newTimeout) {
         timeout = newTimeout;
+        if(nioListener != null) {
+            return; // The NIO accept loop blocks without a timeout
+        }
         try {
             listenerSocket.setSoTimeout(timeout);
+            if(unixListenerSocket != null) {
+                unixListenerSocket.setSoTimeout(timeout);
+            }
         } catch (Exception e) {
-            logger.error("Error setting new timeout on socket: ( " + port + " ) " + e);
+            logger.error("Error setting new timeout on socket: ( {} )", port, e);
         }
     }
 
     public boolean closeSocket() {
+        if(nioListener != null) {
+            logger.warn("Listening Socket Closed on port {}!", port);
+            return nioListener.close();
+        }
         try{
             listenerSocket.close();
-            logger.warn("Listening Socket Closed on port " + port + "!");
+            if(unixListenerSocket != null) {
+                unixListenerSocket.close();
+            }
+            logger.warn("Listening Socket Closed on port {}!", port);
         } catch(Exception e) {
-            logger.error("Error Closing socket on port" + port + "! " + e);
+            logger.error("Error Closing socket on port{}!", port, e);
             return false;
         }
         return true;
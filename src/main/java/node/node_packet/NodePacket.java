@@ -18,11 +18,14 @@ import java.util.LinkedHashMap;
 import java.util.Arrays;
 
 import com.google.gson.Gson;    // external library that allows for jsonify of java objects. Located in root/lib 
+import com.google.gson.annotations.SerializedName;
 
 public abstract class NodePacket {
 
     protected int payloadPairCounter = 0;
 
+    // An AbstractPacket (see PacketCodecs.json()) names the same field senderId
+    @SerializedName(value = "id", alternate = {"senderId"})
     protected String id = null;
 
     protected NodePacketType packetType;     // Enum for easy constant assignment
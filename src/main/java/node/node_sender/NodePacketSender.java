@@ -6,6 +6,8 @@
 
 package node.node_sender;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -16,10 +18,6 @@ public class NodePacketSender extends NodeSender{
     // Each class can have its own logger instance
     protected static final Logger logger = LogManager.getLogger(NodePacketSender.class);
 
-    protected int maxRetries = 3;
-    protected int attempts = 0;
-    protected boolean ackRecieved;
-    
     //
     public NodePacketSender(String ip, int sendingPort) { 
         this.ip = ip;
@@ -30,32 +28,19 @@ public class NodePacketSender extends NodeSender{
      *  The default method for retrying packet sending, if a failure occurs then retry will be invoked. 
      *  This can and more than likely will be overwritten with certain PacketTypes that may not want to retry.
      * 
+     *  The resends are spaced out by this sender's RetryPolicy on the shared timer, nothing waits on the caller's thread.
     */
-    public boolean retry(NodePacket packet) {
-        ackRecieved = false;
-        while (!ackRecieved){
-            // If the attempt limit is reached the server will shutdown
-            if (attempts == maxRetries) {
+    @Override
+    public CompletableFuture<Boolean> retry(NodePacket packet) {
+        return retryPolicy.retry(() -> {
+            logger.warn("Failed to recieve ACK - retrying...");
+            countRetry(packet);
+            return send(packet);
+        }, sent -> sent, this::remainingBackoffMillis).thenApply(sent -> {
+            if (!sent) {
                 logger.error("Attempt limit reached trying to recieve ACK!");
-                attempts = 0;
-                return ackRecieved;
-            }
-            // Retry the connection - must reopen the socket to create a new connection
-            else if (attempts < maxRetries && !ackRecieved) {
-                // Wait to retry and increment attempts after 1 second
-                try{
-                    Thread.sleep(1000);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    break;
-                } 
-                ackRecieved = send(packet);
             }
-            // Inc attemps
-            attempts++;
-        }
-        // Reset attempts for reuses (If applicable)
-        attempts = 0;
-        return ackRecieved;
-    }  
+            return sent;
+        });
+    }
 }
@@ -12,23 +12,52 @@
  *      If the initalization is successful, then the server will create listeners for
  *      both the Node layer and the coordinator layer, on seperate ports. These listeners
  *      will be started on different threads.
- *      
+ *
+ *      Each EdgeServer belongs to the InstanceContext it was made in, so the cluster simulator can run
+ *      several in one JVM. getServerId() answers for the server the calling thread is running for.
  */
 package server.edge_server;
 
+import java.io.IOException;
+
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
 import java.util.HashMap;
+import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.Scanner;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import listener.ListenerMode;
+import listener.admission_control.AdmissionControl;
+import listener.handler_executor.HandlerExecutor;
+import listener.handler_executor.HandlerExecutorMode;
+
+import connection.ExpiryWheel;
+
+import lib.InstanceContext;
+import lib.OrderedExecutor;
+import lib.PacketLog;
+import lib.SharedTimer;
+
+import connection.transport.TransportMode;
+import connection.transport.TransportSelector;
+
+import connection.metrics.MetricsEndpoint;
+import connection.metrics.MetricsRegistry;
+import connection.metrics.ProcessMetrics;
+
+import packet.codec.PacketCodecs;
+
+import packet.frame.HopTrace;
+
+import sender.outbound_batcher.OutboundBatcher;
+
 import server.server_config.ServerConfig;
 
 import server.server_listener.ServerListener;
@@ -46,26 +75,39 @@ public class EdgeServer {
 
     private static final Logger logger = LogManager.getLogger(EdgeServer.class);
 
-    private static volatile String serverId = null;
+    private volatile String serverId = null;
 
-    private static String IP;      // The IP of this devices
+    private String IP;      // The IP of this devices
 
-    private static ServerListener coordinatorListener;  // The socket that will be listening to requests from the Edge Coordinator
-    private static ServerListener nodeListener;     // The socket that will be listening for Nodes
+    private ServerListener coordinatorListener;  // The socket that will be listening to requests from the Edge Coordinator
+    private ServerListener nodeListener;     // The socket that will be listening for Nodes
 
-    private static ServerConfig config;
+    private final ServerConfig config;
 
-    private static ServerConnectionManager nodeConnectionManager;   // This will manage all connections and check keep alive
-    private static ServerConnectionManager coordinatorConnectionManager;
+    private ServerConnectionManager nodeConnectionManager;   // This will manage all connections and check keep alive
+    private ServerConnectionManager coordinatorConnectionManager;
 
     // Timer components
-    private static ScheduledExecutorService timerScheduler; // The timer that will send out to keepAlives to the coordinator and check Node expiry   
+    private ScheduledExecutorService timerScheduler; // The timer that will send out to keepAlives to the coordinator and check Node expiry   
+
+    private MetricsEndpoint metricsEndpoint;     // Null unless Server.metricsPort is set
+
+    // The server is the one running in the calling thread's instance (the whole process, outside of the simulator)
+    public EdgeServer(ServerConfig config) {
+        this.config = config;
+        InstanceContext.current().register(EdgeServer.class, this);
+    }
+
+    // The server the calling thread is running for, null if there is none
+    public static EdgeServer current() {
+        return InstanceContext.current().component(EdgeServer.class);
+    }
 
     /*
      *  Initalize the Edge Server
      */
     // This is the function that will be called first that will have the inital handshake between the Coordinator
-    public static void init() {
+    public void init() {
 
         // Create the connection manager
         nodeConnectionManager = ServerNodeConnectionManager.getInstance();
@@ -73,9 +115,9 @@ public class EdgeServer {
         // try to generate the IP from the machines IP - Throws UnknownHostException if it cannot determine
         try{
             IP = config.grabIP();
-            logger.info("\t\tEDGE SERVER\tStarting Server at " + IP);
+            logger.info("\t\tEDGE SERVER\tStarting Server at {}", IP);
         } catch (UnknownHostException e) {
-            logger.error("Error: Unable to determine local host IP address.\n" + e);
+            logger.error("Error: Unable to determine local host IP address.", e);
         } catch (SocketException e) {
             logger.error("Error: Unable to determine IP Address");
         }
@@ -85,15 +127,18 @@ public class EdgeServer {
 
             coordinatorConnectionManager = ServerCoordinatorConnectionManager.getInstance();
             
-            coordinatorConnectionManager.addConnection(
-                new ServerConnectionDto(
-                    "1",  // TEMP Will update when get the ack respones
-                    config.getIPByKey("Coordinator.IP"), 
-                    config.getPortByKey("Coordinator.listeningPort"),
-                    ServerPriority.CRITICAL
-                )
+            ServerConnectionDto coordinatorConnection = new ServerConnectionDto(
+                "1",  // TEMP Will update when get the ack respones
+                config.getIPByKey("Coordinator.IP"), 
+                config.getPortByKey("Coordinator.listeningPort"),
+                ServerPriority.CRITICAL
             );
 
+            // Keep alives and messages to the coordinator all go over one long lived socket
+            coordinatorConnection.setPersistentConnection(true);
+
+            coordinatorConnectionManager.addConnection(coordinatorConnection);
+
             LinkedHashMap<String, String> payload = new LinkedHashMap<>();
             payload.put(
                 "Server.listeningPort",
@@ -109,25 +154,91 @@ public class EdgeServer {
             new ServerConnectionDtoManager(coordinatorConnectionManager.getConnectionInfoById("1")).send(initPacket);
             
         } catch (Exception e) {
-            logger.error("Error Sending Initalization Packet: " + e);
+            logger.error("Error Sending Initalization Packet", e);
         }
 
         /*
          *          Listeners
          */
 
+        // These are process wide, the simulator sets them up once for every instance it runs
+        if(InstanceContext.current().isProcess()) {
+            // Small packets to the same destination wait up to the window (or until the batch is full) and go out as one frame,
+            // keep alives and the rest of the control lane wait up to the control window (0 - not at all)
+            OutboundBatcher.configure(
+                config.getIntByKey("Server.batchWindowMillis", OutboundBatcher.DEFAULT_WINDOW_MILLIS),
+                config.getIntByKey("Server.batchControlWindowMillis", OutboundBatcher.DEFAULT_CONTROL_WINDOW_MILLIS),
+                config.getIntByKey("Server.batchMaxPackets", OutboundBatcher.DEFAULT_MAX_PACKETS),
+                config.getIntByKey("Server.batchMaxBytes", OutboundBatcher.DEFAULT_MAX_BYTES)
+            );
+
+            // Packets from the same connection are processed in order, different connections in parallel on this many threads (0 - two per core)
+            OrderedExecutor.configure(config.getIntByKey("Server.orderedThreads", 0));
+
+            // tcp, uds - a unix domain socket for peers on this host, auto - the same, but only if the peer is listening on one
+            TransportSelector.configure(
+                TransportMode.fromString(config.getPropertyByKey("Server.transport", "tcp")),
+                config.getPropertyByKey("Server.socketDir", TransportSelector.DEFAULT_SOCKET_DIR)
+            );
+
+            // 1 packet in every this many carries a hop trace (see HopTrace), 0 - off
+            HopTrace.configure(config.getIntByKey("Server.traceSampleRate", HopTrace.DEFAULT_SAMPLE_RATE));
+
+            // json, binary - the codec packets from the shared senders are written with, to peers that read it (see PacketCodecs)
+            PacketCodecs.configure(config.getPropertyByKey("Server.packetCodec", PacketCodecs.DEFAULT_CODEC));
+
+            // The per packet log lines are sampled by packet type, and the last packets are kept for GET /packets
+            PacketLog.configure(
+                config.getIntByKey("Server.packetLogSize", PacketLog.DEFAULT_CAPACITY),
+                config.getIntByKey("Server.logSampleRate", PacketLog.DEFAULT_SAMPLE_RATE),
+                logSampleRates()
+            );
+        }
+
+        // blocking - a thread per connection, nio - a Selector with a few I/O threads
+        ListenerMode listenerMode = ListenerMode.fromString(config.getPropertyByKey("Server.listenerMode", "blocking"));
+        int ioThreads = config.getIntByKey("Server.ioThreads", 2);
+
+        // thread - a new thread per connection, pool - a fixed pool, virtual - a virtual thread per connection (Java 21+).
+        // Each listener gets its own, so idle connections on one can never pin the other's pool
+        HandlerExecutorMode handlerMode = HandlerExecutorMode.fromString(config.getPropertyByKey("Server.handlerMode", "thread"));
+        int handlerPoolSize = config.getIntByKey("Server.handlerPoolSize", 64);
+
+        // Each listener gets its own bound on connections being handled and waiting, past that they are turned away with a retry after hint.
+        // Keep alives and handshakes have handlers of their own on top, so MESSAGE floods can not starve them
+        int maxConcurrentHandlers = config.getIntByKey("Server.maxConcurrentHandlers", AdmissionControl.DEFAULT_MAX_CONCURRENT);
+        int reservedControlHandlers = config.getIntByKey("Server.reservedControlHandlers", AdmissionControl.DEFAULT_RESERVED_CONTROL);
+        // Handler threads parked on idle persistent connections count against this too, the longest idle is closed to make room
+        int maxHandlerThreads = config.getIntByKey("Server.maxHandlerThreads", AdmissionControl.DEFAULT_MAX_THREADS);
+        int maxQueuedConnections = config.getIntByKey("Server.maxQueuedConnections", AdmissionControl.DEFAULT_MAX_QUEUED);
+        int overloadRetryAfterMillis = config.getIntByKey("Server.overloadRetryAfterMillis", AdmissionControl.DEFAULT_RETRY_AFTER_MILLIS);
+        int maxQueueWaitMillis = config.getIntByKey("Server.maxQueueWaitMillis", AdmissionControl.DEFAULT_MAX_QUEUE_WAIT_MILLIS);
+
         // Instantiate a listening port for the coordinator
         try {
             coordinatorListener = new ServerListener(
                 config.getPortByKey("Server.coordinatorListeningPort"), 
                 5000,
-                "coordinator"
+                "coordinator",
+                listenerMode,
+                ioThreads,
+                new AdmissionControl(
+                    "Server-coordinator",
+                    HandlerExecutor.create(handlerMode, handlerPoolSize, "Server-coordinator-Handler"),
+                    maxConcurrentHandlers,
+                    reservedControlHandlers,
+                    maxHandlerThreads,
+                    maxQueuedConnections,
+                    overloadRetryAfterMillis,
+                    maxQueueWaitMillis,
+                    ServerListener::overloadResponse
+                )
             );
         } catch (Exception e) {
             logger.error(
-                "Error creating Listening Socket on port " 
-                + config.getPortByKey("Server.coordinatorListeningPort")
-                + "\n" + e
+                "Error creating Listening Socket on port {}",
+                config.getPortByKey("Server.coordinatorListeningPort"),
+                e
             );
             // TODO: try to grab new port if this one is unavailable
         }
@@ -137,13 +248,26 @@ public class EdgeServer {
             nodeListener = new ServerListener(
                 config.getPortByKey("Server.nodeListeningPort"),
                  1000,
-                 "node"
+                 "node",
+                 listenerMode,
+                 ioThreads,
+                 new AdmissionControl(
+                     "Server-node",
+                     HandlerExecutor.create(handlerMode, handlerPoolSize, "Server-node-Handler"),
+                     maxConcurrentHandlers,
+                     reservedControlHandlers,
+                     maxHandlerThreads,
+                     maxQueuedConnections,
+                     overloadRetryAfterMillis,
+                     maxQueueWaitMillis,
+                     ServerListener::overloadResponse
+                 )
             );
         } catch (Exception e) {
             logger.error(
-                "Error creating Listening Socket on port " 
-                + config.getPortByKey("Server.nodeListeningPort")
-                + "\n" + e
+                "Error creating Listening Socket on port {}",
+                config.getPortByKey("Server.nodeListeningPort"),
+                e
             );
             // TODO: try to grab new port if this one is unavailable
         }
@@ -153,7 +277,12 @@ public class EdgeServer {
         try {
             initializeTimers();
         } catch (Exception e) {
-            logger.error("Error creating Timers: \n" + e);
+            logger.error("Error creating Timers", e);
+        }
+
+        // There is one metrics endpoint for the process, the simulator runs without one
+        if(InstanceContext.current().isProcess()) {
+            startMetrics();
         }
 
         /*
@@ -163,46 +292,51 @@ public class EdgeServer {
         try {
             ServerClusterManager.initializeClusterIdentity();
         } catch (Exception e) {
-            logger.error("Error creating Cluster ID: " + e);
+            logger.error("Error creating Cluster ID", e);
         }
     }
     /*
      *      ID assignment 
      */
-    // Thread-safe setter for ID assignment
-    public static synchronized void setServerId(String id) {
-        serverId = id;
-        logger.info("Server ID assigned: " + id);
+    // Thread-safe setter for ID assignment, for the server the calling thread runs for
+    public static void setServerId(String id) {
+        current().serverId = id;
+        logger.info("Server ID assigned: {}", id);
     }
 
-    public static synchronized String getServerId() {
-        return serverId;
+    public static String getServerId() {
+        EdgeServer server = current();
+        return (server != null) ? server.serverId : null;
+    }
+
+    // Starts listening for the coordinator and the nodes, each on its own thread
+    public void start() {
+        Thread coordinatorThread = new Thread(coordinatorListener, "Server-coordinator-listener");
+        coordinatorThread.start();
+
+        Thread serverThread = new Thread(nodeListener, "Server-node-listener");
+        serverThread.start();
     }
 
     /* Creates the timers for KeepAlive sending and keep alive checking */ 
-    private static void initializeTimers() {
-        // Creates the timer for 
-        timerScheduler = Executors.newScheduledThreadPool(2, r -> {
-            Thread t = new Thread(r, "EdgeServer-Timer");
-            //t.setDaemon(true);
-            return t;
-        });
+    private void initializeTimers() {
+        // Everything periodic runs off the process wide timer wheel, none of these tasks block
+        timerScheduler = SharedTimer.get();
         // Schedules the sending for the keepAlive packet every 30 seconds
         timerScheduler.scheduleAtFixedRate(() -> {
             try {
-                boolean keepAliveSent;
-
-                keepAliveSent = coordinatorConnectionManager.sendKeepAlive(
+                // Sent without blocking so a slow peer never holds up the timer thread
+                coordinatorConnectionManager.sendKeepAliveAsync(
                     ServerKeepAliveService.createKeepAlivePacket(
                         IP,
                         nodeConnectionManager
                     )
-                );
-
-                if(!keepAliveSent){
-                    logger.error("Keep alive was not sent!");
-                    //TODO: something to stop the keep alive sender
-                }
+                ).thenAccept(keepAliveSent -> {
+                    if(!keepAliveSent){
+                        logger.error("Keep alive was not sent!");
+                        //TODO: something to stop the keep alive sender
+                    }
+                });
 
             } catch(Exception e) {
                 logger.error("Exception in keep-alive timer: ", e);
@@ -210,15 +344,103 @@ public class EdgeServer {
         }, 5, 30, TimeUnit.SECONDS);
         logger.info("Timer for sending keep Alive packets created!");
 
-        // Schedules overdue packet check every 20 seconds
+        // Advances the connection expiry wheel once a tick, only connections that are actually overdue get checked
         timerScheduler.scheduleAtFixedRate(() -> {
             try{
                 nodeConnectionManager.checkExpiredConnections();
             } catch (Exception e){
                 logger.error("Exception in expiry timer: ", e);
             }
-        }, 20, 20, TimeUnit.SECONDS);
+        }, ExpiryWheel.DEFAULT_TICK_MILLIS, ExpiryWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
         logger.info("Timer for checking Expired connections created!");
+
+        // Logs the outbound batch size and latency histograms every minute, to tune the batch window against
+        timerScheduler.scheduleAtFixedRate(() -> {
+            try{
+                OutboundBatcher.logStats();
+            } catch (Exception e){
+                logger.error("Exception in batch stats timer: ", e);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        // Logs how deep the listener queues are and how many connections were turned away
+        timerScheduler.scheduleAtFixedRate(() -> {
+            try{
+                if(coordinatorListener != null) {
+                    coordinatorListener.getAdmissionControl().logStats();
+                }
+                if(nodeListener != null) {
+                    nodeListener.getAdmissionControl().logStats();
+                }
+            } catch (Exception e){
+                logger.error("Exception in admission stats timer: ", e);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        // Logs how far behind the timer thread is running, it should stay within a tick or two. There is one timer for the whole process
+        if(InstanceContext.current().isProcess()) {
+            timerScheduler.scheduleAtFixedRate(() -> {
+                try{
+                    SharedTimer.logStats();
+                } catch (Exception e){
+                    logger.error("Exception in timer stats timer: ", e);
+                }
+            }, 60, 60, TimeUnit.SECONDS);
+        }
+    }
+
+
+    // Server.logSampleRate.<PACKET_TYPE> overrides the default sample rate for that packet type
+    private Map<String, Integer> logSampleRates() {
+        Map<String, Integer> rates = new HashMap<>();
+        for (ServerPacketType type : ServerPacketType.values()) {
+            int rate = config.getIntByKey("Server.logSampleRate." + type.name(), -1);
+            if(rate >= 0) {
+                rates.put(type.name(), rate);
+            }
+        }
+        return rates;
+    }
+
+    /*
+     *      Metrics
+     */
+
+    // Serves the packet, latency, queue and connection metrics in Prometheus text format on Server.metricsPort, 0 leaves it off
+    private void startMetrics() {
+        MetricsRegistry registry = MetricsRegistry.shared();
+        ProcessMetrics.register(registry);
+        if(nodeConnectionManager != null) {
+            registry.gauge("edge_active_connections", "Open connections, by who they are to", "peer", "node", nodeConnectionManager::getActiveConnectionCount);
+        }
+        if(coordinatorConnectionManager != null) {
+            registry.gauge("edge_active_connections", "Open connections, by who they are to", "peer", "coordinator", coordinatorConnectionManager::getActiveConnectionCount);
+        }
+        if(coordinatorListener != null) {
+            coordinatorListener.getAdmissionControl().registerMetrics(registry);
+        }
+        if(nodeListener != null) {
+            nodeListener.getAdmissionControl().registerMetrics(registry);
+        }
+
+        int metricsPort = config.getIntByKey("Server.metricsPort", 0);
+        if(metricsPort <= 0) {
+            return;
+        }
+        try {
+            metricsEndpoint = MetricsEndpoint.start(metricsPort);
+        } catch (IOException e) {
+            logger.error("Could not start the metrics endpoint on port {}", metricsPort, e);
+        }
+    }
+
+    // A typed in MESSAGE, it may share a frame with whatever else is going to the same connection (see OutboundBatcher)
+    private static void sendMessage(ServerConnectionDto connection, ServerPacket messagePacket) {
+        new ServerConnectionDtoManager(connection).sendBatched(messagePacket).whenComplete((response, e) -> {
+            if(e != null || response.getPacketType() != ServerPacketType.ACK) {
+                logger.error("Message to {} was not acknowledged", connection.getId(), e);
+            }
+        });
     }
 
     public static void main(String[] args) {
@@ -227,23 +449,23 @@ public class EdgeServer {
 
         String instanceId = args.length > 0 ? args[0] : null; // When starting the server arguments depicting an instance number (i.e. server1, server2)
 
+        ServerConfig config;
         if(instanceId != null) {
             config = new ServerConfig(instanceId);
-            logger.info("Starting Edge Server Instance: " + instanceId);
+            logger.info("Starting Edge Server Instance: {}", instanceId);
         } else {        
             config = new ServerConfig();
             logger.info("Starting default server config");
         }
 
-        init();         // Begins the initalization process 
+        EdgeServer server = new EdgeServer(config);
+        server.init();         // Begins the initalization process 
 
-        // Starts listening for messages on from the coordinator
-        Thread coordinatorThread = new Thread(coordinatorListener); 
-        coordinatorThread.start();
+        // Starts listening for messages from the coordinator and from the Nodes
+        server.start();
 
-        // Starts listening for messages from the Node
-        Thread serverThread = new Thread(nodeListener);
-        serverThread.start();
+        ServerConnectionManager nodeConnectionManager = server.nodeConnectionManager;
+        ServerConnectionManager coordinatorConnectionManager = server.coordinatorConnectionManager;
 
         // DEMO
         Scanner in = new Scanner(System.in);
@@ -252,7 +474,7 @@ public class EdgeServer {
             try{
                 Thread.sleep(1000);
             } catch(InterruptedException e) {
-                logger.error("Main thread interrrupted!\n" + e);
+                logger.error("Main thread interrrupted!", e);
             }
 
             System.out.println("\nManually Send Message: ");
@@ -287,9 +509,7 @@ public class EdgeServer {
                         }
                         int nodeNum = in.nextInt();
                         if(!nodes.get(nodeNum).isEmpty()) {
-                            new ServerConnectionDtoManager(
-                                nodeConnectionManager.getConnectionInfoById(nodes.get(nodeNum))
-                            ).send(messagePacket);
+                            sendMessage(nodeConnectionManager.getConnectionInfoById(nodes.get(nodeNum)), messagePacket);
                             hasNum = true;
                         }
                         else if(trys > 2){
@@ -299,9 +519,7 @@ public class EdgeServer {
                         trys++;
                     }
                 } else if(recipient.equals("coordinator") || recipient.equals("Coordinator")) {
-                    new ServerConnectionDtoManager(
-                        coordinatorConnectionManager.getConnectionInfoById("1"))
-                        .send(messagePacket);
+                    sendMessage(coordinatorConnectionManager.getConnectionInfoById("1"), messagePacket);
                 }
                 else {
                     System.out.println("Unknown Recipient! \nYour input was: " + recipient + "\nTry again.");
@@ -10,19 +10,39 @@ package server.server_connections;
 
 import java.time.LocalDateTime;
 
+import connection.ConnectionStats;
+
+import packet.frame.FrameCodec;
+
+import server.server_sender.ServerPacketSender;
+
 public class ServerConnectionDto {
 
     private String id;
     private String ip;
     private int port;
 
+    // The cluster the other end belongs to, null until it is known
+    private String clusterId;
+
     // This is when the expiration happens, which is twice the send time of each KeepAlive packet.
     private int keepAliveTimeoutSeconds;
 
     private ServerPriority priority;
-    private LocalDateTime lastActivity;
     private LocalDateTime initalConnectionTime;
 
+    // When true the sender for this connection keeps one socket open and reuses it for every packet
+    private boolean persistentConnection = false;
+
+    // The wire format agreed with this connection during INITIALIZATION, see packet.frame.FrameCodec
+    private byte frameVersion = FrameCodec.VERSION_LEGACY;
+
+    // The one sender for this connection, created on the first send and closed when the connection is terminated
+    private ServerPacketSender sender;
+
+    // Traffic counters and the last activity stamp, updated without a lock from any thread sending or recieving
+    private final ConnectionStats stats = new ConnectionStats();
+
     // Constructor
     public ServerConnectionDto(String id, String ip, int port, ServerPriority priority) {
         this.id = id;
@@ -30,7 +50,6 @@ public class ServerConnectionDto {
         this.port = port;
         this.priority = priority;
         initalConnectionTime = LocalDateTime.now();
-        lastActivity = LocalDateTime.now();
         this.keepAliveTimeoutSeconds = 60;
     }
 
@@ -43,13 +62,24 @@ public class ServerConnectionDto {
 
     public int getPort() { return port; }
 
+    public String getClusterId() { return clusterId; }
+
     public ServerPriority getPriority() { return priority; }
 
     public int getKeepAliveTimeout() { return keepAliveTimeoutSeconds; }
 
     public LocalDateTime getInitialConnectionTime() { return initalConnectionTime; }
 
-    public LocalDateTime getLastActivity() { return lastActivity; }
+    // Worked out from the nanoTime stamp, only the expiry checks and logs ever ask for it
+    public LocalDateTime getLastActivity() { return LocalDateTime.now().minusNanos(stats.nanosSinceLastActivity()); }
+
+    public ConnectionStats getStats() { return stats; }
+
+    public boolean isPersistentConnection() { return persistentConnection; }
+
+    public byte getFrameVersion() { return frameVersion; }
+
+    public synchronized ServerPacketSender getSender() { return sender; }
 
     /*
      * 
@@ -62,11 +92,20 @@ public class ServerConnectionDto {
 
     public void setPort(int port) { this.port = port; }
 
+    public void setClusterId(String clusterId) { this.clusterId = clusterId; }
+
     public void setKeepAliveTimeout(int keepAliveTimeoutSeconds) { this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds; }
 
     public void setPriority(ServerPriority priority) { this.priority = priority; }
 
-    public void updateLastActivity() { this.lastActivity = LocalDateTime.now(); }
+    public void setPersistentConnection(boolean persistentConnection) { this.persistentConnection = persistentConnection; }
+
+    public void setFrameVersion(byte frameVersion) { this.frameVersion = frameVersion; }
+
+    public synchronized void setSender(ServerPacketSender sender) { this.sender = sender; }
+
+    // Called for every packet from this connection, so it only stamps the time (no LocalDateTime is made)
+    public void updateLastActivity() { stats.touch(); }
 
     /*
      *      Stringify
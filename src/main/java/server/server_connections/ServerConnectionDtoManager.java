@@ -10,20 +10,20 @@
 
  package server.server_connections;
 
-import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import sender.persistent_connection.PersistentConnectionPool;
+
 import server.server_sender.ServerPacketSender;
 
 import server.server_packet.*;
 
 public class ServerConnectionDtoManager {
     private ServerConnectionDto connectionInfo;
-    // Gives each node connection it's own sender that will be created whenever 
-    private ServerPacketSender sender;
-    private Boolean hasSender = false;
 
     private static final Logger logger = LogManager.getLogger(ServerConnectionDtoManager.class);
 
@@ -36,34 +36,62 @@ public class ServerConnectionDtoManager {
      */
     
     public boolean isExpired() {
-        return connectionInfo.getLastActivity().plusSeconds(connectionInfo.getKeepAliveTimeout())
-            .isBefore(LocalDateTime.now());
+        return connectionInfo.getStats().nanosSinceLastActivity() > TimeUnit.SECONDS.toNanos(connectionInfo.getKeepAliveTimeout());
     }
 
     public void createSender() {
 
         if(connectionInfo.getPort() == 0) {
-            logger.error("Port is not set for Node " + connectionInfo.getId() +"!");
+            logger.error("Port is not set for Node {}!", connectionInfo.getId());
             return;
         }
         // Create sender for this node
         try {
-            this.sender = new ServerPacketSender(connectionInfo.getIp(), connectionInfo.getPort());
-            hasSender = true;
-            logger.info("Sender Created for Node: " + connectionInfo.getId() + " - " + connectionInfo.getIp() +":" + connectionInfo.getPort());
+            ServerPacketSender sender = new ServerPacketSender(connectionInfo.getIp(), connectionInfo.getPort());
+            sender.setPersistent(connectionInfo.isPersistentConnection());
+            sender.setFrameVersion(connectionInfo.getFrameVersion());
+            sender.setStats(connectionInfo.getStats());     // What the sender sends and gets back is counted against this connection
+            sender.setPeerId(connectionInfo.getId());
+            connectionInfo.setSender(sender);
+            logger.info("Sender Created for Node: {} - {}:{}", connectionInfo.getId(), connectionInfo.getIp(), connectionInfo.getPort());
         } catch (Exception e) {
-            logger.error("Failed to create sender for node " + connectionInfo.getId() + ":" + connectionInfo.getPort() + "\n" + e);
+            logger.error("Failed to create sender for node {}:{}", connectionInfo.getId(), connectionInfo.getPort(), e);
         }
     }
 
-    public boolean send(ServerPacket packet) {
-        if (sender == null || !hasSender) {
-            // if no sender, create one
-            createSender();
+    // The connection's sender, made on first use and then reused by every manager for this connection
+    private ServerPacketSender sender() {
+        synchronized (connectionInfo) {
+            if (connectionInfo.getSender() == null) {
+                createSender();
+            }
+            // Picked up on every send since the priority can change after the sender is made, it decides the sender's lanes
+            if (connectionInfo.getSender() != null) {
+                connectionInfo.getSender().setPriority(connectionInfo.getPriority());
+            }
+            return connectionInfo.getSender();
+        }
+    }
+
+    // Called when the connection is terminated, the next send (if any) would start a fresh sender
+    public void closeSender() {
+        ServerPacketSender closing;
+        synchronized (connectionInfo) {
+            closing = connectionInfo.getSender();
+            connectionInfo.setSender(null);
+        }
+        if (closing != null) {
+            closing.close();
         }
+    }
+
+    public boolean send(ServerPacket packet) {
+        ServerPacketSender sender = sender();
         boolean sent = sender.send(packet);
+        connectionInfo.setFrameVersion(sender.getFrameVersion());    // Keeps what was negotiated for the next sender
         if(!sent) {
-            boolean retry = sender.retry(packet);
+            boolean retry = sender.retry(packet).join();     // send() is for callers that have to wait, see sendWithRetry()
+            connectionInfo.setFrameVersion(sender.getFrameVersion());
             if(!retry){
                 return false;
             }
@@ -76,10 +104,53 @@ public class ServerConnectionDtoManager {
         return false;
     }
 
+    // Same as send(), retries and all, but nothing blocks the calling thread
+    public CompletableFuture<Boolean> sendWithRetry(ServerPacket packet) {
+        ServerPacketSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendWithRetry(packet).whenComplete((sent, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
+    /* Sends without waiting for the response, which the future completes with (ACK, ERROR, ...).
+     * Unlike send() there is no blocking retry, a failed or timed out packet completes the future exceptionally.
+     */
+    public CompletableFuture<ServerPacket> sendAsync(ServerPacket packet) {
+        return sendAsync(packet, PersistentConnectionPool.DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    // Fails the future with a TimeoutException if no response comes back within the timeout
+    public CompletableFuture<ServerPacket> sendAsync(ServerPacket packet, long timeoutMillis) {
+        ServerPacketSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendAsync(packet, timeoutMillis).whenComplete((response, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
+    // Same as sendAsync(), but small packets to this connection may be coalesced into one frame
+    public CompletableFuture<ServerPacket> sendBatched(ServerPacket packet) {
+        ServerPacketSender sender = sender();
+        if (sender == null) {
+            return CompletableFuture.failedFuture(
+                new IllegalStateException("Sender was not created for Connection: " + connectionInfo.getId())
+            );
+        }
+        // Keeps what was negotiated for the next sender
+        return sender.sendBatched(packet).whenComplete((response, e) -> connectionInfo.setFrameVersion(sender.getFrameVersion()));
+    }
+
     /*
      *      Getters
      */
-    public boolean getSenderStatus() { return hasSender; }
+    public boolean getSenderStatus() { return connectionInfo.getSender() != null; }
 
     public ServerConnectionDto getConnectionDto() { return connectionInfo; }
 
@@ -9,13 +9,23 @@
  */
 package server.server_connections.server_connection_manager;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import connection.ConnectionRegistry;
+import connection.ConnectionStats;
+import connection.ExpiryWheel;
+import connection.ProbeLimiter;
+import connection.flight_recorder.ConnectionAddedEvent;
+import connection.flight_recorder.ConnectionTerminatedEvent;
+
 import server.server_connections.ServerConnectionDto;
 import server.server_connections.ServerConnectionDtoManager;
 import server.server_connections.ServerPriority;
@@ -32,53 +42,115 @@ public abstract class ServerConnectionManager {
 
     public abstract boolean sendKeepAlive(ServerPacket packet);
 
-    protected final LinkedHashMap<String, ServerConnectionDto> activeConnections = new LinkedHashMap<>();
+    // Thread safe, with indexes by ip:port, cluster and priority - see connection.ConnectionRegistry
+    protected final ConnectionRegistry<ServerConnectionDto> activeConnections = new ConnectionRegistry<>(
+        ServerConnectionDto::getId, ServerConnectionDto::getIp, ServerConnectionDto::getPort, ServerConnectionDto::getClusterId, ServerConnectionDto::getPriority
+    );
+
+    // When each connection expires, pushed back on every keep alive so expiry checks only see what is due
+    protected final ExpiryWheel<String> expiryWheel = new ExpiryWheel<>();
+
+    // Expired CRITICAL connections are probed in parallel, capped so a mass expiry can not flood the network
+    protected final ProbeLimiter probes = new ProbeLimiter();
+
+    // How long a probed connection has to answer before it is terminated
+    public static final long PROBE_TIMEOUT_MILLIS = 2000;
 
     // Each class can have its own logger instance
     private static final Logger logger = LogManager.getLogger(ServerConnectionManager.class);
 
+    // Run once a tick. Only connections whose keep alive timeout has passed come out of the wheel, and nothing here waits on I/O
     public void checkExpiredConnections() {
 
-        // Create an iterator for the ConccurentHashMap since it needs an iterator
-        Iterator<Map.Entry<String , ServerConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()) {
-            // Check if each entry is expired, if it is, check the priority to see if it needs to be removed or kept alive
-            Map.Entry<String, ServerConnectionDto> entry = iterator.next();
-            if(new ServerConnectionDtoManager(entry.getValue()).isExpired()){
-                
-                if(entry.getValue().getPriority() == ServerPriority.CRITICAL){
-
-                    ServerPacket keepAliveProbe =  
-                        ServerKeepAliveService.createKeepAliveProbe(
-                            entry.getValue().getId()
-                        );
-
-                    boolean sendSuccess = new ServerConnectionDtoManager(entry.getValue()).send( keepAliveProbe );
-                    if(!sendSuccess) {
-                        logger.warn("Connection with Node: {} has been terminated due to failed retry!", entry.getValue().getId());
-                        terminateConnection(entry.getValue().getId());
-                    }
-                }
-                else {
-                    logger.warn("Connection with Node: {} has been terminated due to priority status!", entry.getValue().getId()); 
-                    terminateConnection(entry.getValue().getId());
-                }
+        for (String id : expiryWheel.advance()) {
+            ServerConnectionDto connection = activeConnections.get(id);
+
+            // Already gone, or a keep alive came in and rescheduled it since it was taken out of the wheel
+            if (connection == null || expiryWheel.contains(id)) {
+                continue;
+            }
+
+            // Check the priority to see if it needs to be removed or kept alive
+            if(connection.getPriority() == ServerPriority.CRITICAL){
+
+                ServerPacket keepAliveProbe =  
+                    ServerKeepAliveService.createKeepAliveProbe(
+                        connection.getId()
+                    );
+
+                // Probes go out in parallel (up to the limit) and never hold up the sweep, a probe that fails or times out terminates the connection
+                probes.submit(() -> new ServerConnectionDtoManager(connection).sendAsync(keepAliveProbe, PROBE_TIMEOUT_MILLIS))
+                    .whenComplete((response, e) -> {
+                        // Rescheduled by a keep alive while the probe was out, or already terminated
+                        if (expiryWheel.contains(id) || !activeConnections.containsKey(id)) {
+                            return;
+                        }
+                        if (e != null) {
+                            logger.warn("Connection with Node: {} has been terminated due to a failed keep alive probe!", connection.getId());
+                            terminateConnection(connection.getId());
+                        } else {
+                            // It answered the probe, so it gets another full timeout
+                            scheduleExpiry(connection);
+                        }
+                    });
+            }
+            else {
+                logger.warn("Connection with Node: {} has been terminated due to priority status!", connection.getId()); 
+                terminateConnection(connection.getId());
             }
         }
     }
 
+    /*
+     *      Asynchronous sending
+     */
+
+    /* Sends the packet to every connection at once without blocking the calling thread, batched with
+     * anything else going to the same connection.
+     * Completes with true once every connection has answered with an ACK, false if any did not (or there are none).
+     */
+    public CompletableFuture<Boolean> sendToAllAsync(ServerPacket packet) {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+
+        for (ServerConnectionDto connection : activeConnections.snapshot()) {
+            acks.add(
+                new ServerConnectionDtoManager(connection).sendBatched(packet)
+                    .thenApply(response -> response.getPacketType() == ServerPacketType.ACK)
+                    .exceptionally(e -> {
+                        logger.error("Failed sending {} to {}", packet.getPacketType(), connection.getId(), e);
+                        return false;
+                    })
+            );
+        }
+
+        if (acks.isEmpty()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.allOf(acks.toArray(CompletableFuture<?>[]::new))
+            .thenApply(done -> acks.stream().allMatch(CompletableFuture::join));
+    }
+
+    public CompletableFuture<Boolean> sendKeepAliveAsync(ServerPacket packet) { return sendToAllAsync(packet); }
+
     /*
      *      Response to expiry
      */
 
     public void terminateConnection(String id) {
-        ServerConnectionDto remove = activeConnections.get(id);
-        logger.info("Terminated Connection: \n  ID:" + remove.getId() 
-            + "\n  IP - " + remove.getIp() + ":" + remove.getPort()
+        // Removed first so two threads terminating the same connection only do it once
+        ServerConnectionDto remove = activeConnections.remove(id);
+        if (remove == null) {
+            return;
+        }
+        expiryWheel.cancel(remove.getId());
+        new ServerConnectionDtoManager(remove).closeSender();
+        logger.info(
+            "Terminated Connection: \n  ID:{}\n  IP - {}:{}",
+            remove.getId(),
+            remove.getIp(),
+            remove.getPort()
         );
-        activeConnections.remove(remove.getId());
+        new ConnectionTerminatedEvent().commit("Server", remove.getId(), remove.getIp(), remove.getPort(), remove.getPriority(), remove.getStats());
     }
 
     /*
@@ -88,10 +160,27 @@ public abstract class ServerConnectionManager {
     // Can allow for multiple connections to be added at once(if needed)
     public void addConnection(ServerConnectionDto... connection) {
         for(ServerConnectionDto connected : connection) {
-            activeConnections.put(connected.getId(), connected);
+            activeConnections.put(connected);
+            scheduleExpiry(connected);
+            new ConnectionAddedEvent().commit("Server", connected.getId(), connected.getIp(), connected.getPort(), connected.getPriority());
         }
     }
 
+    // A packet from this connection shows it is alive, so its expiry is pushed back a full keep alive timeout
+    public boolean updateLastActivity(String id) {
+        ServerConnectionDto connection = activeConnections.get(id);
+        if (connection == null) {
+            return false;
+        }
+        connection.updateLastActivity();
+        scheduleExpiry(connection);
+        return true;
+    }
+
+    private void scheduleExpiry(ServerConnectionDto connection) {
+        expiryWheel.schedule(connection.getId(), TimeUnit.SECONDS.toMillis(connection.getKeepAliveTimeout()));
+    }
+
     // When recieving a 
     public void updateById(String id, Object updator) {
         ServerConnectionDto updatee = activeConnections.get(id);
@@ -108,25 +197,21 @@ public abstract class ServerConnectionManager {
         return activeConnections.get(id);
     }
 
-    public LinkedHashMap<String, ServerConnectionDto> getActiveConnections() {
-        return activeConnections;
-    }
+    // A consistent copy, safe to iterate while connections come and go
+    public Map<String, ServerConnectionDto> getActiveConnections() { return activeConnections.snapshotMap(); }
+
+    public ConnectionRegistry<ServerConnectionDto> getRegistry() { return activeConnections; }
 
     public String[] getAllIds() {
-        return activeConnections.keySet().toArray(new String[0]);
+        return activeConnections.ids().toArray(new String[0]);
     }
 
-    public int getActiveConnectionCount() {
-
-        int connectionCount = 0;
-
-        Iterator<Map.Entry<String , ServerConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()){
-            connectionCount++;
-        }
+    public int getActiveConnectionCount() { return activeConnections.size(); }
 
-        return connectionCount;
+    // Every connection's traffic counters right now, by ID (see connection.ConnectionStats)
+    public Map<String, ConnectionStats.Snapshot> getStatsSnapshots() {
+        Map<String, ConnectionStats.Snapshot> snapshots = new LinkedHashMap<>();
+        activeConnections.forEach((id, connection) -> snapshots.put(id, connection.getStats().snapshot()));
+        return snapshots;
     }
 }
@@ -8,38 +8,20 @@
 
 package server.server_connections.server_connection_manager;
 
-import java.util.Iterator;
-import java.util.Map;
+import lib.InstanceContext;
 
-import server.server_connections.ServerConnectionDtoManager;
-import server.server_connections.ServerConnectionDto;
 import server.server_packet.ServerPacket;
 
 public class ServerCoordinatorConnectionManager extends ServerConnectionManager {
 
-    // Step 1: (For my sanity) create an instance variable
-    private static ServerCoordinatorConnectionManager instance;
-
-    // Step 2: Get instance (if one is not there it is created then returned)
-    public static synchronized ServerConnectionManager getInstance() {
-        if (instance == null) {
-            instance = new ServerCoordinatorConnectionManager();
-        }
-        return instance;
+    // Step 1: Get instance (if one is not there it is created then returned). One per running instance, see lib.InstanceContext
+    public static ServerConnectionManager getInstance() {
+        return InstanceContext.current().component(ServerCoordinatorConnectionManager.class, ServerCoordinatorConnectionManager::new);
     }
 
+    // The keep alive carries this server's nodes up to the coordinator, it goes out like sendKeepAliveAsync() (batched) and waits for the ACK
     @Override
     public boolean sendKeepAlive(ServerPacket keepAlive) {
-
-        boolean sent = false;
-
-        Iterator<Map.Entry<String , ServerConnectionDto>> iterator =
-            activeConnections.entrySet().iterator();
-
-        while(iterator.hasNext()){
-            Map.Entry<String, ServerConnectionDto> entry = iterator.next();
-            sent = new ServerConnectionDtoManager(entry.getValue()).send(keepAlive); 
-        }
-        return sent;
+        return sendKeepAliveAsync(keepAlive).join();
     }
 }
@@ -8,39 +8,34 @@
 
 package server.server_connections.server_connection_manager;
 
+import lib.InstanceContext;
+
+import server.server_connections.ServerConnectionDto;
 import server.server_connections.ServerConnectionDtoManager;
 import server.server_connections.ServerPriority;
 import server.server_packet.*;
 
 public class ServerNodeConnectionManager extends ServerConnectionManager {
 
-    // Step 1: (For my sanity) create an instance variable
-    private static ServerNodeConnectionManager instance;
-
-    // Step 2: Get instance (if one is not there it is created then returned)
-    public static synchronized ServerNodeConnectionManager getInstance() {
-        if (instance == null) {
-            instance = new ServerNodeConnectionManager();
-        }
-        return instance;
+    // Step 1: Get instance (if one is not there it is created then returned). One per running instance, see lib.InstanceContext
+    public static ServerNodeConnectionManager getInstance() {
+        return InstanceContext.current().component(ServerNodeConnectionManager.class, ServerNodeConnectionManager::new);
     }
 
     @Override
     public boolean sendKeepAlive(ServerPacket keepAliveProbe) {
 
-        activeConnections.forEach((id, connection) -> {
-            if(connection.getPriority() == ServerPriority.CRITICAL){
-
-                boolean keptAlive;
-
-                keptAlive = new ServerConnectionDtoManager(connection).send(keepAliveProbe);
+        // Straight from the priority index, and a copy so terminating inside the loop is safe
+        for (ServerConnectionDto connection : activeConnections.getByPriority(ServerPriority.CRITICAL)) {
 
+            // Retried off this thread, so one flapping connection does not hold up the rest
+            new ServerConnectionDtoManager(connection).sendWithRetry(keepAliveProbe).thenAccept(keptAlive -> {
                 // If the packet fails to send
                 if(!keptAlive) {
-                    terminateConnection(id);
+                    terminateConnection(connection.getId());
                 }
-            }
-        });
+            });
+        }
         return true;
     }
 
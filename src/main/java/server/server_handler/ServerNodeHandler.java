@@ -20,47 +20,68 @@
 
 package server.server_handler;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 import java.util.UUID;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.function.Function;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import listener.PacketProcessor;
+import listener.admission_control.AdmissionControl;
+
+import packet.codec.PacketCodecs;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+
+import sender.persistent_connection.PersistentConnectionPool;
+
 import server.server_connections.*;
 import server.server_connections.server_connection_manager.*;
 import server.server_handler.server_packet_type_handler.*;
 import server.server_handler.server_packet_type_handler.server_handler_response.ServerHandlerResponse;
-import server.server_lib.RuntimeTypeAdapterFactory;
+import lib.PacketLog;
+import lib.OrderedExecutor;
+import lib.PacketHeader;
+
+import connection.flight_recorder.PacketDecodeEvent;
+import connection.flight_recorder.PacketHandleEvent;
+import connection.metrics.PacketMetrics;
 
 import server.server_packet.*;
 import server.server_packet.server_packet_class.*;
 
-public class ServerNodeHandler implements Runnable {
+public class ServerNodeHandler implements Runnable, PacketProcessor {
 
     private static final Logger logger = LogManager.getLogger(ServerNodeHandler.class);
 
-    private static ServerConnectionManager nodeConnectionManager = ServerNodeConnectionManager.getInstance();
+    // The manager of the server this handler runs for
+    private ServerConnectionManager nodeConnectionManager = ServerNodeConnectionManager.getInstance();
 
     private Socket nodeSocket;
     private String nodeIP;
 
     private ServerPacket nodePacket;
 
-    private BufferedReader reader;
+    private FrameReader reader;
+    private OutputStream output;
+
+    // The response to the packet being processed when running under the NIO listener
+    private Frame pendingResponse;
+
+    // The format of the packet being handled, the response is sent back in the same one
+    private byte requestVersion = FrameCodec.VERSION_LEGACY;
 
     // This will will be instantiated based on the PacketType that needs to handle this. I.e initalizationHandler
     ServerPacketHandler packetHandler;    
@@ -75,6 +96,13 @@ public class ServerNodeHandler implements Runnable {
 
     public ServerNodeHandler(Socket socket) {
         this.nodeSocket = socket;
+        this.nodeIP = socket.getInetAddress().getHostAddress();
+        initActionMap();
+    }
+
+    // Used by the NIO listener, which reads the packets itself and only hands over the remote IP
+    public ServerNodeHandler(String remoteIp) {
+        this.nodeIP = remoteIp;
         initActionMap();
     }
 
@@ -111,6 +139,11 @@ public class ServerNodeHandler implements Runnable {
      * 
      */
 
+    // Connection id once the sender has one, before that (INITIALIZATION) the address it came from
+    private String orderKey(ServerPacket packet) {
+        return (packet.getId() != null) ? packet.getId() : nodeIP;
+    }
+
     private void readAction(ServerPacketType packetAction, ServerPacket nodePacket) {
         // Dictionary lookup
         actionMap.get(packetAction).apply(nodePacket);
@@ -170,17 +203,9 @@ public class ServerNodeHandler implements Runnable {
      * 
      */
 
-    private ServerPacket buildGsonWithPacketSubtype(ServerPacketType type, String json) {
-        RuntimeTypeAdapterFactory<ServerPacket> packetAdapterFactory =
-        RuntimeTypeAdapterFactory
-            .of(ServerPacket.class, "packetType")
-            .registerSubtype(ServerGenericPacket.class, type.name());
-
-        Gson tempGson = new GsonBuilder()
-            .registerTypeAdapterFactory(packetAdapterFactory)
-            .create();
-
-        return tempGson.fromJson(json, ServerPacket.class);
+    // Builds the whole packet, payload included, once its header has been accepted
+    private ServerPacket rebuildPacket(PacketHeader header) {
+        return header.toPacket(ServerPacket.class);
     }
 
     /*          End Packet Reconstruction
@@ -193,9 +218,16 @@ public class ServerNodeHandler implements Runnable {
     // This is a good response, it will be sent back to the server to ensure a packet was recieved 
     private void ack(ServerHandlerResponse packetResponse) {
 
+        LinkedHashMap<String, String> payload = packetResponse.combineMaps();
+
+        // Lets the node know this server reads frames, it switches over once it sees this (see FrameCodec)
+        if(nodePacket != null && nodePacket.getPacketType() == ServerPacketType.INITIALIZATION) {
+            payload.put(FrameCodec.FRAME_VERSION_KEY, String.valueOf(FrameCodec.CURRENT_VERSION));
+        }
+
         responsePacket = new ServerGenericPacket(
             ServerPacketType.ACK,        // Packet type
-            packetResponse.combineMaps()    // Payload
+            payload    // Payload
         );
         respond();
     }
@@ -222,48 +254,54 @@ public class ServerNodeHandler implements Runnable {
     // Takes an already initalized response packet and returns to sender
     private void respond() {
 
-        // Puts the contents of the packet to JSON with a non-JSON compatable delimiter at the end to be handled prior to pakcet content hanlding
-        String json = responsePacket.toDelimitedString();
+        // Puts the packet into the same format the request came in - a frame, or JSON with the non-JSON compatable delimiter at the end.
+        // It is handed back to whoever read the packet - the socket loop in run(), or the NIO event loop
+        pendingResponse = (requestVersion == FrameCodec.VERSION_LEGACY)
+            ? Frame.legacy(responsePacket.toDelimitedString())
+            : Frame.of(requestVersion, responsePacket.getPacketType(), responsePacket.toJson());
+    }
 
-        try{
-            // The responder object
-            PrintWriter output = new PrintWriter(
-                nodeSocket.getOutputStream(), 
-                true
+    // Handles one packet and returns its response, for both the socket loop and the NIO listener
+    @Override
+    public Frame process(Frame request) {
+        pendingResponse = null;
+        handleFrame(request);
+
+        // Every packet gets an answer, a pipelined sender matches the responses on a socket to its requests in order
+        if (pendingResponse == null) {
+            failure(new ServerHandlerResponse(
+                false,
+                new Exception("Packet was dropped without a response."),
+                "Unhandled Packet")
             );
-            // Send the jsonified packet as a response
-            output.println(json);
-            output.close();
-        } catch (IOException e) {
-            logger.error("Error sending response packet of type: " + responsePacket.getPacketType() + "\n"+ e);
         }
+        return pendingResponse;
     }
-    /*
-     *                      Main run loop
-     */
 
-    @Override
-    public void run() {
-        
-        logger.info(
-            "Node connected: \n\t"
-            + nodeSocket.getInetAddress().toString()
-            + ":" 
-            + nodeSocket.getPort()
-        );
+    // Handles a single packet, the response (if any) is left in pendingResponse
+    private void handleFrame(Frame frame) {
 
-        // Handle client events
+        // The handler is chosen per packet, never carry one over from the previous packet on this socket
+        packetHandler = null;
+
+        // Answer in the format the packet came in
+        requestVersion = frame.getVersion();
+
+        // A binary body (sent by a shared sender, see PacketCodecs) is read as the json of the same packet
+        String payload;
         try {
-            // This is what decodes the incoming packet
-            reader = new BufferedReader(
-                new InputStreamReader(
-                    nodeSocket.getInputStream()
-                )
+            payload = PacketCodecs.json(frame);
+        } catch (IOException e) {
+            failure(new ServerHandlerResponse(
+                false,
+                e,
+                "Malformed Packet")
             );
+            return; // Early exit
+        }
 
-            // Stores the payload as a string to check (and potentially remove) the delimiter
-            String payload = reader.readLine();
-
+        // A frame carries its length up front, only legacy lines end in the delimiter
+        if(frame.isLegacy()) {
             // Checks if the payload is properly terminated. If not, the packet is incomplete or an unsafe packet was sent
             if(payload.endsWith("||END||")){
                 payload = payload.substring(0, payload.length() - "||END||".length());
@@ -276,45 +314,115 @@ public class ServerNodeHandler implements Runnable {
                 );
                 return; // Early exit
             }
+        }
+
+        // Reads the packet as json
+        String json = payload;
+
+        // Checks if empty packet
+        if (json != null) {
+
+            long decodeStart = System.nanoTime();
+            PacketDecodeEvent decodeEvent = new PacketDecodeEvent();
+            decodeEvent.begin();
+
+            // Reads only the header fields, the payload is skipped over until the packet is known to be handled
+            PacketHeader header = PacketHeader.read(json);
+
+            String packetTypeStr = header.getPacketType();
+
+            // Covert the string to the ENUM packetType, null if it is not one
+            ServerPacketType packetType = header.packetType(ServerPacketType.class);
+
+            // Packets this handler has no action for are dropped without decoding their payload
+            if (packetType == null || !actionMap.containsKey(packetType)) {
+                logger.error("Recieved unknown packet of type: {}", packetTypeStr);
+                return; // Early exit
+            }
+
+            try {
+                // Reconstruct the recieved packet into a 'ServerPacket' type 
+                nodePacket = rebuildPacket(header);
+                PacketMetrics.DECODE.recordSince(packetType, decodeStart);
+                decodeEvent.commit(packetType, nodePacket.getId(), frame.getBody().length);
+                PacketMetrics.received(packetType, frame.getBody().length);
+                PacketLog.shared().record(PacketLog.Direction.IN, nodeIP, packetType, frame.getBody());
+                if (PacketLog.shared().sample(packetType)) {
+                    logger.info("Recieved {} from {}: {}", packetType, nodeIP, json);
+                }
+                PacketMetrics.traceDecoded(frame);
+
+                ServerConnectionDto node = nodeConnectionManager.getConnectionInfoById(nodePacket.getId());
+                if(node != null) {
+                    node.getStats().recordReceived(frame.getBody().length);
 
-            // Reads the packet as json
-            String json = payload;
+                    // A node that sends frames can read them too, so packets from the server to it are framed as well
+                    if(requestVersion != FrameCodec.VERSION_LEGACY) {
+                        node.setFrameVersion(requestVersion);
+                    }
+                }
+
+                //logger.info("Recieved:\n" + nodePacket.toJson());
+                // Packets from the same connection are processed one at a time, in the order they came in, on the shared pool
+                long handleStart = System.nanoTime();
+                PacketHandleEvent handleEvent = new PacketHandleEvent();
+                handleEvent.begin();
+                OrderedExecutor.shared().executeAndWait(orderKey(nodePacket), () -> readAction(packetType, nodePacket));
+                PacketMetrics.HANDLE.recordSince(packetType, handleStart);     // Includes any wait behind earlier packets from the same connection
+                handleEvent.commit(packetType, nodePacket.getId(), frame.getBody().length);
+                PacketMetrics.traceHandled(frame, packetType, header.getPacketId());
+            } catch(IllegalArgumentException e) {
+                logger.error("Recieved unknown packet of type: {}", packetTypeStr);
+                return; // Early exit
+            }
+        }
+    }
 
-            logger.info(json);
+    /*
+     *                      Main run loop
+     */
 
-            // Checks if empty packet
-            if (json != null) {
+    @Override
+    public void run() {
+        
+        logger.info(
+            "Node connected: \n\t{}:{}",
+            nodeSocket.getInetAddress().toString(),
+            nodeSocket.getPort()
+        );
 
-                // Grabs the server IP in order to be saved in config file
-                nodeIP = nodeSocket.getInetAddress().toString();
-                nodeIP = nodeIP.substring(1); // Removes the forward slash
+        // Handle client events
+        try {
+            // Persistent senders keep the socket open between packets, so give up on it once it goes quiet
+            nodeSocket.setSoTimeout(PersistentConnectionPool.RECEIVER_IDLE_TIMEOUT_MILLIS);
 
-                // Pre-parses the Json in order to grab the packetType to use for the switch statement
-                JsonObject jsonObj = JsonParser.parseString(json).getAsJsonObject();
+            // This is what decodes the incoming packets, framed or ||END|| delimited lines
+            reader = new FrameReader(nodeSocket.getInputStream());
 
-                String packetTypeStr = jsonObj.get("packetType").getAsString();
+            // Every response on this socket is written through the same stream
+            output = new BufferedOutputStream(nodeSocket.getOutputStream());
 
-                // Covert the string to the ENUM packetType
-                ServerPacketType packetType = ServerPacketType.valueOf(packetTypeStr);
+            Frame frame;
 
-                try {
-                    // Reconstruct the recieved packet into a 'ServerPacket' type 
-                    nodePacket = buildGsonWithPacketSubtype(packetType, json);
-                    //logger.info("Recieved:\n" + nodePacket.toJson());
-                    readAction(packetType, nodePacket); 
-                } catch(IllegalArgumentException e) {
-                    logger.error("Recieved unknown packet of type: " + packetTypeStr);
-                    return; // Early exit
+            // A sender may send any number of packets over this socket, one response is written per packet (or per batch)
+            while ((frame = AdmissionControl.whileIdle(reader::read)) != null) {
+                Frame response = processAll(frame);
+                if (response != null) {
+                    // The stream is left open since the sender may reuse this socket
+                    FrameCodec.write(output, response);
+                    output.flush();
                 }
             }
+        } catch (SocketTimeoutException e) {
+            logger.info("Closing idle connection from {}", nodeSocket.getInetAddress());
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             try {
-                if( reader != null){ reader.close(); }
+                if( output != null){ output.close(); }
                 if( nodeSocket != null && !nodeSocket.isClosed()) { nodeSocket.close(); }
             } catch (IOException e) {
-                logger.error("Error closing socket!\n" + e);
+                logger.error("Error closing socket!", e);
             }
         }
     }
@@ -71,7 +71,7 @@ public class ServerInitalizationHandler extends ServerPacketHandler{
             packetResponse.addCustomKeyValuePair("clusterId", clusterId);
 
         } catch(Exception e) {
-            logger.error("Error Handling packet\n"+e);
+            logger.error("Error Handling packet", e);
             // Generates the response to be put into the failure packet
             packetResponse = new ServerHandlerResponse(false, e, "Error Handling Packet.");
         }
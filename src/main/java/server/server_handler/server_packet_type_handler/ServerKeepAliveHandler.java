@@ -17,8 +17,6 @@ import server.server_connections.server_connection_manager.ServerConnectionManag
 import server.server_handler.server_packet_type_handler.server_handler_response.ServerHandlerResponse;
 
 public class ServerKeepAliveHandler extends ServerPacketHandler{
-    
-    private static ServerConnectionManager connectionManager;
 
     private static final Logger logger = LogManager.getLogger(ServerKeepAliveHandler.class);
 
@@ -35,7 +33,7 @@ public class ServerKeepAliveHandler extends ServerPacketHandler{
             // Generates the success response to be put into the ack packet 
             packetResponse = new ServerHandlerResponse(true, "Recieved");
         } catch(Exception e) {
-            logger.error("Error handling Keep Alive packet from server: {}.\n {} ", recievedPacket.getId(), e);
+            logger.error("Error handling Keep Alive packet from server: {}.", recievedPacket.getId(), e);
             // Generates the response to be put into the failure packet
             packetResponse = new ServerHandlerResponse(false, e, "Error Handling Packet.");
         }
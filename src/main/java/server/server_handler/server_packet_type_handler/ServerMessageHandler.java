@@ -49,7 +49,7 @@ public class ServerMessageHandler extends ServerPacketHandler{
             packetResponse = new ServerHandlerResponse(true, "Recieved");
 
         } catch(Exception e) {
-            logger.error("Error Handling packet\n"+e);
+            logger.error("Error Handling packet", e);
             // Generates the response to be put into the failure packet
             packetResponse = new ServerHandlerResponse(false, e, "Error Handling Packet.");
         }
@@ -15,6 +15,8 @@ package server.server_handler.server_packet_type_handler;
 
 import java.util.*;
 
+import lib.PacketLog;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -27,7 +29,8 @@ import server.server_services.ServerClusterManager;
 public abstract class ServerPacketHandler {
 
     // Gets sent into the constructor for the child class (E.g. new ServerMessageHandler(ServerCoordinatorConnectionManager.getInstance()))
-    protected static ServerConnectionManager connectionManager;
+    // Not static - every server running in the JVM has its own (see lib.InstanceContext)
+    protected ServerConnectionManager connectionManager;
 
     private static final Logger logger = LogManager.getLogger(ServerPacketHandler.class);
 
@@ -49,11 +52,14 @@ public abstract class ServerPacketHandler {
         this.recievedPacket = recievedPacket;
 
         // Print out the packet 
-        logger.info(
-            "\n\tID: \t" + recievedPacket.getId() 
-            + "\n\tPacket Type: \t" + recievedPacket.getPacketType() 
-            + "\n\tPayload: \t" + recievedPacket.getPayload()
-        );
+        if (PacketLog.shared().sample(recievedPacket.getPacketType())) {
+            logger.info(
+                "\n\tID: \t{}\n\tPacket Type: \t{}\n\tPayload: \t{}",
+                recievedPacket.getId(),
+                recievedPacket.getPacketType(),
+                recievedPacket.getPayload()
+            );
+        }
 
         // Grab the payload from the packet
         LinkedHashMap<String, String> payload = recievedPacket.getPayload();
@@ -80,11 +86,9 @@ public abstract class ServerPacketHandler {
             return process();
         }
 
-        try{ 
-            // This gets the connected senders ID from storage and updates the last activity since it is clearly sending packets
-            connectionManager.getConnectionInfoById(recievedPacket.getId()).updateLastActivity();
-        } catch (NullPointerException e) {
-            logger.error("ID: " + recievedPacket.getId() + " was not found!\n" + e);
+        // Updates the last activity of the sender since it is clearly sending packets, which also pushes back its expiry
+        if(!connectionManager.updateLastActivity(recievedPacket.getId())) {
+            logger.error("ID: {} was not found!", recievedPacket.getId());
              // TODO: if the ID is not found in the connectionManager send a re-INIT packet to assign an ID
         }
             // TODO: 
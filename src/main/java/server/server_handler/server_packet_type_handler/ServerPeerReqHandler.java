@@ -11,7 +11,6 @@
  */
 package server.server_handler.server_packet_type_handler;
 
-import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
@@ -39,7 +38,7 @@ public class ServerPeerReqHandler extends ServerPacketHandler {
         try{
             ServerNodeConnectionManager nodeConnManager = ServerNodeConnectionManager.getInstance();
 
-            LinkedHashMap<String, ServerConnectionDto> nodeMap = nodeConnManager.getActiveConnections();
+            Map<String, ServerConnectionDto> nodeMap = nodeConnManager.getActiveConnections();
 
             String reqId = null;
             
@@ -57,7 +56,7 @@ public class ServerPeerReqHandler extends ServerPacketHandler {
 
 
         } catch(Exception e) {
-            logger.error("Error Handling packet\n"+e);
+            logger.error("Error Handling packet", e);
             // Generates the response to be put into the failure packet
             //packetResponse = new ServerHandlerResponse(false, e, "Error Handling Packet.");
         }
@@ -11,68 +11,170 @@ package server.server_listener;
 import java.io.*;
 import java.net.*;
 
+import java.nio.file.Path;
+
+import java.util.LinkedHashMap;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import listener.ListenerMode;
+import listener.NioListener;
+import listener.admission_control.AdmissionControl;
+import listener.admission_control.LaneMemoryServerSocket;
+import listener.admission_control.LaneServerSocket;
+import listener.admission_control.LaneUnixServerSocket;
+import listener.handler_executor.HandlerExecutor;
+import listener.handler_executor.HandlerExecutorMode;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+
+import sender.retry_policy.RetryPolicy;
+
+import connection.transport.TransportSelector;
+
+import lib.InstanceContext;
+
 import server.server_handler.ServerCoordinatorHandler;
 import server.server_handler.ServerNodeHandler;
+import server.server_packet.ServerPacketType;
+import server.server_packet.server_packet_class.ServerGenericPacket;
 
 public class ServerListener implements Runnable {
 
     private static final Logger logger = LogManager.getLogger(ServerListener.class);
     
-    private Socket connected;   // This is the socket sent to the handler after the connection has been made by the listener
     private ServerSocket listenerSocket;    // this is the active listening socket
+    private ServerSocket unixListenerSocket;    // Only opened when peers on this host may connect over a unix domain socket
     private int port;   
     private int timeout;
 
     private String type;
 
+    private NioListener nioListener;    // Only created when the listener runs in NIO mode, then listenerSocket is never opened
+
+    private AdmissionControl admissionControl;    // Queues (or turns away) each accepted connection before its handler runs, in blocking mode
+
     // Constructor
     public ServerListener(int port, int timeout, String type) throws IOException {
+        this(
+            port, timeout, type, ListenerMode.BLOCKING, 0,
+            new AdmissionControl(
+                "Server-" + type,
+                HandlerExecutor.create(HandlerExecutorMode.THREAD, 0, "Server-" + type),
+                ServerListener::overloadResponse
+            )
+        );
+    }
+
+    public ServerListener(int port, int timeout, String type, ListenerMode mode, int ioThreads, AdmissionControl admissionControl) throws IOException {
         this.port = port;
         this.timeout = timeout;
         this.type = type;
-        this.listenerSocket = new ServerSocket(port);
-        this.listenerSocket.setSoTimeout(timeout);
+        this.admissionControl = admissionControl;
+
+        // Every instance is in this JVM, so there is nothing for the NIO selector to select on
+        boolean inMemory = TransportSelector.shared().listensInMemory();
+        if(mode == ListenerMode.NIO && inMemory) {
+            logger.warn("NIO listeners can not listen in memory, listening on port {} in blocking mode instead", port);
+        }
+
+        if(mode == ListenerMode.NIO && !inMemory) {
+            this.nioListener = new NioListener(
+                port,
+                ioThreads,
+                "Server-" + type,
+                remoteIp -> type.equals("node")
+                    ? new ServerNodeHandler(remoteIp)
+                    : new ServerCoordinatorHandler(remoteIp),
+                unixSocketPath()
+            );
+        } else if(inMemory) {
+            this.listenerSocket = new LaneMemoryServerSocket(InstanceContext.current().getHost(), port);
+            this.listenerSocket.setSoTimeout(timeout);
+        } else {
+            this.listenerSocket = new LaneServerSocket(port);    // Lets admission control see each connection's lane
+            this.listenerSocket.setSoTimeout(timeout);
+            if(unixSocketPath() != null) {
+                this.unixListenerSocket = new LaneUnixServerSocket(unixSocketPath(), port);
+                this.unixListenerSocket.setSoTimeout(timeout);
+            }
+        }
     }
 
     @Override
     public void run(){  
 
-        logger.info("Listening on port " + this.port);
+        // The NIO listener runs its own accept loop and I/O threads
+        if(nioListener != null) {
+            nioListener.run();
+            return;
+        }
 
-        boolean on = true;
+        // Peers on this host connect here instead, handled exactly the same
+        if(unixListenerSocket != null) {
+            new Thread(() -> acceptLoop(unixListenerSocket), "Server-" + type + "-uds").start();
+            logger.info("Listening on {}", unixSocketPath());
+        }
 
-        //TODO: Look into thread pool since the server will have a lot of clients
+        logger.info("Listening on port {}", this.port);
+        acceptLoop(listenerSocket);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        boolean on = true;
 
         while(on){
             try {
                 if(type.equals("node")) {
-                    connected = listenerSocket.accept();
-                    Thread handlerThread = new Thread(
-                        new ServerNodeHandler(connected)
-                    ); // sends the message to a handler
-                    handlerThread.start(); // Begins the new thread
+                    Socket connected = serverSocket.accept();
+                    // sends the message to a handler, run on a thread, pool or virtual thread depending on Server.handlerMode
+                    // once admission control lets it in
+                    admissionControl.submit(connected, new ServerNodeHandler(connected));
                 } else if (type.equals("coordinator")) {
-                    connected = listenerSocket.accept();
-                    Thread handlerThread = new Thread(
-                        new ServerCoordinatorHandler(connected)
-                    ); // sends the message to a handler
-                    handlerThread.start(); // Begins the new thread
+                    Socket connected = serverSocket.accept();
+                    admissionControl.submit(connected, new ServerCoordinatorHandler(connected));
                 }
             } catch (SocketTimeoutException sto) {
                 // You need this exception handling here because it will brick at trying to start the connection
                 // Did not add any handling to this exception as it would constatly throw an error, so this just prevents it from clogging up the console
             } catch (IOException ioe) {
-                logger.error("IOException!\n" + ioe);
+                if(serverSocket.isClosed()) {
+                    on = false;     // closeSocket() was called
+                } else {
+                    logger.error("IOException!\n{}", ioe);
+                }
             } catch (Exception e) {
-                logger.error("Unknown Exception!\n" + e);
+                logger.error("Unknown Exception!", e);
             }
         }
     }
 
+    // Where this listener's unix domain socket goes, null when the tier only uses TCP
+    private Path unixSocketPath() {
+        TransportSelector transports = TransportSelector.shared();
+        return transports.listensOnUnixSocket() ? transports.socketPath(port) : null;
+    }
+
+    // What a connection that is turned away gets back, an ERROR telling the sender how long to stay away
+    public static Frame overloadResponse(byte version, long retryAfterMillis) {
+        LinkedHashMap<String, String> payload = new LinkedHashMap<>();
+        payload.put("message", "Server is overloaded");
+        payload.put(RetryPolicy.RETRY_AFTER_KEY, String.valueOf(retryAfterMillis));
+
+        ServerGenericPacket errorPacket = new ServerGenericPacket(ServerPacketType.ERROR, payload);
+
+        return (version == FrameCodec.VERSION_LEGACY)
+            ? Frame.legacy(errorPacket.toDelimitedString())
+            : Frame.of(version, errorPacket.getPacketType(), errorPacket.toJson());
+    }
+
     /*          Accessor methods        */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
     public int getActivePort() {
         return port;
     }
@@ -91,19 +193,32 @@ public class ServerListener implements Runnable {
 
     public void changeTimeout(int newTimeout) {
         timeout = newTimeout;
+        if(nioListener != null) {
+            return; // The NIO accept loop blocks without a timeout
+        }
         try {
             listenerSocket.setSoTimeout(timeout);
+            if(unixListenerSocket != null) {
+                unixListenerSocket.setSoTimeout(timeout);
+            }
         } catch (Exception e) {
-            logger.error("Error setting new timeout on socket: ( " + port + " )\n" + e);
+            logger.error("Error setting new timeout on socket: ( {} )", port, e);
         }
     }
 
     public boolean closeSocket() {
+        if(nioListener != null) {
+            logger.info("Closing socket on port: + ( {} )\n", port);
+            return nioListener.close();
+        }
         try{
-            logger.info("Closing socket on port: + ( " + port + " )\n");
+            logger.info("Closing socket on port: + ( {} )\n", port);
             listenerSocket.close();
+            if(unixListenerSocket != null) {
+                unixListenerSocket.close();
+            }
         } catch(Exception e) {
-            logger.error("Error Closing socket on port: ( " + port + " )\n" + e);
+            logger.error("Error Closing socket on port: ( {} )", port, e);
             return false;
         }
         return true;
@@ -17,6 +17,7 @@ package server.server_packet;
 import java.util.LinkedHashMap;
 
 import com.google.gson.Gson;    // external library that allows for jsonify of java objects. Located in root/lib 
+import com.google.gson.annotations.SerializedName;
 
 import server.edge_server.EdgeServer;
 import server.server_services.ServerClusterManager;
@@ -25,6 +26,8 @@ public abstract class ServerPacket {
 
     protected int payloadPairCounter = 0;
 
+    // An AbstractPacket (see PacketCodecs.json()) names the same field senderId
+    @SerializedName(value = "id", alternate = {"senderId"})
     protected String id;
 
     protected String clusterId;
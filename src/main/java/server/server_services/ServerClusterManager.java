@@ -12,20 +12,25 @@ import java.util.Base64;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import lib.InstanceContext;
 
 public class ServerClusterManager {
     private static final SecureRandom secureRandom = new SecureRandom();
 
-    private static String clusterId;
+    // Every server running in the JVM has its own cluster (see lib.InstanceContext)
+    private static final class ClusterIdentity {
+        volatile String clusterId;
+    }
 
     private static final Logger logger = LogManager.getLogger(ServerClusterManager.class);
     
 
     public static void initializeClusterIdentity() {
 
-        clusterId = generateId();
+        String clusterId = generateId();
+        identity().clusterId = clusterId;
 
-        logger.info("Created Cluster ID : " + clusterId);
+        logger.info("Created Cluster ID : {}", clusterId);
 
     }
 
@@ -35,5 +40,9 @@ public class ServerClusterManager {
         return Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes);
     }
 
-    public static String getClusterId() { return clusterId; }
+    public static String getClusterId() { return identity().clusterId; }
+
+    private static ClusterIdentity identity() {
+        return InstanceContext.current().component(ClusterIdentity.class, ClusterIdentity::new);
+    }
 }
\ No newline at end of file
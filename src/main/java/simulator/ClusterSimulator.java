@@ -0,0 +1,270 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Runs a whole hierarchy in one JVM - a coordinator, a few servers and a lot of nodes - to see how the
+ *      servers hold up with thousands of nodes without a rack of machines to run them on.
+ *
+ *      Every instance has its own InstanceContext (its ids, connection managers, listeners and config) and
+ *      its own made up IP, and they all talk over the in memory transport, so no socket is ever opened. The
+ *      code that runs is the same code EdgeServer.main() and EdgeNode.main() run - the same senders, framing,
+ *      admission control and handlers.
+ *
+ *      Once every node has registered with its server, each node sends some MESSAGE packets and the time
+ *      until the ACK comes back is put in a histogram.
+ *
+ *      Every instance still has its own listener and handler threads, so a few thousand nodes means a few
+ *      thousand threads.
+ *
+ *      Usage:
+ *          java simulator.ClusterSimulator [servers] [nodesPerServer] [messagesPerNode]
+ */
+package simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import listener.admission_control.AdmissionControl;
+
+import lib.Histogram;
+import lib.InstanceContext;
+import lib.OrderedExecutor;
+
+import connection.transport.MemoryTransport;
+import connection.transport.TransportMode;
+import connection.transport.TransportSelector;
+
+import coordinator.coordinator_config.CoordinatorConfig;
+import coordinator.edge_coordinator.EdgeCoordinator;
+
+import server.server_config.ServerConfig;
+import server.edge_server.EdgeServer;
+
+import node.node_config.NodeConfig;
+import node.edge_node.EdgeNode;
+import node.node_packet.NodePacketType;
+import node.node_packet.node_packet_class.NodeGenericPacket;
+
+public class ClusterSimulator {
+
+    private static final Logger logger = LogManager.getLogger(ClusterSimulator.class);
+
+    // Every instance is on its own IP, so they can all use the usual ports
+    private static final String COORDINATOR_IP = "10.0.0.1";
+    private static final int COORDINATOR_PORT = 4001;
+    private static final int SERVER_COORDINATOR_PORT = 5003;
+    private static final int SERVER_NODE_PORT = 5004;
+    private static final int NODE_PORT = 6001;
+
+    // How many instances start or send at once
+    private static final int STARTUP_THREADS = 32;
+
+    private final int servers;
+    private final int nodesPerServer;
+
+    private final List<InstanceContext> nodeContexts = new ArrayList<>();
+    private final List<EdgeNode> nodes = new ArrayList<>();
+
+    private final Histogram latencies = new Histogram("node->server MESSAGE", "us");
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public ClusterSimulator(int servers, int nodesPerServer) {
+        this.servers = servers;
+        this.nodesPerServer = nodesPerServer;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int servers = intArg(args, 0, 2);
+        int nodesPerServer = intArg(args, 1, 100);
+        int messagesPerNode = intArg(args, 2, 10);
+
+        // Process wide, set once here instead of by each instance
+        TransportSelector.configure(TransportMode.MEMORY, null);
+        OrderedExecutor.configure(0);
+
+        ClusterSimulator simulator = new ClusterSimulator(servers, nodesPerServer);
+        simulator.start();
+        simulator.sendMessages(messagesPerNode);
+        simulator.report();
+
+        System.exit(0);
+    }
+
+    // Starts the coordinator, then the servers, then every node (each node registers with its server as it starts)
+    public void start() throws InterruptedException {
+        long startNanos = System.nanoTime();
+
+        InstanceContext coordinatorContext = new InstanceContext("coordinator", COORDINATOR_IP);
+        coordinatorContext.run(() -> {
+            EdgeCoordinator coordinator = new EdgeCoordinator(new CoordinatorConfig(coordinatorProperties()));
+            coordinator.init();
+            coordinator.start();
+        });
+
+        for (int s = 1; s <= servers; s++) {
+            String serverIp = serverIp(s);
+            InstanceContext serverContext = new InstanceContext("server-" + s, serverIp);
+            serverContext.run(() -> {
+                EdgeServer server = new EdgeServer(new ServerConfig(serverProperties(serverIp, nodesPerServer)));
+                server.init();
+                server.start();
+            });
+        }
+        logger.info("Started the coordinator and {} servers", servers);
+
+        ExecutorService startup = Executors.newFixedThreadPool(STARTUP_THREADS);
+        for (int s = 1; s <= servers; s++) {
+            for (int n = 0; n < nodesPerServer; n++) {
+                String nodeIp = nodeIp(s, n);
+                String serverIp = serverIp(s);
+                InstanceContext nodeContext = new InstanceContext("node-" + s + "-" + n, nodeIp);
+                nodeContexts.add(nodeContext);
+
+                // Made here so the list is in order, init() waits on the server so that is done in parallel
+                EdgeNode[] node = new EdgeNode[1];
+                nodeContext.run(() -> node[0] = new EdgeNode(new NodeConfig(nodeProperties(nodeIp, serverIp))));
+                nodes.add(node[0]);
+
+                startup.execute(nodeContext.wrap(() -> {
+                    node[0].init();
+                    node[0].start();
+                }));
+            }
+        }
+        startup.shutdown();
+        startup.awaitTermination(10, TimeUnit.MINUTES);
+
+        logger.info(
+            "Started {} nodes in {}ms, {} listeners bound in memory",
+            nodes.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+            MemoryTransport.getListeningCount()
+        );
+    }
+
+    // Every node sends its messages one after the other, STARTUP_THREADS nodes at a time
+    public void sendMessages(int messagesPerNode) throws InterruptedException {
+        long startNanos = System.nanoTime();
+
+        ExecutorService senders = Executors.newFixedThreadPool(STARTUP_THREADS);
+        for (int i = 0; i < nodes.size(); i++) {
+            EdgeNode node = nodes.get(i);
+            senders.execute(nodeContexts.get(i).wrap(() -> {
+                for (int m = 0; m < messagesPerNode; m++) {
+                    long sentNanos = System.nanoTime();
+                    boolean acked = node.send(new NodeGenericPacket(NodePacketType.MESSAGE, EdgeNode.getNodeID(), "simulated message " + m));
+                    if (acked) {
+                        latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos));
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        senders.shutdown();
+        senders.awaitTermination(30, TimeUnit.MINUTES);
+
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        logger.info(
+            "Sent {} messages in {}ms ({} acked/s)",
+            (latencies.getCount() + failed.get()),
+            elapsedMillis,
+            (latencies.getCount() * 1000 / elapsedMillis)
+        );
+    }
+
+    public void report() {
+        int registered = 0;
+        for (InstanceContext nodeContext : nodeContexts) {
+            if (nodeContext.component(EdgeNode.class) != null && nodeIdOf(nodeContext) != null) {
+                registered++;
+            }
+        }
+        logger.info(
+            "\n\tServers: {}\n\tNodes: {} ({} got an ID from their server)\n\tFailed sends: {}\n\tThreads: {}\n\t{}",
+            servers,
+            nodes.size(),
+            registered,
+            failed.get(),
+            Thread.activeCount(),
+            latencies
+        );
+    }
+
+    private static String nodeIdOf(InstanceContext nodeContext) {
+        try {
+            return nodeContext.call(EdgeNode::getNodeID);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /*
+     *      Made up addresses - server s is 10.s.0.1, its nodes are 10.s.1.1 and up
+     */
+
+    private static String serverIp(int server) {
+        return "10." + server + ".0.1";
+    }
+
+    private static String nodeIp(int server, int node) {
+        return "10." + server + "." + (1 + node / 250) + "." + (1 + node % 250);
+    }
+
+    /*
+     *      Each instance's config, in place of its properties file
+     */
+
+    private static Properties coordinatorProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("Coordinator.IP", COORDINATOR_IP);
+        properties.setProperty("Coordinator.listeningPort", String.valueOf(COORDINATOR_PORT));
+        properties.setProperty("Coordinator.transport", "memory");
+        return properties;
+    }
+
+    private static Properties serverProperties(String serverIp, int nodes) {
+        Properties properties = new Properties();
+
+        // A node keeps a socket per lane open to its server, and in blocking mode each one holds a handler for as long as it is open
+        properties.setProperty("Server.maxConcurrentHandlers", String.valueOf(Math.max(AdmissionControl.DEFAULT_MAX_CONCURRENT, 2 * nodes)));
+        properties.setProperty("Server.maxQueuedConnections", String.valueOf(Math.max(AdmissionControl.DEFAULT_MAX_QUEUED, 2 * nodes)));
+
+        properties.setProperty("Server.IP", serverIp);
+        properties.setProperty("Server.coordinatorListeningPort", String.valueOf(SERVER_COORDINATOR_PORT));
+        properties.setProperty("Server.nodeListeningPort", String.valueOf(SERVER_NODE_PORT));
+        properties.setProperty("Coordinator.IP", COORDINATOR_IP);
+        properties.setProperty("Coordinator.listeningPort", String.valueOf(COORDINATOR_PORT));
+        properties.setProperty("Server.transport", "memory");
+        return properties;
+    }
+
+    private static Properties nodeProperties(String nodeIp, String serverIp) {
+        Properties properties = new Properties();
+        properties.setProperty("Node.IP", nodeIp);
+        properties.setProperty("Node.listeningPort", String.valueOf(NODE_PORT));
+        properties.setProperty("Server.IP", serverIp);
+        properties.setProperty("Server.listeningPort", String.valueOf(SERVER_NODE_PORT));
+        properties.setProperty("Node.transport", "memory");
+        return properties;
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        if (args.length <= index) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(args[index]);
+        } catch (NumberFormatException e) {
+            logger.error("Not a number: ( {} ) using {}", args[index], defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Every call site sends through a fresh ConnectionDtoManager (new ConnectionDtoManager(dto).send(packet)).
+ *      They have to share the one sender the ConnectionDto holds, and nothing about a send may start a thread
+ *      that outlives it - thousands of sends later the JVM has the same threads it had after the first few.
+ */
+package connection;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import lib.FramePeer;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+import packet.codec.PacketClasses;
+import packet.frame.Frame;
+import packet.frame.FrameBatch;
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+import packet.keep_alive.KeepAlivePacket;
+import packet.message_packet.MessagePacket;
+
+import sender.AbstractSender;
+
+class ConnectionDtoManagerTest {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private static final int WARM_UP_SENDS = 300;
+    private static final int SUSTAINED_SENDS = 3000;
+
+    // Cached pools (pipeline writers, batch flushers, retry workers) grow and shrink a little with load
+    private static final int THREAD_SLACK = 8;
+
+    private FramePeer peer;
+    private ConnectionDto connection;
+
+    @BeforeEach
+    void start() throws Exception {
+        peer = FramePeer.tcp(ConnectionDtoManagerTest::ack);
+        connection = new ConnectionDto("node-1", LOOPBACK, peer.getPort(), Priority.CRITICAL);
+        connection.setPersistentConnection(true);
+        connection.setFrameVersion(FrameCodec.CURRENT_VERSION);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        new ConnectionDtoManager(connection).closeSender();
+        peer.close();
+    }
+
+    // An ACK for every packet, a BATCH of them for a BATCH
+    private static Frame ack(Frame request) {
+        try {
+            if (request.getType() != FrameType.BATCH) {
+                return ackFor(request);
+            }
+            List<Frame> acks = new ArrayList<>();
+            for (Frame packet : FrameBatch.decode(request)) {
+                acks.add(ackFor(packet));
+            }
+            return FrameBatch.encode(request.getVersion(), acks);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Frame ackFor(Frame request) {
+        AbstractPacket ack = PacketClasses.create(PacketType.ACK, "server-1", "cluster-1", null);
+        ack.addKeyValueToPayload("message", "Recieved");
+        return Frame.of(request.getVersion(), ack.getPacketType(), ack.toJson());
+    }
+
+    // Sends the way the tiers do, through a new manager each time, every flavour of send
+    private void send(int count) throws Exception {
+        List<CompletableFuture<?>> waiting = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ConnectionDtoManager manager = new ConnectionDtoManager(connection);
+            switch (i % 4) {
+                case 0:
+                    assertTrue(manager.send(new KeepAlivePacket("node-1", "cluster-1", null, false)));
+                    break;
+                case 1:
+                    waiting.add(manager.sendAsync(message()));
+                    break;
+                case 2:
+                    waiting.add(manager.sendBatched(message()));
+                    break;
+                default:
+                    waiting.add(manager.sendWithRetry(message()));
+                    break;
+            }
+            if (waiting.size() >= 64) {
+                CompletableFuture.allOf(waiting.toArray(CompletableFuture<?>[]::new)).get(10, TimeUnit.SECONDS);
+                waiting.clear();
+            }
+        }
+        CompletableFuture.allOf(waiting.toArray(CompletableFuture<?>[]::new)).get(10, TimeUnit.SECONDS);
+    }
+
+    private static MessagePacket message() {
+        MessagePacket message = new MessagePacket("node-1", "cluster-1", null);
+        message.addKeyValueToPayload("reading", "42");
+        return message;
+    }
+
+    @Test
+    void threadCountStaysFlatUnderSustainedSending() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        send(WARM_UP_SENDS);    // Starts the shared timer, the pooled sockets' readers and the pools once
+        AbstractSender sender = connection.getSender();
+        assertNotNull(sender);
+        int warmedUp = threads.getThreadCount();
+
+        send(SUSTAINED_SENDS);
+        int after = threads.getThreadCount();
+
+        assertTrue(
+            after <= warmedUp + THREAD_SLACK,
+            warmedUp + " threads after warming up, " + after + " after " + SUSTAINED_SENDS + " more sends"
+        );
+        assertSame(sender, connection.getSender(), "every manager should reuse the connection's sender");
+    }
+
+    @Test
+    void terminatingTheConnectionClosesItsSender() throws Exception {
+        ConnectionManager manager = new ConnectionManager("server-1", "cluster-1", "Test") {
+            @Override
+            public boolean sendKeepAlive(AbstractPacket packet) { return false; }
+        };
+        manager.addConnection(connection);
+
+        send(4);
+        assertNotNull(connection.getSender());
+
+        manager.terminateConnection(connection.getId());
+        assertNull(connection.getSender());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Loopback TCP vs a unix domain socket: us per packet round trip to a peer on the same host, through a
+ *      PersistentConnection like the tiers' senders. The peer answers every frame with the frame it read, one
+ *      write per answer like the listeners. TransportSelector picks the transport, TCP for "tcp" and UDS for
+ *      "uds" (the peer listens on both, like a tier with Tier.transport=auto).
+ *
+ *      See Development in the README for how to run it.
+ */
+package connection.transport;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib.FramePeer;
+
+import packet.AbstractPacket;
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.keep_alive.KeepAlivePacket;
+import packet.message_packet.MessagePacket;
+
+import sender.persistent_connection.PersistentConnection;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportLatencyBenchmark {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    @Param({ "tcp", "uds" })
+    public String transport;
+
+    @Param({ "keepAlive", "message4k" })
+    public String packet;
+
+    private Path socketDir;
+    private FramePeer tcpPeer;
+    private FramePeer udsPeer;
+    private PersistentConnection connection;
+    private Frame request;
+
+    @Setup
+    public void setup() throws IOException {
+        socketDir = Files.createTempDirectory("des-bench");
+        TransportSelector.configure(transport.equals("uds") ? TransportMode.UDS : TransportMode.TCP, socketDir.toString());
+
+        tcpPeer = FramePeer.tcp();
+        int port = tcpPeer.getPort();
+        if (transport.equals("uds")) {
+            udsPeer = new FramePeer(new UnixDomainServerSocket(TransportSelector.shared().socketPath(port), port), frame -> frame);
+        }
+
+        AbstractPacket sample;
+        if (packet.equals("keepAlive")) {
+            sample = new KeepAlivePacket(UUID.randomUUID().toString(), UUID.randomUUID().toString(), null, false);
+        } else {
+            MessagePacket message = new MessagePacket(UUID.randomUUID().toString(), UUID.randomUUID().toString(), null);
+            message.addKeyValueToPayload("reading", "x".repeat(4096));
+            sample = message;
+        }
+        request = Frame.of(FrameCodec.CURRENT_VERSION, sample.getPacketType(), sample.toJson());
+
+        connection = new PersistentConnection(LOOPBACK, port, 1000);
+        connection.exchange(request);    // Opens the socket outside the measurement
+        if (udsPeer != null && udsPeer.getAcceptedCount() == 0) {
+            throw new IllegalStateException("Connected over TCP, not " + TransportSelector.shared().socketPath(port));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        connection.close();
+        tcpPeer.close();
+        if (udsPeer != null) {
+            udsPeer.close();
+        }
+        TransportSelector.configure(TransportMode.TCP, null);
+        Files.deleteIfExists(socketDir.resolve("des-" + tcpPeer.getPort() + ".sock"));
+        Files.deleteIfExists(socketDir);
+    }
+
+    @Benchmark
+    public Frame roundTrip() throws IOException {
+        return connection.exchange(request);
+    }
+}
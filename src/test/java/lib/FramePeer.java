@@ -0,0 +1,136 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A stand in peer for the tests. Accepts on any ServerSocket (TCP, or a UnixDomainServerSocket) and answers
+ *      every frame it reads, in order, with whatever the answer function returns for it - by default the frame
+ *      it read.
+ *
+ *      Each accepted socket gets its own thread, like the tier listeners in thread mode. It can be told to wait
+ *      before answering, to simulate a slow peer, or to hang up after every answer, like a pre-persistent peer.
+ *
+ *      Usage:
+ *          try (FramePeer peer = FramePeer.tcp()) {
+ *              PersistentConnection connection = new PersistentConnection("127.0.0.1", peer.getPort(), 1000);
+ *              connection.exchange(frame);
+ *          }
+ */
+package lib;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+
+public class FramePeer implements Closeable {
+
+    private final ServerSocket server;
+    private final Function<Frame, Frame> answer;
+
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicInteger answered = new AtomicInteger();
+
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+    private volatile long delayMillis = 0;
+    private volatile boolean closeAfterEach = false;
+
+    public FramePeer(ServerSocket server, Function<Frame, Frame> answer) {
+        this.server = server;
+        this.answer = answer;
+
+        Thread acceptor = new Thread(this::acceptLoop, "FramePeer-Accept-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // An echo peer on a free loopback port
+    public static FramePeer tcp() throws IOException {
+        return tcp(frame -> frame);
+    }
+
+    public static FramePeer tcp(Function<Frame, Frame> answer) throws IOException {
+        return new FramePeer(new ServerSocket(0, 1024, InetAddress.getLoopbackAddress()), answer);
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                accepted.incrementAndGet();
+                open.add(socket);
+
+                Thread handler = new Thread(() -> serve(socket), "FramePeer-" + accepted.get());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;     // Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            FrameReader input = new FrameReader(socket.getInputStream());
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+
+            Frame frame;
+            while ((frame = input.read()) != null) {
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                answered.incrementAndGet();     // Before the write, the other side may check the count as soon as it reads
+                FrameCodec.write(output, answer.apply(frame));
+                output.flush();
+                if (closeAfterEach) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The other side went away, or the peer was closed
+        } finally {
+            open.remove(socket);
+        }
+    }
+
+    // Hangs up on every connection, without closing the listening socket
+    public void dropConnections() throws IOException {
+        for (Socket socket : open) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        dropConnections();
+    }
+
+    /*
+     *      Getters and Setters
+     */
+
+    public int getPort() { return server.getLocalPort(); }
+
+    public int getAcceptedCount() { return accepted.get(); }
+
+    public int getAnsweredCount() { return answered.get(); }
+
+    public int getOpenCount() { return open.size(); }
+
+    public void setDelayMillis(long delayMillis) { this.delayMillis = delayMillis; }
+
+    public void setCloseAfterEach(boolean closeAfterEach) { this.closeAfterEach = closeAfterEach; }
+}
@@ -0,0 +1,85 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      PacketRegistry rebuilding received packets: the single pass fromJson() has to give back the same packet
+ *      as the tree based adapter behind gson(), wherever the packetType sits in the json.
+ */
+package lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonParseException;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+
+import packet.keep_alive.KeepAlivePacket;
+
+import server.server_packet.ServerPacket;
+import server.server_packet.ServerPacketType;
+import server.server_packet.server_packet_class.ServerGenericPacket;
+
+class PacketRegistryTest {
+
+    // The field order Gson writes a ServerPacket in, packetType after the ids
+    private static final String SERVER_KEEP_ALIVE =
+        "{\"payloadPairCounter\":1,\"id\":\"server-1\",\"clusterId\":\"cluster-1\",\"packetType\":\"KEEP_ALIVE\",\"payload\":{\"message0\":\"hi\"}}";
+
+    @Test
+    void tierPacketIsRebuiltWithTheLabelAfterOtherFields() {
+        ServerPacket packet = PacketRegistry.fromJson(SERVER_KEEP_ALIVE, ServerPacket.class);
+        assertInstanceOf(ServerGenericPacket.class, packet);
+        assertEquals(ServerPacketType.KEEP_ALIVE, packet.getPacketType());
+        assertEquals("server-1", packet.getId());
+        assertEquals("hi", packet.getValueByKey("message0"));
+
+        ServerPacket throughTheTree = PacketRegistry.gson().fromJson(SERVER_KEEP_ALIVE, ServerPacket.class);
+        assertEquals(throughTheTree.toJson(), packet.toJson());
+    }
+
+    @Test
+    void senderIdIsReadAsTheTierPacketId() {
+        String json = SERVER_KEEP_ALIVE.replace("\"id\"", "\"senderId\"");
+        assertEquals("server-1", PacketRegistry.fromJson(json, ServerPacket.class).getId());
+    }
+
+    @Test
+    void sharedPacketIsRebuiltAsItsOwnClass() {
+        KeepAlivePacket sent = new KeepAlivePacket(UUID.randomUUID().toString(), "cluster-1", null, false);
+        AbstractPacket packet = PacketRegistry.fromJson(sent.toJson(), AbstractPacket.class);
+        assertInstanceOf(KeepAlivePacket.class, packet);
+        assertEquals(PacketType.KEEP_ALIVE, packet.getPacketType());
+        assertEquals(sent.getPacketId(), packet.getPacketId());
+        assertEquals(sent.toJson(), packet.toJson());
+    }
+
+    @Test
+    void headerAndRegistryAgreeOnThePacket() {
+        PacketHeader header = PacketHeader.read(SERVER_KEEP_ALIVE);
+        assertEquals("server-1", header.toPacket(ServerPacket.class).getId());
+    }
+
+    @Test
+    void missingOrUnknownLabelStillFails() {
+        assertThrows(JsonParseException.class, () -> PacketRegistry.fromJson("{\"id\":\"server-1\"}", ServerPacket.class));
+        assertThrows(JsonParseException.class,
+            () -> PacketRegistry.fromJson(SERVER_KEEP_ALIVE.replace("KEEP_ALIVE", "NOT_A_TYPE"), ServerPacket.class));
+        assertThrows(JsonParseException.class, () -> PacketRegistry.fromJson("[1, 2]", ServerPacket.class));
+        assertNull(PacketRegistry.fromJson("null", ServerPacket.class));
+    }
+
+    @Test
+    void peekStopsAtTheLabel() {
+        // Everything after the label is never read, so it does not have to be valid
+        assertEquals("MESSAGE", PacketTypeAdapterFactory.peekLabel("{\"payload\":{\"a\":[1,{}]},\"packetType\":\"MESSAGE\", !!"));
+        assertNull(PacketTypeAdapterFactory.peekLabel("{\"id\":\"1\"}"));
+        assertNull(PacketTypeAdapterFactory.peekLabel(null));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      JsonPacketCodec vs BinaryPacketCodec: ns per encode and decode, for a keep alive and for a message with a
+ *      small payload. The bytes per packet of each are printed at setup, they don't change from run to run.
+ *
+ *      See Development in the README for how to run it.
+ */
+package packet.codec;
+
+import java.io.IOException;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import packet.AbstractPacket;
+
+import packet.keep_alive.KeepAlivePacket;
+import packet.message_packet.MessagePacket;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PacketCodecBenchmark {
+
+    @Param({ "json", "binary" })
+    public String codec;
+
+    @Param({ "keepAlive", "message" })
+    public String packet;
+
+    private PacketCodec packetCodec;
+    private AbstractPacket sample;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        packetCodec = PacketCodecs.forName(codec);
+
+        if (packet.equals("keepAlive")) {
+            sample = new KeepAlivePacket(UUID.randomUUID().toString(), UUID.randomUUID().toString(), null, false);
+        } else {
+            MessagePacket message = new MessagePacket(UUID.randomUUID().toString(), UUID.randomUUID().toString(), null);
+            message.setRecipientId(UUID.randomUUID().toString());
+            message.addKeyValueToPayload("temperature", "21.5");
+            message.addKeyValueToPayload("unit", "C");
+            sample = message;
+        }
+
+        encoded = packetCodec.encode(sample);
+        System.out.println(codec + " " + packet + ": " + encoded.length + " bytes/packet");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return packetCodec.encode(sample);
+    }
+
+    @Benchmark
+    public AbstractPacket decode() throws IOException {
+        return packetCodec.decode(encoded);
+    }
+}
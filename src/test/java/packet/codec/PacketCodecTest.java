@@ -0,0 +1,193 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Round trips through JsonPacketCodec and BinaryPacketCodec, and choosing between them on a frame
+ *      (PacketCodecs). A packet has to come back with every field exactly as it went in, whichever codec it
+ *      went through.
+ */
+package packet.codec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import lib.PacketHeader;
+
+import packet.AbstractPacket;
+import packet.PacketType;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameReader;
+import packet.frame.FrameType;
+import packet.keep_alive.KeepAlivePacket;
+import packet.lane.Lane;
+import packet.message_packet.MessagePacket;
+
+class PacketCodecTest {
+
+    private static final PacketCodec[] CODECS = { JsonPacketCodec.INSTANCE, BinaryPacketCodec.INSTANCE };
+
+    private static KeepAlivePacket keepAlive() {
+        return new KeepAlivePacket(UUID.randomUUID().toString(), UUID.randomUUID().toString(), null, false);
+    }
+
+    private static void assertSamePacket(AbstractPacket expected, AbstractPacket actual) {
+        assertSame(expected.getClass(), actual.getClass());
+        assertEquals(expected.getPacketType(), actual.getPacketType());
+        assertEquals(expected.getSenderId(), actual.getSenderId());
+        assertEquals(expected.getClusterId(), actual.getClusterId());
+        assertEquals(expected.getRecipientId(), actual.getRecipientId());
+        assertEquals(expected.getPacketId(), actual.getPacketId());
+        assertEquals(expected.getResponseTo(), actual.getResponseTo());
+        assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+        assertEquals(expected.getPayloadPairCounter(), actual.getPayloadPairCounter());
+        assertEquals(expected.getPayload(), actual.getPayload());
+        assertEquals(Arrays.asList(expected.getPayload().keySet().toArray()), Arrays.asList(actual.getPayload().keySet().toArray()), "payload order");
+    }
+
+    private static AbstractPacket roundTrip(PacketCodec codec, AbstractPacket packet) throws IOException {
+        return codec.decode(codec.encode(packet));
+    }
+
+    @Test
+    void everyPacketTypeRoundTrips() throws IOException {
+        for (PacketType type : PacketType.values()) {
+            AbstractPacket packet = PacketClasses.create(type, UUID.randomUUID().toString(), UUID.randomUUID().toString(), null);
+            packet.setRecipientId(UUID.randomUUID().toString());
+            packet.setResponseTo(UUID.randomUUID().toString());
+            packet.addKeyValueToPayload("key", "value");
+            for (PacketCodec codec : CODECS) {
+                assertSamePacket(packet, roundTrip(codec, packet));
+            }
+        }
+    }
+
+    @Test
+    void nullAndNonUuidIdsRoundTrip() throws IOException {
+        MessagePacket packet = new MessagePacket("1", null, null);
+        packet.setRecipientId(null);
+        packet.setPacketId("not-a-uuid");
+        packet.setResponseTo("F47AC10B-58CC-4372-A567-0E02B2C3D479");     // Upper case, UUID.toString() would give it back lower case
+        for (PacketCodec codec : CODECS) {
+            assertSamePacket(packet, roundTrip(codec, packet));
+        }
+    }
+
+    @Test
+    void timeStampsThatAreNotMillisRoundTrip() throws IOException {
+        for (String timeStamp : new String[] { null, "", "0", "007", "-5", "2025-12-02T18:32:29Z", String.valueOf(Long.MAX_VALUE) }) {
+            KeepAlivePacket packet = keepAlive();
+            packet.setTimeStamp(timeStamp);
+            for (PacketCodec codec : CODECS) {
+                assertSamePacket(packet, roundTrip(codec, packet));
+            }
+        }
+    }
+
+    @Test
+    void largeAndUnicodePayloadsRoundTrip() throws IOException {
+        MessagePacket packet = new MessagePacket(UUID.randomUUID().toString(), "cluster-1", null);
+        packet.addStringValue("h\u00e9llo w\u00f6rld \u2713", "", "x".repeat(70_000));
+        packet.addKeyValueToPayload("nullValue", null);
+        LinkedHashMap<String, String> many = new LinkedHashMap<>(packet.getPayload());
+        for (int i = 0; i < 300; i++) {
+            many.put("k" + i, Integer.toString(i));
+        }
+        packet.setPayload(many);
+        packet.setPayloadPairCounter(1 << 20);     // Several varint bytes
+        assertSamePacket(packet, roundTrip(BinaryPacketCodec.INSTANCE, packet));
+    }
+
+    @Test
+    void binaryIsSmallerThanJsonForAKeepAlive() {
+        KeepAlivePacket packet = keepAlive();
+        int binary = BinaryPacketCodec.INSTANCE.encode(packet).length;
+        int json = JsonPacketCodec.INSTANCE.encode(packet).length;
+        assertTrue(binary * 2 < json, "binary " + binary + " bytes vs json " + json);
+    }
+
+    @Test
+    void truncatedOrUnknownBinaryIsRejected() {
+        byte[] bytes = BinaryPacketCodec.INSTANCE.encode(keepAlive());
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            assertThrows(IOException.class, () -> BinaryPacketCodec.INSTANCE.decode(truncated), "cut at " + length);
+        }
+
+        byte[] unknownFormat = bytes.clone();
+        unknownFormat[0] = 99;
+        assertThrows(IOException.class, () -> BinaryPacketCodec.INSTANCE.decode(unknownFormat));
+
+        byte[] unknownType = bytes.clone();
+        unknownType[1] = (byte) PacketType.values().length;
+        assertThrows(IOException.class, () -> BinaryPacketCodec.INSTANCE.decode(unknownType));
+    }
+
+    @Test
+    void codecIsChosenByName() {
+        assertSame(JsonPacketCodec.INSTANCE, PacketCodecs.forName(null));
+        assertSame(JsonPacketCodec.INSTANCE, PacketCodecs.forName("json"));
+        assertSame(BinaryPacketCodec.INSTANCE, PacketCodecs.forName(" Binary "));
+        assertSame(JsonPacketCodec.INSTANCE, PacketCodecs.forName("protobuf"));
+    }
+
+    @Test
+    void binaryBodyIsOnlySentToPeersThatReadIt() {
+        KeepAlivePacket packet = keepAlive();
+
+        Frame older = PacketCodecs.toFrame(FrameCodec.VERSION_3, packet, BinaryPacketCodec.INSTANCE);
+        assertFalse(older.isBinaryBody());
+        assertEquals(packet.toJson(), older.bodyAsString());
+
+        Frame current = PacketCodecs.toFrame(FrameCodec.VERSION_4, packet, BinaryPacketCodec.INSTANCE);
+        assertTrue(current.isBinaryBody());
+        assertEquals(FrameType.KEEP_ALIVE, current.getType());
+
+        assertFalse(PacketCodecs.toFrame(FrameCodec.VERSION_4, packet, JsonPacketCodec.INSTANCE).isBinaryBody());
+    }
+
+    @Test
+    void binaryFlagSurvivesTheWire() throws IOException {
+        KeepAlivePacket packet = keepAlive();
+        Frame sent = PacketCodecs.toFrame(FrameCodec.VERSION_4, packet, BinaryPacketCodec.INSTANCE);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec.write(wire, sent);
+        byte[] bytes = wire.toByteArray();
+
+        // The lane is still read from the type byte with the flag set
+        assertEquals(Lane.CONTROL, Lane.peek(bytes, FrameCodec.HEADER_BYTES));
+
+        Frame read = new FrameReader(new ByteArrayInputStream(bytes)).read();
+        assertTrue(read.isBinaryBody());
+        assertEquals(FrameType.KEEP_ALIVE, read.getType());
+        assertSamePacket(packet, PacketCodecs.decode(read));
+    }
+
+    @Test
+    void jsonReadersSeeTheSamePacketInABinaryBody() throws IOException {
+        KeepAlivePacket packet = keepAlive();
+        Frame binary = PacketCodecs.toFrame(FrameCodec.VERSION_4, packet, BinaryPacketCodec.INSTANCE);
+
+        PacketHeader header = PacketHeader.read(PacketCodecs.json(binary));
+        assertEquals("KEEP_ALIVE", header.getPacketType());
+        assertEquals(packet.getSenderId(), header.getSenderId());
+        assertEquals(packet.getPacketId(), header.getPacketId());
+
+        Frame json = PacketCodecs.toFrame(FrameCodec.VERSION_4, packet, JsonPacketCodec.INSTANCE);
+        assertEquals(packet.toJson(), PacketCodecs.json(json));
+    }
+}
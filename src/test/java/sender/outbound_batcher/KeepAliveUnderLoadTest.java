@@ -0,0 +1,202 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      Keep alives batched alongside a flood of MESSAGEs to the same server. The stand in server works a while
+ *      on every MESSAGE and, like ServerConnectionManager, gives a node another timeout on an ExpiryWheel every
+ *      time one of its keep alives comes in. The keep alives travel in their own lane's batches, so however far
+ *      behind the MESSAGEs get, no node that keeps sending them expires.
+ */
+package sender.outbound_batcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import connection.ExpiryWheel;
+
+import lib.FramePeer;
+import lib.Histogram;
+import lib.PacketHeader;
+
+import packet.frame.Frame;
+import packet.frame.FrameBatch;
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+import packet.keep_alive.KeepAlivePacket;
+import packet.lane.Lane;
+import packet.message_packet.MessagePacket;
+
+import sender.PacketSender;
+
+class KeepAliveUnderLoadTest {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private static final int NODES = 20;
+    private static final long KEEP_ALIVE_EVERY_MILLIS = 100;
+    private static final long KEEP_ALIVE_TIMEOUT_MILLIS = 1000;
+    private static final long RUN_MILLIS = 3000;
+
+    // The server's work per MESSAGE, a few hundred a second is all it gets through
+    private static final long MESSAGE_WORK_MILLIS = 2;
+    private static final int FLOOD_THREADS = 4;
+    // Kept under the read timeout, 4 x 25 MESSAGEs queued at 2ms each is 200ms behind
+    private static final int FLOOD_IN_FLIGHT = 25;
+
+    private final ExpiryWheel<String> expiry = new ExpiryWheel<>(20, 64);
+    private final List<String> expired = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger messagesHandled = new AtomicInteger();
+
+    private final Histogram keepAliveLatencies = new Histogram("keep alive", "us");
+
+    private FramePeer server;
+    private ScheduledExecutorService timer;
+
+    @BeforeEach
+    void start() throws Exception {
+        OutboundBatcher.configure(OutboundBatcher.DEFAULT_WINDOW_MILLIS, OutboundBatcher.DEFAULT_CONTROL_WINDOW_MILLIS, 64, 64 * 1024);
+        server = FramePeer.tcp(this::handle);
+        timer = Executors.newScheduledThreadPool(2);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        timer.shutdownNow();
+        server.close();
+        OutboundBatcher.configure(OutboundBatcher.DEFAULT_WINDOW_MILLIS, OutboundBatcher.DEFAULT_MAX_PACKETS, OutboundBatcher.DEFAULT_MAX_BYTES);
+    }
+
+    // Answers every packet with itself, a BATCH with a BATCH of its packets
+    private Frame handle(Frame frame) {
+        try {
+            List<Frame> packets = (frame.getType() == FrameType.BATCH) ? FrameBatch.decode(frame) : List.of(frame);
+            for (Frame packet : packets) {
+                PacketHeader header = PacketHeader.read(packet.bodyAsString());
+                if (packet.getType() == FrameType.KEEP_ALIVE) {
+                    expiry.schedule(header.getSenderId(), KEEP_ALIVE_TIMEOUT_MILLIS);
+                } else {
+                    Thread.sleep(MESSAGE_WORK_MILLIS);
+                    messagesHandled.incrementAndGet();
+                }
+            }
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return frame;
+        }
+    }
+
+    private PacketSender sender() {
+        PacketSender sender = new PacketSender(LOOPBACK, server.getPort());
+        sender.setFrameVersion(FrameCodec.CURRENT_VERSION);
+        return sender;
+    }
+
+    private CompletableFuture<?> keepAlive(PacketSender sender, String nodeId) {
+        return sender.sendBatched(new KeepAlivePacket(nodeId, "cluster-1", null, false));
+    }
+
+    private void timedKeepAlive(PacketSender sender, String nodeId) {
+        long sentNanos = System.nanoTime();
+        keepAlive(sender, nodeId).thenRun(() -> keepAliveLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos)));
+    }
+
+    @Test
+    void noHealthyNodeExpiresUnderAMessageFlood() throws Exception {
+        List<PacketSender> nodes = new ArrayList<>();
+        List<CompletableFuture<?>> registered = new ArrayList<>();
+        for (int n = 0; n < NODES; n++) {
+            nodes.add(sender());
+            registered.add(keepAlive(nodes.get(n), "node-" + n));
+        }
+        CompletableFuture.allOf(registered.toArray(CompletableFuture<?>[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(NODES, expiry.size(), "every node registered");
+
+        // The flood, as many MESSAGEs as can be in flight
+        AtomicBoolean flooding = new AtomicBoolean(true);
+        List<Thread> flood = new ArrayList<>();
+        for (int t = 0; t < FLOOD_THREADS; t++) {
+            PacketSender sender = sender();
+            Semaphore inFlight = new Semaphore(FLOOD_IN_FLIGHT);
+            Thread thread = new Thread(() -> {
+                while (flooding.get()) {
+                    inFlight.acquireUninterruptibly();
+                    MessagePacket message = new MessagePacket("flood", "cluster-1", null);
+                    message.addKeyValueToPayload("reading", "x".repeat(200));
+                    sender.sendBatched(message).whenComplete((response, e) -> inFlight.release());
+                }
+            }, "Flood-" + t);
+            thread.setDaemon(true);
+            thread.start();
+            flood.add(thread);
+        }
+
+        // Registering opened the control lane's socket, from here on only the flood is in the way. Every node keeps sending its keep alives, the server checks for expired nodes as often as its wheel ticks
+        timer.scheduleAtFixedRate(() -> {
+            for (int n = 0; n < NODES; n++) {
+                timedKeepAlive(nodes.get(n), "node-" + n);
+            }
+        }, KEEP_ALIVE_EVERY_MILLIS, KEEP_ALIVE_EVERY_MILLIS, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(() -> expired.addAll(expiry.advance()), 20, 20, TimeUnit.MILLISECONDS);
+
+        TimeUnit.MILLISECONDS.sleep(RUN_MILLIS);
+        flooding.set(false);
+        for (Thread thread : flood) {
+            thread.join(5000);
+        }
+
+        assertTrue(messagesHandled.get() > RUN_MILLIS / MESSAGE_WORK_MILLIS / 2, "the server was kept busy, " + messagesHandled.get() + " MESSAGEs");
+        assertEquals(List.of(), expired, "healthy nodes expired");
+        assertTrue(keepAliveLatencies.getMax() < TimeUnit.MILLISECONDS.toMicros(KEEP_ALIVE_TIMEOUT_MILLIS / 2), keepAliveLatencies.toString());
+
+        // The keep alives were batched, on their own lane
+        OutboundBatcher control = OutboundBatcher.forDestination(LOOPBACK, server.getPort(), Lane.CONTROL);
+        assertTrue(control.getBatchSizes().getCount() > 0);
+        assertTrue(control.getBatchSizes().getMax() > 1, "no two keep alives shared a frame: " + control.getBatchSizes());
+    }
+
+    @Test
+    void batchIsPeekedAsTheLaneOfItsPackets() throws Exception {
+        Frame keepAlive = Frame.of(FrameCodec.CURRENT_VERSION, FrameType.KEEP_ALIVE, "{}");
+        Frame message = Frame.of(FrameCodec.CURRENT_VERSION, FrameType.MESSAGE, "{}");
+
+        assertEquals(Lane.CONTROL, peek(FrameBatch.encode(FrameCodec.CURRENT_VERSION, List.of(keepAlive, keepAlive))));
+        assertEquals(Lane.BULK, peek(FrameBatch.encode(FrameCodec.CURRENT_VERSION, List.of(message, message))));
+
+        // Only the batch header has arrived, not enough to tell
+        byte[] batch = wire(FrameBatch.encode(FrameCodec.CURRENT_VERSION, List.of(keepAlive)));
+        assertNull(Lane.peek(batch, FrameCodec.HEADER_BYTES));
+    }
+
+    private static Lane peek(Frame frame) throws IOException {
+        byte[] bytes = wire(frame);
+        return Lane.peek(bytes, bytes.length);
+    }
+
+    private static byte[] wire(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.write(out, frame);
+        return out.toByteArray();
+    }
+}
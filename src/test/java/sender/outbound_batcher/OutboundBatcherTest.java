@@ -0,0 +1,123 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      OutboundBatcher against a FramePeer that answers a BATCH like a tier listener does, with a BATCH of each
+ *      packet's own response. Checks the window, the early send of a full batch, and that packets keep their
+ *      order however they are split into batches.
+ */
+package sender.outbound_batcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import lib.FramePeer;
+
+import packet.frame.Frame;
+import packet.frame.FrameBatch;
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+
+class OutboundBatcherTest {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> frameSizes = Collections.synchronizedList(new ArrayList<>());
+
+    private FramePeer peer;
+
+    @BeforeEach
+    void start() throws Exception {
+        peer = FramePeer.tcp(this::answer);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        OutboundBatcher.configure(OutboundBatcher.DEFAULT_WINDOW_MILLIS, OutboundBatcher.DEFAULT_MAX_PACKETS, OutboundBatcher.DEFAULT_MAX_BYTES);
+        peer.close();
+    }
+
+    // Echoes every packet, a BATCH is answered with a BATCH of the packets it held
+    private Frame answer(Frame frame) {
+        if (frame.getType() != FrameType.BATCH) {
+            frameSizes.add(1);
+            received.add(frame.bodyAsString());
+            return frame;
+        }
+        try {
+            List<Frame> packets = FrameBatch.decode(frame);
+            frameSizes.add(packets.size());
+            for (Frame packet : packets) {
+                received.add(packet.bodyAsString());
+            }
+            return FrameBatch.encode(frame.getVersion(), packets);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Frame message(int n) {
+        return Frame.of(FrameCodec.CURRENT_VERSION, FrameType.MESSAGE, "{\"n\":" + n + "}");
+    }
+
+    private static void assertAnswered(List<CompletableFuture<Frame>> responses) throws Exception {
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals("{\"n\":" + i + "}", responses.get(i).get(5, TimeUnit.SECONDS).bodyAsString());
+        }
+    }
+
+    @Test
+    void packetsWithinTheWindowShareOneFrame() throws Exception {
+        OutboundBatcher.configure(200, 32, 64 * 1024);
+        OutboundBatcher batcher = OutboundBatcher.forDestination(LOOPBACK, peer.getPort());
+
+        List<CompletableFuture<Frame>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            responses.add(batcher.submit(message(i)));
+        }
+        assertAnswered(responses);
+        assertEquals(List.of(10), frameSizes);
+    }
+
+    @Test
+    void fullBatchDoesNotWaitForTheWindow() throws Exception {
+        OutboundBatcher.configure(60_000, 4, 64 * 1024);
+        OutboundBatcher batcher = OutboundBatcher.forDestination(LOOPBACK, peer.getPort());
+
+        List<CompletableFuture<Frame>> responses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(batcher.submit(message(i)));
+        }
+        assertAnswered(responses);
+        assertEquals(0, batcher.getQueuedCount());
+    }
+
+    @Test
+    void packetsKeepTheirOrderAcrossBatches() throws Exception {
+        OutboundBatcher.configure(1, 7, 64 * 1024);
+        OutboundBatcher batcher = OutboundBatcher.forDestination(LOOPBACK, peer.getPort());
+
+        List<CompletableFuture<Frame>> responses = new ArrayList<>();
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            responses.add(batcher.submit(message(i)));
+            sent.add("{\"n\":" + i + "}");
+        }
+        assertAnswered(responses);
+        assertEquals(sent, received);
+        assertTrue(frameSizes.size() < 1000, "nothing was batched");
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      PersistentConnectionPool / PersistentConnection against a FramePeer: socket reuse, reconnecting after the
+ *      peer hangs up, idle eviction, and the evictor leaving a busy connection alone.
+ */
+package sender.persistent_connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import lib.FramePeer;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+import packet.lane.Lane;
+
+class PersistentConnectionPoolTest {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private FramePeer peer;
+    private PersistentConnectionPool pool;
+
+    @BeforeEach
+    void start() throws Exception {
+        peer = FramePeer.tcp();
+        pool = new PersistentConnectionPool(PersistentConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS, 2000);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        pool.closeAll();
+        peer.close();
+    }
+
+    private static Frame keepAlive(int n) {
+        return Frame.of(FrameCodec.CURRENT_VERSION, FrameType.KEEP_ALIVE, "{\"n\":" + n + "}");
+    }
+
+    @Test
+    void manyPacketsShareOneSocket() throws Exception {
+        PersistentConnection connection = pool.acquire(LOOPBACK, peer.getPort());
+        for (int i = 0; i < 200; i++) {
+            Frame response = connection.exchange(keepAlive(i));
+            assertEquals("{\"n\":" + i + "}", response.bodyAsString());
+        }
+        assertEquals(1, peer.getAcceptedCount(), "every packet should have gone over the first socket");
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    @Test
+    void oneConnectionPerDestinationLane() {
+        PersistentConnection bulk = pool.acquire(LOOPBACK, peer.getPort());
+        assertSame(bulk, pool.acquire(LOOPBACK, peer.getPort(), Lane.BULK));
+        assertNotSame(bulk, pool.acquire(LOOPBACK, peer.getPort(), Lane.CONTROL));
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test
+    void reconnectsAfterThePeerHangsUp() throws Exception {
+        peer.setCloseAfterEach(true);
+        PersistentConnection connection = pool.acquire(LOOPBACK, peer.getPort());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("{\"n\":" + i + "}", connection.exchange(keepAlive(i)).bodyAsString());
+        }
+        assertEquals(3, peer.getAcceptedCount());
+        assertEquals(3, peer.getAnsweredCount(), "a stale write must not be answered twice");
+    }
+
+    @Test
+    void idleSocketIsClosedAndReopenedOnNextUse() throws Exception {
+        PersistentConnectionPool shortIdle = new PersistentConnectionPool(50, 2000);
+        try {
+            PersistentConnection connection = shortIdle.acquire(LOOPBACK, peer.getPort());
+            connection.exchange(keepAlive(0));
+            assertTrue(connection.isOpen());
+
+            TimeUnit.MILLISECONDS.sleep(120);
+            shortIdle.evictIdle();
+            assertFalse(connection.isOpen(), "the socket sat idle past the timeout");
+            assertEquals(1, shortIdle.getPooledCount(), "the entry is kept for the next packet");
+
+            connection.exchange(keepAlive(1));
+            assertTrue(connection.isOpen());
+            assertEquals(2, peer.getAcceptedCount());
+        } finally {
+            shortIdle.closeAll();
+        }
+    }
+
+    @Test
+    void evictorSkipsAConnectionInTheMiddleOfAnExchange() throws Exception {
+        peer.setDelayMillis(600);
+        PersistentConnection connection = pool.acquire(LOOPBACK, peer.getPort());
+        connection.exchange(keepAlive(0));
+
+        CompletableFuture<Frame> slow = CompletableFuture.supplyAsync(() -> {
+            try {
+                return connection.exchange(keepAlive(1));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(250);
+
+        // Well past a 100ms idle timeout since the exchange started, but it is still waiting on the response
+        long started = System.nanoTime();
+        boolean closed = connection.closeIfIdle(TimeUnit.MILLISECONDS.toNanos(100));
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertFalse(closed, "a busy connection is not idle");
+        assertTrue(tookMillis < 100, "the evictor waited " + tookMillis + "ms behind the exchange");
+        assertEquals("{\"n\":1}", slow.get(5, TimeUnit.SECONDS).bodyAsString());
+        assertTrue(connection.isOpen());
+    }
+}
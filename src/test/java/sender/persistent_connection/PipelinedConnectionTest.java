@@ -0,0 +1,119 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      PipelinedConnection against a FramePeer: many requests in flight on one socket, and send() handing the
+ *      write to a write worker instead of writing on the thread that sends (the shared timer, for keep alives).
+ */
+package sender.persistent_connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import lib.FramePeer;
+
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.frame.FrameType;
+
+class PipelinedConnectionTest {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private FramePeer peer;
+    private ScheduledExecutorService timer;
+    private PipelinedConnection connection;
+
+    @BeforeEach
+    void start() throws Exception {
+        peer = FramePeer.tcp();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        connection = new PipelinedConnection(LOOPBACK, peer.getPort(), response -> null, timer);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        connection.close();
+        peer.close();
+        timer.shutdownNow();
+    }
+
+    private static Frame message(String body) {
+        return Frame.of(FrameCodec.CURRENT_VERSION, FrameType.MESSAGE, body);
+    }
+
+    @Test
+    void manyRequestsInFlightAreAnsweredInOrder() throws Exception {
+        List<CompletableFuture<Frame>> responses = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            responses.add(connection.send(message("{\"n\":" + i + "}"), null, 5000));
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals("{\"n\":" + i + "}", responses.get(i).get(5, TimeUnit.SECONDS).bodyAsString());
+        }
+        assertEquals(1, peer.getAcceptedCount());
+    }
+
+    @Test
+    void sendDoesNotWaitOnAPeerThatIsNotReading() throws Exception {
+        // Open the socket first, so every send below finds it open
+        connection.send(message("{}"), null, 5000).get(5, TimeUnit.SECONDS);
+
+        // The peer takes a second per frame, far more than fits in the socket buffers is sent to it
+        peer.setDelayMillis(1000);
+        String big = "x".repeat(256 * 1024);
+        long started = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            connection.send(message(big), null, 60_000);
+        }
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertTrue(tookMillis < 1000, "25MB to a stalled peer held the sender up for " + tookMillis + "ms");
+        assertEquals(100, connection.getInFlightCount());
+    }
+
+    @Test
+    void closingFailsRequestsStillQueued() throws Exception {
+        connection.send(message("{}"), null, 5000).get(5, TimeUnit.SECONDS);
+        peer.setDelayMillis(10_000);
+
+        CompletableFuture<Frame> waiting = connection.send(message("{}"), null, 60_000);
+        connection.close();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+
+    @Test
+    void reconnectsForTheNextRequestAfterThePeerHangsUp() throws Exception {
+        assertEquals("{\"n\":0}", connection.send(message("{\"n\":0}"), null, 5000).get(5, TimeUnit.SECONDS).bodyAsString());
+        peer.dropConnections();
+
+        // The request that finds the socket gone fails, a later one opens a new socket
+        Frame response = null;
+        for (int attempt = 0; attempt < 50 && response == null; attempt++) {
+            try {
+                response = connection.send(message("{\"n\":1}"), null, 1000).get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                TimeUnit.MILLISECONDS.sleep(20);
+            }
+        }
+        assertEquals("{\"n\":1}", response.bodyAsString());
+        assertEquals(2, peer.getAcceptedCount());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *      Author: Nathaniel Brewer
+ *
+ *      A real ServerListener in blocking mode behind a small AdmissionControl, flooded with MESSAGEs over
+ *      persistent connections while more persistent connections sit idle than it has handler threads for.
+ *      Nodes keep sending keep alives through all of it.
+ *
+ *      The handler threads have to stay at or under maxThreads (idle connections are closed to make room,
+ *      their senders reconnect), and every keep alive has to be answered well inside a keep alive timeout.
+ */
+package server.server_listener;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import java.net.ServerSocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import lib.Histogram;
+import lib.InstanceContext;
+import lib.PacketHeader;
+
+import listener.ListenerMode;
+import listener.admission_control.AdmissionControl;
+import listener.handler_executor.HandlerExecutor;
+import listener.handler_executor.HandlerExecutorMode;
+
+import packet.AbstractPacket;
+import packet.codec.PacketCodecs;
+import packet.frame.Frame;
+import packet.frame.FrameCodec;
+import packet.keep_alive.KeepAlivePacket;
+import packet.message_packet.MessagePacket;
+
+import sender.persistent_connection.PersistentConnection;
+
+import server.server_connections.ServerConnectionDto;
+import server.server_connections.ServerPriority;
+import server.server_connections.server_connection_manager.ServerNodeConnectionManager;
+
+class ServerListenerFloodTest {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private static final int MAX_CONCURRENT = 4;
+    private static final int RESERVED_CONTROL = 2;
+    private static final int MAX_THREADS = 16;
+
+    private static final int IDLE_CONNECTIONS = 24;     // More than there are threads for
+    private static final int FLOOD_THREADS = 8;
+    private static final int KEEP_ALIVE_NODES = 4;
+    private static final long KEEP_ALIVE_EVERY_MILLIS = 50;
+    private static final long RUN_MILLIS = 3000;
+
+    // Far below the keep alive timeouts the tiers use (seconds), a keep alive that took this long would be a stall
+    private static final long KEEP_ALIVE_MAX_MILLIS = 500;
+
+    private final InstanceContext context = new InstanceContext("flood-server", null);
+    private final List<PersistentConnection> connections = new ArrayList<>();
+
+    private ServerListener listener;
+    private AdmissionControl admission;
+    private int port;
+
+    @BeforeEach
+    void start() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        admission = new AdmissionControl(
+            "Server-flood",
+            HandlerExecutor.create(HandlerExecutorMode.THREAD, 0, "Server-flood-Handler"),
+            MAX_CONCURRENT,
+            RESERVED_CONTROL,
+            MAX_THREADS,
+            256,
+            100,
+            2000,
+            ServerListener::overloadResponse
+        );
+        listener = context.call(() -> new ServerListener(port, 200, "node", ListenerMode.BLOCKING, 0, admission));
+        context.newThread(listener, "Server-flood-Listener").start();
+    }
+
+    @AfterEach
+    void stop() {
+        for (PersistentConnection connection : connections) {
+            connection.close();
+        }
+        listener.closeSocket();
+        admission.shutdown();
+    }
+
+    // A node the server knows, so its packets are handled like any registered node's
+    private String registeredNode() {
+        String nodeId = UUID.randomUUID().toString();
+        context.run(() -> ServerNodeConnectionManager.getInstance().addConnection(
+            new ServerConnectionDto(nodeId, LOOPBACK, 0, ServerPriority.CRITICAL)
+        ));
+        return nodeId;
+    }
+
+    private PersistentConnection connect() {
+        PersistentConnection connection = new PersistentConnection(LOOPBACK, port, 5000);
+        synchronized (connections) {
+            connections.add(connection);
+        }
+        return connection;
+    }
+
+    private static String exchange(PersistentConnection connection, AbstractPacket packet) throws IOException {
+        Frame response = connection.exchange(Frame.of(FrameCodec.CURRENT_VERSION, packet.getPacketType(), packet.toJson()));
+        return PacketHeader.read(PacketCodecs.json(response)).getPacketType();
+    }
+
+    private static MessagePacket message(String nodeId) {
+        MessagePacket message = new MessagePacket(nodeId, "cluster-1", null);
+        message.addKeyValueToPayload("reading", "x".repeat(512));
+        return message;
+    }
+
+    @Test
+    void keepAlivesAreAnsweredAndThreadsStayCappedUnderAFlood() throws Exception {
+        // Persistent connections that send once and then sit idle, each parks a handler thread on its read
+        for (int i = 0; i < IDLE_CONNECTIONS; i++) {
+            assertEquals("ACK", exchange(connect(), message(registeredNode())));
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+
+        // Watches the handler threads the whole time
+        AtomicInteger mostThreads = new AtomicInteger();
+        threads.add(new Thread(() -> {
+            while (running.get()) {
+                mostThreads.accumulateAndGet(admission.getThreads(), Math::max);
+                pause(2);
+            }
+        }, "Flood-Threads"));
+
+        // The flood, every thread sending MESSAGEs back to back over its own persistent connection
+        AtomicLong messagesAnswered = new AtomicLong();
+        for (int t = 0; t < FLOOD_THREADS; t++) {
+            String nodeId = registeredNode();
+            PersistentConnection connection = connect();
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        if (exchange(connection, message(nodeId)).equals("ACK")) {
+                            messagesAnswered.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        // Closed to make room, or turned away, the next exchange reconnects
+                    }
+                }
+            }, "Flood-" + t));
+        }
+
+        // Nodes keeping their connection alive, idle in between like a real node's
+        Histogram keepAliveLatencies = new Histogram("keep alive", "ms");
+        List<String> keepAliveFailures = Collections.synchronizedList(new ArrayList<>());
+        for (int n = 0; n < KEEP_ALIVE_NODES; n++) {
+            String nodeId = registeredNode();
+            PersistentConnection connection = connect();
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    long sentNanos = System.nanoTime();
+                    try {
+                        String answer = exchange(connection, new KeepAlivePacket(nodeId, "cluster-1", null, false));
+                        if (!answer.equals("ACK")) {
+                            keepAliveFailures.add(answer);
+                        }
+                    } catch (IOException e) {
+                        keepAliveFailures.add(e.toString());
+                    }
+                    keepAliveLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentNanos));
+                    pause(KEEP_ALIVE_EVERY_MILLIS);
+                }
+            }, "Flood-KeepAlive-" + n));
+        }
+
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        TimeUnit.MILLISECONDS.sleep(RUN_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+
+        assertTrue(mostThreads.get() <= MAX_THREADS, mostThreads.get() + " handler threads, the cap is " + MAX_THREADS);
+        assertTrue(admission.getEvictedIdleCount() > 0, "the idle connections never had to make room");
+        assertTrue(messagesAnswered.get() > 1000, "the flood only got " + messagesAnswered.get() + " MESSAGEs through");
+
+        assertEquals(List.of(), keepAliveFailures);
+        assertTrue(keepAliveLatencies.getCount() > RUN_MILLIS / KEEP_ALIVE_EVERY_MILLIS, keepAliveLatencies.toString());
+        assertTrue(keepAliveLatencies.getMax() < KEEP_ALIVE_MAX_MILLIS, keepAliveLatencies.toString());
+    }
+
+    private static void pause(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}